@@ -31,6 +31,7 @@ package org.embl.mobie.io.n5.loaders;
 import java.io.File;
 import java.io.IOException;
 
+import org.embl.mobie.io.n5.readers.ReadOnlyN5FSReader;
 import org.janelia.saalfeldlab.n5.N5FSReader;
 
 import bdv.cache.SharedQueue;
@@ -40,15 +41,31 @@ public class N5FSImageLoader extends N5ImageLoader {
     private final File n5File;
 
     public N5FSImageLoader(final File n5File, final AbstractSequenceDescription<?, ?, ?> sequenceDescription) throws IOException {
-        super(new N5FSReader(n5File.getAbsolutePath()), sequenceDescription);
+        this(n5File, sequenceDescription, false);
+    }
+
+    /**
+     * @param readOnly the container is not modified while it is open, such that
+     *                 it is read without file locks, see {@link ReadOnlyN5FSReader}
+     */
+    public N5FSImageLoader(final File n5File, final AbstractSequenceDescription<?, ?, ?> sequenceDescription, final boolean readOnly) throws IOException {
+        super(createReader(n5File, readOnly), sequenceDescription);
         this.n5File = n5File;
     }
 
     public N5FSImageLoader(final File n5File, final AbstractSequenceDescription<?, ?, ?> sequenceDescription, SharedQueue sharedQueue) throws IOException {
-        super(new N5FSReader(n5File.getAbsolutePath()), sequenceDescription, sharedQueue);
+        this(n5File, sequenceDescription, sharedQueue, false);
+    }
+
+    public N5FSImageLoader(final File n5File, final AbstractSequenceDescription<?, ?, ?> sequenceDescription, SharedQueue sharedQueue, final boolean readOnly) throws IOException {
+        super(createReader(n5File, readOnly), sequenceDescription, sharedQueue);
         this.n5File = n5File;
     }
 
+    private static N5FSReader createReader(final File n5File, final boolean readOnly) throws IOException {
+        return readOnly ? new ReadOnlyN5FSReader(n5File.getAbsolutePath()) : new N5FSReader(n5File.getAbsolutePath());
+    }
+
     public File getN5File() {
         return n5File;
     }
@@ -30,31 +30,28 @@ package org.embl.mobie.io.n5.loaders;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.function.Function;
 
+import org.embl.mobie.io.n5.util.CellCache;
+import org.embl.mobie.io.n5.util.CellCacheService;
+import org.embl.mobie.io.n5.util.CellPrefetcher;
+import org.embl.mobie.io.n5.util.Fetchers;
+import org.embl.mobie.io.n5.util.LoaderThreads;
+import org.embl.mobie.io.n5.util.N5CacheArrayLoader;
+import org.embl.mobie.io.n5.util.OffHeapAccess;
 import org.embl.mobie.io.ome.zarr.util.OmeZarrMultiscales;
-import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
-import org.janelia.saalfeldlab.n5.DataBlock;
 import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
-import org.janelia.saalfeldlab.n5.DoubleArrayDataBlock;
-import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
-import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
-import org.janelia.saalfeldlab.n5.LongArrayDataBlock;
 import org.janelia.saalfeldlab.n5.N5Reader;
-import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
 import org.jdom2.Element;
 
 import bdv.AbstractViewerSetupImgLoader;
 import bdv.ViewerImgLoader;
 import bdv.cache.CacheControl;
 import bdv.img.cache.SimpleCacheArrayLoader;
-import bdv.img.cache.VolatileGlobalCellCache;
 import bdv.util.ConstantRandomAccessible;
 import bdv.util.MipmapTransforms;
 import lombok.extern.slf4j.Slf4j;
@@ -66,6 +63,7 @@ import mpicbg.spim.data.registration.ViewRegistrations;
 import mpicbg.spim.data.sequence.MultiResolutionImgLoader;
 import mpicbg.spim.data.sequence.MultiResolutionSetupImgLoader;
 import mpicbg.spim.data.sequence.SequenceDescription;
+import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.Dimensions;
 import net.imglib2.FinalDimensions;
@@ -73,7 +71,6 @@ import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.Volatile;
 import net.imglib2.cache.queue.BlockingFetchQueues;
-import net.imglib2.cache.queue.FetcherThreads;
 import net.imglib2.cache.volatiles.CacheHints;
 import net.imglib2.cache.volatiles.LoadingStrategy;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
@@ -126,8 +123,8 @@ public class N5ImageLoader implements ViewerImgLoader, MultiResolutionImgLoader
     protected AbstractSequenceDescription<?, ?, ?> seq;
     protected ViewRegistrations viewRegistrations;
     private volatile boolean isOpen = false;
-    private FetcherThreads fetchers;
-    private VolatileGlobalCellCache cache;
+    private Fetchers fetchers;
+    private CellCache cache;
     private BlockingFetchQueues<Callable<?>> queue;
 
 
@@ -151,6 +148,9 @@ public class N5ImageLoader implements ViewerImgLoader, MultiResolutionImgLoader
 
     public static SimpleCacheArrayLoader<?> createCacheArrayLoader(final N5Reader n5, final String pathName) throws IOException {
         final DatasetAttributes attributes = n5.getDatasetAttributes(pathName);
+        if (OffHeapAccess.enabled)
+            return new N5CacheArrayLoader<>(n5, pathName, attributes,
+                dataBlock -> OffHeapAccess.copyOf(attributes.getDataType(), dataBlock.getData()));
         switch (attributes.getDataType()) {
             case UINT8:
             case INT8:
@@ -219,11 +219,12 @@ public class N5ImageLoader implements ViewerImgLoader, MultiResolutionImgLoader
                         }
                     }
                     if (queue == null) {
-                        final int numFetcherThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+                        final int numFetcherThreads = LoaderThreads.numFetcherThreads();
                         queue = new BlockingFetchQueues<>(maxNumLevels, numFetcherThreads);
-                        fetchers = new FetcherThreads(queue, numFetcherThreads);
+                        fetchers = Fetchers.create(queue, numFetcherThreads);
                     }
-                    cache = new VolatileGlobalCellCache(queue);
+                    cache = CellCache.create(queue, CellCacheService.sourceName(n5));
+                    preparePlayback();
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
@@ -299,62 +300,24 @@ public class N5ImageLoader implements ViewerImgLoader, MultiResolutionImgLoader
         return cache;
     }
 
-    private static class N5CacheArrayLoader<A> implements SimpleCacheArrayLoader<A> {
-        private final N5Reader n5;
-        private final String pathName;
-        private final DatasetAttributes attributes;
-        private final Function<DataBlock<?>, A> createArray;
-
-        N5CacheArrayLoader(final N5Reader n5, final String pathName, final DatasetAttributes attributes, final Function<DataBlock<?>, A> createArray) {
-            this.n5 = n5;
-            this.pathName = pathName;
-            this.attributes = attributes;
-            this.createArray = createArray;
-        }
-
-        @Override
-        public A loadArray(final long[] gridPosition, int[] cellDimensions) throws IOException {
-            DataBlock<?> block = null;
-
-            try {
-                block = n5.readBlock(pathName, attributes, gridPosition);
-            } catch (Exception e) {
-                log.error("Error loading " + pathName + " at block " + Arrays.toString(gridPosition) + ": " + e);
-            }
+    /**
+     * @return the prefetcher of the cell cache, with its hit rate, or {@code null}
+     * if {@link CellPrefetcher#enabled} was not set when the loader was opened
+     */
+    public CellPrefetcher getPrefetcher() {
+        open();
+        return cache.getPrefetcher();
+    }
 
-//			if ( block != null )
-//				log.warn( pathName + " " + Arrays.toString( gridPosition ) + " " + block.getNumElements() );
-//			else
-//				log.warn( pathName + " " + Arrays.toString( gridPosition ) + " NaN" );
-
-
-            if (block == null) {
-                final int[] blockSize = attributes.getBlockSize();
-                final int n = blockSize[0] * blockSize[1] * blockSize[2];
-                switch (attributes.getDataType()) {
-                    case UINT8:
-                    case INT8:
-                        return createArray.apply(new ByteArrayDataBlock(blockSize, gridPosition, new byte[n]));
-                    case UINT16:
-                    case INT16:
-                        return createArray.apply(new ShortArrayDataBlock(blockSize, gridPosition, new short[n]));
-                    case UINT32:
-                    case INT32:
-                        return createArray.apply(new IntArrayDataBlock(blockSize, gridPosition, new int[n]));
-                    case UINT64:
-                    case INT64:
-                        return createArray.apply(new LongArrayDataBlock(blockSize, gridPosition, new long[n]));
-                    case FLOAT32:
-                        return createArray.apply(new FloatArrayDataBlock(blockSize, gridPosition, new float[n]));
-                    case FLOAT64:
-                        return createArray.apply(new DoubleArrayDataBlock(blockSize, gridPosition, new double[n]));
-                    default:
-                        throw new IllegalArgumentException();
-                }
-            } else {
-                return createArray.apply(block);
-            }
-        }
+    /**
+     * Lets the prefetcher of the cache preload the timepoints ahead of the displayed one.
+     */
+    private void preparePlayback() {
+        final CellPrefetcher prefetcher = cache.getPrefetcher();
+        if (prefetcher == null)
+            return;
+        final int[] timepointIds = seq.getTimePoints().getTimePointsOrdered().stream().mapToInt(TimePoint::getId).toArray();
+        prefetcher.setTimepoints(timepointIds, (timepoint, setup, level) -> setupImgLoaders.get(setup).getVolatileImage(timepoint, level));
     }
 
     public class SetupImgLoader<T extends NativeType<T>, V extends Volatile<T> & NativeType<V>>
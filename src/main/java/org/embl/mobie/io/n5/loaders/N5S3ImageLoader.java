@@ -79,7 +79,7 @@ public class N5S3ImageLoader extends N5ImageLoader implements S3ImageLoader {
     static class N5AmazonS3ReaderCreator {
 
         public N5AmazonS3Reader create(String serviceEndpoint, String signingRegion, String bucketName, String key) throws IOException {
-            final AmazonS3 s3 = S3Utils.getS3Client(serviceEndpoint, signingRegion, bucketName);
+            final AmazonS3 s3 = S3Utils.forChunkReading(S3Utils.getS3Client(serviceEndpoint, signingRegion, bucketName), serviceEndpoint);
             return new N5AmazonS3Reader(s3, bucketName, key);
         }
     }
@@ -30,6 +30,7 @@ package org.embl.mobie.io.n5.loaders;
 
 import java.io.IOException;
 
+import org.embl.mobie.io.n5.util.CellCache;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5Reader;
 
@@ -66,9 +67,13 @@ public class SetupImgLoader<T extends NativeType<T>, V extends Volatile<T> & Nat
     private final double[][] mipmapResolutions;
     private final AffineTransform3D[] mipmapTransforms;
     protected N5Reader n5;
-    private VolatileGlobalCellCache cache;
+    private CellCache cache;
 
     public SetupImgLoader(final int setupId, final T type, final V volatileType, N5Reader n5, VolatileGlobalCellCache cache) throws IOException {
+        this(setupId, type, volatileType, n5, new CellCache.Global(cache));
+    }
+
+    public SetupImgLoader(final int setupId, final T type, final V volatileType, N5Reader n5, CellCache cache) throws IOException {
         super(type, volatileType);
         this.n5 = n5;
         this.cache = cache;
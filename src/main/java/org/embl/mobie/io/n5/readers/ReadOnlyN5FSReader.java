@@ -0,0 +1,86 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.readers;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+
+import org.embl.mobie.io.n5.util.ByteBufferInputStream;
+import org.embl.mobie.io.n5.util.ReadOnlyFiles;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockReader;
+import org.janelia.saalfeldlab.n5.GsonAttributesParser;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+
+/**
+ * {@link N5FSReader} for containers that are not modified while they are open.
+ * Attributes and blocks are read without file locks, blocks with a single bulk
+ * read or memory-mapped.
+ */
+public class ReadOnlyN5FSReader extends N5FSReader {
+
+    public ReadOnlyN5FSReader(final String basePath, final GsonBuilder gsonBuilder) throws IOException {
+        super(basePath, gsonBuilder);
+    }
+
+    public ReadOnlyN5FSReader(final String basePath) throws IOException {
+        super(basePath);
+    }
+
+    @Override
+    public HashMap<String, JsonElement> getAttributes(final String pathName) throws IOException {
+        final Path path = Paths.get(basePath, getAttributesPath(pathName).toString());
+        try (final Reader reader = ReadOnlyFiles.newReader(path)) {
+            return GsonAttributesParser.readAttributes(reader, gson);
+        } catch (NoSuchFileException e) {
+            return new HashMap<>();
+        }
+    }
+
+    @Override
+    public DataBlock<?> readBlock(
+        final String pathName,
+        final DatasetAttributes datasetAttributes,
+        final long... gridPosition) throws IOException {
+        final Path path = Paths.get(basePath, getDataBlockPath(pathName, gridPosition).toString());
+        try {
+            return DefaultBlockReader.readBlock(new ByteBufferInputStream(ReadOnlyFiles.read(path)), datasetAttributes, gridPosition);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+}
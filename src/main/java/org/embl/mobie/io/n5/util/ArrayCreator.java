@@ -28,6 +28,13 @@
  */
 package org.embl.mobie.io.n5.util;
 
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
 import java.util.function.BiConsumer;
 
 import org.janelia.saalfeldlab.n5.DataBlock;
@@ -51,74 +58,280 @@ public abstract class ArrayCreator<A, T extends NativeType<T>> {
     protected final CellGrid cellGrid;
     protected final DataType dataType;
     protected final BiConsumer<ArrayImg<T, ?>, DataBlock<?>> copyFromBlock;
+    protected final String fillValue;
+    protected final boolean offHeap;
 
     public ArrayCreator(CellGrid cellGrid, DataType dataType) {
+        this(cellGrid, dataType, null);
+    }
+
+    /**
+     * @param fillValue the value of missing chunks, as given by the zarr {@code fill_value};
+     *                  {@code null} means zero
+     */
+    public ArrayCreator(CellGrid cellGrid, DataType dataType, String fillValue) {
         this.cellGrid = cellGrid;
         this.dataType = dataType;
         this.copyFromBlock = N5CellLoader.createCopy(dataType);
+        this.fillValue = fillValue;
+        this.offHeap = OffHeapAccess.enabled;
     }
 
     @NotNull
     public A VolatileDoubleArray(DataBlock<?> dataBlock, long[] cellDims, int n) {
+        if (isCellShaped(dataBlock, cellDims, n))
+            return wrapStorageArray(dataBlock.getData());
+
+        // the cell array may only partially be covered by a border chunk, hence it is zeroed;
+        // the decoded block is not referenced anywhere else after the copy and can be recycled
+        final Object cellData = ArrayPool.shared().takeZeroed(dataType, n);
         switch (dataType) {
             case UINT8:
             case INT8:
-                byte[] bytes = new byte[n];
-                copyFromBlock.accept(Cast.unchecked(ArrayImgs.bytes(bytes, cellDims)), dataBlock);
-                return (A) new VolatileByteArray(bytes, true);
+                copyFromBlock.accept(Cast.unchecked(ArrayImgs.bytes((byte[]) cellData, cellDims)), dataBlock);
+                break;
             case UINT16:
             case INT16:
-                short[] shorts = new short[n];
-                copyFromBlock.accept(Cast.unchecked(ArrayImgs.shorts(shorts, cellDims)), dataBlock);
-                return (A) new VolatileShortArray(shorts, true);
+                copyFromBlock.accept(Cast.unchecked(ArrayImgs.shorts((short[]) cellData, cellDims)), dataBlock);
+                break;
             case UINT32:
             case INT32:
-                int[] ints = new int[n];
-                copyFromBlock.accept(Cast.unchecked(ArrayImgs.ints(ints, cellDims)), dataBlock);
-                return (A) new VolatileIntArray(ints, true);
+                copyFromBlock.accept(Cast.unchecked(ArrayImgs.ints((int[]) cellData, cellDims)), dataBlock);
+                break;
             case UINT64:
             case INT64:
-                long[] longs = new long[n];
-                copyFromBlock.accept(Cast.unchecked(ArrayImgs.longs(longs, cellDims)), dataBlock);
-                return (A) new VolatileLongArray(longs, true);
+                copyFromBlock.accept(Cast.unchecked(ArrayImgs.longs((long[]) cellData, cellDims)), dataBlock);
+                break;
             case FLOAT32:
-                float[] floats = new float[n];
-                copyFromBlock.accept(Cast.unchecked(ArrayImgs.floats(floats, cellDims)), dataBlock);
-                return (A) new VolatileFloatArray(floats, true);
+                copyFromBlock.accept(Cast.unchecked(ArrayImgs.floats((float[]) cellData, cellDims)), dataBlock);
+                break;
             case FLOAT64:
-                double[] doubles = new double[n];
-                copyFromBlock.accept(Cast.unchecked(ArrayImgs.doubles(doubles, cellDims)), dataBlock);
-                return (A) new VolatileDoubleArray(doubles, true);
+                copyFromBlock.accept(Cast.unchecked(ArrayImgs.doubles((double[]) cellData, cellDims)), dataBlock);
+                break;
             default:
                 throw new IllegalArgumentException();
         }
+        ArrayPool.shared().recycle(dataBlock.getData());
+        // wraps the copy on heap, or moves it off heap
+        return wrapStorageArray(cellData);
     }
 
-    public A createEmptyArray(long[] gridPosition) {
-        long[] cellDims = getCellDims(gridPosition);
-        int n = (int) (cellDims[0] * cellDims[1] * cellDims[2]);
+    /**
+     * Converts the decompressed bytes of a chunk into the cell array in a single pass,
+     * cropping chunks at the border of the dataset. Elements are copied in bulk and
+     * swapped while copying if the byte order of the dataset is not the native byte order.
+     *
+     * @param bytes     the chunk bytes, in the byte order of the dataset
+     * @param blockSize the size of the chunk
+     * @param cellDims  the size of the cell, in the same axis order as the {@code blockSize}
+     * @param n         the number of elements of the cell
+     */
+    protected A copyFromBytes(ByteBuffer bytes, int[] blockSize, long[] cellDims, int n) {
+        final int rowLength = (int) cellDims[0];
+        final int[] rowOffsets = rowOffsets(blockSize, cellDims, n / rowLength);
+        if (offHeap)
+            return Cast.unchecked(OffHeapAccess.copyOf(dataType, bytes, rowOffsets, rowLength, n));
+
+        final Object cellData = ArrayPool.shared().take(dataType, n);
+        final ByteBuffer view = bytes.duplicate().order(bytes.order());
+        switch (dataType) {
+            case UINT8:
+            case INT8: {
+                final byte[] dst = (byte[]) cellData;
+                final ByteBuffer src = bytes.slice();
+                if (rowOffsets == null)
+                    src.get(dst, 0, n);
+                else
+                    for (int r = 0; r < rowOffsets.length; r++) {
+                        src.position(rowOffsets[r]);
+                        src.get(dst, r * rowLength, rowLength);
+                    }
+                break;
+            }
+            case UINT16:
+            case INT16: {
+                final short[] dst = (short[]) cellData;
+                final ShortBuffer src = view.asShortBuffer();
+                if (rowOffsets == null)
+                    src.get(dst, 0, n);
+                else
+                    for (int r = 0; r < rowOffsets.length; r++) {
+                        src.position(rowOffsets[r]);
+                        src.get(dst, r * rowLength, rowLength);
+                    }
+                break;
+            }
+            case UINT32:
+            case INT32: {
+                final int[] dst = (int[]) cellData;
+                final IntBuffer src = view.asIntBuffer();
+                if (rowOffsets == null)
+                    src.get(dst, 0, n);
+                else
+                    for (int r = 0; r < rowOffsets.length; r++) {
+                        src.position(rowOffsets[r]);
+                        src.get(dst, r * rowLength, rowLength);
+                    }
+                break;
+            }
+            case UINT64:
+            case INT64: {
+                final long[] dst = (long[]) cellData;
+                final LongBuffer src = view.asLongBuffer();
+                if (rowOffsets == null)
+                    src.get(dst, 0, n);
+                else
+                    for (int r = 0; r < rowOffsets.length; r++) {
+                        src.position(rowOffsets[r]);
+                        src.get(dst, r * rowLength, rowLength);
+                    }
+                break;
+            }
+            case FLOAT32: {
+                final float[] dst = (float[]) cellData;
+                final FloatBuffer src = view.asFloatBuffer();
+                if (rowOffsets == null)
+                    src.get(dst, 0, n);
+                else
+                    for (int r = 0; r < rowOffsets.length; r++) {
+                        src.position(rowOffsets[r]);
+                        src.get(dst, r * rowLength, rowLength);
+                    }
+                break;
+            }
+            case FLOAT64: {
+                final double[] dst = (double[]) cellData;
+                final DoubleBuffer src = view.asDoubleBuffer();
+                if (rowOffsets == null)
+                    src.get(dst, 0, n);
+                else
+                    for (int r = 0; r < rowOffsets.length; r++) {
+                        src.position(rowOffsets[r]);
+                        src.get(dst, r * rowLength, rowLength);
+                    }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException();
+        }
+        return wrapStorageArray(cellData);
+    }
+
+    /**
+     * Copies the cell out of the storage array of a decoded chunk that holds
+     * more than the cell, e.g. several channels, cropping chunks at the border
+     * of the dataset. The storage array is left as it is.
+     *
+     * @param data      the storage array of the chunk
+     * @param offset    the offset of the cell within the chunk, in elements
+     * @param blockSize the size of the chunk
+     * @param cellDims  the size of the cell, in the same axis order as the {@code blockSize}
+     * @param n         the number of elements of the cell
+     */
+    protected A copyFromArray(Object data, int offset, int[] blockSize, long[] cellDims, int n) {
+        final int rowLength = (int) cellDims[0];
+        final int[] rowOffsets = rowOffsets(blockSize, cellDims, n / rowLength);
+        final Object cellData = ArrayPool.shared().take(dataType, n);
+        if (rowOffsets == null)
+            System.arraycopy(data, offset, cellData, 0, n);
+        else
+            for (int r = 0; r < rowOffsets.length; r++)
+                System.arraycopy(data, offset + rowOffsets[r], cellData, r * rowLength, rowLength);
+        return wrapStorageArray(cellData);
+    }
+
+    /**
+     * Computes the offset (in elements) of every row of the cell within the chunk.
+     *
+     * @return {@code null} if the rows of the cell are contiguous in the chunk
+     */
+    private static int[] rowOffsets(int[] blockSize, long[] cellDims, int numRows) {
+        final int numDimensions = cellDims.length;
+        final int[] rowOffsets = new int[numRows];
+        final long[] position = new long[numDimensions];
+        boolean contiguous = true;
+        for (int r = 0; r < numRows; r++) {
+            int offset = 0;
+            int stride = blockSize[0];
+            for (int d = 1; d < numDimensions; d++) {
+                offset += (int) position[d] * stride;
+                stride *= d < blockSize.length ? blockSize[d] : 1;
+            }
+            rowOffsets[r] = offset;
+            contiguous &= offset == r * cellDims[0];
+
+            for (int d = 1; d < numDimensions; d++) {
+                if (++position[d] < cellDims[d])
+                    break;
+                position[d] = 0;
+            }
+        }
+        return contiguous ? null : rowOffsets;
+    }
+
+    /**
+     * Checks whether the storage array of the {@code dataBlock} has exactly the
+     * layout of the cell, such that it can be used as the cell data without copying.
+     * This is the case for all interior chunks; chunks at the border of a zarr
+     * dataset are padded to the full chunk size and must be cropped.
+     * Trailing singleton dimensions (e.g. channel and time) are ignored.
+     */
+    protected boolean isCellShaped(DataBlock<?> dataBlock, long[] cellDims, int n) {
+        final Object data = dataBlock.getData();
+        if (data == null || !data.getClass().isArray() || Array.getLength(data) != n)
+            return false;
+
+        final int[] blockSize = dataBlock.getSize();
+        final int numDimensions = Math.max(blockSize.length, cellDims.length);
+        for (int d = 0; d < numDimensions; d++) {
+            final long blockDim = d < blockSize.length ? blockSize[d] : 1;
+            final long cellDim = d < cellDims.length ? cellDims[d] : 1;
+            if (blockDim != cellDim)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Wraps the storage array of a decoded {@link DataBlock} as the cell access.
+     * Off-heap cells copy the array, which is recycled to the {@link ArrayPool}.
+     */
+    protected A wrapStorageArray(Object data) {
+        if (offHeap) {
+            final A access = Cast.unchecked(OffHeapAccess.copyOf(dataType, data));
+            ArrayPool.shared().recycle(data);
+            return access;
+        }
         switch (dataType) {
             case UINT8:
             case INT8:
-                return Cast.unchecked(new VolatileByteArray(new byte[n], true));
+                return Cast.unchecked(new VolatileByteArray((byte[]) data, true));
             case UINT16:
             case INT16:
-                return Cast.unchecked(new VolatileShortArray(new short[n], true));
+                return Cast.unchecked(new VolatileShortArray((short[]) data, true));
             case UINT32:
             case INT32:
-                return Cast.unchecked(new VolatileIntArray(new int[n], true));
+                return Cast.unchecked(new VolatileIntArray((int[]) data, true));
             case UINT64:
             case INT64:
-                return Cast.unchecked(new VolatileLongArray(new long[n], true));
+                return Cast.unchecked(new VolatileLongArray((long[]) data, true));
             case FLOAT32:
-                return Cast.unchecked(new VolatileFloatArray(new float[n], true));
+                return Cast.unchecked(new VolatileFloatArray((float[]) data, true));
             case FLOAT64:
-                return Cast.unchecked(new VolatileDoubleArray(new double[n], true));
+                return Cast.unchecked(new VolatileDoubleArray((double[]) data, true));
             default:
                 throw new IllegalArgumentException();
         }
     }
 
+    /**
+     * Returns the access of a missing chunk. It is a read-only constant
+     * access that is shared by all missing chunks of the dataset.
+     */
+    public A createEmptyArray(long[] gridPosition) {
+        return Cast.unchecked(ConstantVolatileAccess.get(dataType, fillValue));
+    }
+
     public long[] getCellDims(long[] gridPosition) {
         return null;
     }
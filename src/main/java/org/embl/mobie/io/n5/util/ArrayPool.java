@@ -0,0 +1,284 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DoubleArrayDataBlock;
+import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
+import org.janelia.saalfeldlab.n5.LongArrayDataBlock;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+
+/**
+ * A pool of primitive arrays, keyed by element type and length, that is used
+ * to recycle chunk buffers instead of allocating new ones for every chunk.
+ * <p>
+ * Only arrays that are provably no longer referenced may be recycled, e.g. the
+ * intermediate byte buffers of chunk decoding or decoded blocks whose contents
+ * have been copied into a cell. Cell arrays that live in a cache must never be
+ * recycled, because the cache hands them out to the viewer.
+ * <p>
+ * The pool retains at most {@code maxPooledBytes}; arrays recycled beyond that
+ * budget are left to the garbage collector.
+ */
+public class ArrayPool {
+    private static final int MAX_ARRAYS_PER_KEY = 64;
+    private static final ArrayPool SHARED = new ArrayPool(Math.min(256L << 20, Runtime.getRuntime().maxMemory() / 16));
+
+    private final ConcurrentHashMap<Key, Deque<Object>> pool = new ConcurrentHashMap<>();
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final long maxPooledBytes;
+
+    public ArrayPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * @return the pool that is shared by all loaders and readers of this library
+     */
+    public static ArrayPool shared() {
+        return SHARED;
+    }
+
+    public byte[] takeBytes(int length) {
+        final byte[] array = (byte[]) poll(byte.class, length);
+        return array != null ? array : new byte[length];
+    }
+
+    public short[] takeShorts(int length) {
+        final short[] array = (short[]) poll(short.class, length);
+        return array != null ? array : new short[length];
+    }
+
+    public int[] takeInts(int length) {
+        final int[] array = (int[]) poll(int.class, length);
+        return array != null ? array : new int[length];
+    }
+
+    public long[] takeLongs(int length) {
+        final long[] array = (long[]) poll(long.class, length);
+        return array != null ? array : new long[length];
+    }
+
+    public float[] takeFloats(int length) {
+        final float[] array = (float[]) poll(float.class, length);
+        return array != null ? array : new float[length];
+    }
+
+    public double[] takeDoubles(int length) {
+        final double[] array = (double[]) poll(double.class, length);
+        return array != null ? array : new double[length];
+    }
+
+    /**
+     * Takes an array with the element type of the given {@link DataType}.
+     * The contents of the array are undefined.
+     */
+    public Object take(DataType dataType, int length) {
+        switch (dataType) {
+            case UINT8:
+            case INT8:
+                return takeBytes(length);
+            case UINT16:
+            case INT16:
+                return takeShorts(length);
+            case UINT32:
+            case INT32:
+                return takeInts(length);
+            case UINT64:
+            case INT64:
+                return takeLongs(length);
+            case FLOAT32:
+                return takeFloats(length);
+            case FLOAT64:
+                return takeDoubles(length);
+            default:
+                throw new IllegalArgumentException("Unsupported data type: " + dataType);
+        }
+    }
+
+    /**
+     * Takes an array with the element type of the given {@link DataType}
+     * that is filled with zeros.
+     */
+    public Object takeZeroed(DataType dataType, int length) {
+        final Object array = take(dataType, length);
+        fillZero(array);
+        return array;
+    }
+
+    /**
+     * Creates a {@link DataBlock} of the given {@link DataType} whose storage
+     * array is taken from the pool. The contents of the block are undefined.
+     */
+    public DataBlock<?> createDataBlock(DataType dataType, int[] blockSize, long[] gridPosition) {
+        return wrap(dataType, blockSize, gridPosition, take(dataType, numElements(blockSize)));
+    }
+
+    /**
+     * Returns an array to the pool. The caller must not use the array afterwards.
+     * Arrays of unsupported types, and arrays that exceed the pool budget, are ignored.
+     */
+    public void recycle(Object array) {
+        if (array == null)
+            return;
+
+        final Class<?> componentType = array.getClass().getComponentType();
+        if (componentType == null || !componentType.isPrimitive())
+            return;
+
+        final int length = java.lang.reflect.Array.getLength(array);
+        final long numBytes = (long) length * bytesPerElement(componentType);
+        if (numBytes == 0 || pooledBytes.addAndGet(numBytes) > maxPooledBytes) {
+            pooledBytes.addAndGet(-numBytes);
+            return;
+        }
+
+        final Deque<Object> arrays = pool.computeIfAbsent(new Key(componentType, length), k -> new ConcurrentLinkedDeque<>());
+        if (arrays.size() >= MAX_ARRAYS_PER_KEY) {
+            pooledBytes.addAndGet(-numBytes);
+            return;
+        }
+        arrays.push(array);
+    }
+
+    public void clear() {
+        pool.clear();
+        pooledBytes.set(0);
+    }
+
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    public long getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    private Object poll(Class<?> componentType, int length) {
+        final Deque<Object> arrays = pool.get(new Key(componentType, length));
+        if (arrays == null)
+            return null;
+
+        final Object array = arrays.poll();
+        if (array != null)
+            pooledBytes.addAndGet(-(long) length * bytesPerElement(componentType));
+        return array;
+    }
+
+    private static DataBlock<?> wrap(DataType dataType, int[] blockSize, long[] gridPosition, Object data) {
+        switch (dataType) {
+            case UINT8:
+            case INT8:
+                return new ByteArrayDataBlock(blockSize, gridPosition, (byte[]) data);
+            case UINT16:
+            case INT16:
+                return new ShortArrayDataBlock(blockSize, gridPosition, (short[]) data);
+            case UINT32:
+            case INT32:
+                return new IntArrayDataBlock(blockSize, gridPosition, (int[]) data);
+            case UINT64:
+            case INT64:
+                return new LongArrayDataBlock(blockSize, gridPosition, (long[]) data);
+            case FLOAT32:
+                return new FloatArrayDataBlock(blockSize, gridPosition, (float[]) data);
+            case FLOAT64:
+                return new DoubleArrayDataBlock(blockSize, gridPosition, (double[]) data);
+            default:
+                throw new IllegalArgumentException("Unsupported data type: " + dataType);
+        }
+    }
+
+    private static int numElements(int[] blockSize) {
+        int n = 1;
+        for (int size : blockSize)
+            n *= size;
+        return n;
+    }
+
+    private static void fillZero(Object array) {
+        if (array instanceof byte[])
+            Arrays.fill((byte[]) array, (byte) 0);
+        else if (array instanceof short[])
+            Arrays.fill((short[]) array, (short) 0);
+        else if (array instanceof int[])
+            Arrays.fill((int[]) array, 0);
+        else if (array instanceof long[])
+            Arrays.fill((long[]) array, 0L);
+        else if (array instanceof float[])
+            Arrays.fill((float[]) array, 0f);
+        else if (array instanceof double[])
+            Arrays.fill((double[]) array, 0d);
+    }
+
+    private static int bytesPerElement(Class<?> componentType) {
+        if (componentType == byte.class)
+            return 1;
+        if (componentType == short.class)
+            return 2;
+        if (componentType == int.class || componentType == float.class)
+            return 4;
+        if (componentType == long.class || componentType == double.class)
+            return 8;
+        return 0;
+    }
+
+    private static final class Key {
+        private final Class<?> componentType;
+        private final int length;
+
+        Key(Class<?> componentType, int length) {
+            this.componentType = componentType;
+            this.length = length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            final Key key = (Key) o;
+            return length == key.length && componentType == key.componentType;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * componentType.hashCode() + length;
+        }
+    }
+}
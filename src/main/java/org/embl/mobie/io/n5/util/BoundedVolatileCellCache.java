@@ -0,0 +1,510 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.NotificationEmitter;
+
+import bdv.img.cache.CreateInvalidVolatileCell;
+import bdv.img.cache.SimpleCacheArrayLoader;
+import bdv.img.cache.VolatileCachedCellImg;
+import lombok.extern.slf4j.Slf4j;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.CacheLoader;
+import net.imglib2.cache.queue.BlockingFetchQueues;
+import net.imglib2.cache.ref.WeakRefLoaderCache;
+import net.imglib2.cache.ref.WeakRefVolatileCache;
+import net.imglib2.cache.util.KeyBimap;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.CreateInvalid;
+import net.imglib2.cache.volatiles.UncheckedVolatileCache;
+import net.imglib2.cache.volatiles.VolatileCache;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileArrayDataAccess;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.Cast;
+
+/**
+ * A cell cache that is bounded by a number of bytes, instead of relying on
+ * soft references like {@link bdv.img.cache.VolatileGlobalCellCache}.
+ * <p>
+ * The cells are weighted by the size of their data and kept by a
+ * {@link WTinyLfuPolicy}, such that cells that are used over and over, like
+ * those of the low resolution levels, are not evicted by a fast scroll through
+ * many cells that are each shown once. Cells that the policy evicts are only
+ * weakly referenced and are collected unless they are still in use.
+ * <p>
+ * The policy is either owned by the cache, or shared by all sources of the
+ * {@link CellCacheService}. In both cases the cache counts the hits, loads and
+ * evictions of its own cells, see {@link #getStatistics()}.
+ * <p>
+ * If the heap is still above {@link #memoryThreshold} after a garbage
+ * collection, all policies shrink to half their current size, and grow back to
+ * their budget once the heap has not crossed the threshold for a minute.
+ * <p>
+ * Cells that are backed by {@link OffHeapAccess}es are not referenced anymore
+ * once they leave the policy: they are removed from the caches of all images,
+ * and their memory is released. A cell that leaves the policy before the cache
+ * of its image has handed it out is not released, because it may not be in
+ * that cache yet: it is added to the policy again when it is handed out, or
+ * left to the garbage collector, or released when the cache is cleared.
+ * <p>
+ * If {@link CellPrefetcher#enabled} or {@link CellPrefetcher#playbackTimepoints}
+ * is set, the cache notifies a
+ * {@link CellPrefetcher} of the requests of the viewer and of every new frame.
+ */
+@Slf4j
+public class BoundedVolatileCellCache implements CellCache {
+
+    /**
+     * Whether image loaders that are opened afterwards use a cache of their
+     * own of this kind, see {@link CellCache#create}.
+     */
+    public static boolean enabled = false;
+
+    /**
+     * The budget of the cache of an image loader.
+     */
+    public static long maxBytes = Runtime.getRuntime().maxMemory() / 2;
+
+    /**
+     * The fraction of the heap that, if still used after a garbage collection,
+     * makes the caches shrink. Takes effect if set before the first cache is
+     * created.
+     */
+    public static double memoryThreshold = 0.85;
+
+    static final long EXPECTED_CELL_BYTES = 64 * 64 * 64 * 2;
+
+    private static final long CELL_OVERHEAD = 128;
+
+    private static final Set<WTinyLfuPolicy<?>> policies = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    private static boolean memoryListenerInstalled = false;
+
+    /**
+     * Accounts the changes of a policy to the caches that own the cells.
+     */
+    static final WTinyLfuPolicy.Listener<Key> ACCOUNTING = new WTinyLfuPolicy.Listener<Key>() {
+        @Override
+        public void onAdd(final Key key, final long weightDelta, final boolean replaced) {
+            key.owner.cachedBytes.addAndGet(weightDelta);
+            if (!replaced)
+                key.owner.numCachedCells.incrementAndGet();
+        }
+
+        @Override
+        public void onRemoval(final Key key, final Object value, final long weight, final boolean evicted) {
+            if (value instanceof Cell && ((Cell<?>) value).getData() instanceof OffHeapAccess)
+                key.owner.release(key, (OffHeapAccess) ((Cell<?>) value).getData(), evicted);
+            key.owner.cachedBytes.addAndGet(-weight);
+            key.owner.numCachedCells.decrementAndGet();
+            if (evicted) {
+                key.owner.evictions.increment();
+                key.owner.evictedBytes.add(weight);
+            }
+        }
+    };
+
+    private final String name;
+
+    private final BlockingFetchQueues<Callable<?>> queue;
+
+    private final WeakRefLoaderCache<Key, Cell<?>> backingCache = new WeakRefLoaderCache<>();
+
+    // the volatile caches of the images of every timepoint, setup and level, by a key with index -1
+    private final ConcurrentHashMap<Key, Set<VolatileCache<Long, ?>>> volatileCaches = new ConcurrentHashMap<>();
+
+    // off-heap cells that were evicted before they were handed out, to be released when the cache is cleared
+    private final Set<OffHeapAccess> evictedUnpublished = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    private final WTinyLfuPolicy<Key> policy;
+
+    private final boolean shared;
+
+    private final CellPrefetcher prefetcher;
+
+    private final AtomicLong cachedBytes = new AtomicLong();
+
+    private final AtomicInteger numCachedCells = new AtomicInteger();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder loads = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LongAdder evictedBytes = new LongAdder();
+
+    public BoundedVolatileCellCache(final BlockingFetchQueues<Callable<?>> queue, final long maxBytes) {
+        this("cell cache", queue, createPolicy(maxBytes), false);
+    }
+
+    /**
+     * A source of the {@link CellCacheService}, which shares {@code policy}
+     * with the other sources.
+     */
+    BoundedVolatileCellCache(final String name, final BlockingFetchQueues<Callable<?>> queue, final WTinyLfuPolicy<Key> policy, final boolean shared) {
+        this.name = name;
+        this.queue = queue;
+        this.policy = policy;
+        this.shared = shared;
+        this.prefetcher = CellPrefetcher.isRequested() ? new CellPrefetcher(queue, this) : null;
+    }
+
+    static WTinyLfuPolicy<Key> createPolicy(final long maxBytes) {
+        final WTinyLfuPolicy<Key> policy = new WTinyLfuPolicy<>(maxBytes, EXPECTED_CELL_BYTES, ACCOUNTING);
+        shrinkOnLowMemory(policy);
+        return policy;
+    }
+
+    /**
+     * Lets {@code policy} shrink together with the cell caches on low memory.
+     */
+    static void shrinkOnLowMemory(final WTinyLfuPolicy<?> policy) {
+        policies.add(policy);
+        installMemoryListener();
+    }
+
+    @Override
+    public <T extends NativeType<T>> VolatileCachedCellImg<T, ?> createImg(final CellGrid grid, final int timepoint, final int setup, final int level, final CacheHints cacheHints, final SimpleCacheArrayLoader<?> cacheArrayLoader, final T type) {
+        final ImageKeys keys = new ImageKeys(timepoint, setup, level);
+        final CacheLoader<Long, Cell<?>> loader = index -> {
+            final int n = grid.numDimensions();
+            final long[] cellMin = new long[n];
+            final int[] cellDims = new int[n];
+            final long[] cellGridPosition = new long[n];
+            grid.getCellDimensions(index, cellMin, cellDims);
+            grid.getCellGridPositionFlat(index, cellGridPosition);
+            final Cell<?> cell = new Cell<>(cellDims, cellMin, cacheArrayLoader.loadArray(cellGridPosition, cellDims));
+            loads.increment();
+            // hold the cell until it is evicted, the caches above only reference it weakly
+            add(keys.get(index), cell);
+            return cell;
+        };
+
+        final KeyBimap<Long, Key> bimap = KeyBimap.build(
+            keys::get,
+            key -> (key.timepoint == timepoint && key.setup == setup && key.level == level)
+                ? key.index
+                : null);
+
+        final Cache<Long, Cell<?>> cache = backingCache
+            .mapKeys(bimap)
+            .withLoader(loader);
+
+        return createImg(grid, keys, cacheHints, cache, type);
+    }
+
+    private <T extends NativeType<T>, A extends VolatileArrayDataAccess<A>> VolatileCachedCellImg<T, A> createImg(
+        final CellGrid grid,
+        final ImageKeys keys,
+        final CacheHints cacheHints,
+        final Cache<Long, Cell<?>> cache,
+        final T type) {
+        final CreateInvalid<Long, Cell<A>> createInvalid = CreateInvalidVolatileCell.get(grid, type, false);
+        final VolatileCache<Long, Cell<A>> volatileCache = new WeakRefVolatileCache<>(Cast.unchecked(cache), queue, createInvalid);
+        volatileCaches.computeIfAbsent(keys.get(-1), k -> Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>())))
+            .add(volatileCache);
+        final CellPrefetcher.Image prefetchImage = prefetcher == null ? null : prefetcher.register(keys.timepoint, keys.setup, keys.level, grid, volatileCache);
+        final UncheckedVolatileCache<Long, Cell<A>> unchecked = volatileCache.unchecked();
+        return new VolatileCachedCellImg<>(grid, type, cacheHints, (index, hints) -> {
+            final Cell<A> cell = unchecked.get(index, hints);
+            final boolean valid = !(cell.getData() instanceof VolatileAccess) || ((VolatileAccess) cell.getData()).isValid();
+            if (prefetchImage != null)
+                prefetchImage.onRequest(index, valid, hints);
+            if (valid) {
+                hits.increment();
+                final Key key = keys.get(index);
+                if (cell.getData() instanceof OffHeapAccess) {
+                    // evicted off-heap cells are about to be released and must not enter the policy again,
+                    // unless they were evicted before they were handed out and therefore not released
+                    if (((OffHeapAccess) cell.getData()).publish()) {
+                        evictedUnpublished.remove(cell.getData());
+                        add(key, cell);
+                    }
+                    else
+                        policy.access(key, null, 0);
+                } else {
+                    policy.access(key, cell, weigh(cell));
+                }
+            }
+            return cell;
+        });
+    }
+
+    @Override
+    public void prepareNextFrame() {
+        queue.clearToPrefetch();
+        if (prefetcher != null)
+            prefetcher.nextFrame();
+    }
+
+    @Override
+    public void clearCache() {
+        if (prefetcher != null)
+            prefetcher.cancel();
+        queue.clearToPrefetch();
+        backingCache.invalidateAll();
+        policy.removeIf(key -> key.owner == this);
+        final List<OffHeapAccess> toRelease;
+        synchronized (evictedUnpublished) {
+            toRelease = new ArrayList<>(evictedUnpublished);
+            evictedUnpublished.clear();
+        }
+        for (OffHeapAccess access : toRelease)
+            access.release();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public CellPrefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * @return the bytes of the cells of this cache that are held
+     */
+    public long getCachedBytes() {
+        return cachedBytes.get();
+    }
+
+    /**
+     * @return the current budget of the policy, below its configured budget
+     * while shrunk because of low memory
+     */
+    public long getBudget() {
+        return policy.getMaxWeight();
+    }
+
+    public int getNumCachedCells() {
+        return numCachedCells.get();
+    }
+
+    public CellCacheStatistics getStatistics() {
+        return new CellCacheStatistics(
+            name,
+            cachedBytes.get(),
+            numCachedCells.get(),
+            hits.sum(),
+            loads.sum(),
+            evictions.sum(),
+            evictedBytes.sum());
+    }
+
+    void add(final Key key, final Cell<?> cell) {
+        policy.add(key, cell, weigh(cell));
+        if (shared) {
+            // keep a single source from taking over the shared budget
+            final long maxSourceBytes = (long) (policy.getBudget() * CellCacheService.maxSourceFraction);
+            final long excess = cachedBytes.get() - maxSourceBytes;
+            if (excess > 0)
+                policy.evictIf(k -> k.owner == this, excess);
+        }
+    }
+
+    /**
+     * Removes an off-heap cell that left the policy from the caches of the
+     * images, such that it is loaded again when it is needed, and releases its
+     * memory. This happens on the release thread, outside of the lock of the policy.
+     * Evicted cells that have not been handed out yet are not released,
+     * because the caches of the images may insert them after they have been
+     * invalidated; they are released when the cache is cleared.
+     */
+    private void release(final Key key, final OffHeapAccess access, final boolean evicted) {
+        if (evicted && !access.markEvicted()) {
+            evictedUnpublished.add(access);
+            return;
+        }
+        OffHeapAccess.runOnReleaseThread(() -> {
+            final Set<VolatileCache<Long, ?>> caches = volatileCaches.get(new Key(this, key.timepoint, key.setup, key.level, -1));
+            if (caches != null) {
+                final List<VolatileCache<Long, ?>> toInvalidate;
+                synchronized (caches) {
+                    toInvalidate = new ArrayList<>(caches);
+                }
+                for (VolatileCache<Long, ?> cache : toInvalidate)
+                    cache.invalidate(key.index);
+            }
+            backingCache.invalidate(key);
+            access.release();
+        });
+    }
+
+    /**
+     * @return the approximate number of bytes that {@code cell} occupies
+     */
+    static long weigh(final Cell<?> cell) {
+        final Object data = cell.getData();
+        if (data instanceof OffHeapAccess)
+            return CELL_OVERHEAD + ((OffHeapAccess) data).getSizeInBytes();
+        if (!(data instanceof ArrayDataAccess))
+            return CELL_OVERHEAD;
+        final Object array = ((ArrayDataAccess<?>) data).getCurrentStorageArray();
+        if (array instanceof byte[])
+            return CELL_OVERHEAD + ((byte[]) array).length;
+        if (array instanceof short[] || array instanceof char[])
+            return CELL_OVERHEAD + 2L * ((ArrayDataAccess<?>) data).getArrayLength();
+        if (array instanceof long[] || array instanceof double[])
+            return CELL_OVERHEAD + 8L * ((ArrayDataAccess<?>) data).getArrayLength();
+        return CELL_OVERHEAD + 4L * ((ArrayDataAccess<?>) data).getArrayLength();
+    }
+
+    /**
+     * Asks the JVM to notify when the heap is still above the threshold after
+     * a garbage collection, and shrinks all policies then.
+     */
+    private static synchronized void installMemoryListener() {
+        if (memoryListenerInstalled)
+            return;
+        memoryListenerInstalled = true;
+        try {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                final long max = pool.getUsage().getMax();
+                if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported() && max > 0 && pool.getCollectionUsageThreshold() == 0)
+                    pool.setCollectionUsageThreshold((long) (max * memoryThreshold));
+            }
+            final NotificationEmitter emitter = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+            emitter.addNotificationListener((notification, handback) -> {
+                if (!MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType()))
+                    return;
+                shrinkAll();
+            }, null, null);
+        } catch (RuntimeException e) {
+            log.warn("Cannot monitor memory usage, the cell caches will not shrink on low memory: " + e);
+        }
+    }
+
+    /**
+     * Shrinks all policies, when the heap is above the threshold.
+     */
+    static void shrinkAll() {
+        final List<WTinyLfuPolicy<?>> toShrink;
+        synchronized (policies) {
+            toShrink = new ArrayList<>(policies);
+        }
+        for (WTinyLfuPolicy<?> policy : toShrink) {
+            final long weight = policy.getWeight();
+            policy.shrink();
+            log.info("Low memory, shrinking cache from " + (weight >> 20) + " MB to " + (policy.getMaxWeight() >> 20) + " MB.");
+        }
+    }
+
+    /**
+     * The keys of the cells of one image. The keys of recently used cells are
+     * kept, such that hits do not allocate.
+     */
+    private class ImageKeys {
+        private static final int NUM_RECENT = 64;
+
+        final int timepoint;
+        final int setup;
+        final int level;
+
+        // racy, but a key is immutable and safely published by its final fields
+        private final Key[] recent = new Key[NUM_RECENT];
+
+        ImageKeys(final int timepoint, final int setup, final int level) {
+            this.timepoint = timepoint;
+            this.setup = setup;
+            this.level = level;
+        }
+
+        Key get(final long index) {
+            final int slot = (int) (index & (NUM_RECENT - 1));
+            Key key = recent[slot];
+            if (key == null || key.index != index) {
+                key = new Key(BoundedVolatileCellCache.this, timepoint, setup, level, index);
+                recent[slot] = key;
+            }
+            return key;
+        }
+    }
+
+    /**
+     * The key of a cell, unique within the policy.
+     */
+    static class Key {
+        final BoundedVolatileCellCache owner;
+        final int timepoint;
+        final int setup;
+        final int level;
+        final long index;
+        private final int hashcode;
+
+        Key(final BoundedVolatileCellCache owner, final int timepoint, final int setup, final int level, final long index) {
+            this.owner = owner;
+            this.timepoint = timepoint;
+            this.setup = setup;
+            this.level = level;
+            this.index = index;
+            int h = Long.hashCode(index);
+            h = 31 * h + level;
+            h = 31 * h + setup;
+            h = 31 * h + timepoint;
+            h = 31 * h + System.identityHashCode(owner);
+            this.hashcode = h;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (this == other)
+                return true;
+            if (!(other instanceof Key))
+                return false;
+            final Key that = (Key) other;
+            return index == that.index && level == that.level && setup == that.setup && timepoint == that.timepoint && owner == that.owner;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashcode;
+        }
+    }
+}
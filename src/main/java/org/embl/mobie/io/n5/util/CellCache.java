@@ -0,0 +1,117 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+import java.util.concurrent.Callable;
+
+import bdv.cache.CacheControl;
+import bdv.img.cache.SimpleCacheArrayLoader;
+import bdv.img.cache.VolatileCachedCellImg;
+import bdv.img.cache.VolatileGlobalCellCache;
+import net.imglib2.cache.queue.BlockingFetchQueues;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+
+/**
+ * The cell cache of an image loader, see {@link #create}.
+ */
+public interface CellCache extends CacheControl {
+
+    /**
+     * Create a {@link VolatileCachedCellImg} backed by this cache.
+     */
+    <T extends NativeType<T>> VolatileCachedCellImg<T, ?> createImg(
+        CellGrid grid,
+        int timepoint,
+        int setup,
+        int level,
+        CacheHints cacheHints,
+        SimpleCacheArrayLoader<?> cacheArrayLoader,
+        T type);
+
+    /**
+     * Remove all cells from the cache.
+     */
+    void clearCache();
+
+    /**
+     * @return the prefetcher of the cache, or {@code null} if it does not prefetch
+     */
+    default CellPrefetcher getPrefetcher() {
+        return null;
+    }
+
+    /**
+     * Creates the cache of an image loader that loads through {@code queue}:
+     * a source of the {@link CellCacheService} if {@link CellCacheService#enabled}
+     * is set, a {@link BoundedVolatileCellCache} of its own if
+     * {@link BoundedVolatileCellCache#enabled}, {@link OffHeapAccess#enabled},
+     * {@link CellPrefetcher#enabled} or {@link CellPrefetcher#playbackTimepoints}
+     * is set, otherwise a {@link VolatileGlobalCellCache}.
+     * Off-heap cells need a cache that releases them on eviction, the soft
+     * references of the global cache are only cleared on a shortage of heap
+     * memory; prefetching needs to see the requests of the viewer.
+     *
+     * @param name the name of the source in the statistics of the service
+     */
+    static CellCache create(final BlockingFetchQueues<Callable<?>> queue, final String name) {
+        if (CellCacheService.enabled)
+            return CellCacheService.getInstance().register(name, queue);
+        if (BoundedVolatileCellCache.enabled || OffHeapAccess.enabled || CellPrefetcher.isRequested())
+            return new BoundedVolatileCellCache(queue, BoundedVolatileCellCache.maxBytes);
+        return new Global(new VolatileGlobalCellCache(queue));
+    }
+
+    /**
+     * A {@link VolatileGlobalCellCache}, which keeps its cells by soft references.
+     */
+    class Global implements CellCache {
+        private final VolatileGlobalCellCache cache;
+
+        public Global(final VolatileGlobalCellCache cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public <T extends NativeType<T>> VolatileCachedCellImg<T, ?> createImg(final CellGrid grid, final int timepoint, final int setup, final int level, final CacheHints cacheHints, final SimpleCacheArrayLoader<?> cacheArrayLoader, final T type) {
+            return cache.createImg(grid, timepoint, setup, level, cacheHints, cacheArrayLoader, type);
+        }
+
+        @Override
+        public void clearCache() {
+            cache.clearCache();
+        }
+
+        @Override
+        public void prepareNextFrame() {
+            cache.prepareNextFrame();
+        }
+    }
+}
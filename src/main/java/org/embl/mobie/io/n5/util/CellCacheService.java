@@ -0,0 +1,146 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+import net.imglib2.cache.queue.BlockingFetchQueues;
+
+/**
+ * The cell cache that all image loaders of the process share, if
+ * {@link #enabled} is set.
+ * <p>
+ * Every loader registers as a source, with a {@link BoundedVolatileCellCache}
+ * of its own that holds its cells by the policy of this service. The cells of
+ * all sources therefore compete for one budget of {@link #maxBytes}, by how
+ * often and how recently they are used, and no source may hold more than
+ * {@link #maxSourceFraction} of it, such that one large source cannot starve
+ * the others. The hits, loads and evictions are counted per source, see
+ * {@link #getStatistics()}.
+ */
+public class CellCacheService {
+
+    /**
+     * Whether image loaders that are opened afterwards register with the
+     * service, see {@link CellCache#create}.
+     */
+    public static boolean enabled = false;
+
+    /**
+     * The budget of the service, for all sources. Takes effect if set before
+     * the first source registers, see {@link #setBudget} otherwise.
+     */
+    public static long maxBytes = Runtime.getRuntime().maxMemory() / 2;
+
+    /**
+     * The fraction of the budget that one source may hold at most.
+     */
+    public static double maxSourceFraction = 0.5;
+
+    private static CellCacheService instance;
+
+    private final WTinyLfuPolicy<BoundedVolatileCellCache.Key> policy;
+
+    private final Set<BoundedVolatileCellCache> sources = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    private CellCacheService(final long maxBytes) {
+        policy = BoundedVolatileCellCache.createPolicy(maxBytes);
+    }
+
+    public static synchronized CellCacheService getInstance() {
+        if (instance == null)
+            instance = new CellCacheService(maxBytes);
+        return instance;
+    }
+
+    /**
+     * Registers a source that loads its cells through {@code queue}.
+     *
+     * @param name the name of the source in the statistics
+     * @return the cache of the source
+     */
+    public BoundedVolatileCellCache register(final String name, final BlockingFetchQueues<Callable<?>> queue) {
+        final BoundedVolatileCellCache cache = new BoundedVolatileCellCache(name, queue, policy, true);
+        sources.add(cache);
+        return cache;
+    }
+
+    /**
+     * @return the statistics of the sources that are still in use
+     */
+    public List<CellCacheStatistics> getStatistics() {
+        final List<BoundedVolatileCellCache> caches;
+        synchronized (sources) {
+            caches = new ArrayList<>(sources);
+        }
+        final List<CellCacheStatistics> statistics = new ArrayList<>(caches.size());
+        for (BoundedVolatileCellCache cache : caches)
+            statistics.add(cache.getStatistics());
+        return statistics;
+    }
+
+    /**
+     * @return the bytes of the cells of all sources that are held
+     */
+    public long getCachedBytes() {
+        return policy.getWeight();
+    }
+
+    /**
+     * @return the current budget, below the configured one while shrunk
+     * because of low memory
+     */
+    public long getBudget() {
+        return policy.getMaxWeight();
+    }
+
+    /**
+     * Changes the budget of all sources, evicting cells if needed.
+     */
+    public void setBudget(final long maxBytes) {
+        policy.setBudget(maxBytes);
+    }
+
+    /**
+     * @return a name for the source of an image loader that reads from {@code n5}
+     */
+    public static String sourceName(final N5Reader n5) {
+        if (n5 instanceof N5FSReader)
+            return ((N5FSReader) n5).getBasePath();
+        return n5.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(n5));
+    }
+}
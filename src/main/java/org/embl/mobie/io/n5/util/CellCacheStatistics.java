@@ -0,0 +1,102 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+/**
+ * The statistics of one source of a {@link BoundedVolatileCellCache}, at the
+ * time it was taken.
+ */
+public class CellCacheStatistics {
+    private final String name;
+    private final long cachedBytes;
+    private final int numCachedCells;
+    private final long hits;
+    private final long loads;
+    private final long evictions;
+    private final long evictedBytes;
+
+    public CellCacheStatistics(final String name, final long cachedBytes, final int numCachedCells, final long hits, final long loads, final long evictions, final long evictedBytes) {
+        this.name = name;
+        this.cachedBytes = cachedBytes;
+        this.numCachedCells = numCachedCells;
+        this.hits = hits;
+        this.loads = loads;
+        this.evictions = evictions;
+        this.evictedBytes = evictedBytes;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the bytes of the cells of the source that are held
+     */
+    public long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    public int getNumCachedCells() {
+        return numCachedCells;
+    }
+
+    /**
+     * @return the number of requests for a cell that was loaded already
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of cells that were loaded, each after a miss
+     */
+    public long getLoads() {
+        return loads;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getEvictedBytes() {
+        return evictedBytes;
+    }
+
+    public double getHitRatio() {
+        final long requests = hits + loads;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + (cachedBytes >> 20) + " MB in " + numCachedCells + " cells, "
+            + hits + " hits, " + loads + " loads (" + String.format("%.1f", 100 * getHitRatio()) + "% hits), "
+            + evictions + " evictions (" + (evictedBytes >> 20) + " MB)";
+    }
+}
@@ -0,0 +1,549 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.extern.slf4j.Slf4j;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.queue.BlockingFetchQueues;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.LoadingStrategy;
+import net.imglib2.cache.volatiles.VolatileCache;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * Prefetches the cells that the viewer is about to request while the user
+ * pans or scrolls, see {@link BoundedVolatileCellCache}.
+ * <p>
+ * The cells that are requested but not loaded yet, and the prefetched cells that
+ * are requested for the first time, form the leading edge of the motion. At
+ * every frame, the prefetcher compares the centre of these cells with
+ * that of the previous frame to infer the direction of the motion, in cells per
+ * axis. It then enqueues the neighbours of these cells in that direction, and
+ * the cells of the next coarser level that contain them, into the fetch queue at
+ * the lowest priority of the viewer's requests. When the direction of an image
+ * changes, its prefetches that are still queued are dropped.
+ * <p>
+ * During the playback of a time series, the viewer only requests the cells of
+ * a timepoint when it switches to it. If {@link #playbackTimepoints} is set, the
+ * prefetcher also enqueues the cells that the viewer requested at the finest
+ * level in use for the following timepoints of the loader, see
+ * {@link #setTimepoints}. The lookahead is reduced so that the prefetched
+ * timepoints fit into half of the cache budget, and the cells that are queued
+ * for it are bounded by {@link #maxPlaybackPendingCells}, so that playback does
+ * not take more bandwidth than the fetchers can serve.
+ * <p>
+ * The {@link #getHitRate() hit rate} is the fraction of the prefetched cells
+ * that the viewer requested afterwards.
+ */
+@Slf4j
+public class CellPrefetcher {
+
+    /**
+     * Whether image loaders that are opened afterwards prefetch the cells ahead of
+     * the motion. Such loaders use a {@link BoundedVolatileCellCache}, see
+     * {@link CellCache#create}.
+     */
+    public static boolean enabled = false;
+
+    /**
+     * The number of timepoints after the displayed one whose visible cells are
+     * prefetched, 0 to disable. It has to be positive when the loader is opened
+     * for playback to be prefetched at all.
+     */
+    public static int playbackTimepoints = 0;
+
+    /**
+     * The maximal number of cells that are queued for playback at any time.
+     */
+    public static int maxPlaybackPendingCells = 256;
+
+    /**
+     * The maximal number of cells that are prefetched per image and frame.
+     */
+    public static int maxPrefetchesPerFrame = 64;
+
+    /**
+     * The motion along an axis, in cells per frame, below which the axis is considered still.
+     */
+    public static double minMotion = 0.25;
+
+    private static final int MAX_FRONTIER_PER_FRAME = 1024;
+
+    private static final int MAX_PREFETCHED = 1 << 16;
+
+    private static final int MAX_REQUESTED_PER_FRAME = 4096;
+
+    private final BlockingFetchQueues<Callable<?>> queue;
+
+    private final BoundedVolatileCellCache cellCache;
+
+    private final boolean motion = enabled;
+
+    private volatile int[] timepointIds;
+
+    private volatile ImageFactory imageFactory;
+
+    // the images of the timepoints ahead of playback, held until they leave the lookahead
+    private Map<String, Object> playbackImages = new HashMap<>();
+
+    private final AtomicInteger pendingPlayback = new AtomicInteger();
+
+    private final ConcurrentHashMap<String, Image> images = new ConcurrentHashMap<>();
+
+    private volatile int lowestPriority = 0;
+
+    private final LongAdder issued = new LongAdder();
+
+    private final LongAdder loaded = new LongAdder();
+
+    private final LongAdder cancelled = new LongAdder();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder demandMisses = new LongAdder();
+
+    CellPrefetcher(final BlockingFetchQueues<Callable<?>> queue, final BoundedVolatileCellCache cellCache) {
+        this.queue = queue;
+        this.cellCache = cellCache;
+    }
+
+    /**
+     * @return whether image loaders that are opened now need a prefetcher
+     */
+    static boolean isRequested() {
+        return enabled || playbackTimepoints > 0;
+    }
+
+    /**
+     * Lets the prefetcher preload the timepoints that follow the displayed one
+     * during playback.
+     *
+     * @param timepointIds the timepoints of the loader, in playback order
+     * @param imageFactory creates the images of the timepoints ahead through the cache of this prefetcher
+     */
+    public void setTimepoints(final int[] timepointIds, final ImageFactory imageFactory) {
+        this.imageFactory = imageFactory;
+        this.timepointIds = timepointIds;
+    }
+
+    /**
+     * Registers an image whose cells are loaded through {@code cache}.
+     *
+     * @return the image, to be notified of every request of the viewer
+     */
+    public Image register(final int timepoint, final int setup, final int level, final CellGrid grid, final VolatileCache<Long, ?> cache) {
+        final Image image = new Image(timepoint, setup, level, grid, cache);
+        final Image previous = images.put(key(timepoint, setup, level), image);
+        // the cells prefetched for playback are requested through the image that the viewer creates
+        if (previous != null && Arrays.equals(previous.gridDimensions, image.gridDimensions))
+            image.prefetched.addAll(previous.prefetched);
+        return image;
+    }
+
+    /**
+     * Infers the motion of every image from the requests since the last frame
+     * and enqueues the cells ahead of it. Called when the viewer starts
+     * rendering a new frame, after the queue has been cleared.
+     */
+    public void nextFrame() {
+        images.values().removeIf(image -> image.cache.get() == null);
+        if (timepointIds != null && playbackTimepoints > 0)
+            prefetchPlayback();
+        for (Image image : images.values()) {
+            final List<long[]> frontier = image.takeFrontier();
+            if (!motion || frontier.isEmpty())
+                continue;
+            final int[] direction = image.updateDirection(frontier);
+            if (direction == null)
+                continue;
+            final Image coarser = images.get(key(image.timepoint, image.setup, image.level + 1));
+            int numPrefetches = 0;
+            final long[] neighbour = new long[image.gridDimensions.length];
+            for (long[] position : frontier) {
+                if (numPrefetches >= maxPrefetchesPerFrame)
+                    break;
+                if (!image.neighbour(position, direction, neighbour))
+                    continue;
+                if (prefetch(image, IntervalIndexer.positionToIndex(neighbour, image.gridDimensions), false))
+                    numPrefetches++;
+                if (coarser != null && prefetch(coarser, coarser.containingCell(image, neighbour), false))
+                    numPrefetches++;
+            }
+        }
+    }
+
+    /**
+     * Enqueues the cells that the viewer requested since the last frame for the
+     * timepoints that follow the displayed ones, the next timepoint first.
+     */
+    private void prefetchPlayback() {
+        // the finest level that the viewer requested for every displayed timepoint and setup
+        final Map<String, Image> displayed = new HashMap<>();
+        long numVisible = 0;
+        for (Image image : images.values()) {
+            if (!image.takeRequested())
+                continue;
+            final String key = image.timepoint + "/" + image.setup;
+            final Image finest = displayed.get(key);
+            if (finest == null || image.level < finest.level) {
+                if (finest != null)
+                    numVisible -= finest.visible.length;
+                displayed.put(key, image);
+                numVisible += image.visible.length;
+            }
+        }
+        if (displayed.isEmpty())
+            return;
+
+        final int lookahead = lookahead(numVisible);
+        final int[] ids = timepointIds;
+        final Map<String, Object> window = new HashMap<>();
+        for (int j = 1; j <= lookahead; j++) {
+            for (Image image : displayed.values()) {
+                final int position = indexOf(ids, image.timepoint);
+                if (position < 0 || position + j >= ids.length)
+                    continue;
+                final String key = key(ids[position + j], image.setup, image.level);
+                final Image target = playbackImage(key, ids[position + j], image.setup, image.level, window);
+                if (target == null || !Arrays.equals(target.gridDimensions, image.gridDimensions))
+                    continue;
+                for (long index : image.visible) {
+                    if (pendingPlayback.get() >= maxPlaybackPendingCells)
+                        break;
+                    prefetch(target, index, true);
+                }
+            }
+        }
+
+        // drop the queued cells of the timepoints that are neither ahead nor displayed any more
+        for (String key : playbackImages.keySet()) {
+            final Image image = images.get(key);
+            if (image != null && !window.containsKey(key) && !displayed.containsKey(image.timepoint + "/" + image.setup))
+                image.generation.incrementAndGet();
+        }
+        playbackImages = window;
+    }
+
+    /**
+     * @return the number of timepoints ahead whose {@code numVisible} cells fit into half of the cache budget
+     */
+    private int lookahead(final long numVisible) {
+        final int numCells = cellCache.getNumCachedCells();
+        if (numCells == 0)
+            return playbackTimepoints;
+        final long bytesPerTimepoint = numVisible * (cellCache.getCachedBytes() / numCells);
+        if (bytesPerTimepoint <= 0)
+            return playbackTimepoints;
+        return (int) Math.min(playbackTimepoints, cellCache.getBudget() / 2 / bytesPerTimepoint);
+    }
+
+    /**
+     * @return the image of a timepoint ahead, which is held in {@code window}, or {@code null} if it could not be created
+     */
+    private Image playbackImage(final String key, final int timepoint, final int setup, final int level, final Map<String, Object> window) {
+        final Object held = playbackImages.get(key);
+        if (held != null) {
+            window.put(key, held);
+            return images.get(key);
+        }
+        final Image image = images.get(key);
+        final VolatileCache<Long, ?> cache = image == null ? null : image.cache.get();
+        if (cache != null) {
+            window.put(key, cache);
+            return image;
+        }
+        try {
+            window.put(key, imageFactory.create(timepoint, setup, level));
+        } catch (RuntimeException e) {
+            log.warn("Could not prepare " + key + " for playback: " + e);
+            return null;
+        }
+        return images.get(key);
+    }
+
+    private static int indexOf(final int[] ids, final int id) {
+        for (int i = 0; i < ids.length; i++)
+            if (ids[i] == id)
+                return i;
+        return -1;
+    }
+
+    /**
+     * Drops all prefetches that are still queued.
+     */
+    public void cancel() {
+        for (Image image : images.values())
+            image.generation.incrementAndGet();
+    }
+
+    private boolean prefetch(final Image image, final long index, final boolean playback) {
+        final VolatileCache<Long, ?> cache = image.cache.get();
+        if (cache == null || image.prefetched.contains(index) || cache.getIfPresent(index) != null)
+            return false;
+        if (image.prefetched.size() >= MAX_PREFETCHED)
+            image.prefetched.clear();
+        image.prefetched.add(index);
+        issued.increment();
+        if (playback)
+            pendingPlayback.incrementAndGet();
+
+        final int generation = image.generation.get();
+        final CacheHints hints = new CacheHints(LoadingStrategy.BLOCKING, lowestPriority, false);
+        queue.put(() -> {
+            try {
+                if (image.generation.get() != generation) {
+                    image.prefetched.remove(index);
+                    cancelled.increment();
+                    return null;
+                }
+                cache.get(index, hints);
+                loaded.increment();
+            } catch (Exception e) {
+                image.prefetched.remove(index);
+                log.warn("Could not prefetch cell " + index + " of " + image + ": " + e);
+            } finally {
+                if (playback)
+                    pendingPlayback.decrementAndGet();
+            }
+            return null;
+        }, lowestPriority, false);
+        return true;
+    }
+
+    public long getIssued() {
+        return issued.sum();
+    }
+
+    public long getLoaded() {
+        return loaded.sum();
+    }
+
+    public long getCancelled() {
+        return cancelled.sum();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of cells that the viewer requested before they were loaded
+     */
+    public long getDemandMisses() {
+        return demandMisses.sum();
+    }
+
+    /**
+     * @return the fraction of the prefetched cells that the viewer requested afterwards
+     */
+    public double getHitRate() {
+        final long l = getLoaded();
+        return l == 0 ? 0 : (double) getHits() / l;
+    }
+
+    @Override
+    public String toString() {
+        return "prefetcher: " + getIssued() + " issued, " + getLoaded() + " loaded, " + getCancelled() + " cancelled, "
+            + getHits() + " hits (" + String.format("%.1f", 100 * getHitRate()) + "%), " + getDemandMisses() + " demand misses";
+    }
+
+    private static String key(final int timepoint, final int setup, final int level) {
+        return timepoint + "/" + setup + "/" + level;
+    }
+
+    /**
+     * Creates the volatile image of a timepoint, setup and level of a loader,
+     * which registers it with the prefetcher of the loader's cache.
+     */
+    public interface ImageFactory {
+        RandomAccessibleInterval<?> create(int timepoint, int setup, int level);
+    }
+
+    /**
+     * The motion and the prefetches of the image of one timepoint, setup and level.
+     */
+    public final class Image {
+        final int timepoint;
+        final int setup;
+        final int level;
+        final long[] imgDimensions;
+        final int[] cellDimensions;
+        final long[] gridDimensions;
+        final WeakReference<VolatileCache<Long, ?>> cache;
+        final AtomicInteger generation = new AtomicInteger();
+        final Set<Long> prefetched = ConcurrentHashMap.newKeySet();
+        private final List<long[]> frontier = new ArrayList<>();
+        private final Set<Long> requested = ConcurrentHashMap.newKeySet();
+        // the cells that the viewer requested in the last frame with requests
+        long[] visible = new long[0];
+        private double[] previousCentre;
+        private int[] direction;
+
+        Image(final int timepoint, final int setup, final int level, final CellGrid grid, final VolatileCache<Long, ?> cache) {
+            this.timepoint = timepoint;
+            this.setup = setup;
+            this.level = level;
+            this.imgDimensions = grid.getImgDimensions();
+            this.cellDimensions = grid.getCellDimensions();
+            this.gridDimensions = grid.getGridDimensions();
+            this.cache = new WeakReference<>(cache);
+        }
+
+        /**
+         * Notes a request of the viewer for the cell {@code index}.
+         *
+         * @param valid whether the cell was loaded already
+         */
+        public void onRequest(final long index, final boolean valid, final CacheHints hints) {
+            if (hints != null && hints.getQueuePriority() > lowestPriority)
+                lowestPriority = hints.getQueuePriority();
+            if (timepointIds != null && requested.size() < MAX_REQUESTED_PER_FRAME)
+                requested.add(index);
+            if (valid) {
+                // a prefetch hit would have been a miss, it keeps the motion visible
+                if (prefetched.isEmpty() || !prefetched.remove(index))
+                    return;
+                hits.increment();
+            } else {
+                demandMisses.increment();
+            }
+            final long[] position = new long[gridDimensions.length];
+            IntervalIndexer.indexToPosition(index, gridDimensions, position);
+            synchronized (this) {
+                if (frontier.size() < MAX_FRONTIER_PER_FRAME)
+                    frontier.add(position);
+            }
+        }
+
+        /**
+         * Moves the cells requested since the last frame to {@link #visible}.
+         *
+         * @return whether the viewer requested any cells
+         */
+        boolean takeRequested() {
+            if (requested.isEmpty())
+                return false;
+            final long[] indices = new long[requested.size()];
+            int i = 0;
+            for (Long index : requested) {
+                if (i == indices.length)
+                    break;
+                indices[i++] = index;
+            }
+            requested.clear();
+            visible = i == indices.length ? indices : Arrays.copyOf(indices, i);
+            Arrays.sort(visible);
+            return true;
+        }
+
+        synchronized List<long[]> takeFrontier() {
+            final List<long[]> taken = new ArrayList<>(frontier);
+            frontier.clear();
+            return taken;
+        }
+
+        /**
+         * Compares the centre of the frontier cells with that of the previous frame.
+         *
+         * @return the direction of the motion, or {@code null} if the image is still
+         */
+        int[] updateDirection(final List<long[]> frontier) {
+            final int n = gridDimensions.length;
+            final double[] centre = new double[n];
+            for (long[] position : frontier)
+                for (int d = 0; d < n; d++)
+                    centre[d] += position[d];
+            for (int d = 0; d < n; d++)
+                centre[d] /= frontier.size();
+
+            final double[] previous = previousCentre;
+            previousCentre = centre;
+            if (previous == null)
+                return null;
+
+            final int[] motion = new int[n];
+            boolean moving = false;
+            for (int d = 0; d < n; d++) {
+                final double delta = centre[d] - previous[d];
+                motion[d] = delta > minMotion ? 1 : delta < -minMotion ? -1 : 0;
+                moving |= motion[d] != 0;
+            }
+            if (!moving)
+                return null;
+            if (direction != null && !Arrays.equals(direction, motion))
+                generation.incrementAndGet();
+            direction = motion;
+            return motion;
+        }
+
+        /**
+         * @return whether the neighbour of {@code position} in {@code direction} is inside the grid
+         */
+        boolean neighbour(final long[] position, final int[] direction, final long[] neighbour) {
+            for (int d = 0; d < neighbour.length; d++) {
+                neighbour[d] = position[d] + direction[d];
+                if (neighbour[d] < 0 || neighbour[d] >= gridDimensions[d])
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return the index of the cell of this image that contains the centre of
+         * the cell {@code position} of the finer image
+         */
+        long containingCell(final Image finer, final long[] position) {
+            final long[] cell = new long[gridDimensions.length];
+            for (int d = 0; d < cell.length; d++) {
+                final double centre = (position[d] + 0.5) * finer.cellDimensions[d];
+                final double scale = (double) imgDimensions[d] / finer.imgDimensions[d];
+                cell[d] = Math.min(gridDimensions[d] - 1, (long) (centre * scale) / cellDimensions[d]);
+            }
+            return IntervalIndexer.positionToIndex(cell, gridDimensions);
+        }
+
+        @Override
+        public String toString() {
+            return "timepoint " + timepoint + " setup " + setup + " level " + level;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.janelia.saalfeldlab.n5.DataType;
+
+import net.imglib2.img.basictypeaccess.volatiles.VolatileByteAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileDoubleAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileFloatAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileIntAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileLongAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileShortAccess;
+
+/**
+ * Read-only volatile accesses that return the same value for every index.
+ * They back the cells of missing chunks: a single instance per data type and
+ * fill value is shared by all such cells, independent of the cell size.
+ */
+public final class ConstantVolatileAccess {
+    private static final ConcurrentHashMap<String, Object> accesses = new ConcurrentHashMap<>();
+
+    private ConstantVolatileAccess() {
+    }
+
+    /**
+     * @return the shared access of the given {@link DataType} that is filled with zeros
+     */
+    public static Object zero(DataType dataType) {
+        return get(dataType, null);
+    }
+
+    /**
+     * @param dataType  the n5 data type of the dataset
+     * @param fillValue the zarr {@code fill_value}; {@code null} means zero
+     * @return the shared access of the given {@link DataType} that is filled with {@code fillValue}
+     */
+    public static Object get(DataType dataType, String fillValue) {
+        final String key = dataType + "/" + (fillValue == null ? "0" : fillValue);
+        return accesses.computeIfAbsent(key, k -> create(dataType, fillValue));
+    }
+
+    private static Object create(DataType dataType, String fillValue) {
+        switch (dataType) {
+            case UINT8:
+            case INT8:
+                return new Bytes((byte) parseLong(fillValue));
+            case UINT16:
+            case INT16:
+                return new Shorts((short) parseLong(fillValue));
+            case UINT32:
+            case INT32:
+                return new Ints((int) parseLong(fillValue));
+            case UINT64:
+            case INT64:
+                return new Longs(parseLong(fillValue));
+            case FLOAT32:
+                return new Floats((float) parseDouble(fillValue));
+            case FLOAT64:
+                return new Doubles(parseDouble(fillValue));
+            default:
+                throw new IllegalArgumentException("Unsupported data type: " + dataType);
+        }
+    }
+
+    /**
+     * Parses an integer fill value; values exceeding the signed range (e.g. large
+     * uint64 values) are wrapped to their two's complement representation.
+     */
+    static long parseLong(String fillValue) {
+        if (fillValue == null)
+            return 0;
+        try {
+            return new BigDecimal(fillValue.trim()).toBigInteger().longValue();
+        } catch (NumberFormatException e) {
+            // NaN and Infinity have no integer representation
+            return 0;
+        }
+    }
+
+    static double parseDouble(String fillValue) {
+        if (fillValue == null)
+            return 0;
+        switch (fillValue.trim()) {
+            case "NaN":
+                return Double.NaN;
+            case "Infinity":
+                return Double.POSITIVE_INFINITY;
+            case "-Infinity":
+                return Double.NEGATIVE_INFINITY;
+            default:
+                try {
+                    return Double.parseDouble(fillValue.trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+        }
+    }
+
+    private static UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException("Cells of missing chunks are read-only.");
+    }
+
+    public static final class Bytes implements VolatileByteAccess {
+        private final byte value;
+
+        Bytes(byte value) {
+            this.value = value;
+        }
+
+        @Override
+        public byte getValue(int index) {
+            return value;
+        }
+
+        @Override
+        public void setValue(int index, byte value) {
+            throw readOnly();
+        }
+
+        @Override
+        public boolean isValid() {
+            return true;
+        }
+    }
+
+    public static final class Shorts implements VolatileShortAccess {
+        private final short value;
+
+        Shorts(short value) {
+            this.value = value;
+        }
+
+        @Override
+        public short getValue(int index) {
+            return value;
+        }
+
+        @Override
+        public void setValue(int index, short value) {
+            throw readOnly();
+        }
+
+        @Override
+        public boolean isValid() {
+            return true;
+        }
+    }
+
+    public static final class Ints implements VolatileIntAccess {
+        private final int value;
+
+        Ints(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public int getValue(int index) {
+            return value;
+        }
+
+        @Override
+        public void setValue(int index, int value) {
+            throw readOnly();
+        }
+
+        @Override
+        public boolean isValid() {
+            return true;
+        }
+    }
+
+    public static final class Longs implements VolatileLongAccess {
+        private final long value;
+
+        Longs(long value) {
+            this.value = value;
+        }
+
+        @Override
+        public long getValue(int index) {
+            return value;
+        }
+
+        @Override
+        public void setValue(int index, long value) {
+            throw readOnly();
+        }
+
+        @Override
+        public boolean isValid() {
+            return true;
+        }
+    }
+
+    public static final class Floats implements VolatileFloatAccess {
+        private final float value;
+
+        Floats(float value) {
+            this.value = value;
+        }
+
+        @Override
+        public float getValue(int index) {
+            return value;
+        }
+
+        @Override
+        public void setValue(int index, float value) {
+            throw readOnly();
+        }
+
+        @Override
+        public boolean isValid() {
+            return true;
+        }
+    }
+
+    public static final class Doubles implements VolatileDoubleAccess {
+        private final double value;
+
+        Doubles(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double getValue(int index) {
+            return value;
+        }
+
+        @Override
+        public void setValue(int index, double value) {
+            throw readOnly();
+        }
+
+        @Override
+        public boolean isValid() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A memory tier below the cell caches that holds chunks as they are stored,
+ * i.e. still compressed. Decoded cells of 16 or 32 bit data take several times
+ * the memory of their compressed chunks, so this tier holds a much larger part
+ * of the data than the cell caches. When a cell cache evicts a cell, loading it
+ * again only decodes its chunk from memory instead of fetching it again.
+ * <p>
+ * The chunks of all readers are kept by one {@link WTinyLfuPolicy} that is
+ * weighted by their encoded size, and that shrinks on low memory like the
+ * policies of the {@link BoundedVolatileCellCache}s. Readers identify their
+ * container by a scope, see
+ * {@link org.embl.mobie.io.ome.zarr.util.N5ZarrImageReader#getEncodedChunkScope()}.
+ * <p>
+ * The buffers that are returned are read-only views of the cached bytes, so
+ * they are never recycled to the {@link ArrayPool}.
+ * <p>
+ * The cache is disabled unless {@link #maxBytes} is set, because its budget
+ * comes on top of the budgets of the cell caches.
+ */
+public class EncodedChunkCache {
+
+    /**
+     * The budget of the cache, or 0 (the default) to not cache encoded chunks.
+     * The budget of an existing cache is changed with {@link #setBudget(long)}.
+     */
+    public static long maxBytes = 0;
+
+    private static final long EXPECTED_CHUNK_BYTES = 64 * 64 * 64 / 2;
+
+    private static final long ENTRY_OVERHEAD = 96;
+
+    private static EncodedChunkCache instance;
+
+    private final ConcurrentHashMap<Key, byte[]> chunks = new ConcurrentHashMap<>();
+
+    private final WTinyLfuPolicy<Key> policy;
+
+    // keeps the map and the policy in agreement about the bytes of a chunk that is put concurrently
+    private final ReentrantLock putLock = new ReentrantLock();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private EncodedChunkCache(final long maxBytes) {
+        policy = new WTinyLfuPolicy<>(maxBytes, EXPECTED_CHUNK_BYTES, new WTinyLfuPolicy.Listener<Key>() {
+            @Override
+            public void onAdd(final Key key, final long weightDelta, final boolean replaced) {
+            }
+
+            @Override
+            public void onRemoval(final Key key, final Object value, final long weight, final boolean evicted) {
+                chunks.remove(key, value);
+            }
+        });
+        BoundedVolatileCellCache.shrinkOnLowMemory(policy);
+    }
+
+    /**
+     * @return the cache shared by all readers, or {@code null} if encoded
+     * chunks are not cached
+     */
+    public static synchronized EncodedChunkCache getInstance() {
+        if (maxBytes <= 0)
+            return null;
+        if (instance == null)
+            instance = new EncodedChunkCache(maxBytes);
+        return instance;
+    }
+
+    /**
+     * @return a read-only view of the encoded chunk, or {@code null} if it is not cached
+     */
+    public ByteBuffer get(final String scope, final String pathName, final long[] gridPosition) {
+        final Key key = new Key(scope, pathName, gridPosition);
+        final byte[] bytes = chunks.get(key);
+        if (bytes == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        policy.access(key, null, 0);
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    /**
+     * Caches the remaining bytes of {@code encoded}. The buffer is copied,
+     * unless it wraps a complete array that the caller hands over.
+     *
+     * @return a read-only view of the cached bytes, to be used instead of {@code encoded}
+     */
+    public ByteBuffer put(final String scope, final String pathName, final long[] gridPosition, final ByteBuffer encoded) {
+        final byte[] bytes;
+        if (encoded.hasArray() && encoded.arrayOffset() == 0 && encoded.position() == 0 && encoded.remaining() == encoded.array().length) {
+            bytes = encoded.array();
+        } else {
+            bytes = new byte[encoded.remaining()];
+            encoded.duplicate().get(bytes);
+        }
+        final Key key = new Key(scope, pathName, gridPosition);
+        // the policy removes the chunk from the map when it evicts it, so it has to be in the map first
+        putLock.lock();
+        try {
+            chunks.put(key, bytes);
+            policy.add(key, bytes, ENTRY_OVERHEAD + bytes.length);
+        } finally {
+            putLock.unlock();
+        }
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    /**
+     * Forgets the chunks of the container {@code scope}.
+     */
+    public void invalidate(final String scope) {
+        policy.removeIf(key -> key.scope.equals(scope));
+    }
+
+    /**
+     * Forgets the chunks of the dataset or group {@code pathName} of the
+     * container {@code scope} and of everything it contains.
+     */
+    public void invalidate(final String scope, final String pathName) {
+        final String prefix = normalize(pathName);
+        policy.removeIf(key -> key.scope.equals(scope)
+            && (prefix.isEmpty() || key.pathName.equals(prefix) || key.pathName.startsWith(prefix + "/")));
+    }
+
+    /**
+     * Forgets all chunks.
+     */
+    public void clear() {
+        policy.removeIf(key -> true);
+    }
+
+    public long getCachedBytes() {
+        return policy.getWeight();
+    }
+
+    public int getNumChunks() {
+        return policy.size();
+    }
+
+    public long getBudget() {
+        return policy.getBudget();
+    }
+
+    /**
+     * Sets the budget and evicts chunks until the cache is below it.
+     */
+    public void setBudget(final long budget) {
+        policy.setBudget(budget);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        final long h = getHits();
+        final long m = getMisses();
+        return "encoded chunk cache: " + (getCachedBytes() >> 20) + " MB in " + getNumChunks() + " chunks, "
+            + h + " hits, " + m + " misses (" + String.format("%.1f", h + m == 0 ? 0.0 : 100.0 * h / (h + m)) + "% hits)";
+    }
+
+    private static String normalize(final String pathName) {
+        int start = 0;
+        int end = pathName.length();
+        while (start < end && pathName.charAt(start) == '/')
+            start++;
+        while (end > start && pathName.charAt(end - 1) == '/')
+            end--;
+        return pathName.substring(start, end);
+    }
+
+    private static final class Key {
+        final String scope;
+        final String pathName;
+        final long[] gridPosition;
+        final int hash;
+
+        Key(final String scope, final String pathName, final long[] gridPosition) {
+            this.scope = scope;
+            this.pathName = normalize(pathName);
+            this.gridPosition = gridPosition.clone();
+            this.hash = 31 * (31 * scope.hashCode() + this.pathName.hashCode()) + Arrays.hashCode(gridPosition);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            final Key other = (Key) o;
+            return hash == other.hash && Arrays.equals(gridPosition, other.gridPosition)
+                && pathName.equals(other.pathName) && scope.equals(other.scope);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -36,7 +36,7 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import bdv.export.CopyBlock;
 import bdv.export.ExportMipmapInfo;
@@ -77,7 +77,8 @@ public class ExportScalePyramid {
      *                          finer resolution level already written to the hdf5. may be
      *                          null (in this case always use the original image).
      * @param afterEachPlane    this is called after each "plane of blocks" is written, giving
-     *                          the opportunity to clear caches, etc. may be null.
+     *                          the opportunity to clear caches, etc. may be null. For sharded
+     *                          datasets, a plane is one layer of shards.
      * @param progressWriter    completion ratio and status output will be directed here. may
      *                          be null.
      * @param <T>               Pixel type
@@ -195,12 +196,12 @@ public class ExportScalePyramid {
                 (double) (numCompletedTasks + 1) / numTasks);
             // generate one "plane" of cells after the other to avoid cache thrashing when exporting from virtual stacks
             final CellGrid grid = new CellGrid(dimensions, cellDimensions);
-            final long[] numCells = grid.getGridDimensions();
-            final long numBlocksPerPlane = numElements(numCells, 0, 2);
-            final long numPlanes = numElements(numCells, 2, n);
+            final CellOrder cellOrder = new CellOrder(grid.getGridDimensions(), io.getBlocksPerShard(dataset));
+            final long numBlocksPerPlane = cellOrder.getNumCellsPerPlane();
+            final long numPlanes = cellOrder.getNumPlanes();
             for (int plane = 0; plane < numPlanes; ++plane) {
-                final long planeBaseIndex = numBlocksPerPlane * plane;
-                final AtomicInteger nextCellInPlane = new AtomicInteger();
+                final long currentPlane = plane;
+                final AtomicLong nextCellInPlane = new AtomicLong();
                 final List<Callable<Void>> tasks = new ArrayList<>();
                 for (int threadNum = 0; threadNum < numThreads; ++threadNum) {
                     tasks.add(() -> {
@@ -215,11 +216,11 @@ public class ExportScalePyramid {
                         final CopyBlock<T> copyBlock = fullResolution ? CopyBlock.create(n, kl1, kl2) : null;
                         final DownsampleBlock<T> downsampleBlock = fullResolution ? null : DownsampleBlock.create(cellDimensions, factor, downsamplingMethod, kl1, kl2);
 
-                        for (int i = nextCellInPlane.getAndIncrement(); i < numBlocksPerPlane; i = nextCellInPlane.getAndIncrement()) {
-                            final long index = planeBaseIndex + i;
+                        for (long i = nextCellInPlane.getAndIncrement(); i < numBlocksPerPlane; i = nextCellInPlane.getAndIncrement()) {
+                            if (!cellOrder.getCellGridPosition(currentPlane, i, currentCellPos))
+                                continue;
 
-                            grid.getCellDimensions(index, currentCellMin, currentCellDim);
-                            grid.getCellGridPositionFlat(index, currentCellPos);
+                            grid.getCellDimensions(currentCellPos, currentCellMin, currentCellDim);
                             final Block<T> block = blockCreator.create(currentCellDim, currentCellMin, currentCellPos);
 
                             if (fullResolution) {
@@ -258,11 +259,52 @@ public class ExportScalePyramid {
         }
     }
 
-    private static long numElements(final long[] size, final int mind, final int maxd) {
-        long numElements = 1;
-        for (int d = mind; d < maxd; ++d)
-            numElements *= size[d];
-        return numElements;
+    /**
+     * The order in which the cells of a level are generated: plane by plane and,
+     * within a plane, shard by shard, such that only the shards that are being
+     * filled are held in memory. Without sharding, every cell is its own shard.
+     */
+    private static final class CellOrder {
+        private final long[] numCells;
+        private final int[] cellsPerShard;
+        private final long[] numShards;
+        private final long numCellsPerShard;
+
+        CellOrder(final long[] numCells, final int[] cellsPerShard) {
+            final int n = numCells.length;
+            this.numCells = numCells;
+            this.cellsPerShard = cellsPerShard == null ? new int[]{1, 1, 1} : cellsPerShard;
+            numShards = new long[n];
+            long numCellsPerShard = 1;
+            for (int d = 0; d < n; ++d) {
+                numShards[d] = (numCells[d] + this.cellsPerShard[d] - 1) / this.cellsPerShard[d];
+                numCellsPerShard *= this.cellsPerShard[d];
+            }
+            this.numCellsPerShard = numCellsPerShard;
+        }
+
+        long getNumPlanes() {
+            return numShards[2];
+        }
+
+        long getNumCellsPerPlane() {
+            return numShards[0] * numShards[1] * numCellsPerShard;
+        }
+
+        /**
+         * @return {@code false} if the {@code i}th cell of the plane lies in a partial shard beyond the image
+         */
+        boolean getCellGridPosition(final long plane, final long i, final long[] cellGridPosition) {
+            final long shard = i / numCellsPerShard;
+            final long cellInShard = i % numCellsPerShard;
+            cellGridPosition[0] = (shard % numShards[0]) * cellsPerShard[0] + cellInShard % cellsPerShard[0];
+            cellGridPosition[1] = (shard / numShards[0]) * cellsPerShard[1] + (cellInShard / cellsPerShard[0]) % cellsPerShard[1];
+            cellGridPosition[2] = plane * cellsPerShard[2] + cellInShard / ((long) cellsPerShard[0] * cellsPerShard[1]);
+            for (int d = 0; d < cellGridPosition.length; ++d)
+                if (cellGridPosition[d] >= numCells[d])
+                    return false;
+            return true;
+        }
     }
 
     /**
@@ -328,6 +370,15 @@ public class ExportScalePyramid {
          */
         void flush(D dataset) throws IOException;
 
+        /**
+         * @return the number of blocks per shard in each dimension if {@code dataset}
+         * stores its blocks in shards, or {@code null}. Blocks are then generated shard
+         * by shard.
+         */
+        default int[] getBlocksPerShard(final D dataset) {
+            return null;
+        }
+
         /**
          * Opens a dataset that was already written as a
          * {@code RaπdomAccessibleInterval}.
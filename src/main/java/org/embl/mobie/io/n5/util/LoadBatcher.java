@@ -0,0 +1,209 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Combines the single cell requests of concurrent fetcher threads into batches
+ * for a {@link BatchCacheArrayLoader} (group commit).
+ * <p>
+ * A request that arrives while fewer than {@link #maxConcurrentBatches} batches
+ * are loading is loaded right away, together with the requests that are
+ * waiting. The requests that arrive while all batches are loading queue up and
+ * are loaded as the next batch by one of the waiting threads as soon as a
+ * batch completes, so neighbouring cells that the viewer enqueues together end
+ * up in one call of {@link BatchCacheArrayLoader#loadArrays(List)}, and a slow
+ * batch does not hold back the requests behind it.
+ * <p>
+ * If a batch fails, its cells are loaded again one by one, such that only the
+ * failing cells see the exception.
+ */
+public class LoadBatcher<A> {
+    /**
+     * The maximal number of cells per batch. {@code 1} disables batching.
+     */
+    public static int maxBatchSize = 64;
+
+    /**
+     * The maximal number of batches that load at the same time.
+     */
+    public static int maxConcurrentBatches = 4;
+
+    private final BatchCacheArrayLoader<A> loader;
+    private final ArrayDeque<Request<A>> pending = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private int numLoading;
+
+    public LoadBatcher(final BatchCacheArrayLoader<A> loader) {
+        this.loader = loader;
+    }
+
+    public A load(final long[] gridPosition) throws IOException {
+        final Request<A> request = new Request<>(gridPosition);
+        lock.lock();
+        try {
+            pending.add(request);
+            request.queued = true;
+        } finally {
+            lock.unlock();
+        }
+
+        while (true) {
+            final List<Request<A>> batch = new ArrayList<>();
+            lock.lock();
+            try {
+                awaitTurn(request);
+                if (request.done)
+                    break;
+
+                // the batch starts with the oldest request and contains the own request,
+                // unless more than a full batch is waiting
+                numLoading++;
+                while (!pending.isEmpty() && batch.size() < batchSize()) {
+                    final Request<A> next = pending.poll();
+                    next.queued = false;
+                    batch.add(next);
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                load(batch);
+            } finally {
+                lock.lock();
+                try {
+                    numLoading--;
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        return request.get();
+    }
+
+    private static int batchSize() {
+        return Math.max(1, maxBatchSize);
+    }
+
+    /**
+     * Waits until the request is done, or until it is still queued and a new
+     * batch may start because fewer than {@link #maxConcurrentBatches} are loading.
+     * Must be called while holding the lock, which virtual threads release
+     * while they wait, unlike a monitor.
+     */
+    private void awaitTurn(final Request<A> request) throws InterruptedIOException {
+        boolean interrupted = false;
+        try {
+            while (!request.done && !(request.queued && mayStartBatch())) {
+                try {
+                    changed.await();
+                } catch (InterruptedException e) {
+                    // give up only if the request was not taken into a batch yet
+                    if (request.queued) {
+                        pending.remove(request);
+                        request.queued = false;
+                        changed.signalAll();
+                        throw new InterruptedIOException();
+                    }
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean mayStartBatch() {
+        return numLoading < Math.max(1, maxConcurrentBatches);
+    }
+
+    private void load(final List<Request<A>> batch) {
+        final List<long[]> gridPositions = new ArrayList<>(batch.size());
+        for (Request<A> request : batch)
+            gridPositions.add(request.gridPosition);
+
+        try {
+            final List<A> arrays = loader.loadArrays(gridPositions);
+            for (int i = 0; i < batch.size(); i++)
+                batch.get(i).array = arrays.get(i);
+        } catch (IOException | RuntimeException e) {
+            if (batch.size() == 1) {
+                batch.get(0).failure = e;
+            } else {
+                // retry one by one, so that only the failing cells see the exception
+                for (Request<A> request : batch)
+                    load(Collections.singletonList(request));
+            }
+        } finally {
+            lock.lock();
+            try {
+                for (Request<A> request : batch)
+                    request.done = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static class Request<A> {
+        private final long[] gridPosition;
+        private A array;
+        private Exception failure;
+        private volatile boolean done;
+        private boolean queued;
+
+        Request(final long[] gridPosition) {
+            this.gridPosition = gridPosition;
+        }
+
+        A get() throws IOException {
+            if (failure instanceof IOException)
+                throw (IOException) failure;
+            if (failure != null)
+                throw (RuntimeException) failure;
+            if (array == null)
+                throw new IOException("Loading of cell " + Arrays.toString(gridPosition) + " failed.");
+            return array;
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads that fetch and decode the chunks of a batch in parallel, see
+ * {@link BatchCacheArrayLoader}.
+ * <p>
+ * Fetching and decoding run on separate pools: up to {@link #maxFetchesInFlight}
+ * threads wait for storage, mostly for remote stores with high latency, while
+ * decoding is done by one thread per core, such that many requests in flight
+ * do not oversubscribe the CPU. A chunk is decoded as soon as its bytes arrive.
+ * <p>
+ * All threads are shared by the image loaders, and the threads that wait for
+ * storage are virtual on Java 21, so their number does not grow with the
+ * number of sources.
+ */
+public final class LoaderThreads {
+    public static final int NUM_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The maximal number of concurrent reads from storage. Takes effect if set
+     * before the first chunk is loaded.
+     */
+    public static int maxFetchesInFlight = 256;
+
+    /**
+     * Whether image loaders that are opened afterwards drain their fetch queue
+     * with {@link VirtualThreadFetchers}, which share one window of loading
+     * cells, instead of a fetcher thread per core and loader.
+     */
+    public static boolean useVirtualFetchers = true;
+
+    /**
+     * The maximal number of cells that all {@link VirtualThreadFetchers}
+     * together load at the same time, independent of the number of cores.
+     * Takes effect if set before the first image loader is opened.
+     */
+    public static int maxConcurrentFetches = 256;
+
+    private static final ThreadFactory virtualThreadFactory = createVirtualThreadFactory();
+
+    private static volatile ExecutorService executor;
+    private static volatile ExecutorService fetchExecutor;
+
+    private LoaderThreads() {
+    }
+
+    /**
+     * @return the pool that decodes chunks
+     */
+    public static ExecutorService executor() {
+        ExecutorService e = executor;
+        if (e == null) {
+            synchronized (LoaderThreads.class) {
+                e = executor;
+                if (e == null) {
+                    e = Executors.newFixedThreadPool(NUM_THREADS, new DaemonThreadFactory("mobie-io-loader-"));
+                    executor = e;
+                }
+            }
+        }
+        return e;
+    }
+
+    /**
+     * @return the pool that reads from storage, its threads end when idle
+     */
+    public static ExecutorService fetchExecutor() {
+        ExecutorService e = fetchExecutor;
+        if (e == null) {
+            synchronized (LoaderThreads.class) {
+                e = fetchExecutor;
+                if (e == null) {
+                    final int numThreads = Math.max(1, maxFetchesInFlight);
+                    final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                        numThreads, numThreads, 30, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(), newThreadFactory("mobie-io-fetch-"));
+                    pool.allowCoreThreadTimeOut(true);
+                    e = pool;
+                    fetchExecutor = e;
+                }
+            }
+        }
+        return e;
+    }
+
+    /**
+     * @return the number of fetcher threads for the viewer cache of an image
+     * loader, one per core, or the maximal number of concurrent fetches if
+     * {@link #useVirtualFetchers} is set, see {@link Fetchers#create}
+     */
+    public static int numFetcherThreads() {
+        if (useVirtualFetchers)
+            return Math.max(1, maxConcurrentFetches);
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return whether the runtime has virtual threads
+     */
+    public static boolean hasVirtualThreads() {
+        return virtualThreadFactory != null;
+    }
+
+    /**
+     * @return a factory of virtual threads, or of daemon threads named with
+     * {@code prefix} if the runtime has no virtual threads
+     */
+    static ThreadFactory newThreadFactory(final String prefix) {
+        return virtualThreadFactory != null ? virtualThreadFactory : new DaemonThreadFactory(prefix);
+    }
+
+    /**
+     * Starts reading from storage on the fetch pool.
+     */
+    public static <T> CompletableFuture<T> fetch(final Callable<T> read) {
+        return CompletableFuture.supplyAsync(() -> call(read), fetchExecutor());
+    }
+
+    /**
+     * Decodes the result of a fetch on the decode pool as soon as it is available.
+     */
+    public static <T, R> CompletableFuture<R> decode(final CompletableFuture<T> fetched, final Decoder<T, R> decoder) {
+        return fetched.thenApplyAsync(t -> {
+            try {
+                return decoder.decode(t);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor());
+    }
+
+    /**
+     * Waits for all futures.
+     *
+     * @return the results, in the order of {@code futures}
+     * @throws IOException the first failure
+     */
+    public static <T> List<T> join(final List<CompletableFuture<T>> futures) throws IOException {
+        final List<T> results = new ArrayList<>(futures.size());
+        try {
+            for (Future<T> future : futures)
+                results.add(future.get());
+        } catch (InterruptedException e) {
+            for (Future<T> future : futures)
+                future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * Runs the tasks in parallel on the decode pool and waits for all of them.
+     * A single task is run on the calling thread.
+     *
+     * @return the results, in the order of {@code tasks}
+     * @throws IOException the first failure of a task
+     */
+    public static <T> List<T> invokeAll(final List<? extends Callable<T>> tasks) throws IOException {
+        return invokeAll(executor(), tasks);
+    }
+
+    /**
+     * Runs tasks that read from storage, and decode what they read, in parallel
+     * on the fetch pool and waits for all of them. A single task is run on the
+     * calling thread.
+     *
+     * @return the results, in the order of {@code tasks}
+     * @throws IOException the first failure of a task
+     */
+    public static <T> List<T> fetchAll(final List<? extends Callable<T>> tasks) throws IOException {
+        return invokeAll(fetchExecutor(), tasks);
+    }
+
+    private static <T> List<T> invokeAll(final ExecutorService executor, final List<? extends Callable<T>> tasks) throws IOException {
+        final List<T> results = new ArrayList<>(tasks.size());
+        if (tasks.size() == 1) {
+            try {
+                results.add(tasks.get(0).call());
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            return results;
+        }
+
+        final List<Future<T>> futures = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks)
+            futures.add(executor.submit(task));
+        try {
+            for (Future<T> future : futures)
+                results.add(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        } finally {
+            for (Future<T> future : futures)
+                future.cancel(true);
+        }
+        return results;
+    }
+
+    private static <T> T call(final Callable<T> callable) {
+        try {
+            return callable.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static IOException rethrow(Throwable cause) {
+        if (cause instanceof CompletionException && cause.getCause() != null)
+            cause = cause.getCause();
+        if (cause instanceof IOException)
+            return (IOException) cause;
+        if (cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+        if (cause instanceof Error)
+            throw (Error) cause;
+        return new IOException(cause);
+    }
+
+    /**
+     * Decodes fetched data, see {@link #decode}.
+     */
+    public interface Decoder<T, R> {
+        R decode(T fetched) throws IOException;
+    }
+
+    /**
+     * {@code Thread.ofVirtual().name("mobie-io-virtual-", 0).factory()}, looked
+     * up reflectively such that this compiles for Java 8.
+     *
+     * @return the factory, or null if the runtime has no virtual threads
+     */
+    private static ThreadFactory createVirtualThreadFactory() {
+        try {
+            final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            final Class<?> ofVirtualClass = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            final MethodHandle ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(ofVirtualClass));
+            final MethodHandle name = lookup.findVirtual(builderClass, "name", MethodType.methodType(builderClass, String.class, long.class));
+            final MethodHandle factory = lookup.findVirtual(builderClass, "factory", MethodType.methodType(ThreadFactory.class));
+            final Object builder = name.invoke(ofVirtual.invoke(), "mobie-io-virtual-", 0L);
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        DaemonThreadFactory(final String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, prefix + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
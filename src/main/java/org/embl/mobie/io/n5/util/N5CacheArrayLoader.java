@@ -28,28 +28,28 @@
  */
 package org.embl.mobie.io.n5.util;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.function.Function;
 
-import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
 import org.janelia.saalfeldlab.n5.DataBlock;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
-import org.janelia.saalfeldlab.n5.DoubleArrayDataBlock;
-import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
-import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
-import org.janelia.saalfeldlab.n5.LongArrayDataBlock;
 import org.janelia.saalfeldlab.n5.N5Reader;
-import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
 
-import bdv.img.cache.SimpleCacheArrayLoader;
 import lombok.extern.slf4j.Slf4j;
+import net.imglib2.util.Cast;
 
 @Slf4j
-public class N5CacheArrayLoader<A> implements SimpleCacheArrayLoader<A> {
+public class N5CacheArrayLoader<A> implements BatchCacheArrayLoader<A> {
     private final N5Reader n5;
     private final String pathName;
     private final DatasetAttributes attributes;
     private final Function<DataBlock<?>, A> createArray;
+    private final LoadBatcher<A> batcher = new LoadBatcher<>(this);
 
     public N5CacheArrayLoader(final N5Reader n5, final String pathName, final DatasetAttributes attributes, final Function<DataBlock<?>, A> createArray) {
         this.n5 = n5;
@@ -59,7 +59,27 @@ public class N5CacheArrayLoader<A> implements SimpleCacheArrayLoader<A> {
     }
 
     @Override
-    public A loadArray(final long[] gridPosition, int[] cellDimensions) {
+    public A loadArray(final long[] gridPosition, int[] cellDimensions) throws IOException {
+        return batcher.load(gridPosition);
+    }
+
+    /**
+     * Every N5 block is a storage object of its own, the blocks of a batch are
+     * fetched and decoded in parallel on the fetch threads, since the N5 reader
+     * decodes as it reads.
+     */
+    @Override
+    public List<A> loadArrays(final List<long[]> gridPositions) throws IOException {
+        if (gridPositions.size() == 1)
+            return Collections.singletonList(loadBlock(gridPositions.get(0)));
+
+        final List<Callable<A>> loads = new ArrayList<>(gridPositions.size());
+        for (long[] gridPosition : gridPositions)
+            loads.add(() -> loadBlock(gridPosition));
+        return LoaderThreads.fetchAll(loads);
+    }
+
+    private A loadBlock(final long[] gridPosition) {
         DataBlock<?> block = null;
 
         try {
@@ -69,28 +89,8 @@ public class N5CacheArrayLoader<A> implements SimpleCacheArrayLoader<A> {
         }
 
         if (block == null) {
-            final int[] blockSize = attributes.getBlockSize();
-            final int n = blockSize[0] * blockSize[1] * blockSize[2];
-            switch (attributes.getDataType()) {
-                case UINT8:
-                case INT8:
-                    return createArray.apply(new ByteArrayDataBlock(blockSize, gridPosition, new byte[n]));
-                case UINT16:
-                case INT16:
-                    return createArray.apply(new ShortArrayDataBlock(blockSize, gridPosition, new short[n]));
-                case UINT32:
-                case INT32:
-                    return createArray.apply(new IntArrayDataBlock(blockSize, gridPosition, new int[n]));
-                case UINT64:
-                case INT64:
-                    return createArray.apply(new LongArrayDataBlock(blockSize, gridPosition, new long[n]));
-                case FLOAT32:
-                    return createArray.apply(new FloatArrayDataBlock(blockSize, gridPosition, new float[n]));
-                case FLOAT64:
-                    return createArray.apply(new DoubleArrayDataBlock(blockSize, gridPosition, new double[n]));
-                default:
-                    throw new IllegalArgumentException();
-            }
+            // all missing blocks share one read-only zero access
+            return Cast.unchecked(ConstantVolatileAccess.zero(attributes.getDataType()));
         } else {
             return createArray.apply(block);
         }
@@ -0,0 +1,470 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.janelia.saalfeldlab.n5.DataType;
+
+import lombok.extern.slf4j.Slf4j;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileByteAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileDoubleAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileFloatAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileIntAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileLongAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileShortAccess;
+
+/**
+ * Volatile accesses whose elements are held in direct memory outside of the
+ * Java heap, in native byte order. Large caches of decoded cells then do not
+ * add to the heap that the garbage collector has to scan and compact.
+ * <p>
+ * The memory is not left to the garbage collector, which would only notice
+ * the small buffer objects rarely: the cell cache calls {@link #release()} when
+ * it evicts a cell, and when it is cleared, e.g. when an image loader is
+ * closed. Reads of a released access that are in progress may finish for
+ * {@link #releaseDelayMillis}, after which the memory is freed and further
+ * reads fail with an {@link IndexOutOfBoundsException} instead of touching
+ * freed memory, and a released access is not {@link #isValid() valid}.
+ * Accesses that are never released are freed by the garbage collector, as any
+ * direct buffer.
+ */
+@Slf4j
+public abstract class OffHeapAccess implements VolatileAccess {
+
+    /**
+     * Whether image loaders that are opened afterwards decode cells into
+     * off-heap memory. Such loaders use a {@link BoundedVolatileCellCache},
+     * see {@link CellCache#create}.
+     */
+    public static boolean enabled = false;
+
+    /**
+     * The time between the release of an access and freeing its memory.
+     */
+    public static long releaseDelayMillis = 1000;
+
+    private static final ByteBuffer RELEASED = ByteBuffer.allocateDirect(0).order(ByteOrder.nativeOrder());
+
+    private static final AtomicLong allocatedBytes = new AtomicLong();
+
+    private static final MethodHandle FREE = findFree();
+
+    private static ScheduledExecutorService releaser;
+
+    private volatile ByteBuffer memory;
+
+    private final int sizeInBytes;
+
+    private volatile boolean released = false;
+
+    // whether the cell cache has handed the access out, see BoundedVolatileCellCache
+    private volatile boolean published = false;
+
+    private boolean evictedBeforePublished = false;
+
+    private OffHeapAccess(final int sizeInBytes) {
+        this.sizeInBytes = sizeInBytes;
+        this.memory = ByteBuffer.allocateDirect(sizeInBytes).order(ByteOrder.nativeOrder());
+        allocatedBytes.addAndGet(sizeInBytes);
+    }
+
+    /**
+     * @return an access of {@code numElements} elements of the given
+     * {@link DataType}, with undefined contents
+     */
+    public static OffHeapAccess allocate(final DataType dataType, final int numElements) {
+        switch (dataType) {
+            case UINT8:
+            case INT8:
+                return new Bytes(numElements);
+            case UINT16:
+            case INT16:
+                return new Shorts(numElements);
+            case UINT32:
+            case INT32:
+                return new Ints(numElements);
+            case UINT64:
+            case INT64:
+                return new Longs(numElements);
+            case FLOAT32:
+                return new Floats(numElements);
+            case FLOAT64:
+                return new Doubles(numElements);
+            default:
+                throw new IllegalArgumentException("Unsupported data type: " + dataType);
+        }
+    }
+
+    /**
+     * Copies a primitive array, e.g. the data of a decoded block, into a new access.
+     */
+    public static OffHeapAccess copyOf(final DataType dataType, final Object array) {
+        final int n = Array.getLength(array);
+        final OffHeapAccess access = allocate(dataType, n);
+        final ByteBuffer dst = access.memory.duplicate().order(ByteOrder.nativeOrder());
+        if (array instanceof byte[])
+            dst.put((byte[]) array, 0, n);
+        else if (array instanceof short[])
+            dst.asShortBuffer().put((short[]) array, 0, n);
+        else if (array instanceof int[])
+            dst.asIntBuffer().put((int[]) array, 0, n);
+        else if (array instanceof long[])
+            dst.asLongBuffer().put((long[]) array, 0, n);
+        else if (array instanceof float[])
+            dst.asFloatBuffer().put((float[]) array, 0, n);
+        else if (array instanceof double[])
+            dst.asDoubleBuffer().put((double[]) array, 0, n);
+        else
+            throw new IllegalArgumentException("Not a primitive array: " + array.getClass());
+        return access;
+    }
+
+    /**
+     * Copies the decompressed bytes of a chunk into a new access, swapping
+     * the bytes of the elements if the chunk is not in native byte order.
+     *
+     * @param bytes      the chunk bytes, in the byte order of the dataset
+     * @param rowOffsets the offset (in elements) of every row of the cell within
+     *                   the chunk, or {@code null} if the rows are contiguous
+     * @param rowLength  the number of elements of a row
+     * @param n          the number of elements of the cell
+     */
+    public static OffHeapAccess copyOf(final DataType dataType, final ByteBuffer bytes, final int[] rowOffsets, final int rowLength, final int n) {
+        final OffHeapAccess access = allocate(dataType, n);
+        final int elementSize = N5DataTypeSize.getNumBytesPerElement(dataType);
+        final ByteBuffer dst = access.memory.duplicate().order(ByteOrder.nativeOrder());
+        final ByteBuffer src = bytes.slice().order(bytes.order());
+        if (elementSize == 1 || bytes.order() == ByteOrder.nativeOrder()) {
+            // the bytes are copied as they are
+            if (rowOffsets == null) {
+                src.limit(n * elementSize);
+                dst.put(src);
+            } else {
+                for (int rowOffset : rowOffsets) {
+                    src.limit((rowOffset + rowLength) * elementSize);
+                    src.position(rowOffset * elementSize);
+                    dst.put(src);
+                }
+            }
+            return access;
+        }
+
+        // the elements are swapped while they are copied
+        switch (elementSize) {
+            case 2:
+                copyRows(src.asShortBuffer(), dst.asShortBuffer(), rowOffsets, rowLength, n);
+                break;
+            case 4:
+                copyRows(src.asIntBuffer(), dst.asIntBuffer(), rowOffsets, rowLength, n);
+                break;
+            default:
+                copyRows(src.asLongBuffer(), dst.asLongBuffer(), rowOffsets, rowLength, n);
+        }
+        return access;
+    }
+
+    private static void copyRows(final ShortBuffer src, final ShortBuffer dst, final int[] rowOffsets, final int rowLength, final int n) {
+        if (rowOffsets == null) {
+            src.limit(n);
+            dst.put(src);
+        } else {
+            for (int rowOffset : rowOffsets) {
+                src.limit(rowOffset + rowLength);
+                src.position(rowOffset);
+                dst.put(src);
+            }
+        }
+    }
+
+    private static void copyRows(final IntBuffer src, final IntBuffer dst, final int[] rowOffsets, final int rowLength, final int n) {
+        if (rowOffsets == null) {
+            src.limit(n);
+            dst.put(src);
+        } else {
+            for (int rowOffset : rowOffsets) {
+                src.limit(rowOffset + rowLength);
+                src.position(rowOffset);
+                dst.put(src);
+            }
+        }
+    }
+
+    private static void copyRows(final LongBuffer src, final LongBuffer dst, final int[] rowOffsets, final int rowLength, final int n) {
+        if (rowOffsets == null) {
+            src.limit(n);
+            dst.put(src);
+        } else {
+            for (int rowOffset : rowOffsets) {
+                src.limit(rowOffset + rowLength);
+                src.position(rowOffset);
+                dst.put(src);
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes of off-heap memory held by all accesses that have not been released explicitly
+     */
+    public static long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    final ByteBuffer memory() {
+        return memory;
+    }
+
+    public int getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * Frees the memory of this access after {@link #releaseDelayMillis}.
+     * The caller must make sure that the access is not handed out anymore.
+     */
+    public void release() {
+        synchronized (this) {
+            if (released)
+                return;
+            released = true;
+        }
+        allocatedBytes.addAndGet(-sizeInBytes);
+        releaser().schedule(() -> {
+            final ByteBuffer freed = memory;
+            memory = RELEASED;
+            free(freed);
+        }, releaseDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isReleased() {
+        return released;
+    }
+
+    @Override
+    public boolean isValid() {
+        return !released;
+    }
+
+    /**
+     * Marks the access as handed out by the caches of the images.
+     *
+     * @return whether the cell cache has evicted it before, see {@link #markEvicted()}
+     */
+    boolean publish() {
+        if (published)
+            return false;
+        synchronized (this) {
+            published = true;
+            final boolean evicted = evictedBeforePublished;
+            evictedBeforePublished = false;
+            return evicted;
+        }
+    }
+
+    /**
+     * Marks the access as evicted by the cell cache.
+     *
+     * @return whether it has been published and may be released; otherwise
+     * it may not have reached the caches of the images yet, and is left to
+     * the garbage collector unless it is published afterwards
+     */
+    synchronized boolean markEvicted() {
+        if (published)
+            return true;
+        evictedBeforePublished = true;
+        return false;
+    }
+
+    private static synchronized ScheduledExecutorService releaser() {
+        if (releaser == null) {
+            final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+                final Thread thread = new Thread(r, "off-heap cell release");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            releaser = executor;
+        }
+        return releaser;
+    }
+
+    /**
+     * Runs {@code task} on the thread that frees the memory of released accesses,
+     * before the memory of accesses that are released afterwards is freed.
+     */
+    static void runOnReleaseThread(final Runnable task) {
+        releaser().execute(task);
+    }
+
+    private static void free(final ByteBuffer buffer) {
+        if (FREE == null)
+            return; // left to the garbage collector
+        try {
+            FREE.invoke(buffer);
+        } catch (Throwable e) {
+            log.warn("Could not free off-heap memory: " + e);
+        }
+    }
+
+    /**
+     * Finds {@code Unsafe.invokeCleaner} on Java 9 and later, or the cleaner
+     * of the direct buffer on Java 8.
+     */
+    private static MethodHandle findFree() {
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            try {
+                final MethodHandle invokeCleaner = lookup.findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class));
+                final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                return invokeCleaner.bindTo(theUnsafe.get(null));
+            } catch (NoSuchMethodException e) {
+                final Class<?> directBuffer = Class.forName("sun.nio.ch.DirectBuffer");
+                final Class<?> cleanerClass = Class.forName("sun.misc.Cleaner");
+                final MethodHandle cleaner = lookup.findVirtual(directBuffer, "cleaner", MethodType.methodType(cleanerClass));
+                final MethodHandle clean = lookup.findVirtual(cleanerClass, "clean", MethodType.methodType(void.class));
+                return MethodHandles.filterReturnValue(cleaner, clean).asType(MethodType.methodType(void.class, ByteBuffer.class));
+            }
+        } catch (Throwable e) {
+            log.warn("Off-heap memory of released cells is left to the garbage collector: " + e);
+            return null;
+        }
+    }
+
+    public static final class Bytes extends OffHeapAccess implements VolatileByteAccess {
+        Bytes(final int numElements) {
+            super(numElements);
+        }
+
+        @Override
+        public byte getValue(final int index) {
+            return memory().get(index);
+        }
+
+        @Override
+        public void setValue(final int index, final byte value) {
+            memory().put(index, value);
+        }
+    }
+
+    public static final class Shorts extends OffHeapAccess implements VolatileShortAccess {
+        Shorts(final int numElements) {
+            super(numElements * 2);
+        }
+
+        @Override
+        public short getValue(final int index) {
+            return memory().getShort(index << 1);
+        }
+
+        @Override
+        public void setValue(final int index, final short value) {
+            memory().putShort(index << 1, value);
+        }
+    }
+
+    public static final class Ints extends OffHeapAccess implements VolatileIntAccess {
+        Ints(final int numElements) {
+            super(numElements * 4);
+        }
+
+        @Override
+        public int getValue(final int index) {
+            return memory().getInt(index << 2);
+        }
+
+        @Override
+        public void setValue(final int index, final int value) {
+            memory().putInt(index << 2, value);
+        }
+    }
+
+    public static final class Longs extends OffHeapAccess implements VolatileLongAccess {
+        Longs(final int numElements) {
+            super(numElements * 8);
+        }
+
+        @Override
+        public long getValue(final int index) {
+            return memory().getLong(index << 3);
+        }
+
+        @Override
+        public void setValue(final int index, final long value) {
+            memory().putLong(index << 3, value);
+        }
+    }
+
+    public static final class Floats extends OffHeapAccess implements VolatileFloatAccess {
+        Floats(final int numElements) {
+            super(numElements * 4);
+        }
+
+        @Override
+        public float getValue(final int index) {
+            return memory().getFloat(index << 2);
+        }
+
+        @Override
+        public void setValue(final int index, final float value) {
+            memory().putFloat(index << 2, value);
+        }
+    }
+
+    public static final class Doubles extends OffHeapAccess implements VolatileDoubleAccess {
+        Doubles(final int numElements) {
+            super(numElements * 8);
+        }
+
+        @Override
+        public double getValue(final int index) {
+            return memory().getDouble(index << 3);
+        }
+
+        @Override
+        public void setValue(final int index, final double value) {
+            memory().putDouble(index << 3, value);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import lombok.extern.slf4j.Slf4j;
+import net.imglib2.cache.queue.BlockingFetchQueues;
+import net.imglib2.cache.queue.FetcherThreads;
+
+/**
+ * Drains a {@link BlockingFetchQueues} with one thread per loading cell,
+ * instead of the fixed number of threads of {@link FetcherThreads}.
+ * <p>
+ * A dispatcher per queue takes the loaders from the queue, in the order of
+ * their priority, and starts each on its own thread, such that many cells wait
+ * for storage at the same time. All image loaders share one window of
+ * {@link LoaderThreads#maxConcurrentFetches} loading cells, so the number of
+ * threads that wait for storage does not grow with the number of sources. A
+ * loader is only taken from the queue when a slot of the window is free, so
+ * the queue keeps its priorities and {@link BlockingFetchQueues#clearToPrefetch()}
+ * still drops the requests that were not started.
+ * <p>
+ * The loaders and dispatchers run on virtual threads on Java 21. On older
+ * runtimes the loaders run on a shared cached pool of platform threads, which
+ * the window bounds. The loaders wait with
+ * {@link java.util.concurrent.locks.ReentrantLock} conditions rather than
+ * monitors, such that waiting virtual threads do not pin their carriers.
+ */
+@Slf4j
+public class VirtualThreadFetchers implements Fetchers {
+    private static Semaphore sharedSlots;
+
+    private static Executor sharedExecutor;
+
+    private final BlockingFetchQueues<Callable<?>> queue;
+
+    private final Semaphore slots;
+
+    private final Executor executor;
+
+    private final Thread dispatcher;
+
+    // the threads that run loaders of this queue, interrupted on shutdown
+    private final Set<Thread> loading = new HashSet<>();
+
+    private volatile boolean isShutdown = false;
+
+    public VirtualThreadFetchers(final BlockingFetchQueues<Callable<?>> queue) {
+        this.queue = queue;
+        this.slots = slots();
+        this.executor = executor();
+        dispatcher = LoaderThreads.newThreadFactory("mobie-io-fetcher-dispatcher-").newThread(this::dispatch);
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * @return whether the loaders run on virtual threads
+     */
+    public static boolean isVirtual() {
+        return LoaderThreads.hasVirtualThreads();
+    }
+
+    private static synchronized Semaphore slots() {
+        if (sharedSlots == null)
+            sharedSlots = new Semaphore(Math.max(1, LoaderThreads.maxConcurrentFetches));
+        return sharedSlots;
+    }
+
+    private static synchronized Executor executor() {
+        if (sharedExecutor == null) {
+            final ThreadFactory threadFactory = LoaderThreads.newThreadFactory("mobie-io-fetcher-");
+            sharedExecutor = isVirtual()
+                ? r -> threadFactory.newThread(r).start()
+                : Executors.newCachedThreadPool(threadFactory);
+        }
+        return sharedExecutor;
+    }
+
+    @Override
+    public void shutdown() {
+        isShutdown = true;
+        dispatcher.interrupt();
+        synchronized (loading) {
+            for (Thread thread : loading)
+                thread.interrupt();
+        }
+    }
+
+    private void dispatch() {
+        while (!isShutdown) {
+            try {
+                slots.acquire();
+                final Callable<?> loader;
+                try {
+                    loader = queue.take();
+                } catch (InterruptedException e) {
+                    slots.release();
+                    throw e;
+                }
+                executor.execute(() -> load(loader));
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                slots.release();
+                if (!isShutdown)
+                    log.error("Could not start fetching: " + e);
+            }
+        }
+    }
+
+    private void load(final Callable<?> loader) {
+        final Thread thread = Thread.currentThread();
+        synchronized (loading) {
+            loading.add(thread);
+        }
+        try {
+            if (!isShutdown)
+                loader.call();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("Error fetching cell: " + e);
+        } finally {
+            synchronized (loading) {
+                loading.remove(thread);
+            }
+            slots.release();
+        }
+    }
+}
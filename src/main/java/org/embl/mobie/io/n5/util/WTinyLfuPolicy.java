@@ -0,0 +1,572 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * A byte-weighted W-TinyLFU eviction policy, see {@link BoundedVolatileCellCache}.
+ * <p>
+ * New entries enter a small LRU window. Entries that leave the window compete
+ * with the least recently used entry of the probation segment of the main
+ * space, and only the one that was accessed more often, according to an aging
+ * count-min sketch, is kept. Entries that are accessed again while on
+ * probation move to the protected segment. A scan over many cells that are
+ * each used once therefore only passes through the window and probation,
+ * without displacing the cells that are used all the time.
+ * <p>
+ * The policy holds its entries strongly, up to the maximal weight.
+ * Accesses are recorded in a lock-free buffer, which is applied whenever the
+ * policy is modified, or by a reader that finds it half full and the policy
+ * not locked, such that readers do not wait for each other. Accesses that
+ * find the buffer full are dropped; losing some of them does not matter for
+ * the frequency estimate.
+ * <p>
+ * The maximal weight can be lowered temporarily below the budget with
+ * {@link #shrink()}, it returns to the budget a minute after the last shrink.
+ */
+class WTinyLfuPolicy<K> {
+    private static final double WINDOW_FRACTION = 0.1;
+
+    private static final double PROTECTED_FRACTION = 0.8;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static final long RECOVERY_MILLIS = 60_000;
+
+    private static final int ACCESS_BUFFER_SIZE = 128;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Map<K, Node<K>> nodes = new HashMap<>();
+
+    private final AccessOrderDeque<K> window = new AccessOrderDeque<>();
+
+    private final AccessOrderDeque<K> probation = new AccessOrderDeque<>();
+
+    private final AccessOrderDeque<K> protectedSegment = new AccessOrderDeque<>();
+
+    private final FrequencySketch sketch;
+
+    // the accesses that have not been applied yet, a slot is published by setting its key
+    private final AtomicReferenceArray<K> accessKeys = new AtomicReferenceArray<>(ACCESS_BUFFER_SIZE);
+
+    private final Object[] accessValues = new Object[ACCESS_BUFFER_SIZE];
+
+    private final long[] accessWeights = new long[ACCESS_BUFFER_SIZE];
+
+    private final AtomicLong accessesWritten = new AtomicLong();
+
+    // written under the lock only
+    private volatile long accessesDrained = 0;
+
+    private final Listener<K> listener;
+
+    private long budget;
+
+    private long maxWeight;
+
+    private long lastShrink = 0;
+
+    private long windowWeight = 0;
+
+    private long protectedWeight = 0;
+
+    private long weight = 0;
+
+    /**
+     * @param budget the maximal sum of the weights of the entries
+     * @param expectedEntryWeight the typical weight of an entry, to size the sketch
+     * @param listener notified of every entry that is added, replaced, evicted or removed
+     */
+    WTinyLfuPolicy(final long budget, final long expectedEntryWeight, final Listener<K> listener) {
+        this.budget = budget;
+        this.maxWeight = budget;
+        this.listener = listener;
+        final long expectedEntries = budget / Math.max(1, expectedEntryWeight);
+        this.sketch = new FrequencySketch((int) Math.max(1024, Math.min(1 << 22, expectedEntries * 2)));
+    }
+
+    /**
+     * Adds or replaces {@code key}, evicting other entries if the policy
+     * exceeds its maximal weight.
+     */
+    void add(final K key, final Object value, final long entryWeight) {
+        lock.lock();
+        try {
+            drainAccesses();
+            addLocked(key, value, entryWeight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addLocked(final K key, final Object value, final long entryWeight) {
+        if (lastShrink != 0 && System.currentTimeMillis() - lastShrink > RECOVERY_MILLIS) {
+            lastShrink = 0;
+            maxWeight = budget;
+        }
+        sketch.increment(key.hashCode());
+        Node<K> node = nodes.get(key);
+        if (node != null) {
+            final long delta = entryWeight - node.weight;
+            node.value = value;
+            listener.onAdd(key, delta, true);
+            updateWeight(node, delta);
+            return;
+        }
+        node = new Node<>(key, value, entryWeight);
+        listener.onAdd(key, entryWeight, false);
+        nodes.put(key, node);
+        node.segment = WINDOW;
+        window.addLast(node);
+        windowWeight += entryWeight;
+        weight += entryWeight;
+        evict();
+    }
+
+    /**
+     * Records an access to {@code key}, without waiting for the lock. If it
+     * is not present when the access is applied and {@code value} is not
+     * null, it is added.
+     */
+    void access(final K key, final Object value, final long entryWeight) {
+        long written;
+        do {
+            written = accessesWritten.get();
+            if (written - accessesDrained >= ACCESS_BUFFER_SIZE) {
+                tryDrainAccesses();
+                return;
+            }
+        } while (!accessesWritten.compareAndSet(written, written + 1));
+        final int slot = (int) written & (ACCESS_BUFFER_SIZE - 1);
+        accessValues[slot] = value;
+        accessWeights[slot] = entryWeight;
+        accessKeys.lazySet(slot, key);
+        if (written - accessesDrained >= ACCESS_BUFFER_SIZE / 2)
+            tryDrainAccesses();
+    }
+
+    private void tryDrainAccesses() {
+        if (!lock.tryLock())
+            return;
+        try {
+            drainAccesses();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies the buffered accesses, up to the first slot that is claimed but
+     * not published yet.
+     */
+    private void drainAccesses() {
+        long drained = accessesDrained;
+        while (true) {
+            final int slot = (int) drained & (ACCESS_BUFFER_SIZE - 1);
+            final K key = accessKeys.get(slot);
+            if (key == null)
+                break;
+            final Object value = accessValues[slot];
+            final long entryWeight = accessWeights[slot];
+            accessValues[slot] = null;
+            accessKeys.lazySet(slot, null);
+            accessesDrained = ++drained;
+            applyAccess(key, value, entryWeight);
+        }
+    }
+
+    private void applyAccess(final K key, final Object value, final long entryWeight) {
+        final Node<K> node = nodes.get(key);
+        if (node == null) {
+            if (value != null)
+                addLocked(key, value, entryWeight);
+            return;
+        }
+        sketch.increment(key.hashCode());
+        switch (node.segment) {
+            case WINDOW:
+                window.moveToBack(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                node.segment = PROTECTED;
+                protectedSegment.addLast(node);
+                protectedWeight += node.weight;
+                demoteProtected();
+                break;
+            default:
+                protectedSegment.moveToBack(node);
+        }
+    }
+
+    boolean contains(final K key) {
+        lock.lock();
+        try {
+            return nodes.containsKey(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all entries whose key matches {@code condition}.
+     */
+    void removeIf(final Predicate<K> condition) {
+        lock.lock();
+        try {
+            drainAccesses();
+            for (Node<K> node : new ArrayList<>(nodes.values()))
+                if (condition.test(node.key))
+                    remove(node, false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Evicts entries whose key matches {@code condition}, least recently used
+     * and least protected first, until their weight is reduced by
+     * {@code weightToEvict}.
+     */
+    void evictIf(final Predicate<K> condition, final long weightToEvict) {
+        lock.lock();
+        try {
+            drainAccesses();
+            long evicted = 0;
+            for (AccessOrderDeque<K> deque : Arrays.asList(window, probation, protectedSegment)) {
+                Node<K> node = deque.peekFirst();
+                while (evicted < weightToEvict && node != null && node.key != null) {
+                    final Node<K> next = node.next;
+                    if (condition.test(node.key)) {
+                        evicted += node.weight;
+                        remove(node, true);
+                    }
+                    node = next;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getWeight() {
+        lock.lock();
+        try {
+            return weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getMaxWeight() {
+        lock.lock();
+        try {
+            return maxWeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return nodes.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the budget and evicts entries until the policy is below it.
+     */
+    void setBudget(final long budget) {
+        lock.lock();
+        try {
+            drainAccesses();
+            this.budget = budget;
+            lastShrink = 0;
+            setMaxWeight(budget);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getBudget() {
+        lock.lock();
+        try {
+            return budget;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Halves the maximal weight, down to 1/16 of the budget, and evicts
+     * entries until the policy is below it.
+     */
+    void shrink() {
+        lock.lock();
+        try {
+            drainAccesses();
+            lastShrink = System.currentTimeMillis();
+            setMaxWeight(Math.max(budget / 16, weight / 2));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void setMaxWeight(final long maxWeight) {
+        this.maxWeight = maxWeight;
+        demoteProtected();
+        evict();
+    }
+
+    private void updateWeight(final Node<K> node, final long delta) {
+        node.weight += delta;
+        weight += delta;
+        if (node.segment == WINDOW)
+            windowWeight += delta;
+        else if (node.segment == PROTECTED)
+            protectedWeight += delta;
+        evict();
+    }
+
+    private void demoteProtected() {
+        final long maxProtected = (long) ((maxWeight - maxWindowWeight()) * PROTECTED_FRACTION);
+        while (protectedWeight > maxProtected && !protectedSegment.isEmpty()) {
+            final Node<K> node = protectedSegment.removeFirst();
+            protectedWeight -= node.weight;
+            node.segment = PROBATION;
+            probation.addLast(node);
+        }
+    }
+
+    private long maxWindowWeight() {
+        return (long) (maxWeight * WINDOW_FRACTION);
+    }
+
+    private void evict() {
+        // entries that leave the window go on probation
+        final long maxWindow = maxWindowWeight();
+        Node<K> candidate = null;
+        while (windowWeight > maxWindow && !window.isEmpty()) {
+            final Node<K> node = window.removeFirst();
+            windowWeight -= node.weight;
+            node.segment = PROBATION;
+            probation.addLast(node);
+            if (candidate == null)
+                candidate = node;
+        }
+
+        // the candidates from the window compete with the victims of probation
+        while (weight > maxWeight) {
+            final Node<K> victim = probation.peekFirst();
+            if (victim == null) {
+                final Node<K> node = !protectedSegment.isEmpty() ? protectedSegment.peekFirst() : window.peekFirst();
+                if (node == null)
+                    break;
+                remove(node, true);
+                continue;
+            }
+            if (candidate == null || candidate == victim || candidate.segment != PROBATION) {
+                remove(victim, true);
+                candidate = null;
+                continue;
+            }
+            // on a tie the more recent entry wins, such that a new working set can replace an old one
+            if (sketch.frequency(candidate.key.hashCode()) >= sketch.frequency(victim.key.hashCode())) {
+                remove(victim, true);
+            } else {
+                final Node<K> next = candidate.next;
+                remove(candidate, true);
+                candidate = next != null && next.key != null ? next : null;
+            }
+        }
+    }
+
+    private void remove(final Node<K> node, final boolean evicted) {
+        switch (node.segment) {
+            case WINDOW:
+                window.remove(node);
+                windowWeight -= node.weight;
+                break;
+            case PROBATION:
+                probation.remove(node);
+                break;
+            default:
+                protectedSegment.remove(node);
+                protectedWeight -= node.weight;
+        }
+        nodes.remove(node.key);
+        weight -= node.weight;
+        final Object value = node.value;
+        node.value = null;
+        listener.onRemoval(node.key, value, node.weight, evicted);
+    }
+
+    /**
+     * Notified of changes of the entries, under the lock of the policy.
+     */
+    interface Listener<K> {
+        /**
+         * @param replaced whether the entry replaced one with the same key
+         */
+        void onAdd(K key, long weightDelta, boolean replaced);
+
+        /**
+         * @param value the value that the entry held
+         * @param evicted whether the entry was evicted by the policy, rather than removed
+         */
+        void onRemoval(K key, Object value, long weight, boolean evicted);
+    }
+
+    private static class Node<K> {
+        final K key;
+        Object value;
+        long weight;
+        int segment;
+        Node<K> prev;
+        Node<K> next;
+
+        Node(final K key, final Object value, final long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * A doubly linked list of nodes, least recently used first.
+     */
+    private static class AccessOrderDeque<K> {
+        private final Node<K> sentinel = new Node<>(null, null, 0);
+
+        AccessOrderDeque() {
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+        }
+
+        boolean isEmpty() {
+            return sentinel.next == sentinel;
+        }
+
+        Node<K> peekFirst() {
+            return isEmpty() ? null : sentinel.next;
+        }
+
+        Node<K> removeFirst() {
+            final Node<K> node = sentinel.next;
+            remove(node);
+            return node;
+        }
+
+        void addLast(final Node<K> node) {
+            node.prev = sentinel.prev;
+            node.next = sentinel;
+            sentinel.prev.next = node;
+            sentinel.prev = node;
+        }
+
+        void moveToBack(final Node<K> node) {
+            remove(node);
+            addLast(node);
+        }
+
+        void remove(final Node<K> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+        }
+    }
+
+    /**
+     * A count-min sketch with four rows of saturating 4 bit counters, that
+     * are halved after every {@code 10 * width} increments, such that old
+     * popularity fades.
+     */
+    private static class FrequencySketch {
+        private static final int[] SEEDS = {0x97cb3127, 0x2b5e1d3f, 0x8a1f0f4d, 0x5e3a6b91};
+
+        private final byte[] counters;
+
+        private final int mask;
+
+        private final int sampleSize;
+
+        private int additions = 0;
+
+        FrequencySketch(final int minWidth) {
+            int width = Integer.highestOneBit(minWidth - 1) << 1;
+            mask = width - 1;
+            counters = new byte[4 * width];
+            sampleSize = 10 * width;
+        }
+
+        void increment(final int hash) {
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                final int index = index(hash, i);
+                if (counters[index] < 15) {
+                    ++counters[index];
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < counters.length; i++)
+                    counters[i] >>= 1;
+                additions /= 2;
+            }
+        }
+
+        int frequency(final int hash) {
+            int frequency = 15;
+            for (int i = 0; i < 4; i++)
+                frequency = Math.min(frequency, counters[index(hash, i)]);
+            return frequency;
+        }
+
+        private int index(final int hash, final int row) {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 16;
+            return row * (mask + 1) + (h & mask);
+        }
+    }
+}
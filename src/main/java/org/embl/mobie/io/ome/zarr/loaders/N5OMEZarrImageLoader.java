@@ -36,6 +36,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 
+import org.embl.mobie.io.n5.util.CellCache;
+import org.embl.mobie.io.n5.util.CellCacheService;
+import org.embl.mobie.io.n5.util.CellPrefetcher;
+import org.embl.mobie.io.n5.util.Fetchers;
+import org.embl.mobie.io.n5.util.LoaderThreads;
 import org.embl.mobie.io.ome.zarr.readers.N5OmeZarrReader;
 import org.embl.mobie.io.ome.zarr.readers.N5S3OmeZarrReader;
 import org.embl.mobie.io.ome.zarr.util.N5OMEZarrCacheArrayLoader;
@@ -50,7 +55,6 @@ import bdv.AbstractViewerSetupImgLoader;
 import bdv.ViewerImgLoader;
 import bdv.cache.CacheControl;
 import bdv.img.cache.SimpleCacheArrayLoader;
-import bdv.img.cache.VolatileGlobalCellCache;
 import bdv.util.ConstantRandomAccessible;
 import bdv.util.MipmapTransforms;
 import lombok.extern.slf4j.Slf4j;
@@ -78,7 +82,6 @@ import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.Volatile;
 import net.imglib2.cache.queue.BlockingFetchQueues;
-import net.imglib2.cache.queue.FetcherThreads;
 import net.imglib2.cache.volatiles.CacheHints;
 import net.imglib2.cache.volatiles.LoadingStrategy;
 import net.imglib2.img.cell.CellGrid;
@@ -130,8 +133,8 @@ public class N5OMEZarrImageLoader implements ViewerImgLoader, MultiResolutionImg
     List<ZarrAxis> zarrAxesList;
     private volatile boolean isOpen = false;
     private int sequenceTimepoints = 0;
-    private FetcherThreads fetchers;
-    private VolatileGlobalCellCache cache;
+    private Fetchers fetchers;
+    private CellCache cache;
     private ZarrAxes zarrAxes;
     private BlockingFetchQueues<Callable<?>> queue;
 
@@ -296,7 +299,6 @@ public class N5OMEZarrImageLoader implements ViewerImgLoader, MultiResolutionImg
             String location = "";
             if (n5 instanceof N5S3OmeZarrReader) {
                 final N5S3OmeZarrReader s3ZarrReader = (N5S3OmeZarrReader) n5;
-                s3ZarrReader.setDimensionSeparator("/");
                 location += "service endpoint: " + s3ZarrReader.getServiceEndpoint();
                 location += "; bucket: " + s3ZarrReader.getBucketName();
                 location += "; container path: " + s3ZarrReader.getContainerPath();
@@ -338,11 +340,12 @@ public class N5OMEZarrImageLoader implements ViewerImgLoader, MultiResolutionImg
                         }
                     }
                     if (queue == null) {
-                        final int numFetcherThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+                        final int numFetcherThreads = LoaderThreads.numFetcherThreads();
                         queue = new BlockingFetchQueues<>(maxNumLevels, numFetcherThreads);
-                        fetchers = new FetcherThreads(queue, numFetcherThreads);
+                        fetchers = Fetchers.create(queue, numFetcherThreads);
                     }
-                    cache = new VolatileGlobalCellCache(queue);
+                    cache = CellCache.create(queue, CellCacheService.sourceName(n5));
+                    preparePlayback();
 
                 } catch (IOException e) {
                     throw new RuntimeException(e);
@@ -420,9 +423,9 @@ public class N5OMEZarrImageLoader implements ViewerImgLoader, MultiResolutionImg
         final long[] spatialDimensions = new long[3];
         long[] attributeDimensions = attributes.getDimensions();
         Arrays.fill(spatialDimensions, 1);
-        final Map<Integer, Integer> spatialToZarr = zarrAxes.spatialToZarr();
-        for (Map.Entry<Integer, Integer> entry : spatialToZarr.entrySet()) {
-            spatialDimensions[entry.getKey()] = attributeDimensions[entry.getValue()];
+        final int[] spatialToZarr = zarrAxes.spatialToZarrIndices();
+        for (int d = 0; d < spatialToZarr.length; d++) {
+            spatialDimensions[d] = attributeDimensions[spatialToZarr[d]];
         }
         return new FinalDimensions(spatialDimensions);
     }
@@ -512,21 +515,38 @@ public class N5OMEZarrImageLoader implements ViewerImgLoader, MultiResolutionImg
         return cache;
     }
 
+    /**
+     * @return the prefetcher of the cell cache, with its hit rate, or {@code null}
+     * if {@link CellPrefetcher#enabled} was not set when the loader was opened
+     */
+    public CellPrefetcher getPrefetcher() {
+        open();
+        return cache.getPrefetcher();
+    }
+
+    /**
+     * Lets the prefetcher of the cache preload the timepoints ahead of the displayed one.
+     */
+    private void preparePlayback() {
+        final CellPrefetcher prefetcher = cache.getPrefetcher();
+        if (prefetcher == null)
+            return;
+        final int[] timepointIds = seq.getTimePoints().getTimePointsOrdered().stream().mapToInt(TimePoint::getId).toArray();
+        prefetcher.setTimepoints(timepointIds, (timepoint, setup, level) -> setupImgLoaders.get(setup).getVolatileImage(timepoint, level));
+    }
+
     // TODO: Add description
     private int[] getBlockSize(DatasetAttributes attributes) {
         if (!zarrAxes.hasZAxis()) {
             return fillBlockSize(attributes);
         } else {
-            return Arrays.stream(attributes.getBlockSize()).limit(3).toArray();
+            return Arrays.copyOf(attributes.getBlockSize(), 3);
         }
     }
 
     private int[] fillBlockSize(DatasetAttributes attributes) {
-        int[] tmp = new int[3];
-        tmp[0] = Arrays.stream(attributes.getBlockSize()).toArray()[0];
-        tmp[1] = Arrays.stream(attributes.getBlockSize()).toArray()[1];
-        tmp[2] = 1;
-        return tmp;
+        final int[] blockSize = attributes.getBlockSize();
+        return new int[]{blockSize[0], blockSize[1], 1};
     }
 
     private SimpleCacheArrayLoader<?> createCacheArrayLoader(final N5Reader n5, final String pathName, int channel, int timepointId, CellGrid grid) throws IOException {
@@ -45,10 +45,11 @@ public class N5S3OMEZarrImageLoader extends N5OMEZarrImageLoader implements S3Im
     private final String bucketName;
     private final String key;
 
+    // the dimensionSeparator is not used, the separator of every dataset is read from its .zarray
 
     // sequenceDescription has been read from xml
     public N5S3OMEZarrImageLoader(String serviceEndpoint, String signingRegion, String bucketName, String key, String dimensionSeparator, AbstractSequenceDescription<?, ?, ?> sequenceDescription) throws IOException {
-        super(new N5S3ZarrReaderCreator().create(serviceEndpoint, signingRegion, bucketName, key, dimensionSeparator), sequenceDescription);
+        super(new N5S3ZarrReaderCreator().create(serviceEndpoint, signingRegion, bucketName, key), sequenceDescription);
         this.serviceEndpoint = serviceEndpoint;
         this.signingRegion = signingRegion;
         this.bucketName = bucketName;
@@ -57,7 +58,7 @@ public class N5S3OMEZarrImageLoader extends N5OMEZarrImageLoader implements S3Im
 
     // sequenceDescription will be read from zarr
     public N5S3OMEZarrImageLoader(String serviceEndpoint, String signingRegion, String bucketName, String key, String dimensionSeparator) throws IOException {
-        super(new N5S3ZarrReaderCreator().create(serviceEndpoint, signingRegion, bucketName, key, dimensionSeparator));
+        super(new N5S3ZarrReaderCreator().create(serviceEndpoint, signingRegion, bucketName, key));
         this.serviceEndpoint = serviceEndpoint;
         this.signingRegion = signingRegion;
         this.bucketName = bucketName;
@@ -65,7 +66,7 @@ public class N5S3OMEZarrImageLoader extends N5OMEZarrImageLoader implements S3Im
     }
 
     public N5S3OMEZarrImageLoader(String serviceEndpoint, String signingRegion, String bucketName, String key, String dimensionSeparator, SharedQueue sharedQueue) throws IOException {
-        super(new N5S3ZarrReaderCreator().create(serviceEndpoint, signingRegion, bucketName, key, dimensionSeparator), sharedQueue);
+        super(new N5S3ZarrReaderCreator().create(serviceEndpoint, signingRegion, bucketName, key), sharedQueue);
         this.serviceEndpoint = serviceEndpoint;
         this.signingRegion = signingRegion;
         this.bucketName = bucketName;
@@ -89,9 +90,9 @@ public class N5S3OMEZarrImageLoader extends N5OMEZarrImageLoader implements S3Im
     }
 
     static class N5S3ZarrReaderCreator {
-        public N5S3OmeZarrReader create(String serviceEndpoint, String signingRegion, String bucketName, String key, String dimensionSeparator) throws IOException {
-            final AmazonS3 s3 = S3Utils.getS3Client(serviceEndpoint, signingRegion, bucketName);
-            return new N5S3OmeZarrReader(s3, serviceEndpoint, bucketName, key, dimensionSeparator);
+        public N5S3OmeZarrReader create(String serviceEndpoint, String signingRegion, String bucketName, String key) throws IOException {
+            final AmazonS3 s3 = S3Utils.forChunkReading(S3Utils.getS3Client(serviceEndpoint, signingRegion, bucketName), serviceEndpoint);
+            return new N5S3OmeZarrReader(s3, serviceEndpoint, bucketName, key);
         }
     }
 }
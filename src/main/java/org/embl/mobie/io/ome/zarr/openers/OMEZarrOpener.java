@@ -43,25 +43,43 @@ import net.imglib2.util.Cast;
 
 public class OMEZarrOpener extends BDVOpener {
     private final String filePath;
+    private final boolean readOnly;
 
     public OMEZarrOpener(String filePath) {
+        this(filePath, false);
+    }
+
+    /**
+     * @param readOnly the container is not modified while it is open, such that it is read
+     *                 without file locks and its chunks may be cached, see {@link N5OmeZarrReader}
+     */
+    public OMEZarrOpener(String filePath, boolean readOnly) {
         this.filePath = filePath;
+        this.readOnly = readOnly;
     }
 
     public static SpimData openFile(String filePath) throws IOException {
-        OMEZarrOpener omeZarrOpener = new OMEZarrOpener(filePath);
+        return openFile(filePath, false);
+    }
+
+    public static SpimData openFile(String filePath, boolean readOnly) throws IOException {
+        OMEZarrOpener omeZarrOpener = new OMEZarrOpener(filePath, readOnly);
         return omeZarrOpener.readFile();
     }
 
     public static SpimData openFile(String filePath, SharedQueue sharedQueue) throws IOException {
+        return openFile(filePath, sharedQueue, false);
+    }
+
+    public static SpimData openFile(String filePath, SharedQueue sharedQueue, boolean readOnly) throws IOException {
         N5OMEZarrImageLoader.logging = logging;
-        OMEZarrOpener omeZarrOpener = new OMEZarrOpener(filePath);
+        OMEZarrOpener omeZarrOpener = new OMEZarrOpener(filePath, readOnly);
         return omeZarrOpener.readFile(sharedQueue);
     }
 
     private SpimData readFile(SharedQueue sharedQueue) throws IOException {
         N5OMEZarrImageLoader.logging = logging;
-        N5OmeZarrReader reader = new N5OmeZarrReader(this.filePath, new GsonBuilder());
+        N5OmeZarrReader reader = createReader();
         N5OMEZarrImageLoader imageLoader = new N5OMEZarrImageLoader(reader, sharedQueue);
         return new SpimData(
             new File(this.filePath),
@@ -71,7 +89,7 @@ public class OMEZarrOpener extends BDVOpener {
 
     private SpimData readFile() throws IOException {
         N5OMEZarrImageLoader.logging = logging;
-        N5OmeZarrReader reader = new N5OmeZarrReader(this.filePath, new GsonBuilder());
+        N5OmeZarrReader reader = createReader();
         N5OMEZarrImageLoader imageLoader = new N5OMEZarrImageLoader(reader);
         return new SpimData(
             new File(this.filePath),
@@ -79,4 +97,8 @@ public class OMEZarrOpener extends BDVOpener {
             imageLoader.getViewRegistrations());
     }
 
+    private N5OmeZarrReader createReader() throws IOException {
+        return new N5OmeZarrReader(this.filePath, new GsonBuilder(), N5OmeZarrReader.DEFAULT_SEPARATOR, true, readOnly);
+    }
+
 }
@@ -53,29 +53,42 @@
  */
 package org.embl.mobie.io.ome.zarr.readers;
 
+import java.io.EOFException;
+import java.io.FilterReader;
 import java.io.IOException;
 import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Stream;
 
+import org.embl.mobie.io.n5.util.EncodedChunkCache;
+import org.embl.mobie.io.n5.util.ReadOnlyFiles;
+import org.embl.mobie.io.ome.zarr.util.AbsentChunks;
 import org.embl.mobie.io.ome.zarr.util.N5ZarrImageReader;
 import org.embl.mobie.io.ome.zarr.util.N5ZarrImageReaderHelper;
 import org.embl.mobie.io.ome.zarr.util.OmeZArrayAttributes;
+import org.embl.mobie.io.ome.zarr.util.ShardReader;
 import org.embl.mobie.io.ome.zarr.util.ZArrayAttributes;
 import org.embl.mobie.io.ome.zarr.util.ZarrAxes;
 import org.embl.mobie.io.ome.zarr.util.ZarrAxis;
-import org.embl.mobie.io.ome.zarr.util.ZarrDatasetAttributes;
+import org.embl.mobie.io.ome.zarr.util.ZarrDatasetDescriptor;
+import org.embl.mobie.io.ome.zarr.util.ZarrMetadataCache;
+import org.embl.mobie.io.ome.zarr.util.ZarrV3ArrayMetadata;
 import org.janelia.saalfeldlab.n5.DataBlock;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.GsonAttributesParser;
 import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.zarr.ZarrDatasetAttributes;
 
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
@@ -89,6 +102,10 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class N5OmeZarrReader extends N5FSReader implements N5ZarrImageReader {
     protected final boolean mapN5DatasetAttributes;
+    protected final boolean readOnly;
+    protected final AbsentChunks absentChunks = new AbsentChunks();
+    protected final ZarrMetadataCache metadataCache = new ZarrMetadataCache();
+    protected final ShardReader shardReader = new ShardReader(new FileRangeReader());
     final N5ZarrImageReaderHelper n5ZarrImageReaderHelper;
     protected String dimensionSeparator;
     private ZarrAxes zarrAxes;
@@ -109,9 +126,31 @@ public class N5OmeZarrReader extends N5FSReader implements N5ZarrImageReader {
      * @throws IOException
      */
     public N5OmeZarrReader(final String basePath, final GsonBuilder gsonBuilder, final String dimensionSeparator, final boolean mapN5DatasetAttributes) throws IOException {
+        this(basePath, gsonBuilder, dimensionSeparator, mapN5DatasetAttributes, false);
+    }
+
+    /**
+     * Opens an {@link N5OmeZarrReader} at a given base path with a custom
+     * {@link GsonBuilder} to support custom attributes.
+     *
+     * @param basePath               Zarr base path
+     * @param gsonBuilder
+     * @param dimensionSeparator
+     * @param mapN5DatasetAttributes Virtually create N5 dataset attributes (dimensions, blockSize,
+     *                               compression, dataType) for datasets such that N5 code that
+     *                               reads or modifies these attributes directly works as expected.
+     *                               This can lead to name clashes if a zarr container uses these
+     *                               attribute keys for other purposes.
+     * @param readOnly               The container is not modified while it is open. Files are read
+     *                               without locking them, chunks are read with a single bulk read
+     *                               or memory-mapped.
+     * @throws IOException
+     */
+    public N5OmeZarrReader(final String basePath, final GsonBuilder gsonBuilder, final String dimensionSeparator, final boolean mapN5DatasetAttributes, final boolean readOnly) throws IOException {
         super(basePath, N5ZarrImageReader.initGsonBuilder(gsonBuilder));
         this.dimensionSeparator = dimensionSeparator;
         this.mapN5DatasetAttributes = mapN5DatasetAttributes;
+        this.readOnly = readOnly;
         this.n5ZarrImageReaderHelper = new N5ZarrImageReaderHelper(basePath, N5ZarrImageReader.initGsonBuilder(gsonBuilder));
     }
 
@@ -192,23 +231,21 @@ public class N5OmeZarrReader extends N5FSReader implements N5ZarrImageReader {
     public Version getVersion() throws IOException {
 
         final Path path;
-        if (groupExists("/")) {
+        if (Files.exists(Paths.get(basePath, zgroupFile))) {
             path = Paths.get(basePath, zgroupFile);
-        } else if (datasetExists("/")) {
+        } else if (Files.exists(Paths.get(basePath, zarrayFile))) {
             path = Paths.get(basePath, zarrayFile);
+        } else if (Files.exists(Paths.get(basePath, ZarrV3ArrayMetadata.zarrJsonFile))) {
+            path = Paths.get(basePath, ZarrV3ArrayMetadata.zarrJsonFile);
         } else {
             return VERSION;
         }
 
         if (Files.exists(path)) {
 
-            try (final LockedFileChannel lockedFileChannel = LockedFileChannel.openForReading(path)) {
+            try (final Reader reader = newMetadataReader(path)) {
                 final HashMap<String, JsonElement> attributes =
-                    GsonAttributesParser.readAttributes(
-                        Channels.newReader(
-                            lockedFileChannel.getFileChannel(),
-                            StandardCharsets.UTF_8.name()),
-                        gson);
+                    GsonAttributesParser.readAttributes(reader, gson);
 
                 final Integer zarr_format = GsonAttributesParser.parseAttribute(
                     attributes,
@@ -235,7 +272,14 @@ public class N5OmeZarrReader extends N5FSReader implements N5ZarrImageReader {
     public boolean groupExists(final String pathName) {
 
         final Path path = Paths.get(basePath, removeLeadingSlash(pathName), zgroupFile);
-        return Files.exists(path) && Files.isRegularFile(path);
+        if (Files.isRegularFile(path))
+            return true;
+
+        try {
+            return ZarrV3ArrayMetadata.isGroup(readZarrJson(pathName));
+        } catch (IOException e) {
+            return false;
+        }
     }
 
     @Override
@@ -245,22 +289,89 @@ public class N5OmeZarrReader extends N5FSReader implements N5ZarrImageReader {
 
     public ZArrayAttributes getZArrayAttributes(final String pathName) throws IOException {
 
-        final Path path = Paths.get(basePath, removeLeadingSlash(pathName), zarrayFile);
-        OmeZArrayAttributes zArrayAttributes = null;
-        if (Files.exists(path)) {
-            try (final LockedFileChannel lockedFileChannel = LockedFileChannel.openForReading(path);
-                 final Reader reader = Channels.newReader(lockedFileChannel.getFileChannel(), StandardCharsets.UTF_8.name())) {
-                zArrayAttributes = gson.fromJson(reader, OmeZArrayAttributes.class);
-            }
-        } else {
-            log.warn(path + " does not exist.");
-        }
-        this.dimensionSeparator = zArrayAttributes == null || zArrayAttributes.getDimensionSeparator() == null ?
-            DEFAULT_SEPARATOR : zArrayAttributes.getDimensionSeparator();
+        final ZArrayAttributes zArrayAttributes = getCachedZArrayAttributes(pathName);
+        if (zArrayAttributes == null)
+            log.warn(Paths.get(basePath, removeLeadingSlash(pathName), zarrayFile) + " does not exist.");
 
         return zArrayAttributes;
     }
 
+    /**
+     * @return the resolved metadata of the dataset, shared by all threads,
+     * or {@code null} if the dataset does not exist
+     */
+    public ZarrDatasetDescriptor getDatasetDescriptor(final String pathName) throws IOException {
+
+        return metadataCache.getDescriptor(ZarrMetadataCache.key(pathName, zarrayFile), () -> {
+            final ZArrayAttributes zArrayAttributes = getCachedZArrayAttributes(pathName);
+            if (zArrayAttributes == null)
+                return null;
+            if (zArrayAttributes.getZarrFormat() == 3)
+                return ZarrV3ArrayMetadata.parse(readZarrJson(pathName), gson).getDescriptor();
+            final String separator = zArrayAttributes instanceof OmeZArrayAttributes ?
+                ((OmeZArrayAttributes) zArrayAttributes).getDimensionSeparator() : null;
+            return new ZarrDatasetDescriptor(zArrayAttributes.getDatasetAttributes(), separator);
+        });
+    }
+
+    /**
+     * @return the parsed .zarray of the dataset, read only once while the container is open,
+     * or {@code null} if the dataset does not exist. For zarr v3 arrays, the attributes
+     * are translated from the zarr.json and describe the inner chunks of sharded arrays.
+     */
+    protected ZArrayAttributes getCachedZArrayAttributes(final String pathName) throws IOException {
+
+        return metadataCache.getZArrayAttributes(ZarrMetadataCache.key(pathName, zarrayFile), () -> {
+            final Path path = Paths.get(basePath, removeLeadingSlash(pathName), zarrayFile);
+            if (!Files.isRegularFile(path)) {
+                final HashMap<String, JsonElement> zarrJson = readZarrJson(pathName);
+                return ZarrV3ArrayMetadata.isArray(zarrJson) ? ZarrV3ArrayMetadata.parse(zarrJson, gson).getZArrayAttributes() : null;
+            }
+            try (final Reader reader = newMetadataReader(path)) {
+                return gson.fromJson(reader, OmeZArrayAttributes.class);
+            }
+        });
+    }
+
+    /**
+     * @return the members of the zarr.json of a zarr v3 group or array,
+     * or {@code null} if it does not exist
+     */
+    protected HashMap<String, JsonElement> readZarrJson(final String pathName) throws IOException {
+
+        return metadataCache.getAttributes(ZarrMetadataCache.key(pathName, ZarrV3ArrayMetadata.zarrJsonFile), () -> {
+            final Path path = Paths.get(basePath, removeLeadingSlash(pathName), ZarrV3ArrayMetadata.zarrJsonFile);
+            if (!Files.isRegularFile(path))
+                return null;
+            try (final Reader reader = newMetadataReader(path)) {
+                return GsonAttributesParser.readAttributes(reader, gson);
+            }
+        });
+    }
+
+    /**
+     * Forgets the cached metadata of the group or dataset {@code pathName}
+     * and of everything it contains.
+     */
+    public void invalidateMetadata(final String pathName) {
+        metadataCache.invalidate(pathName);
+        shardReader.invalidate(Paths.get(basePath, removeLeadingSlash(pathName)).toString());
+        final EncodedChunkCache encodedChunks = EncodedChunkCache.getInstance();
+        if (encodedChunks != null && readOnly)
+            encodedChunks.invalidate(getEncodedChunkScope(), pathName);
+    }
+
+    /**
+     * Forgets all cached metadata, e.g. after the container has been modified by another process.
+     */
+    public void invalidateMetadata() {
+        metadataCache.invalidateAll();
+        shardReader.clear();
+        final EncodedChunkCache encodedChunks = EncodedChunkCache.getInstance();
+        if (encodedChunks != null && readOnly)
+            encodedChunks.invalidate(getEncodedChunkScope());
+    }
+
     @Override
     public DatasetAttributes getDatasetAttributes(final String pathName) throws IOException {
 
@@ -271,8 +382,7 @@ public class N5OmeZarrReader extends N5FSReader implements N5ZarrImageReader {
     @Override
     public boolean datasetExists(final String pathName) throws IOException {
 
-        final Path path = Paths.get(basePath, removeLeadingSlash(pathName), zarrayFile);
-        return Files.exists(path) && Files.isRegularFile(path) && getDatasetAttributes(pathName) != null;
+        return getCachedZArrayAttributes(pathName) != null && getDatasetAttributes(pathName) != null;
     }
 
     /**
@@ -297,18 +407,16 @@ public class N5OmeZarrReader extends N5FSReader implements N5ZarrImageReader {
     @Override
     public HashMap<String, JsonElement> getAttributes(final String pathName) throws IOException {
 
-        final Path path = Paths.get(basePath, removeLeadingSlash(pathName), zattrsFile);
-        final HashMap<String, JsonElement> attributes = new HashMap<>();
-        if (Files.exists(path)) {
-            try (final LockedFileChannel lockedFileChannel = LockedFileChannel.openForReading(path)) {
-                attributes.putAll(
-                    GsonAttributesParser.readAttributes(
-                        Channels.newReader(
-                            lockedFileChannel.getFileChannel(),
-                            StandardCharsets.UTF_8.name()),
-                        gson));
+        final HashMap<String, JsonElement> attributes = metadataCache.getAttributes(ZarrMetadataCache.key(pathName, zattrsFile), () -> {
+            final Path path = Paths.get(basePath, removeLeadingSlash(pathName), zattrsFile);
+            if (!Files.exists(path)) {
+                final HashMap<String, JsonElement> zarrJson = readZarrJson(pathName);
+                return zarrJson == null ? new HashMap<>() : ZarrV3ArrayMetadata.getAttributes(zarrJson);
             }
-        }
+            try (final Reader reader = newMetadataReader(path)) {
+                return GsonAttributesParser.readAttributes(reader, gson);
+            }
+        });
 
         try {
             getDimensions(attributes);
@@ -357,25 +465,234 @@ public class N5OmeZarrReader extends N5FSReader implements N5ZarrImageReader {
         final DatasetAttributes datasetAttributes,
         final long... gridPosition) throws IOException {
 
-        final ZarrDatasetAttributes zarrDatasetAttributes;
-        if (datasetAttributes instanceof ZarrDatasetAttributes)
-            zarrDatasetAttributes = (ZarrDatasetAttributes) datasetAttributes;
-        else
-            zarrDatasetAttributes = getZArrayAttributes(pathName).getDatasetAttributes();
+        final ZarrDatasetAttributes zarrDatasetAttributes = getZarrDatasetAttributes(pathName, datasetAttributes);
+
+        final ByteBuffer encoded = readEncodedChunk(pathName, zarrDatasetAttributes, gridPosition);
+        return encoded == null ? null : readBlock(encoded, zarrDatasetAttributes, gridPosition);
+    }
+
+    @Override
+    public ByteBuffer fetchEncodedChunk(
+        final String pathName,
+        final ZarrDatasetAttributes datasetAttributes,
+        final long... gridPosition) throws IOException {
+
+        if (absentChunks.isAbsent(pathName, datasetAttributes, gridPosition))
+            return null;
+
+        final ZarrDatasetDescriptor descriptor = getDatasetDescriptor(pathName);
+        if (descriptor != null && descriptor.isSharded()) {
+            final ByteBuffer chunk = readShardedChunk(pathName, descriptor, gridPosition);
+            if (chunk == null)
+                absentChunks.markAbsent(pathName, datasetAttributes, gridPosition);
+            return chunk;
+        }
+
+        final Path path = getChunkPath(pathName, datasetAttributes, gridPosition);
+        try {
+            if (readOnly)
+                return ReadOnlyFiles.read(path);
+
+            try (final LockedFileChannel lockedChannel = LockedFileChannel.openForReading(path)) {
+                return N5ZarrImageReader.readFully(Channels.newInputStream(lockedChannel.getFileChannel()));
+            }
+        } catch (NoSuchFileException e) {
+            absentChunks.markAbsent(pathName, datasetAttributes, gridPosition);
+            return null;
+        }
+    }
+
+    /**
+     * Fetches the inner chunks of one shard with as few range reads as possible.
+     */
+    @Override
+    public ByteBuffer[] fetchEncodedChunks(
+        final String pathName,
+        final ZarrDatasetAttributes datasetAttributes,
+        final List<long[]> gridPositions) throws IOException {
+
+        final ZarrDatasetDescriptor descriptor = getDatasetDescriptor(pathName);
+        if (descriptor == null || !descriptor.isSharded())
+            return N5ZarrImageReader.super.fetchEncodedChunks(pathName, datasetAttributes, gridPositions);
+
+        final ByteBuffer[] chunks = shardReader.readChunks(
+            getStoragePath(pathName, descriptor, gridPositions.get(0)).toString(),
+            descriptor.getSharding(),
+            gridPositions);
+        for (int i = 0; i < chunks.length; i++)
+            if (chunks[i] == null)
+                absentChunks.markAbsent(pathName, datasetAttributes, gridPositions.get(i));
+        return chunks;
+    }
+
+    /**
+     * Only the chunks of read-only containers are cached, see {@link #isReadOnly()}.
+     */
+    @Override
+    public String getEncodedChunkScope() {
+        return readOnly ? "file:" + basePath : null;
+    }
 
-        Path path = Paths.get(
+    @Override
+    public String getStorageKey(
+        final String pathName,
+        final ZarrDatasetAttributes datasetAttributes,
+        final long[] gridPosition) {
+
+        try {
+            final ZarrDatasetDescriptor descriptor = getDatasetDescriptor(pathName);
+            if (descriptor != null)
+                return pathName + "/" + descriptor.getStorageKey(gridPosition);
+        } catch (IOException e) {
+            log.warn("Could not read the metadata of " + pathName + ": " + e.getMessage());
+        }
+        return N5ZarrImageReader.super.getStorageKey(pathName, datasetAttributes, gridPosition);
+    }
+
+    /**
+     * @return the encoded bytes of an inner chunk, or {@code null} if it does not exist
+     */
+    protected ByteBuffer readShardedChunk(
+        final String pathName,
+        final ZarrDatasetDescriptor descriptor,
+        final long[] gridPosition) throws IOException {
+
+        return shardReader.readChunk(
+            getStoragePath(pathName, descriptor, gridPosition).toString(),
+            descriptor.getSharding(),
+            gridPosition);
+    }
+
+    /**
+     * @return the path of the file that stores the chunk, i.e. of its shard if the dataset is sharded
+     */
+    protected Path getStoragePath(
+        final String pathName,
+        final ZarrDatasetDescriptor descriptor,
+        final long[] gridPosition) {
+
+        return Paths.get(basePath, removeLeadingSlash(pathName), descriptor.getStorageKey(gridPosition));
+    }
+
+    protected Path getChunkPath(
+        final String pathName,
+        final ZarrDatasetAttributes datasetAttributes,
+        final long... gridPosition) throws IOException {
+
+        return Paths.get(
             basePath,
             removeLeadingSlash(pathName),
-            getZarrDataBlockString(
-                gridPosition,
-                dimensionSeparator,
-                zarrDatasetAttributes.isRowMajor()));
-        if (!Files.exists(path)) {
-            return null;
+            getChunkKey(pathName, datasetAttributes, gridPosition));
+    }
+
+    /**
+     * Builds the chunk key with the dimension separator of the dataset. Paths
+     * without a .zarray use the dimension separator this reader was opened with.
+     */
+    protected String getChunkKey(
+        final String pathName,
+        final ZarrDatasetAttributes datasetAttributes,
+        final long... gridPosition) throws IOException {
+
+        final ZarrDatasetDescriptor descriptor = getDatasetDescriptor(pathName);
+        if (descriptor == null)
+            return ZarrDatasetDescriptor.getChunkKey(gridPosition, dimensionSeparator, datasetAttributes.isRowMajor());
+        return descriptor.getChunkKey(gridPosition);
+    }
+
+    /**
+     * @return the given attributes if they are zarr dataset attributes, otherwise
+     * the attributes of the dataset's descriptor
+     */
+    protected ZarrDatasetAttributes getZarrDatasetAttributes(
+        final String pathName,
+        final DatasetAttributes datasetAttributes) throws IOException {
+
+        if (datasetAttributes instanceof ZarrDatasetAttributes)
+            return (ZarrDatasetAttributes) datasetAttributes;
+
+        final ZarrDatasetDescriptor descriptor = getDatasetDescriptor(pathName);
+        if (descriptor == null)
+            throw new IOException(Paths.get(basePath, removeLeadingSlash(pathName), zarrayFile) + " does not exist.");
+        return descriptor.getDatasetAttributes();
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Opens a reader on a metadata file, locking the file unless the container is read-only.
+     */
+    protected Reader newMetadataReader(final Path path) throws IOException {
+        if (readOnly)
+            return ReadOnlyFiles.newReader(path);
+
+        final LockedFileChannel lockedFileChannel = LockedFileChannel.openForReading(path);
+        return new FilterReader(Channels.newReader(lockedFileChannel.getFileChannel(), StandardCharsets.UTF_8.name())) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    lockedFileChannel.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the chunks that are known to be absent; clear them if the
+     * container has been modified by another process
+     */
+    public AbsentChunks getAbsentChunks() {
+        return absentChunks;
+    }
+
+    /**
+     * Reads byte ranges of shard files, locking them unless the container is read-only.
+     */
+    private class FileRangeReader implements ShardReader.RangeReader {
+
+        @Override
+        public ByteBuffer read(final String key, final long offset, final long length) throws IOException {
+            return readRange(key, offset, length, false);
+        }
+
+        @Override
+        public ByteBuffer readSuffix(final String key, final long length) throws IOException {
+            return readRange(key, 0, length, true);
         }
 
-        try (final LockedFileChannel lockedChannel = LockedFileChannel.openForReading(path)) {
-            return readBlock(Channels.newInputStream(lockedChannel.getFileChannel()), zarrDatasetAttributes, gridPosition);
+        private ByteBuffer readRange(final String key, final long offset, final long length, final boolean suffix) throws IOException {
+            final Path path = Paths.get(key);
+            try {
+                if (readOnly) {
+                    try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                        return readRange(channel, offset, length, suffix);
+                    }
+                }
+                try (final LockedFileChannel lockedChannel = LockedFileChannel.openForReading(path)) {
+                    return readRange(lockedChannel.getFileChannel(), offset, length, suffix);
+                }
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+        }
+
+        private ByteBuffer readRange(final FileChannel channel, final long offset, final long length, final boolean suffix) throws IOException {
+            long position = suffix ? channel.size() - length : offset;
+            if (position < 0)
+                throw new EOFException("Cannot read " + length + " bytes, the file has " + channel.size() + " bytes.");
+            final ByteBuffer bytes = ByteBuffer.allocate((int) length);
+            while (bytes.hasRemaining()) {
+                final int n = channel.read(bytes, position);
+                if (n < 0)
+                    throw new EOFException();
+                position += n;
+            }
+            bytes.flip();
+            return bytes;
         }
     }
 
@@ -56,20 +56,30 @@ package org.embl.mobie.io.ome.zarr.readers;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
+import org.embl.mobie.io.n5.util.EncodedChunkCache;
+import org.embl.mobie.io.ome.zarr.util.AbsentChunks;
+import org.embl.mobie.io.ome.zarr.util.CoalescingRangeReader;
 import org.embl.mobie.io.ome.zarr.util.N5ZarrImageReader;
 import org.embl.mobie.io.ome.zarr.util.N5ZarrImageReaderHelper;
+import org.embl.mobie.io.ome.zarr.util.S3RangeReader;
+import org.embl.mobie.io.ome.zarr.util.ShardReader;
 import org.embl.mobie.io.ome.zarr.util.ZArrayAttributes;
 import org.embl.mobie.io.ome.zarr.util.ZarrAxes;
 import org.embl.mobie.io.ome.zarr.util.ZarrAxis;
-import org.embl.mobie.io.ome.zarr.util.ZarrDatasetAttributes;
+import org.embl.mobie.io.ome.zarr.util.ZarrDatasetDescriptor;
+import org.embl.mobie.io.ome.zarr.util.ZarrMetadataCache;
+import org.embl.mobie.io.ome.zarr.util.ZarrV3ArrayMetadata;
+import org.embl.mobie.io.util.DiskChunkCache;
 import org.janelia.saalfeldlab.n5.DataBlock;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.GsonAttributesParser;
 import org.janelia.saalfeldlab.n5.s3.N5AmazonS3Reader;
+import org.janelia.saalfeldlab.n5.zarr.ZarrDatasetAttributes;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
@@ -88,18 +98,29 @@ public class N5S3OmeZarrReader extends N5AmazonS3Reader implements N5ZarrImageRe
     final protected boolean mapN5DatasetAttributes;
     private final String serviceEndpoint;
     private final N5ZarrImageReaderHelper n5ZarrImageReaderHelper;
-    protected String dimensionSeparator;
+    protected final AbsentChunks absentChunks = new AbsentChunks();
+    protected final ZarrMetadataCache metadataCache = new ZarrMetadataCache();
+    protected final ShardReader shardReader;
     List<ZarrAxis> zarrAxesList = new ArrayList<>();
     private ZarrAxes zarrAxes;
 
-    public N5S3OmeZarrReader(AmazonS3 s3, String serviceEndpoint, String bucketName, String containerPath, String dimensionSeparator) throws IOException {
+    public N5S3OmeZarrReader(AmazonS3 s3, String serviceEndpoint, String bucketName, String containerPath) throws IOException {
         super(s3, bucketName, containerPath, N5ZarrImageReader.initGsonBuilder(new GsonBuilder()));
         this.serviceEndpoint = serviceEndpoint; // for debugging
-        this.dimensionSeparator = dimensionSeparator;
+        this.shardReader = new ShardReader(new CoalescingRangeReader(new S3RangeReader(s3, bucketName)), DiskChunkCache.getInstance(), serviceEndpoint + "\n" + bucketName);
         mapN5DatasetAttributes = true;
         this.n5ZarrImageReaderHelper = new N5ZarrImageReaderHelper(N5ZarrImageReader.initGsonBuilder(new GsonBuilder()));
     }
 
+    /**
+     * @deprecated the dimension separator of every dataset is read from its
+     * metadata, use {@link #N5S3OmeZarrReader(AmazonS3, String, String, String)}
+     */
+    @Deprecated
+    public N5S3OmeZarrReader(AmazonS3 s3, String serviceEndpoint, String bucketName, String containerPath, String dimensionSeparator) throws IOException {
+        this(s3, serviceEndpoint, bucketName, containerPath);
+    }
+
     public ZarrAxes getAxes() {
         return this.zarrAxes;
     }
@@ -122,10 +143,6 @@ public class N5S3OmeZarrReader extends N5AmazonS3Reader implements N5ZarrImageRe
         return this.zarrAxesList;
     }
 
-    public void setDimensionSeparator(String dimensionSeparator) {
-        this.dimensionSeparator = dimensionSeparator;
-    }
-
     public AmazonS3 getS3() {
         return s3;
     }
@@ -142,6 +159,14 @@ public class N5S3OmeZarrReader extends N5AmazonS3Reader implements N5ZarrImageRe
         return serviceEndpoint;
     }
 
+    /**
+     * @return the chunks that are known to be absent; clear them if the
+     * bucket has been modified since they were requested
+     */
+    public AbsentChunks getAbsentChunks() {
+        return absentChunks;
+    }
+
     /**
      * Helper to encapsulate building the object key for a file like
      * .zarray or .zgroup within any given path.
@@ -168,9 +193,12 @@ public class N5S3OmeZarrReader extends N5AmazonS3Reader implements N5ZarrImageRe
     @Override
     public Version getVersion() throws IOException {
         HashMap<String, JsonElement> meta;
-        meta = readJson(objectFile("", zgroupFile));
+        meta = readCachedJson("", zgroupFile);
         if (meta == null) {
-            meta = readJson(objectFile("", zarrayFile));
+            meta = readCachedJson("", zarrayFile);
+        }
+        if (meta == null) {
+            meta = readCachedJson("", ZarrV3ArrayMetadata.zarrJsonFile);
         }
 
         if (meta != null) {
@@ -189,23 +217,93 @@ public class N5S3OmeZarrReader extends N5AmazonS3Reader implements N5ZarrImageRe
     }
 
     public boolean groupExists(final String pathName) {
-        return exists(objectFile(pathName, zgroupFile));
+        if (exists(objectFile(pathName, zgroupFile)))
+            return true;
+
+        try {
+            return ZarrV3ArrayMetadata.isGroup(readCachedJson(pathName, ZarrV3ArrayMetadata.zarrJsonFile));
+        } catch (IOException e) {
+            return false;
+        }
     }
 
     public ZArrayAttributes getZArrayAttributes(final String pathName) throws IOException {
-        final String path = objectFile(pathName, zarrayFile);
-        HashMap<String, JsonElement> attributes = readJson(path);
+        HashMap<String, JsonElement> attributes = readCachedJson(pathName, zarrayFile);
 
         if (attributes == null) {
-            log.warn(path + " does not exist.");
+            final HashMap<String, JsonElement> zarrJson = readCachedJson(pathName, ZarrV3ArrayMetadata.zarrJsonFile);
+            if (ZarrV3ArrayMetadata.isArray(zarrJson))
+                return ZarrV3ArrayMetadata.parse(zarrJson, gson).getZArrayAttributes();
+
+            log.warn(objectFile(pathName, zarrayFile) + " does not exist.");
             attributes = new HashMap<>();
         }
 
-        JsonElement dimSep = attributes.get("dimension_separator");
-        this.dimensionSeparator = dimSep == null ? DEFAULT_SEPARATOR : dimSep.getAsString();
         return n5ZarrImageReaderHelper.getN5DatasetAttributes(attributes);
     }
 
+    /**
+     * @return the resolved metadata of the dataset, shared by all threads,
+     * or {@code null} if the dataset does not exist
+     */
+    public ZarrDatasetDescriptor getDatasetDescriptor(final String pathName) throws IOException {
+        return metadataCache.getDescriptor(ZarrMetadataCache.key(pathName, zarrayFile), () -> {
+            final HashMap<String, JsonElement> attributes = readCachedJson(pathName, zarrayFile);
+            if (attributes == null) {
+                final HashMap<String, JsonElement> zarrJson = readCachedJson(pathName, ZarrV3ArrayMetadata.zarrJsonFile);
+                return ZarrV3ArrayMetadata.isArray(zarrJson) ? ZarrV3ArrayMetadata.parse(zarrJson, gson).getDescriptor() : null;
+            }
+            return new ZarrDatasetDescriptor(
+                n5ZarrImageReaderHelper.getN5DatasetAttributes(attributes).getDatasetAttributes(),
+                getDimensionSeparator(attributes));
+        });
+    }
+
+    /**
+     * Builds the object key of a chunk with the dimension separator of the dataset.
+     * Paths without a .zarray use the default dimension separator.
+     */
+    protected String getChunkObjectKey(
+        final String pathName,
+        final ZarrDatasetAttributes datasetAttributes,
+        final long... gridPosition) throws IOException {
+        final ZarrDatasetDescriptor descriptor = getDatasetDescriptor(pathName);
+        if (descriptor == null)
+            return objectFile(pathName, ZarrDatasetDescriptor.getChunkKey(gridPosition, DEFAULT_SEPARATOR, datasetAttributes.isRowMajor()));
+        return objectFile(pathName, descriptor.getChunkKey(gridPosition));
+    }
+
+    @Override
+    public String getStorageKey(
+        final String pathName,
+        final ZarrDatasetAttributes datasetAttributes,
+        final long[] gridPosition) {
+        try {
+            final ZarrDatasetDescriptor descriptor = getDatasetDescriptor(pathName);
+            if (descriptor != null)
+                return objectFile(pathName, descriptor.getStorageKey(gridPosition));
+        } catch (IOException e) {
+            log.warn("Could not read the metadata of " + pathName + ": " + e.getMessage());
+        }
+        return N5ZarrImageReader.super.getStorageKey(pathName, datasetAttributes, gridPosition);
+    }
+
+    /**
+     * @return the given attributes if they are zarr dataset attributes, otherwise
+     * the attributes of the dataset's descriptor
+     */
+    protected ZarrDatasetAttributes getZarrDatasetAttributes(
+        final String pathName,
+        final DatasetAttributes datasetAttributes) throws IOException {
+        if (datasetAttributes instanceof ZarrDatasetAttributes)
+            return (ZarrDatasetAttributes) datasetAttributes;
+
+        final ZarrDatasetDescriptor descriptor = getDatasetDescriptor(pathName);
+        if (descriptor == null)
+            throw new IOException(objectFile(pathName, zarrayFile) + " does not exist.");
+        return descriptor.getDatasetAttributes();
+    }
+
     @Override
     public DatasetAttributes getDatasetAttributes(final String pathName) throws IOException {
         final ZArrayAttributes zArrayAttributes = getZArrayAttributes(pathName);
@@ -214,8 +312,8 @@ public class N5S3OmeZarrReader extends N5AmazonS3Reader implements N5ZarrImageRe
 
     @Override
     public boolean datasetExists(final String pathName) throws IOException {
-        final String path = objectFile(pathName, zarrayFile);
-        return readJson(path) != null;
+        return readCachedJson(pathName, zarrayFile) != null
+            || ZarrV3ArrayMetadata.isArray(readCachedJson(pathName, ZarrV3ArrayMetadata.zarrJsonFile));
     }
 
     /**
@@ -241,11 +339,11 @@ public class N5S3OmeZarrReader extends N5AmazonS3Reader implements N5ZarrImageRe
      */
     @Override
     public HashMap<String, JsonElement> getAttributes(final String pathName) throws IOException {
-        final String path = objectFile(pathName, zattrsFile);
-        HashMap<String, JsonElement> attributes = readJson(path);
+        HashMap<String, JsonElement> attributes = readCachedJson(pathName, zattrsFile);
 
         if (attributes == null) {
-            attributes = new HashMap<>();
+            final HashMap<String, JsonElement> zarrJson = readCachedJson(pathName, ZarrV3ArrayMetadata.zarrJsonFile);
+            attributes = zarrJson == null ? new HashMap<>() : ZarrV3ArrayMetadata.getAttributes(zarrJson);
         }
 
         try {
@@ -266,18 +364,30 @@ public class N5S3OmeZarrReader extends N5AmazonS3Reader implements N5ZarrImageRe
         final String pathName,
         final DatasetAttributes datasetAttributes,
         final long... gridPosition) throws IOException {
-        final ZarrDatasetAttributes zarrDatasetAttributes;
-        if (datasetAttributes instanceof ZarrDatasetAttributes)
-            zarrDatasetAttributes = (ZarrDatasetAttributes) datasetAttributes;
-        else
-            zarrDatasetAttributes = getZArrayAttributes(pathName).getDatasetAttributes();
+        final ZarrDatasetAttributes zarrDatasetAttributes = getZarrDatasetAttributes(pathName, datasetAttributes);
+
+        final ByteBuffer encoded = readEncodedChunk(pathName, zarrDatasetAttributes, gridPosition);
+        return encoded == null ? null : readBlock(encoded, zarrDatasetAttributes, gridPosition);
+    }
+
+    @Override
+    public ByteBuffer fetchEncodedChunk(
+        final String pathName,
+        final ZarrDatasetAttributes datasetAttributes,
+        final long... gridPosition) throws IOException {
+
+        if (absentChunks.isAbsent(pathName, datasetAttributes, gridPosition))
+            return null;
 
-        final String dataBlockKey =
-            objectFile(pathName,
-                getZarrDataBlockString(
-                    gridPosition,
-                    dimensionSeparator,
-                    zarrDatasetAttributes.isRowMajor()));
+        final ZarrDatasetDescriptor descriptor = getDatasetDescriptor(pathName);
+        if (descriptor != null && descriptor.isSharded()) {
+            final ByteBuffer chunk = shardReader.readChunk(objectFile(pathName, descriptor.getStorageKey(gridPosition)), descriptor.getSharding(), gridPosition);
+            if (chunk == null)
+                absentChunks.markAbsent(pathName, datasetAttributes, gridPosition);
+            return chunk;
+        }
+
+        final String dataBlockKey = getChunkObjectKey(pathName, datasetAttributes, gridPosition);
 
         // Currently exists() appends "/"
         //		if (!exists(dataBlockKey))
@@ -285,16 +395,82 @@ public class N5S3OmeZarrReader extends N5AmazonS3Reader implements N5ZarrImageRe
 
         try {
             try (final InputStream in = this.readS3Object(dataBlockKey)) {
-                return readBlock(in, zarrDatasetAttributes, gridPosition);
+                return N5ZarrImageReader.readFully(in);
             }
         } catch (AmazonS3Exception ase) {
             if ("NoSuchKey".equals(ase.getErrorCode())) {
+                absentChunks.markAbsent(pathName, datasetAttributes, gridPosition);
                 return null;
             }
             throw ase;
         }
     }
 
+    /**
+     * Fetches the inner chunks of one shard with as few range requests as possible.
+     */
+    @Override
+    public ByteBuffer[] fetchEncodedChunks(
+        final String pathName,
+        final ZarrDatasetAttributes datasetAttributes,
+        final List<long[]> gridPositions) throws IOException {
+
+        final ZarrDatasetDescriptor descriptor = getDatasetDescriptor(pathName);
+        if (descriptor == null || !descriptor.isSharded())
+            return N5ZarrImageReader.super.fetchEncodedChunks(pathName, datasetAttributes, gridPositions);
+
+        final ByteBuffer[] chunks = shardReader.readChunks(
+            objectFile(pathName, descriptor.getStorageKey(gridPositions.get(0))),
+            descriptor.getSharding(),
+            gridPositions);
+        for (int i = 0; i < chunks.length; i++)
+            if (chunks[i] == null)
+                absentChunks.markAbsent(pathName, datasetAttributes, gridPositions.get(i));
+        return chunks;
+    }
+
+    /**
+     * The objects of a bucket are not expected to change while it is open,
+     * use {@link #invalidateMetadata()} otherwise.
+     */
+    @Override
+    public String getEncodedChunkScope() {
+        return "s3://" + serviceEndpoint + "/" + bucketName + "/" + containerPath;
+    }
+
+    /**
+     * Reads a metadata file of the group or dataset {@code pathName}. Every file,
+     * and its absence, is fetched only once while the container is open.
+     *
+     * @return a copy of the attributes that the caller may modify, or {@code null} if the file does not exist
+     */
+    protected HashMap<String, JsonElement> readCachedJson(final String pathName, final String file) throws IOException {
+        return metadataCache.getAttributes(ZarrMetadataCache.key(pathName, file), () -> readJson(objectFile(pathName, file)));
+    }
+
+    /**
+     * Forgets the cached metadata of the group or dataset {@code pathName}
+     * and of everything it contains.
+     */
+    public void invalidateMetadata(final String pathName) {
+        metadataCache.invalidate(pathName);
+        shardReader.invalidate(objectFile(pathName, ""));
+        final EncodedChunkCache encodedChunks = EncodedChunkCache.getInstance();
+        if (encodedChunks != null)
+            encodedChunks.invalidate(getEncodedChunkScope(), pathName);
+    }
+
+    /**
+     * Forgets all cached metadata, e.g. after the bucket has been modified.
+     */
+    public void invalidateMetadata() {
+        metadataCache.invalidateAll();
+        shardReader.clear();
+        final EncodedChunkCache encodedChunks = EncodedChunkCache.getInstance();
+        if (encodedChunks != null)
+            encodedChunks.invalidate(getEncodedChunkScope());
+    }
+
     /**
      * Copied from getAttributes but doesn't change the objectPath in any way.
      * CHANGES: returns null rather than empty hash map
@@ -312,5 +488,4 @@ public class N5S3OmeZarrReader extends N5AmazonS3Reader implements N5ZarrImageRe
                 throw ase;
         }
     }
-
 }
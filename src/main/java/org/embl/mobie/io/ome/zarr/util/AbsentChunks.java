@@ -0,0 +1,162 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.ome.zarr.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+
+/**
+ * Remembers which chunks of which datasets are known to be absent from the
+ * storage, such that repeated requests for empty regions are answered without
+ * touching the file system or the object store.
+ * <p>
+ * For every dataset, the absent chunks are kept in a concurrent bitset over the
+ * flattened chunk grid. The bitset is allocated in pages, so memory is only spent
+ * on regions of the grid that have actually been requested.
+ * <p>
+ * Writers must call {@link #markPresent} after writing a chunk, and {@link #clear(String)}
+ * when a dataset is (re-)created.
+ */
+public class AbsentChunks {
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_LONGS = (1 << PAGE_BITS) / 64;
+
+    private final ConcurrentHashMap<String, DatasetChunks> datasets = new ConcurrentHashMap<>();
+
+    public boolean isAbsent(final String pathName, final DatasetAttributes attributes, final long[] gridPosition) {
+        final DatasetChunks chunks = datasets.get(normalize(pathName));
+        return chunks != null && chunks.matches(attributes) && chunks.get(gridPosition);
+    }
+
+    public void markAbsent(final String pathName, final DatasetAttributes attributes, final long[] gridPosition) {
+        // the bitset is replaced and updated atomically, such that a concurrent markPresent is not lost
+        datasets.compute(normalize(pathName), (k, chunks) -> {
+            // the dataset may have been re-created with a different shape
+            final DatasetChunks updated = chunks != null && chunks.matches(attributes) ? chunks : new DatasetChunks(attributes);
+            updated.set(gridPosition, true);
+            return updated;
+        });
+    }
+
+    public void markPresent(final String pathName, final long[] gridPosition) {
+        datasets.computeIfPresent(normalize(pathName), (k, chunks) -> {
+            chunks.set(gridPosition, false);
+            return chunks;
+        });
+    }
+
+    /**
+     * Forgets all absent chunks of the given dataset.
+     */
+    public void clear(final String pathName) {
+        datasets.remove(normalize(pathName));
+    }
+
+    /**
+     * Forgets all absent chunks, e.g. after the container has been modified externally.
+     */
+    public void clear() {
+        datasets.clear();
+    }
+
+    private static String normalize(final String pathName) {
+        int start = 0;
+        int end = pathName.length();
+        while (start < end && pathName.charAt(start) == '/')
+            start++;
+        while (end > start && pathName.charAt(end - 1) == '/')
+            end--;
+        return pathName.substring(start, end);
+    }
+
+    private static final class DatasetChunks {
+        private final long[] dimensions;
+        private final int[] blockSize;
+        private final long[] gridDimensions;
+        private final ConcurrentHashMap<Long, AtomicLongArray> pages = new ConcurrentHashMap<>();
+
+        DatasetChunks(final DatasetAttributes attributes) {
+            dimensions = attributes.getDimensions().clone();
+            blockSize = attributes.getBlockSize().clone();
+            gridDimensions = new long[dimensions.length];
+            for (int d = 0; d < dimensions.length; d++)
+                gridDimensions[d] = (dimensions[d] + blockSize[d] - 1) / blockSize[d];
+        }
+
+        boolean matches(final DatasetAttributes attributes) {
+            return Arrays.equals(dimensions, attributes.getDimensions()) && Arrays.equals(blockSize, attributes.getBlockSize());
+        }
+
+        boolean get(final long[] gridPosition) {
+            final long index = index(gridPosition);
+            if (index < 0)
+                return false;
+            final AtomicLongArray page = pages.get(index >>> PAGE_BITS);
+            if (page == null)
+                return false;
+            final int bit = (int) (index & ((1 << PAGE_BITS) - 1));
+            return (page.get(bit >>> 6) & (1L << bit)) != 0;
+        }
+
+        void set(final long[] gridPosition, final boolean absent) {
+            final long index = index(gridPosition);
+            if (index < 0)
+                return;
+            final AtomicLongArray page = absent ?
+                pages.computeIfAbsent(index >>> PAGE_BITS, k -> new AtomicLongArray(PAGE_LONGS)) :
+                pages.get(index >>> PAGE_BITS);
+            if (page == null)
+                return;
+            final int bit = (int) (index & ((1 << PAGE_BITS) - 1));
+            final long mask = 1L << bit;
+            long current;
+            do {
+                current = page.get(bit >>> 6);
+            } while (!page.compareAndSet(bit >>> 6, current, absent ? current | mask : current & ~mask));
+        }
+
+        /**
+         * @return the flattened index of the chunk, or -1 if it is outside of the grid
+         */
+        private long index(final long[] gridPosition) {
+            if (gridPosition.length != gridDimensions.length)
+                return -1;
+            long index = 0;
+            for (int d = gridDimensions.length - 1; d >= 0; d--) {
+                if (gridPosition[d] < 0 || gridPosition[d] >= gridDimensions[d])
+                    return -1;
+                index = index * gridDimensions[d] + gridPosition[d];
+            }
+            return index;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.ome.zarr.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Merges the concurrent range reads of an object into as few reads as possible.
+ * <p>
+ * Up to {@link #maxReadsPerObject} reads of an object are issued right away,
+ * each on the thread that requested it. The reads that arrive while that many
+ * are in flight queue up. As soon as one of the reads completes, all queued
+ * reads are taken at once: ranges that are at most {@link ShardReader#maxGap}
+ * bytes apart are merged into one read, and the disjoint merged reads are issued
+ * concurrently, each by one of the threads that wait for it. Later reads never
+ * wait for a merged read they are not part of. This saves requests and their
+ * latency when many threads fetch neighbouring chunks of the same shard.
+ */
+public class CoalescingRangeReader implements ShardReader.RangeReader {
+    /**
+     * The largest number of bytes that one merged read may span.
+     */
+    public static long maxCoalescedBytes = 16L << 20;
+
+    /**
+     * The number of reads of one object that are issued without queueing.
+     */
+    public static int maxReadsPerObject = 8;
+
+    private final ShardReader.RangeReader rangeReader;
+    private final Map<String, ObjectQueue> queues = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    public CoalescingRangeReader(final ShardReader.RangeReader rangeReader) {
+        this.rangeReader = rangeReader;
+    }
+
+    @Override
+    public ByteBuffer read(final String key, final long offset, final long length) throws IOException {
+        return submit(key, new Request(offset, length, false));
+    }
+
+    @Override
+    public ByteBuffer readSuffix(final String key, final long length) throws IOException {
+        return submit(key, new Request(-1, length, true));
+    }
+
+    @Override
+    public String getVersion(final String key) throws IOException {
+        return rangeReader.getVersion(key);
+    }
+
+    private ByteBuffer submit(final String key, final Request request) throws IOException {
+        final ObjectQueue queue;
+        lock.lock();
+        try {
+            ObjectQueue q = queues.get(key);
+            if (q == null) {
+                q = new ObjectQueue();
+                queues.put(key, q);
+            }
+            queue = q;
+            if (queue.pending.isEmpty() && queue.numReads < maxReadsPerObject) {
+                queue.numReads++;
+                request.group = new Group(Collections.singletonList(request));
+            } else {
+                queue.pending.add(request);
+                awaitTurn(key, queue, request);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!request.done)
+            read(key, queue, request.group);
+        return request.get();
+    }
+
+    /**
+     * Waits until the request has been read or this thread has to read its group.
+     * An interrupted thread stops waiting; if it was chosen to read its group,
+     * another waiting thread of the group takes over, or the group is given up.
+     */
+    private void awaitTurn(final String key, final ObjectQueue queue, final Request request) throws InterruptedIOException {
+        while (!request.done && (request.group == null || request.group.reader != request)) {
+            try {
+                changed.await();
+            } catch (InterruptedException e) {
+                request.abandoned = true;
+                if (request.group == null) {
+                    queue.pending.remove(request);
+                } else if (request.group.reader == request) {
+                    request.group.reader = null;
+                    for (Request other : request.group.requests) {
+                        if (!other.abandoned) {
+                            request.group.reader = other;
+                            break;
+                        }
+                    }
+                    if (request.group.reader == null)
+                        completeRead(key, queue);
+                    changed.signalAll();
+                }
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Reads a group of requests on the calling thread.
+     */
+    private void read(final String key, final ObjectQueue queue, final Group group) {
+        try {
+            read(key, group.requests);
+        } finally {
+            lock.lock();
+            try {
+                for (Request request : group.requests)
+                    request.done = true;
+                completeRead(key, queue);
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Frees the slot of a completed read and hands all queued requests, merged
+     * into groups, to waiting threads. Must be called while holding the lock.
+     */
+    private void completeRead(final String key, final ObjectQueue queue) {
+        queue.numReads--;
+        if (!queue.pending.isEmpty()) {
+            final List<Request> pending = new ArrayList<>(queue.pending);
+            queue.pending.clear();
+            for (Group group : merge(pending)) {
+                queue.numReads++;
+                for (Request request : group.requests)
+                    request.group = group;
+            }
+        }
+        if (queue.numReads == 0)
+            queues.remove(key);
+    }
+
+    /**
+     * Groups requests that are read together: equal suffixes, and ranges that are
+     * close to each other.
+     */
+    private static List<Group> merge(final List<Request> requests) {
+        final List<Group> groups = new ArrayList<>();
+        final List<Request> ranges = new ArrayList<>(requests.size());
+        final Map<Long, List<Request>> suffixes = new HashMap<>();
+        for (Request request : requests) {
+            if (request.suffix)
+                suffixes.computeIfAbsent(request.length, length -> new ArrayList<>()).add(request);
+            else
+                ranges.add(request);
+        }
+        for (List<Request> suffix : suffixes.values())
+            groups.add(new Group(suffix));
+
+        ranges.sort(Comparator.comparingLong(request -> request.offset));
+        int start = 0;
+        while (start < ranges.size()) {
+            final long rangeStart = ranges.get(start).offset;
+            long rangeEnd = rangeStart + ranges.get(start).length;
+            int end = start + 1;
+            while (end < ranges.size()) {
+                final Request request = ranges.get(end);
+                final long mergedEnd = Math.max(rangeEnd, request.offset + request.length);
+                if (request.offset - rangeEnd > ShardReader.maxGap || mergedEnd - rangeStart > maxCoalescedBytes)
+                    break;
+                rangeEnd = mergedEnd;
+                end++;
+            }
+            groups.add(new Group(new ArrayList<>(ranges.subList(start, end))));
+            start = end;
+        }
+        return groups;
+    }
+
+    private void read(final String key, final List<Request> requests) {
+        final Request first = requests.get(0);
+        if (first.suffix) {
+            // concurrent reads of the same suffix, e.g. of a shard index, share one read
+            try {
+                final ByteBuffer bytes = rangeReader.readSuffix(key, first.length);
+                for (Request request : requests)
+                    request.bytes = bytes == null ? null : bytes.asReadOnlyBuffer();
+            } catch (IOException | RuntimeException e) {
+                for (Request request : requests)
+                    request.failure = e;
+            }
+            return;
+        }
+
+        long rangeEnd = 0;
+        for (Request request : requests)
+            rangeEnd = Math.max(rangeEnd, request.offset + request.length);
+        read(key, requests, first.offset, rangeEnd);
+    }
+
+    private void read(final String key, final List<Request> requests, final long rangeStart, final long rangeEnd) {
+        try {
+            final ByteBuffer range = rangeReader.read(key, rangeStart, rangeEnd - rangeStart);
+            for (Request request : requests) {
+                if (range == null)
+                    continue;
+                final ByteBuffer bytes = range.asReadOnlyBuffer();
+                final int position = range.position() + (int) (request.offset - rangeStart);
+                bytes.limit(position + (int) request.length);
+                bytes.position(position);
+                request.bytes = bytes.slice();
+            }
+        } catch (IOException | RuntimeException e) {
+            if (requests.size() == 1) {
+                requests.get(0).failure = e;
+            } else {
+                // retry one by one, so that only the failing reads see the exception
+                for (Request request : requests)
+                    read(key, Collections.singletonList(request), request.offset, request.offset + request.length);
+            }
+        }
+    }
+
+    private static final class ObjectQueue {
+        private final ArrayDeque<Request> pending = new ArrayDeque<>();
+        private int numReads;
+    }
+
+    /**
+     * Requests that are fetched with one read by one of their threads.
+     */
+    private static final class Group {
+        private final List<Request> requests;
+        private Request reader;
+
+        Group(final List<Request> requests) {
+            this.requests = requests;
+            this.reader = requests.get(0);
+        }
+    }
+
+    private static final class Request {
+        private final long offset;
+        private final long length;
+        private final boolean suffix;
+        private ByteBuffer bytes;
+        private Exception failure;
+        private volatile boolean done;
+        private Group group;
+        private boolean abandoned;
+
+        Request(final long offset, final long length, final boolean suffix) {
+            this.offset = offset;
+            this.length = length;
+            this.suffix = suffix;
+        }
+
+        ByteBuffer get() throws IOException {
+            if (failure instanceof IOException)
+                throw (IOException) failure;
+            if (failure != null)
+                throw (RuntimeException) failure;
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.ome.zarr.util;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+/**
+ * Shares the decoded chunks that hold several channels or timepoints between
+ * the cell loaders of these channels and timepoints, see
+ * {@link N5OMEZarrCacheArrayLoader}. The first loader that requests a chunk
+ * reads and decodes it, the loaders that request it meanwhile wait for it,
+ * and all of them copy their slice out of the same decoded chunk.
+ * <p>
+ * A chunk is dropped as soon as all of its slices were taken. Chunks whose
+ * slices are not all requested, e.g. of hidden channels, are dropped least
+ * recently used first once the decoded chunks exceed {@link #maxBytes}.
+ * <p>
+ * The chunks are identified by the reader, which is referenced weakly, the
+ * dataset path and the chunk indices, such that a chunk of a reader that was
+ * closed does not keep the reader alive until it is dropped.
+ */
+public class DecodedChunkCache {
+
+    /**
+     * The bytes of the decoded chunks that are held for the slices that were not taken yet.
+     */
+    public static long maxBytes = 256L << 20;
+
+    private static final DecodedChunkCache instance = new DecodedChunkCache();
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long heldBytes = 0;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    public static DecodedChunkCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Reads and decodes a chunk.
+     */
+    public interface Decoder {
+        /**
+         * @return the decoded chunk, a {@link ByteBuffer} or a {@link DataBlock},
+         * or {@code null} if the chunk does not exist
+         */
+        Object decode() throws IOException;
+    }
+
+    /**
+     * Returns the decoded chunk {@code chunkIndices} of the dataset
+     * {@code pathName}, decoding it with {@code decoder} unless another loader
+     * decoded or is decoding it already. The decoded chunk must not be modified.
+     *
+     * @param slice     the slice of the chunk that the caller takes
+     * @param numSlices the number of slices of the chunk that are loaded
+     */
+    public Object get(final N5Reader n5, final String pathName, final long[] chunkIndices, final int slice, final int numSlices, final Decoder decoder) throws IOException {
+        final Key key = new Key(n5, pathName, chunkIndices);
+        final Entry entry;
+        final boolean decode;
+        synchronized (this) {
+            final Entry existing = entries.get(key);
+            decode = existing == null;
+            entry = decode ? new Entry() : existing;
+            if (decode)
+                entries.put(key, entry);
+        }
+
+        if (decode) {
+            misses.increment();
+            final Object decoded;
+            try {
+                decoded = decoder.decode();
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    entries.remove(key, entry);
+                }
+                entry.chunk.completeExceptionally(e);
+                throw e;
+            }
+            synchronized (this) {
+                entry.bytes = weigh(decoded);
+                if (entries.get(key) == entry)
+                    heldBytes += entry.bytes;
+            }
+            entry.chunk.complete(decoded);
+        } else {
+            hits.increment();
+        }
+
+        final Object chunk;
+        try {
+            chunk = entry.chunk.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        }
+
+        synchronized (this) {
+            entry.taken.add(slice);
+            if (entry.taken.size() >= numSlices)
+                remove(key, entry);
+            else
+                trim();
+        }
+        return chunk;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        heldBytes = 0;
+    }
+
+    public synchronized long getHeldBytes() {
+        return heldBytes;
+    }
+
+    public synchronized int getNumChunks() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of slices that were taken from a chunk that another loader decoded
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of chunks that were decoded
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "decoded chunks: " + getNumChunks() + " chunks, " + getHeldBytes() + " bytes, "
+            + getHits() + " hits, " + getMisses() + " misses";
+    }
+
+    private void remove(final Key key, final Entry entry) {
+        if (entries.remove(key, entry))
+            heldBytes -= entry.bytes;
+    }
+
+    private void trim() {
+        final Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while (heldBytes > maxBytes && iterator.hasNext()) {
+            final Entry entry = iterator.next().getValue();
+            // chunks that are still being decoded are not held yet
+            if (!entry.chunk.isDone())
+                continue;
+            iterator.remove();
+            heldBytes -= entry.bytes;
+        }
+    }
+
+    private static long weigh(final Object chunk) {
+        if (chunk instanceof ByteBuffer)
+            return ((ByteBuffer) chunk).capacity();
+        final Object data = chunk instanceof DataBlock ? ((DataBlock<?>) chunk).getData() : null;
+        if (data == null || !data.getClass().isArray())
+            return 0;
+        final long n = Array.getLength(data);
+        if (data instanceof byte[])
+            return n;
+        if (data instanceof short[])
+            return 2 * n;
+        if (data instanceof long[] || data instanceof double[])
+            return 8 * n;
+        return 4 * n;
+    }
+
+    private static class Entry {
+        final CompletableFuture<Object> chunk = new CompletableFuture<>();
+        final Set<Integer> taken = new HashSet<>();
+        long bytes = 0;
+    }
+
+    private static class Key {
+        final WeakReference<N5Reader> n5;
+        final String pathName;
+        final long[] chunkIndices;
+        final int hash;
+
+        Key(final N5Reader n5, final String pathName, final long[] chunkIndices) {
+            this.n5 = new WeakReference<>(n5);
+            this.pathName = pathName;
+            this.chunkIndices = chunkIndices;
+            this.hash = 31 * (31 * System.identityHashCode(n5) + pathName.hashCode()) + Arrays.hashCode(chunkIndices);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            final Key key = (Key) o;
+            // the key of a reader that was collected only equals itself
+            final N5Reader reader = n5.get();
+            return reader != null && reader == key.n5.get() && pathName.equals(key.pathName) && Arrays.equals(chunkIndices, key.chunkIndices);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -29,9 +29,20 @@
 package org.embl.mobie.io.ome.zarr.util;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 
+import org.embl.mobie.io.n5.util.ArrayPool;
+import org.embl.mobie.io.n5.util.BatchCacheArrayLoader;
+import org.embl.mobie.io.n5.util.LoadBatcher;
+import org.embl.mobie.io.n5.util.LoaderThreads;
 import org.embl.mobie.io.n5.util.N5DataTypeSize;
 import org.embl.mobie.io.ome.zarr.loaders.N5OMEZarrImageLoader;
 import org.janelia.saalfeldlab.n5.DataBlock;
@@ -41,19 +52,31 @@ import org.janelia.saalfeldlab.n5.N5Reader;
 
 import com.amazonaws.SdkClientException;
 
-import bdv.img.cache.SimpleCacheArrayLoader;
 import lombok.extern.slf4j.Slf4j;
 import net.imglib2.img.cell.CellGrid;
 
 @Slf4j
-public class N5OMEZarrCacheArrayLoader<A> implements SimpleCacheArrayLoader<A> {
+public class N5OMEZarrCacheArrayLoader<A> implements BatchCacheArrayLoader<A> {
     private final N5Reader n5;
     private final String pathName;
     private final int channel;
     private final int timepoint;
     private final DatasetAttributes attributes;
     private final ZarrArrayCreator<A, ?> zarrArrayCreator;
-    private final ZarrAxes zarrAxes;
+    private final boolean decodeIntoCells;
+    private final LoadBatcher<A> batcher = new LoadBatcher<>(this);
+
+    // the axis mapping, resolved once so that addressing a chunk allocates only its index array
+    private final int numDimensions;
+    private final int[] spatialToZarr;
+    private final int channelIndex;
+    private final int timeIndex;
+
+    // chunks that hold several channels or timepoints are decoded once for all of them
+    private final int channelsPerChunk;
+    private final int timepointsPerChunk;
+    private final int sliceOffset;
+    private final int numSlicesPerChunk;
 
     public N5OMEZarrCacheArrayLoader(final N5Reader n5, final String pathName, final int channel, final int timepoint, final DatasetAttributes attributes, CellGrid grid, ZarrAxes zarrAxes) {
         this.n5 = n5;
@@ -62,12 +85,109 @@ public class N5OMEZarrCacheArrayLoader<A> implements SimpleCacheArrayLoader<A> {
         this.timepoint = timepoint;
         this.attributes = attributes;
         final DataType dataType = attributes.getDataType();
-        this.zarrArrayCreator = new ZarrArrayCreator<>(grid, dataType, zarrAxes);
-        this.zarrAxes = zarrAxes;
+        final String fillValue = attributes instanceof ZarrDatasetAttributes ? ((ZarrDatasetAttributes) attributes).getFillValue() : null;
+        this.zarrArrayCreator = new ZarrArrayCreator<>(grid, dataType, zarrAxes, fillValue);
+        this.numDimensions = zarrAxes.getNumDimension();
+        this.spatialToZarr = zarrAxes.spatialToZarrIndices();
+        this.channelIndex = zarrAxes.hasChannels() ? zarrAxes.channelIndex() : -1;
+        this.timeIndex = zarrAxes.hasTimepoints() ? zarrAxes.timeIndex() : -1;
+        final int[] blockSize = attributes.getBlockSize();
+        final long[] dimensions = attributes.getDimensions();
+        this.channelsPerChunk = channelIndex >= 0 ? blockSize[channelIndex] : 1;
+        this.timepointsPerChunk = timeIndex >= 0 ? blockSize[timeIndex] : 1;
+        int sliceOffset = 0;
+        int numSlicesPerChunk = 1;
+        if (channelIndex >= 0) {
+            sliceOffset += channel % channelsPerChunk * stride(blockSize, channelIndex);
+            numSlicesPerChunk *= (int) Math.min(channelsPerChunk, dimensions[channelIndex] - channel / channelsPerChunk * channelsPerChunk);
+        }
+        if (timeIndex >= 0) {
+            sliceOffset += timepoint % timepointsPerChunk * stride(blockSize, timeIndex);
+            numSlicesPerChunk *= (int) Math.min(timepointsPerChunk, dimensions[timeIndex] - timepoint / timepointsPerChunk * timepointsPerChunk);
+        }
+        this.sliceOffset = sliceOffset;
+        this.numSlicesPerChunk = numSlicesPerChunk;
+        // multi-byte chunks are converted straight into the cell arrays,
+        // single byte chunks are used as cell arrays without any conversion
+        this.decodeIntoCells = n5 instanceof N5ZarrImageReader
+            && attributes instanceof ZarrDatasetAttributes
+            && ((ZarrDatasetAttributes) attributes).getDType().getNBits() == 0
+            && ((ZarrDatasetAttributes) attributes).getDType().getNBytes() > 1;
     }
 
     @Override
     public A loadArray(final long[] gridPosition, int[] cellDimensions) throws IOException {
+        return batcher.load(gridPosition);
+    }
+
+    @Override
+    public List<A> loadArrays(final List<long[]> gridPositions) throws IOException {
+        if (gridPositions.size() == 1)
+            return Collections.singletonList(loadSingleArray(gridPositions.get(0)));
+
+        if (!decodeIntoCells || numSlicesPerChunk > 1) {
+            final List<Callable<A>> loads = new ArrayList<>(gridPositions.size());
+            for (long[] gridPosition : gridPositions)
+                loads.add(() -> loadSingleArray(gridPosition));
+            return LoaderThreads.fetchAll(loads);
+        }
+
+        final N5ZarrImageReader reader = (N5ZarrImageReader) n5;
+        final ZarrDatasetAttributes zarrAttributes = (ZarrDatasetAttributes) attributes;
+        final int n = gridPositions.size();
+
+        // group the chunks by the storage object that holds them
+        final long[][] dataBlockIndices = new long[n][];
+        final Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < n; i++) {
+            dataBlockIndices[i] = toZarrChunkIndices(gridPositions.get(i));
+            final String storageKey = reader.getStorageKey(pathName, zarrAttributes, dataBlockIndices[i]);
+            groups.computeIfAbsent(storageKey, k -> new ArrayList<>()).add(i);
+        }
+
+        // one fetch per storage object, every chunk is decoded as soon as its storage object has arrived
+        final List<CompletableFuture<A>> arrays = new ArrayList<>(Collections.nCopies(n, (CompletableFuture<A>) null));
+        for (List<Integer> group : groups.values()) {
+            final CompletableFuture<ByteBuffer[]> fetched = LoaderThreads.fetch(() -> {
+                final List<long[]> positions = new ArrayList<>(group.size());
+                for (int i : group)
+                    positions.add(dataBlockIndices[i]);
+
+                long start = 0;
+                if (N5OMEZarrImageLoader.logging)
+                    start = System.currentTimeMillis();
+
+                // a failure fails the batch, whose cells are then loaded one by one
+                final ByteBuffer[] groupBytes;
+                try {
+                    groupBytes = reader.readChunkBytes(pathName, zarrAttributes, positions);
+                } catch (SdkClientException e) {
+                    throw new IOException(e);
+                }
+                if (N5OMEZarrImageLoader.logging) {
+                    final long millis = System.currentTimeMillis() - start;
+                    log.info(pathName + " " + Arrays.toString(positions.get(0)) + ": " + "Read " + positions.size() + " chunks of one storage object in " + millis + " ms.");
+                }
+
+                return groupBytes;
+            });
+            for (int j = 0; j < group.size(); j++) {
+                final int index = group.get(j);
+                final int indexInGroup = j;
+                arrays.set(index, LoaderThreads.decode(fetched,
+                    groupBytes -> toArray(groupBytes[indexInGroup], zarrAttributes, gridPositions.get(index))));
+            }
+        }
+        return LoaderThreads.join(arrays);
+    }
+
+    private A loadSingleArray(final long[] gridPosition) throws IOException {
+        if (numSlicesPerChunk > 1)
+            return loadSlice(gridPosition);
+
+        if (decodeIntoCells)
+            return loadArrayFromBytes(gridPosition);
+
         DataBlock<?> block = null;
 
         long[] dataBlockIndices = toZarrChunkIndices(gridPosition);
@@ -79,7 +199,8 @@ public class N5OMEZarrCacheArrayLoader<A> implements SimpleCacheArrayLoader<A> {
         try {
             block = n5.readBlock(pathName, attributes, dataBlockIndices);
         } catch (SdkClientException e) {
-            log.error(e.getMessage()); // this happens sometimes, not sure yet why...
+            // the cell stays invalid and is loaded again, rather than cached as fill value
+            throw new IOException(e);
         }
         if (N5OMEZarrImageLoader.logging) {
             if (block != null) {
@@ -90,7 +211,7 @@ public class N5OMEZarrCacheArrayLoader<A> implements SimpleCacheArrayLoader<A> {
                 final float mbPerSecond = megaBytes / (millis / 1000.0F);
                 log.info(pathName + " " + Arrays.toString(dataBlockIndices) + ": " + "Read " + numElements + " " + dataType + " (" + String.format("%.3f", megaBytes) + " MB) in " + millis + " ms (" + String.format("%.3f", mbPerSecond) + " MB/s).");
             } else
-                log.warn(pathName + " " + Arrays.toString(dataBlockIndices) + ": Missing, returning zeros.");
+                log.warn(pathName + " " + Arrays.toString(dataBlockIndices) + ": Missing, returning fill value.");
         }
 
         if (block == null) {
@@ -100,21 +221,105 @@ public class N5OMEZarrCacheArrayLoader<A> implements SimpleCacheArrayLoader<A> {
         }
     }
 
+    private A loadArrayFromBytes(final long[] gridPosition) throws IOException {
+        final ZarrDatasetAttributes zarrAttributes = (ZarrDatasetAttributes) attributes;
+        final long[] dataBlockIndices = toZarrChunkIndices(gridPosition);
+
+        long start = 0;
+        if (N5OMEZarrImageLoader.logging)
+            start = System.currentTimeMillis();
+
+        ByteBuffer bytes = null;
+        try {
+            bytes = ((N5ZarrImageReader) n5).readChunkBytes(pathName, zarrAttributes, dataBlockIndices);
+        } catch (SdkClientException e) {
+            // the cell stays invalid and is loaded again, rather than cached as fill value
+            throw new IOException(e);
+        }
+        if (N5OMEZarrImageLoader.logging) {
+            if (bytes != null) {
+                final long millis = System.currentTimeMillis() - start;
+                final float megaBytes = (float) bytes.remaining() / 1000000.0F;
+                final float mbPerSecond = megaBytes / (millis / 1000.0F);
+                log.info(pathName + " " + Arrays.toString(dataBlockIndices) + ": " + "Read " + bytes.remaining() + " bytes of " + attributes.getDataType() + " (" + String.format("%.3f", megaBytes) + " MB) in " + millis + " ms (" + String.format("%.3f", mbPerSecond) + " MB/s).");
+            } else
+                log.warn(pathName + " " + Arrays.toString(dataBlockIndices) + ": Missing, returning fill value.");
+        }
+
+        return toArray(bytes, zarrAttributes, gridPosition);
+    }
+
+    /**
+     * Loads the cell out of a chunk that holds several channels or timepoints,
+     * which is shared with the loaders of the other slices of the chunk.
+     */
+    private A loadSlice(final long[] gridPosition) throws IOException {
+        final long[] dataBlockIndices = toZarrChunkIndices(gridPosition);
+        final Object chunk = DecodedChunkCache.getInstance().get(n5, pathName, dataBlockIndices, sliceOffset, numSlicesPerChunk, () -> {
+            long start = 0;
+            if (N5OMEZarrImageLoader.logging)
+                start = System.currentTimeMillis();
+
+            Object decoded = null;
+            try {
+                if (decodeIntoCells)
+                    decoded = ((N5ZarrImageReader) n5).readChunkBytes(pathName, (ZarrDatasetAttributes) attributes, dataBlockIndices);
+                else
+                    decoded = n5.readBlock(pathName, attributes, dataBlockIndices);
+            } catch (SdkClientException e) {
+                throw new IOException(e);
+            }
+            if (N5OMEZarrImageLoader.logging) {
+                if (decoded != null) {
+                    final long millis = System.currentTimeMillis() - start;
+                    log.info(pathName + " " + Arrays.toString(dataBlockIndices) + ": " + "Read the chunk of " + numSlicesPerChunk + " channels and timepoints in " + millis + " ms.");
+                } else
+                    log.warn(pathName + " " + Arrays.toString(dataBlockIndices) + ": Missing, returning fill value.");
+            }
+            return decoded;
+        });
+
+        if (chunk == null)
+            return (A) zarrArrayCreator.createEmptyArray(gridPosition);
+        if (chunk instanceof ByteBuffer)
+            return zarrArrayCreator.createArray((ByteBuffer) chunk, attributes.getBlockSize(), gridPosition, sliceOffset);
+        return zarrArrayCreator.createArray((DataBlock<?>) chunk, gridPosition, sliceOffset);
+    }
+
+    private A toArray(final ByteBuffer bytes, final ZarrDatasetAttributes zarrAttributes, final long[] gridPosition) {
+        if (bytes == null)
+            return (A) zarrArrayCreator.createEmptyArray(gridPosition);
+
+        final A array = zarrArrayCreator.createArray(bytes, zarrAttributes.getBlockSize(), gridPosition);
+        if (bytes.hasArray())
+            ArrayPool.shared().recycle(bytes.array());
+        return array;
+    }
+
     private long[] toZarrChunkIndices(long[] gridPosition) {
 
-        long[] chunkInZarr = new long[zarrAxes.getNumDimension()];
+        long[] chunkInZarr = new long[numDimensions];
 
         // fill in the spatial dimensions
-        final Map<Integer, Integer> spatialToZarr = zarrAxes.spatialToZarr();
-        for (Map.Entry<Integer, Integer> entry : spatialToZarr.entrySet())
-            chunkInZarr[entry.getValue()] = gridPosition[entry.getKey()];
+        for (int d = 0; d < spatialToZarr.length; d++)
+            chunkInZarr[spatialToZarr[d]] = gridPosition[d];
 
-        if (zarrAxes.hasChannels())
-            chunkInZarr[zarrAxes.channelIndex()] = channel;
+        if (channelIndex >= 0)
+            chunkInZarr[channelIndex] = channel / channelsPerChunk;
 
-        if (zarrAxes.hasTimepoints())
-            chunkInZarr[zarrAxes.timeIndex()] = timepoint;
+        if (timeIndex >= 0)
+            chunkInZarr[timeIndex] = timepoint / timepointsPerChunk;
 
         return chunkInZarr;
     }
+
+    /**
+     * @return the number of elements between consecutive positions along {@code axis} within a chunk
+     */
+    private static int stride(final int[] blockSize, final int axis) {
+        int stride = 1;
+        for (int d = 0; d < axis; d++)
+            stride *= blockSize[d];
+        return stride;
+    }
 }
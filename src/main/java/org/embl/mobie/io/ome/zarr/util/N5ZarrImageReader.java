@@ -32,13 +32,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
+import org.embl.mobie.io.n5.util.ArrayPool;
+import org.embl.mobie.io.n5.util.ByteBufferInputStream;
+import org.embl.mobie.io.n5.util.EncodedChunkCache;
 import org.janelia.saalfeldlab.n5.BlockReader;
 import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
 import org.janelia.saalfeldlab.n5.DataBlock;
 import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.RawCompression;
 import org.janelia.saalfeldlab.n5.zarr.DType;
 import org.janelia.saalfeldlab.n5.zarr.ZarrCompressor;
 import org.janelia.saalfeldlab.n5.zarr.ZarrDatasetAttributes;
@@ -80,11 +85,15 @@ public interface N5ZarrImageReader extends N5Reader {
         if (multiscales == null) {
             return;
         }
-        String version = multiscales.getAsJsonArray().get(0).getAsJsonObject().get("version").getAsString();
+        // OME-Zarr 0.5 keeps the version next to the multiscales, in the ome attribute
+        JsonElement versionElement = multiscales.getAsJsonArray().get(0).getAsJsonObject().get("version");
+        if (versionElement == null)
+            versionElement = attributes.get("version");
+        String version = versionElement == null ? "0.5" : versionElement.getAsString();
         if (version.equals("0.3")) {
             JsonElement axes = multiscales.getAsJsonArray().get(0).getAsJsonObject().get("axes");
             setAxes(axes);
-        } else if (version.equals("0.4")) {
+        } else if (version.equals("0.4") || version.equals("0.5")) {
             JsonArray axes = multiscales.getAsJsonArray().get(0).getAsJsonObject().get("axes").getAsJsonArray();
             int index = 0;
             List<ZarrAxis> zarrAxes = new ArrayList<>();
@@ -141,22 +150,7 @@ public interface N5ZarrImageReader extends N5Reader {
         final long[] gridPosition,
         final String dimensionSeparator,
         final boolean isRowMajor) {
-        final StringBuilder pathStringBuilder = new StringBuilder();
-        if (isRowMajor) {
-            pathStringBuilder.append(gridPosition[gridPosition.length - 1]);
-            for (int i = gridPosition.length - 2; i >= 0; --i) {
-                pathStringBuilder.append(dimensionSeparator);
-                pathStringBuilder.append(gridPosition[i]);
-            }
-        } else {
-            pathStringBuilder.append(gridPosition[0]);
-            for (int i = 1; i < gridPosition.length; ++i) {
-                pathStringBuilder.append(dimensionSeparator);
-                pathStringBuilder.append(gridPosition[i]);
-            }
-        }
-
-        return pathStringBuilder.toString();
+        return ZarrDatasetDescriptor.getChunkKey(gridPosition, dimensionSeparator, isRowMajor);
     }
 
     /**
@@ -176,7 +170,7 @@ public interface N5ZarrImageReader extends N5Reader {
         final int[] blockSize = datasetAttributes.getBlockSize();
         final DType dType = datasetAttributes.getDType();
 
-        final ByteArrayDataBlock byteBlock = dType.createByteBlock(blockSize, gridPosition);
+        final ByteArrayDataBlock byteBlock = createByteBlock(dType, blockSize, gridPosition);
 
         final BlockReader reader = datasetAttributes.getCompression().getReader();
         reader.read(byteBlock, in);
@@ -188,12 +182,240 @@ public interface N5ZarrImageReader extends N5Reader {
         }
 
         /* else translate into target type */
-        final DataBlock<?> dataBlock = dType.createDataBlock(blockSize, gridPosition);
         final ByteBuffer byteBuffer = byteBlock.toByteBuffer();
         byteBuffer.order(dType.getOrder());
+        final DataBlock<?> dataBlock = dType.getNBits() == 0
+            ? ArrayPool.shared().createDataBlock(dType.getDataType(), blockSize, gridPosition)
+            : dType.createDataBlock(blockSize, gridPosition);
         dataBlock.readData(byteBuffer);
 
+        // the encoded bytes are not referenced anymore
+        ArrayPool.shared().recycle(byteBlock.getData());
+
         return dataBlock;
     }
 
+    /**
+     * Reads the decompressed bytes of a chunk, without converting them to the
+     * data type of the dataset. The byte order of the returned buffer is set to
+     * the byte order of the dataset. Its backing array, if any, is owned by the
+     * caller and may be recycled to the {@link ArrayPool}.
+     *
+     * @return the chunk bytes, or {@code null} if the chunk does not exist
+     */
+    default ByteBuffer readChunkBytes(
+        final String pathName,
+        final ZarrDatasetAttributes datasetAttributes,
+        final long... gridPosition) throws IOException {
+        final ByteBuffer encoded = readEncodedChunk(pathName, datasetAttributes, gridPosition);
+        return encoded == null ? null : readChunkBytes(encoded, datasetAttributes, gridPosition);
+    }
+
+    /**
+     * Reads the decompressed bytes of several chunks that are held by the same
+     * storage object, see {@link #getStorageKey(String, ZarrDatasetAttributes, long[])}.
+     *
+     * @return the chunk bytes in the order of {@code gridPositions}, {@code null}
+     * for chunks that do not exist
+     * @see #readChunkBytes(String, ZarrDatasetAttributes, long...)
+     */
+    default ByteBuffer[] readChunkBytes(
+        final String pathName,
+        final ZarrDatasetAttributes datasetAttributes,
+        final List<long[]> gridPositions) throws IOException {
+        final ByteBuffer[] bytes = readEncodedChunks(pathName, datasetAttributes, gridPositions);
+        for (int i = 0; i < bytes.length; i++)
+            if (bytes[i] != null)
+                bytes[i] = readChunkBytes(bytes[i], datasetAttributes, gridPositions.get(i));
+        return bytes;
+    }
+
+    /**
+     * Reads the encoded bytes of a chunk as they are stored, i.e. before
+     * decompression, from the {@link EncodedChunkCache} if the reader has an
+     * {@link #getEncodedChunkScope() encoded chunk scope}, or else from the storage.
+     * The returned buffer may be read-only and must not be modified.
+     *
+     * @return the encoded chunk, or {@code null} if the chunk does not exist
+     */
+    default ByteBuffer readEncodedChunk(
+        final String pathName,
+        final ZarrDatasetAttributes datasetAttributes,
+        final long... gridPosition) throws IOException {
+        final String scope = getEncodedChunkScope();
+        final EncodedChunkCache cache = scope == null ? null : EncodedChunkCache.getInstance();
+        if (cache == null)
+            return fetchEncodedChunk(pathName, datasetAttributes, gridPosition);
+
+        final ByteBuffer cached = cache.get(scope, pathName, gridPosition);
+        if (cached != null)
+            return cached;
+        final ByteBuffer encoded = fetchEncodedChunk(pathName, datasetAttributes, gridPosition);
+        return encoded == null ? null : cache.put(scope, pathName, gridPosition, encoded);
+    }
+
+    /**
+     * Reads the encoded bytes of several chunks that are held by the same
+     * storage object. Only the chunks that are not in the {@link EncodedChunkCache}
+     * are fetched, with one call of {@link #fetchEncodedChunks}.
+     *
+     * @see #readEncodedChunk(String, ZarrDatasetAttributes, long...)
+     */
+    default ByteBuffer[] readEncodedChunks(
+        final String pathName,
+        final ZarrDatasetAttributes datasetAttributes,
+        final List<long[]> gridPositions) throws IOException {
+        final String scope = getEncodedChunkScope();
+        final EncodedChunkCache cache = scope == null ? null : EncodedChunkCache.getInstance();
+        if (cache == null)
+            return fetchEncodedChunks(pathName, datasetAttributes, gridPositions);
+
+        final ByteBuffer[] encoded = new ByteBuffer[gridPositions.size()];
+        final List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = cache.get(scope, pathName, gridPositions.get(i));
+            if (encoded[i] == null)
+                missing.add(i);
+        }
+        if (missing.isEmpty())
+            return encoded;
+
+        final List<long[]> missingPositions = new ArrayList<>(missing.size());
+        for (int i : missing)
+            missingPositions.add(gridPositions.get(i));
+        final ByteBuffer[] fetched = fetchEncodedChunks(pathName, datasetAttributes, missingPositions);
+        for (int j = 0; j < fetched.length; j++)
+            if (fetched[j] != null)
+                encoded[missing.get(j)] = cache.put(scope, pathName, missingPositions.get(j), fetched[j]);
+        return encoded;
+    }
+
+    /**
+     * Fetches the encoded bytes of a chunk from the storage, bypassing the
+     * {@link EncodedChunkCache}.
+     *
+     * @return the encoded chunk, or {@code null} if the chunk does not exist
+     */
+    ByteBuffer fetchEncodedChunk(
+        final String pathName,
+        final ZarrDatasetAttributes datasetAttributes,
+        final long... gridPosition) throws IOException;
+
+    /**
+     * Fetches the encoded bytes of several chunks that are held by the same
+     * storage object. Readers that can fetch the chunks of one object together
+     * override this; by default the chunks are fetched one after the other.
+     *
+     * @return the encoded chunks in the order of {@code gridPositions}, {@code null}
+     * for chunks that do not exist
+     */
+    default ByteBuffer[] fetchEncodedChunks(
+        final String pathName,
+        final ZarrDatasetAttributes datasetAttributes,
+        final List<long[]> gridPositions) throws IOException {
+        final ByteBuffer[] encoded = new ByteBuffer[gridPositions.size()];
+        for (int i = 0; i < encoded.length; i++)
+            encoded[i] = fetchEncodedChunk(pathName, datasetAttributes, gridPositions.get(i));
+        return encoded;
+    }
+
+    /**
+     * Identifies the container in the {@link EncodedChunkCache}. Readers of
+     * containers that may be modified while they are open return {@code null},
+     * such that their chunks are not cached.
+     */
+    default String getEncodedChunkScope() {
+        return null;
+    }
+
+    /**
+     * Identifies the storage object (file or S3 object) that holds a chunk.
+     * Batched loads fetch the chunks with the same key in one call of
+     * {@link #readChunkBytes(String, ZarrDatasetAttributes, List)}.
+     */
+    default String getStorageKey(
+        final String pathName,
+        final ZarrDatasetAttributes datasetAttributes,
+        final long[] gridPosition) {
+        return pathName + "/" + getZarrDataBlockString(gridPosition, DEFAULT_SEPARATOR, datasetAttributes.isRowMajor());
+    }
+
+    /**
+     * Decompresses the encoded bytes of a chunk.
+     *
+     * @see #readChunkBytes(String, ZarrDatasetAttributes, long...)
+     */
+    default ByteBuffer readChunkBytes(
+        final InputStream in,
+        final ZarrDatasetAttributes datasetAttributes,
+        final long... gridPosition) throws IOException {
+        final DType dType = datasetAttributes.getDType();
+        final ByteArrayDataBlock byteBlock = createByteBlock(dType, datasetAttributes.getBlockSize(), gridPosition);
+        datasetAttributes.getCompression().getReader().read(byteBlock, in);
+        return ByteBuffer.wrap(byteBlock.getData()).order(dType.getOrder());
+    }
+
+    /**
+     * Decompresses a chunk from a buffer that holds its encoded bytes. Uncompressed
+     * chunks are returned as they are, with the byte order of the dataset.
+     *
+     * @see #readChunkBytes(String, ZarrDatasetAttributes, long...)
+     */
+    default ByteBuffer readChunkBytes(
+        final ByteBuffer buffer,
+        final ZarrDatasetAttributes datasetAttributes,
+        final long... gridPosition) throws IOException {
+        if (datasetAttributes.getCompression() instanceof RawCompression)
+            return buffer.order(datasetAttributes.getDType().getOrder());
+        return readChunkBytes(new ByteBufferInputStream(buffer), datasetAttributes, gridPosition);
+    }
+
+    /**
+     * Reads a chunk from a buffer that holds its encoded bytes, e.g. a memory-mapped file.
+     * Uncompressed chunks are decoded straight from the buffer into the block.
+     */
+    default DataBlock<?> readBlock(
+        final ByteBuffer buffer,
+        final ZarrDatasetAttributes datasetAttributes,
+        final long... gridPosition) throws IOException {
+        final DType dType = datasetAttributes.getDType();
+        if (!(datasetAttributes.getCompression() instanceof RawCompression) || dType.getNBits() != 0)
+            return readBlock(new ByteBufferInputStream(buffer), datasetAttributes, gridPosition);
+
+        final DataBlock<?> dataBlock = ArrayPool.shared().createDataBlock(dType.getDataType(), datasetAttributes.getBlockSize(), gridPosition);
+        dataBlock.readData(buffer.duplicate().order(dType.getOrder()));
+        return dataBlock;
+    }
+
+    /**
+     * Reads a stream to its end, e.g. to keep the encoded bytes of a chunk.
+     *
+     * @return a buffer that wraps an array of exactly the bytes of the stream
+     */
+    static ByteBuffer readFully(final InputStream in) throws IOException {
+        byte[] bytes = new byte[8192];
+        int length = 0;
+        int n;
+        while ((n = in.read(bytes, length, bytes.length - length)) >= 0) {
+            length += n;
+            if (length == bytes.length)
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+        }
+        return ByteBuffer.wrap(length == bytes.length ? bytes : Arrays.copyOf(bytes, length));
+    }
+
+    /**
+     * Creates the block that receives the decoded chunk bytes, taking the
+     * byte array from the {@link ArrayPool} for byte aligned types.
+     */
+    static ByteArrayDataBlock createByteBlock(final DType dType, final int[] blockSize, final long[] gridPosition) {
+        if (dType.getNBits() != 0)
+            return dType.createByteBlock(blockSize, gridPosition);
+
+        int numElements = 1;
+        for (int size : blockSize)
+            numElements *= size;
+        return new ByteArrayDataBlock(blockSize, gridPosition, ArrayPool.shared().takeBytes(numElements * dType.getNBytes()));
+    }
+
 }
@@ -0,0 +1,106 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.ome.zarr.util;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * Reads byte ranges of the objects of an S3 bucket with ranged GET requests.
+ */
+public class S3RangeReader implements ShardReader.RangeReader {
+    private final AmazonS3 s3;
+    private final String bucketName;
+    // the sizes found by getVersion, for the index read that follows
+    private final Map<String, Long> sizes = new ConcurrentHashMap<>();
+
+    public S3RangeReader(final AmazonS3 s3, final String bucketName) {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+    }
+
+    @Override
+    public ByteBuffer read(final String key, final long offset, final long length) throws IOException {
+        final GetObjectRequest request = new GetObjectRequest(bucketName, key).withRange(offset, offset + length - 1);
+        try (final S3Object object = s3.getObject(request)) {
+            final byte[] bytes = new byte[(int) length];
+            new DataInputStream(object.getObjectContent()).readFully(bytes);
+            return ByteBuffer.wrap(bytes);
+        } catch (AmazonS3Exception ase) {
+            if ("NoSuchKey".equals(ase.getErrorCode()) || ase.getStatusCode() == 404)
+                return null;
+            throw ase;
+        }
+    }
+
+    @Override
+    public ByteBuffer readSuffix(final String key, final long length) throws IOException {
+        final Long knownSize = sizes.remove(key);
+        final long size;
+        if (knownSize != null) {
+            size = knownSize;
+        } else {
+            final ObjectMetadata metadata = getObjectMetadata(key);
+            if (metadata == null)
+                return null;
+            size = metadata.getContentLength();
+        }
+        if (size < length)
+            throw new IOException(key + " has " + size + " bytes, expected at least " + length + ".");
+        return read(key, size - length, length);
+    }
+
+    @Override
+    public String getVersion(final String key) throws IOException {
+        final ObjectMetadata metadata = getObjectMetadata(key);
+        if (metadata == null)
+            return null;
+        sizes.put(key, metadata.getContentLength());
+        return metadata.getETag();
+    }
+
+    private ObjectMetadata getObjectMetadata(final String key) {
+        try {
+            return s3.getObjectMetadata(bucketName, key);
+        } catch (AmazonS3Exception ase) {
+            if (ase.getStatusCode() == 404)
+                return null;
+            throw ase;
+        }
+    }
+}
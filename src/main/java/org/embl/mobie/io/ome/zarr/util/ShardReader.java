@@ -0,0 +1,297 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.ome.zarr.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.embl.mobie.io.util.DiskChunkCache;
+
+/**
+ * Reads inner chunks from zarr v3 shards with byte range reads.
+ * <p>
+ * The shard indices are read once and kept in a cache that is bounded by
+ * {@link #maxIndexCacheBytes}. The chunks of one shard that are requested
+ * together are fetched with as few range reads as possible: ranges that are at
+ * most {@link #maxGap} bytes apart are merged.
+ * <p>
+ * With a {@link DiskChunkCache}, the indices and inner chunks of shards whose
+ * {@link RangeReader#getVersion version} is known are also cached on disk,
+ * keyed by shard, version and chunk, such that they are found again no matter
+ * how the reads of a later session are merged.
+ */
+public class ShardReader {
+
+    /**
+     * Reads byte ranges of the objects (files or S3 objects) of a container.
+     */
+    public interface RangeReader {
+        /**
+         * @return the bytes {@code [offset, offset + length)} of the object, or {@code null} if it does not exist
+         */
+        ByteBuffer read(String key, long offset, long length) throws IOException;
+
+        /**
+         * @return the last {@code length} bytes of the object, or {@code null} if it does not exist
+         */
+        ByteBuffer readSuffix(String key, long length) throws IOException;
+
+        /**
+         * @return the version of the object, e.g. its ETag, which changes whenever the object changes, or
+         * {@code null} if it does not exist or has no version
+         */
+        default String getVersion(String key) throws IOException {
+            return null;
+        }
+    }
+
+    /**
+     * The largest gap, in bytes, between two chunks of a shard that are still fetched with one read.
+     */
+    public static long maxGap = 1 << 16;
+
+    /**
+     * The memory budget of the cached shard indices, per reader.
+     */
+    public static long maxIndexCacheBytes = 64L << 20;
+
+    private final RangeReader rangeReader;
+    private final DiskChunkCache diskCache;
+    private final String cacheScope;
+    private final LinkedHashMap<String, Shard> shards = new LinkedHashMap<>(16, 0.75f, true);
+    private long indexBytes;
+
+    public ShardReader(final RangeReader rangeReader) {
+        this(rangeReader, null, null);
+    }
+
+    /**
+     * @param diskCache  caches indices and chunks on disk, may be null
+     * @param cacheScope identifies the container of the shard keys in the disk cache, e.g. endpoint and bucket
+     */
+    public ShardReader(final RangeReader rangeReader, final DiskChunkCache diskCache, final String cacheScope) {
+        this.rangeReader = rangeReader;
+        this.diskCache = diskCache;
+        this.cacheScope = cacheScope;
+    }
+
+    /**
+     * @return the index of the shard, or {@link ShardingIndexed.Index#MISSING} if the shard does not exist
+     */
+    public ShardingIndexed.Index getIndex(final String shardKey, final ShardingIndexed sharding) throws IOException {
+        return getShard(shardKey, sharding).index;
+    }
+
+    private Shard getShard(final String shardKey, final ShardingIndexed sharding) throws IOException {
+        synchronized (shards) {
+            final Shard cached = shards.get(shardKey);
+            if (cached != null)
+                return cached;
+        }
+
+        final String version = diskCache == null ? null : getVersion(shardKey);
+        final String indexKey = version == null ? null : diskCacheKey(shardKey, version, "index");
+        ShardingIndexed.Index index = null;
+        if (indexKey != null) {
+            final DiskChunkCache.Entry entry = diskCache.get(indexKey);
+            if (entry != null) {
+                try {
+                    index = sharding.parseIndex(entry.getData());
+                } catch (IOException e) {
+                    // corrupt on disk, read it again
+                }
+            }
+        }
+        if (index == null) {
+            final long size = sharding.getIndexSize();
+            final ByteBuffer bytes = sharding.isIndexAtEnd() ?
+                rangeReader.readSuffix(shardKey, size) :
+                rangeReader.read(shardKey, 0, size);
+            index = bytes == null ? ShardingIndexed.Index.MISSING : sharding.parseIndex(bytes.duplicate());
+            if (indexKey != null && bytes != null)
+                diskCache.put(indexKey, version, toArray(bytes));
+        }
+        final Shard shard = new Shard(index, index == ShardingIndexed.Index.MISSING ? null : version);
+
+        synchronized (shards) {
+            final Shard previous = shards.put(shardKey, shard);
+            if (previous != null)
+                indexBytes -= previous.index.getMemorySize();
+            indexBytes += index.getMemorySize();
+            final Iterator<Shard> eldest = shards.values().iterator();
+            while (indexBytes > maxIndexCacheBytes && eldest.hasNext()) {
+                indexBytes -= eldest.next().index.getMemorySize();
+                eldest.remove();
+            }
+        }
+        return shard;
+    }
+
+    /**
+     * @return the version of the shard, which is asked from the store once per session unless
+     * {@link DiskChunkCache#revalidate} is off and a version is known from an earlier session
+     */
+    private String getVersion(final String shardKey) throws IOException {
+        final String versionKey = diskCacheKey(shardKey, null, "version");
+        if (!DiskChunkCache.revalidate) {
+            final DiskChunkCache.Entry entry = diskCache.get(versionKey);
+            if (entry != null)
+                return entry.getETag();
+        }
+        final String version = rangeReader.getVersion(shardKey);
+        if (version != null)
+            diskCache.put(versionKey, version, new byte[0]);
+        return version;
+    }
+
+    private String diskCacheKey(final String shardKey, final String version, final String part) {
+        return cacheScope + '\n' + shardKey + '\n' + (version == null ? "" : version) + '\n' + part;
+    }
+
+    private static byte[] toArray(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return the encoded bytes of the chunk, without its verified checksum, or {@code null} if it does not exist
+     */
+    public ByteBuffer readChunk(final String shardKey, final ShardingIndexed sharding, final long[] gridPosition) throws IOException {
+        return readChunks(shardKey, sharding, Collections.singletonList(gridPosition))[0];
+    }
+
+    /**
+     * Reads several chunks of one shard.
+     *
+     * @return the encoded bytes of the chunks, without checksums, in the order of
+     * {@code gridPositions}; {@code null} for chunks that do not exist. The
+     * buffers are read-only views of shared memory.
+     */
+    public ByteBuffer[] readChunks(final String shardKey, final ShardingIndexed sharding, final List<long[]> gridPositions) throws IOException {
+        final ByteBuffer[] chunks = new ByteBuffer[gridPositions.size()];
+        final Shard shard = getShard(shardKey, sharding);
+        final ShardingIndexed.Index index = shard.index;
+        if (index == ShardingIndexed.Index.MISSING)
+            return chunks;
+
+        // the existing chunks that are not cached on disk, ordered by their position in the shard
+        final List<int[]> requests = new ArrayList<>(chunks.length);
+        for (int i = 0; i < chunks.length; i++) {
+            final int chunkIndex = sharding.getChunkIndex(gridPositions.get(i));
+            if (!index.exists(chunkIndex))
+                continue;
+            if (shard.version != null) {
+                final DiskChunkCache.Entry entry = diskCache.get(diskCacheKey(shardKey, shard.version, Integer.toString(chunkIndex)));
+                if (entry != null) {
+                    try {
+                        chunks[i] = sharding.stripChunkChecksum(entry.getData());
+                        continue;
+                    } catch (IOException e) {
+                        // corrupt on disk, read it again
+                    }
+                }
+            }
+            requests.add(new int[]{i, chunkIndex});
+        }
+        requests.sort(Comparator.comparingLong(request -> index.getOffset(request[1])));
+
+        int start = 0;
+        while (start < requests.size()) {
+            final long rangeStart = index.getOffset(requests.get(start)[1]);
+            long rangeEnd = rangeStart + index.getStoredSize(requests.get(start)[1]);
+            int end = start + 1;
+            while (end < requests.size() && index.getOffset(requests.get(end)[1]) - rangeEnd <= maxGap) {
+                final int chunkIndex = requests.get(end)[1];
+                rangeEnd = Math.max(rangeEnd, index.getOffset(chunkIndex) + index.getStoredSize(chunkIndex));
+                end++;
+            }
+
+            final ByteBuffer range = rangeReader.read(shardKey, rangeStart, rangeEnd - rangeStart);
+            if (range == null) {
+                // the shard has been removed since its index was read
+                invalidate(shardKey);
+                return new ByteBuffer[chunks.length];
+            }
+            for (int k = start; k < end; k++) {
+                final int[] request = requests.get(k);
+                final ByteBuffer chunk = range.asReadOnlyBuffer();
+                final int position = range.position() + (int) (index.getOffset(request[1]) - rangeStart);
+                chunk.limit(position + (int) index.getStoredSize(request[1]));
+                chunk.position(position);
+                final ByteBuffer storedChunk = chunk.slice();
+                chunks[request[0]] = sharding.stripChunkChecksum(storedChunk.duplicate());
+                if (shard.version != null)
+                    diskCache.put(diskCacheKey(shardKey, shard.version, Integer.toString(request[1])), shard.version, toArray(storedChunk));
+            }
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Forgets the cached indices of all shards whose key starts with {@code keyPrefix}.
+     */
+    public void invalidate(final String keyPrefix) {
+        synchronized (shards) {
+            final Iterator<Map.Entry<String, Shard>> entries = shards.entrySet().iterator();
+            while (entries.hasNext()) {
+                final Map.Entry<String, Shard> entry = entries.next();
+                if (entry.getKey().startsWith(keyPrefix)) {
+                    indexBytes -= entry.getValue().index.getMemorySize();
+                    entries.remove();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (shards) {
+            shards.clear();
+            indexBytes = 0;
+        }
+    }
+
+    private static class Shard {
+        final ShardingIndexed.Index index;
+        final String version;
+
+        Shard(final ShardingIndexed.Index index, final String version) {
+            this.index = index;
+            this.version = version;
+        }
+    }
+}
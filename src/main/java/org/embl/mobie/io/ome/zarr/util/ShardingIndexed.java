@@ -0,0 +1,225 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.ome.zarr.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The layout of a zarr v3 {@code sharding_indexed} codec: how many inner chunks
+ * a shard holds, and where and how the shard index is stored.
+ * <p>
+ * Grid positions are in N5 axis order and count inner chunks, which are the
+ * cells of the image loaders.
+ */
+public final class ShardingIndexed {
+    private static final long EMPTY = 0xFFFFFFFFFFFFFFFFL;
+    private static final int CHECKSUM_SIZE = 4;
+
+    private final int[] chunksPerShard;
+    private final int numChunks;
+    private final boolean indexAtEnd;
+    private final ByteOrder indexOrder;
+    private final boolean indexChecksum;
+    private final boolean chunkChecksum;
+
+    /**
+     * @param chunksPerShard the number of inner chunks per shard, in N5 axis order
+     */
+    public ShardingIndexed(
+        final int[] chunksPerShard,
+        final boolean indexAtEnd,
+        final ByteOrder indexOrder,
+        final boolean indexChecksum,
+        final boolean chunkChecksum) {
+        this.chunksPerShard = chunksPerShard.clone();
+        int n = 1;
+        for (int c : chunksPerShard)
+            n *= c;
+        this.numChunks = n;
+        this.indexAtEnd = indexAtEnd;
+        this.indexOrder = indexOrder;
+        this.indexChecksum = indexChecksum;
+        this.chunkChecksum = chunkChecksum;
+    }
+
+    public int[] getChunksPerShard() {
+        return chunksPerShard.clone();
+    }
+
+    public int getNumChunks() {
+        return numChunks;
+    }
+
+    public boolean isIndexAtEnd() {
+        return indexAtEnd;
+    }
+
+    public ByteOrder getIndexOrder() {
+        return indexOrder;
+    }
+
+    /**
+     * @return whether the shard index ends with a crc32c checksum
+     */
+    public boolean hasIndexChecksum() {
+        return indexChecksum;
+    }
+
+    /**
+     * @return whether every inner chunk ends with a crc32c checksum that is not part of the encoded chunk
+     */
+    public boolean hasChunkChecksum() {
+        return chunkChecksum;
+    }
+
+    /**
+     * @return the size of the encoded shard index in bytes
+     */
+    public long getIndexSize() {
+        return 16L * numChunks + (indexChecksum ? CHECKSUM_SIZE : 0);
+    }
+
+    /**
+     * @return the grid position of the shard that holds the inner chunk at {@code gridPosition}
+     */
+    public long[] getShardPosition(final long[] gridPosition) {
+        final long[] shardPosition = new long[gridPosition.length];
+        for (int d = 0; d < gridPosition.length; d++)
+            shardPosition[d] = gridPosition[d] / chunksPerShard[d];
+        return shardPosition;
+    }
+
+    /**
+     * @return the index of the inner chunk at {@code gridPosition} within its
+     * shard, in the C order of the zarr axes
+     */
+    public int getChunkIndex(final long[] gridPosition) {
+        int index = 0;
+        for (int d = gridPosition.length - 1; d >= 0; d--)
+            index = index * chunksPerShard[d] + (int) (gridPosition[d] % chunksPerShard[d]);
+        return index;
+    }
+
+    /**
+     * Parses the encoded shard index and verifies its checksum. The position of
+     * {@code bytes} is not modified.
+     */
+    public Index parseIndex(final ByteBuffer bytes) throws IOException {
+        if (bytes.remaining() < getIndexSize())
+            throw new IOException("Shard index has " + bytes.remaining() + " bytes, expected " + getIndexSize() + ".");
+        final ByteBuffer view = bytes.duplicate().order(indexOrder);
+        if (indexChecksum) {
+            view.limit(view.position() + 16 * numChunks);
+            verifyChecksum(view, readChecksum(bytes, view.limit()), "shard index");
+        }
+        final long[] offsetsAndSizes = new long[2 * numChunks];
+        view.asLongBuffer().get(offsetsAndSizes);
+        return new Index(offsetsAndSizes, chunkChecksum ? CHECKSUM_SIZE : 0);
+    }
+
+    /**
+     * Verifies and removes the checksum of an inner chunk as it is stored in the shard.
+     *
+     * @param storedChunk the {@link Index#getStoredSize stored} bytes of the chunk
+     * @return the encoded chunk, a view of {@code storedChunk}
+     */
+    public ByteBuffer stripChunkChecksum(final ByteBuffer storedChunk) throws IOException {
+        if (!chunkChecksum)
+            return storedChunk;
+        if (storedChunk.remaining() < CHECKSUM_SIZE)
+            throw new IOException("Inner chunk has " + storedChunk.remaining() + " bytes, too few for its checksum.");
+        final ByteBuffer chunk = storedChunk.duplicate();
+        chunk.limit(chunk.limit() - CHECKSUM_SIZE);
+        verifyChecksum(chunk, readChecksum(storedChunk, chunk.limit()), "inner chunk");
+        return chunk.slice();
+    }
+
+    /**
+     * @return the crc32c checksum at {@code index}, which is always little endian
+     */
+    private static int readChecksum(final ByteBuffer bytes, final int index) {
+        return bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(index);
+    }
+
+    private static void verifyChecksum(final ByteBuffer bytes, final int checksum, final String what) throws IOException {
+        if (Crc32c.compute(bytes) != checksum)
+            throw new IOException("The crc32c checksum of the " + what + " does not match.");
+    }
+
+    /**
+     * The shard index: offset and size of every inner chunk within the shard.
+     */
+    public static final class Index {
+        /**
+         * The index of a shard that does not exist.
+         */
+        public static final Index MISSING = new Index(new long[0], 0);
+
+        private final long[] offsetsAndSizes;
+        private final int checksumSize;
+
+        private Index(final long[] offsetsAndSizes, final int checksumSize) {
+            this.offsetsAndSizes = offsetsAndSizes;
+            this.checksumSize = checksumSize;
+        }
+
+        public boolean exists(final int chunkIndex) {
+            return 2 * chunkIndex < offsetsAndSizes.length
+                && offsetsAndSizes[2 * chunkIndex] != EMPTY
+                && offsetsAndSizes[2 * chunkIndex + 1] != EMPTY;
+        }
+
+        public long getOffset(final int chunkIndex) {
+            return offsetsAndSizes[2 * chunkIndex];
+        }
+
+        /**
+         * @return the size of the encoded chunk, without its checksum
+         */
+        public long getSize(final int chunkIndex) {
+            return offsetsAndSizes[2 * chunkIndex + 1] - checksumSize;
+        }
+
+        /**
+         * @return the size of the chunk in the shard, including its checksum
+         */
+        public long getStoredSize(final int chunkIndex) {
+            return offsetsAndSizes[2 * chunkIndex + 1];
+        }
+
+        /**
+         * @return the size of the index in memory, in bytes
+         */
+        public long getMemorySize() {
+            return 8L * offsetsAndSizes.length;
+        }
+    }
+}
@@ -28,9 +28,11 @@
  */
 package org.embl.mobie.io.ome.zarr.util;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import org.embl.mobie.io.n5.util.ArrayCreator;
+import org.embl.mobie.io.n5.util.N5DataTypeSize;
 import org.janelia.saalfeldlab.n5.DataBlock;
 import org.janelia.saalfeldlab.n5.DataType;
 
@@ -38,36 +40,84 @@ import net.imglib2.img.cell.CellGrid;
 import net.imglib2.type.NativeType;
 
 public class ZarrArrayCreator<A, T extends NativeType<T>> extends ArrayCreator {
-    private final ZarrAxes zarrAxes;
+    private final int numDimensions;
+    private final int channelIndex;
+    private final int timeIndex;
 
     public ZarrArrayCreator(CellGrid cellGrid, DataType dataType, ZarrAxes zarrAxes) {
-        super(cellGrid, dataType);
-        this.zarrAxes = zarrAxes;
+        this(cellGrid, dataType, zarrAxes, null);
+    }
+
+    public ZarrArrayCreator(CellGrid cellGrid, DataType dataType, ZarrAxes zarrAxes, String fillValue) {
+        super(cellGrid, dataType, fillValue);
+        this.numDimensions = zarrAxes.getNumDimension();
+        this.channelIndex = zarrAxes.hasChannels() ? zarrAxes.channelIndex() : -1;
+        this.timeIndex = zarrAxes.hasTimepoints() ? zarrAxes.timeIndex() : -1;
     }
 
     public A createArray(DataBlock<?> dataBlock, long[] gridPosition) {
         long[] cellDims = getCellDims(gridPosition);
         int n = (int) (cellDims[0] * cellDims[1] * cellDims[2]);
 
-        if (zarrAxes.getNumDimension() == 2)
-            cellDims = Arrays.stream(cellDims).limit(2).toArray();
+        if (numDimensions == 2)
+            cellDims = Arrays.copyOf(cellDims, 2);
 
         return (A) VolatileDoubleArray(dataBlock, cellDims, n);
     }
 
+    /**
+     * Creates the cell array from the decompressed bytes of a chunk.
+     *
+     * @param bytes     the chunk bytes, in the byte order of the dataset
+     * @param blockSize the chunk size, in N5 axis order
+     */
+    public A createArray(ByteBuffer bytes, int[] blockSize, long[] gridPosition) {
+        long[] cellDims = getCellDims(gridPosition);
+        int n = (int) (cellDims[0] * cellDims[1] * cellDims[2]);
+        return (A) copyFromBytes(bytes, blockSize, cellDims, n);
+    }
+
+    /**
+     * Creates the cell array from a decoded chunk that holds several channels or
+     * timepoints, without modifying the chunk.
+     *
+     * @param offset the offset of the slice of the cell within the chunk, in elements
+     */
+    public A createArray(DataBlock<?> dataBlock, long[] gridPosition, int offset) {
+        long[] cellDims = getCellDims(gridPosition);
+        int n = (int) (cellDims[0] * cellDims[1] * cellDims[2]);
+        return (A) copyFromArray(dataBlock.getData(), offset, dataBlock.getSize(), cellDims, n);
+    }
+
+    /**
+     * Creates the cell array from the decompressed bytes of a chunk that holds
+     * several channels or timepoints, without modifying the bytes.
+     *
+     * @param offset the offset of the slice of the cell within the chunk, in elements
+     */
+    public A createArray(ByteBuffer bytes, int[] blockSize, long[] gridPosition, int offset) {
+        final ByteBuffer slice = bytes.duplicate().order(bytes.order());
+        slice.position(bytes.position() + offset * N5DataTypeSize.getNumBytesPerElement(dataType));
+        return createArray(slice, blockSize, gridPosition);
+    }
+
     @Override
     public long[] getCellDims(long[] gridPosition) {
-        long[] cellMin = new long[Math.max(zarrAxes.getNumDimension(), 3)];
-        int[] cellDims = new int[Math.max(zarrAxes.getNumDimension(), 3)];
+        final int n = Math.max(numDimensions, 3);
+        long[] cellMin = new long[n];
+        int[] cellDims = new int[n];
 
-        if(zarrAxes.hasChannels()) {
-            cellDims[zarrAxes.channelIndex()] = 1;
+        if (channelIndex >= 0) {
+            cellDims[channelIndex] = 1;
         }
-        if(zarrAxes.hasTimepoints()) {
-            cellDims[zarrAxes.timeIndex()] = 1;
+        if (timeIndex >= 0) {
+            cellDims[timeIndex] = 1;
         }
 
         cellGrid.getCellDimensions(gridPosition, cellMin, cellDims);
-        return Arrays.stream(cellDims).mapToLong(i -> i).toArray(); // casting to long for creating ArrayImgs.*
+        final long[] dims = new long[n]; // casting to long for creating ArrayImgs.*
+        for (int d = 0; d < n; d++)
+            dims[d] = cellDims[d];
+        return dims;
     }
 }
@@ -29,6 +29,7 @@
 package org.embl.mobie.io.ome.zarr.util;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -38,7 +39,6 @@ import java.util.stream.Stream;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonFormat;
-import com.google.common.collect.Lists;
 
 @JsonFormat(shape = JsonFormat.Shape.ARRAY)
 public enum ZarrAxes {
@@ -53,17 +53,27 @@ public enum ZarrAxes {
 
     private final String axes;
 
+    // derived once from the axes string, the chunk loaders query these for every chunk
+    private final List<String> axesList;
+    private final boolean hasTimepoints;
+    private final boolean hasChannels;
+    private final boolean hasZAxis;
+    private final int timeIndex;
+    private final int channelIndex;
+    private final int[] spatialToZarr;
+
     ZarrAxes(String axes) {
         this.axes = axes;
+        this.axesList = Collections.unmodifiableList(parseAxes(axes));
+        this.hasTimepoints = axesList.contains("t");
+        this.hasChannels = axesList.contains("c");
+        this.hasZAxis = axesList.contains("z");
+        this.timeIndex = reverseIndex(axesList, "t");
+        this.channelIndex = reverseIndex(axesList, "c");
+        this.spatialToZarr = hasZAxis ? new int[]{0, 1, 2} : new int[]{0, 1};
     }
 
-    @JsonCreator
-    public static ZarrAxes decode(final String axes) {
-        return Stream.of(ZarrAxes.values()).filter(targetEnum ->
-            targetEnum.axes.equals(axes)).findFirst().orElse(TCZYX);
-    }
-
-    public List<String> getAxesList() {
+    private static List<String> parseAxes(String axes) {
         String pattern = "([a-z])";
         List<String> allMatches = new ArrayList<>();
         Matcher m = Pattern.compile(pattern)
@@ -74,9 +84,24 @@ public enum ZarrAxes {
         return allMatches;
     }
 
+    private static int reverseIndex(List<String> axesList, String axisName) {
+        final int index = axesList.indexOf(axisName);
+        return index == -1 ? -1 : axesList.size() - 1 - index;
+    }
+
+    @JsonCreator
+    public static ZarrAxes decode(final String axes) {
+        return Stream.of(ZarrAxes.values()).filter(targetEnum ->
+            targetEnum.axes.equals(axes)).findFirst().orElse(TCZYX);
+    }
+
+    public List<String> getAxesList() {
+        return new ArrayList<>(axesList);
+    }
+
     public List<ZarrAxis> toAxesList(String spaceUnit, String timeUnit) {
         List<ZarrAxis> zarrAxesList = new ArrayList<>();
-        List<String> zarrAxesStrings = getAxesList();
+        List<String> zarrAxesStrings = axesList;
 
         String[] units = new String[]{spaceUnit, timeUnit};
 
@@ -112,13 +137,11 @@ public enum ZarrAxes {
     }
 
     public boolean hasTimepoints() {
-        return this.axes.equals(TCYX.axes) || this.axes.equals(TZYX.axes) || this.axes.equals(TYX.axes) ||
-            this.axes.equals(TCZYX.axes);
+        return hasTimepoints;
     }
 
     public boolean hasChannels() {
-        return this.axes.equals(CZYX.axes) || this.axes.equals(CYX.axes) || this.axes.equals(TCYX.axes) ||
-            this.axes.equals(TCZYX.axes);
+        return hasChannels;
     }
 
     // the flag reverseAxes determines whether the index will be given w.r.t.
@@ -126,36 +149,42 @@ public enum ZarrAxes {
     // reversedAxes=false corresponds to the zarr axis convention
     public int axisIndex(String axisName, boolean reverseAxes) {
         if(reverseAxes) {
-            List<String> reverseAxesList = Lists.reverse(getAxesList());
-            return reverseAxesList.indexOf(axisName);
+            return reverseIndex(axesList, axisName);
         }
-        return getAxesList().indexOf(axisName);
+        return axesList.indexOf(axisName);
     }
 
     public int timeIndex() {
-        return axisIndex("t", true);
+        return timeIndex;
     }
 
     public int channelIndex() {
-        return axisIndex("c", true);
+        return channelIndex;
     }
 
     // spatial: 0,1,2 (x,y,z)
     public Map<Integer, Integer> spatialToZarr() {
         final HashMap<Integer, Integer> map = new HashMap<>();
-        map.put(0, 0);
-        map.put(1, 1);
-        if (hasZAxis()) {
-            map.put(2, 2);
+        for (int d = 0; d < spatialToZarr.length; d++) {
+            map.put(d, spatialToZarr[d]);
         }
         return map;
     }
 
+    /**
+     * The array form of {@link #spatialToZarr()}: element {@code d} is the
+     * index of the spatial dimension {@code d} (x, y, z) in the N5 grid position
+     * of a chunk. Callers on the chunk loading path should fetch it once.
+     */
+    public int[] spatialToZarrIndices() {
+        return spatialToZarr.clone();
+    }
+
     public boolean hasZAxis() {
-        return this.axes.equals(TCZYX.axes) || this.axes.equals(CZYX.axes) || this.axes.equals(TZYX.axes) || this.axes.equals(ZYX.axes);
+        return hasZAxis;
     }
 
     public int getNumDimension() {
-        return getAxesList().size();
+        return axesList.size();
     }
 }
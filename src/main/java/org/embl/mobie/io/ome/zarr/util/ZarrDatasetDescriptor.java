@@ -0,0 +1,138 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.ome.zarr.util;
+
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.zarr.DType;
+
+/**
+ * The resolved, immutable metadata of a zarr dataset that is needed to read its
+ * chunks: the dataset attributes (shape, chunks, dtype, compressor, order) and
+ * the dimension separator of the chunk keys. Zarr v3 datasets add the prefix of
+ * the chunk keys and, if sharded, the {@link ShardingIndexed} layout; their
+ * attributes then describe the inner chunks.
+ * <p>
+ * Instances are shared between fetcher threads without synchronization.
+ */
+public final class ZarrDatasetDescriptor {
+    // chunk keys are built for every chunk that is loaded; reuse the builder per thread
+    private static final ThreadLocal<StringBuilder> KEY_BUILDER = ThreadLocal.withInitial(() -> new StringBuilder(32));
+
+    private final ZarrDatasetAttributes datasetAttributes;
+    private final String dimensionSeparator;
+    private final String chunkKeyPrefix;
+    private final ShardingIndexed sharding;
+
+    public ZarrDatasetDescriptor(final ZarrDatasetAttributes datasetAttributes, final String dimensionSeparator) {
+        this(datasetAttributes, dimensionSeparator, "", null);
+    }
+
+    public ZarrDatasetDescriptor(
+        final ZarrDatasetAttributes datasetAttributes,
+        final String dimensionSeparator,
+        final String chunkKeyPrefix,
+        final ShardingIndexed sharding) {
+        this.datasetAttributes = datasetAttributes;
+        this.dimensionSeparator = dimensionSeparator == null ? N5ZarrImageReader.DEFAULT_SEPARATOR : dimensionSeparator;
+        this.chunkKeyPrefix = chunkKeyPrefix == null ? "" : chunkKeyPrefix;
+        this.sharding = sharding;
+    }
+
+    public ZarrDatasetAttributes getDatasetAttributes() {
+        return datasetAttributes;
+    }
+
+    public String getDimensionSeparator() {
+        return dimensionSeparator;
+    }
+
+    public DType getDType() {
+        return datasetAttributes.getDType();
+    }
+
+    public Compression getCompression() {
+        return datasetAttributes.getCompression();
+    }
+
+    public boolean isRowMajor() {
+        return datasetAttributes.isRowMajor();
+    }
+
+    public boolean isSharded() {
+        return sharding != null;
+    }
+
+    /**
+     * @return the sharding layout, or {@code null} if the chunks are stored one per key
+     */
+    public ShardingIndexed getSharding() {
+        return sharding;
+    }
+
+    /**
+     * @return the key of the chunk at {@code gridPosition}, relative to the dataset
+     */
+    public String getChunkKey(final long[] gridPosition) {
+        final String key = getChunkKey(gridPosition, dimensionSeparator, datasetAttributes.isRowMajor());
+        return chunkKeyPrefix.isEmpty() ? key : chunkKeyPrefix + key;
+    }
+
+    /**
+     * @return the key of the object that stores the chunk at {@code gridPosition},
+     * relative to the dataset: the key of its shard if the dataset is sharded,
+     * otherwise the key of the chunk
+     */
+    public String getStorageKey(final long[] gridPosition) {
+        return sharding == null ? getChunkKey(gridPosition) : getChunkKey(sharding.getShardPosition(gridPosition));
+    }
+
+    /**
+     * Builds the key of a chunk, e.g. {@code 0.1.2} for the N5 grid position
+     * {@code [2, 1, 0]} of a row-major dataset. Only the returned string is
+     * allocated.
+     */
+    public static String getChunkKey(final long[] gridPosition, final String dimensionSeparator, final boolean isRowMajor) {
+        final StringBuilder key = KEY_BUILDER.get();
+        key.setLength(0);
+        if (isRowMajor) {
+            key.append(gridPosition[gridPosition.length - 1]);
+            for (int i = gridPosition.length - 2; i >= 0; --i) {
+                key.append(dimensionSeparator);
+                key.append(gridPosition[i]);
+            }
+        } else {
+            key.append(gridPosition[0]);
+            for (int i = 1; i < gridPosition.length; ++i) {
+                key.append(dimensionSeparator);
+                key.append(gridPosition[i]);
+            }
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,147 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.ome.zarr.util;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Caches the parsed metadata files (.zarray, .zattrs, ...) of a container, such
+ * that each file is read and parsed only once while the container is open.
+ * The absence of a file is cached as well.
+ * <p>
+ * Writers must call {@link #invalidate(String)} after modifying metadata.
+ * Metadata whose loading overlapped with an invalidation is returned to the
+ * caller that loaded it, but not cached, as it may have been read before the
+ * modification.
+ */
+public class ZarrMetadataCache {
+
+    public interface Loader<T> {
+        T load() throws IOException;
+    }
+
+    private final ConcurrentHashMap<String, Optional<ZArrayAttributes>> zArrayAttributes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Optional<HashMap<String, JsonElement>>> attributes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Optional<ZarrDatasetDescriptor>> descriptors = new ConcurrentHashMap<>();
+
+    // incremented before every invalidation
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * @return the cache key of the metadata {@code file} of the group or dataset {@code pathName}
+     */
+    public static String key(final String pathName, final String file) {
+        final String path = trimSlashes(pathName);
+        return path.isEmpty() ? file : path + "/" + file;
+    }
+
+    /**
+     * @param key    the {@link #key} of the metadata file
+     * @param loader reads and parses the file, returns {@code null} if it does not exist
+     * @return the cached attributes, or {@code null} if the file does not exist
+     */
+    public ZArrayAttributes getZArrayAttributes(final String key, final Loader<ZArrayAttributes> loader) throws IOException {
+        return get(zArrayAttributes, key, loader).orElse(null);
+    }
+
+    /**
+     * @param key    the {@link #key} of the .zarray file of the dataset
+     * @param loader resolves the descriptor, returns {@code null} if the dataset does not exist
+     * @return the cached descriptor, or {@code null} if the dataset does not exist
+     */
+    public ZarrDatasetDescriptor getDescriptor(final String key, final Loader<ZarrDatasetDescriptor> loader) throws IOException {
+        return get(descriptors, key, loader).orElse(null);
+    }
+
+    /**
+     * @param key    the {@link #key} of the metadata file
+     * @param loader reads and parses the file, returns {@code null} if it does not exist
+     * @return a copy of the cached attributes that the caller may modify,
+     * or {@code null} if the file does not exist
+     */
+    public HashMap<String, JsonElement> getAttributes(final String key, final Loader<HashMap<String, JsonElement>> loader) throws IOException {
+        final Optional<HashMap<String, JsonElement>> cached = get(attributes, key, loader);
+        return cached.isPresent() ? new HashMap<>(cached.get()) : null;
+    }
+
+    /**
+     * Forgets the metadata of all files within the group or dataset {@code pathName}.
+     */
+    public void invalidate(final String pathName) {
+        final String path = trimSlashes(pathName);
+        if (path.isEmpty()) {
+            invalidateAll();
+            return;
+        }
+        final String prefix = path + "/";
+        generation.incrementAndGet();
+        zArrayAttributes.keySet().removeIf(key -> key.startsWith(prefix));
+        attributes.keySet().removeIf(key -> key.startsWith(prefix));
+        descriptors.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        zArrayAttributes.clear();
+        attributes.clear();
+        descriptors.clear();
+    }
+
+    private <T> Optional<T> get(final ConcurrentHashMap<String, Optional<T>> cache, final String key, final Loader<T> loader) throws IOException {
+        final Optional<T> cached = cache.get(key);
+        if (cached != null)
+            return cached;
+
+        // concurrent first requests may load twice, the result is the same
+        final long loadGeneration = generation.get();
+        final Optional<T> loaded = Optional.ofNullable(loader.load());
+        cache.putIfAbsent(key, loaded);
+        // an invalidation that started meanwhile has either removed the entry already,
+        // or incremented the generation before, such that the entry is removed here
+        if (generation.get() != loadGeneration)
+            cache.remove(key, loaded);
+        return loaded;
+    }
+
+    private static String trimSlashes(final String pathName) {
+        int start = 0;
+        int end = pathName.length();
+        while (start < end && pathName.charAt(start) == '/')
+            start++;
+        while (end > start && pathName.charAt(end - 1) == '/')
+            end--;
+        return pathName.substring(start, end);
+    }
+}
@@ -0,0 +1,444 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.ome.zarr.util;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.zarr.DType;
+import org.janelia.saalfeldlab.n5.zarr.ZarrCompressor;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * The metadata of a zarr v3 array ({@code zarr.json}), translated into the
+ * zarr v2 attributes that the readers work with.
+ * <p>
+ * The chunks of a sharded array are its inner chunks: the {@link ZArrayAttributes}
+ * describe the inner chunks and {@link #getSharding()} describes how they are
+ * stored in shards. Supported codecs are {@code bytes}, {@code gzip},
+ * {@code blosc}, {@code crc32c}, {@code sharding_indexed} and {@code transpose}
+ * with the identity order. {@code zstd} is not supported, because n5-zarr has
+ * no zstd decompressor; such arrays fail to open with an {@link IOException}.
+ */
+public class ZarrV3ArrayMetadata {
+    public static final String zarrJsonFile = "zarr.json";
+
+    private final OmeZArrayAttributes zArrayAttributes;
+    private final String chunkKeyPrefix;
+    private final String dimensionSeparator;
+    private final ShardingIndexed sharding;
+
+    private ZarrV3ArrayMetadata(
+        final OmeZArrayAttributes zArrayAttributes,
+        final String chunkKeyPrefix,
+        final String dimensionSeparator,
+        final ShardingIndexed sharding) {
+        this.zArrayAttributes = zArrayAttributes;
+        this.chunkKeyPrefix = chunkKeyPrefix;
+        this.dimensionSeparator = dimensionSeparator;
+        this.sharding = sharding;
+    }
+
+    public OmeZArrayAttributes getZArrayAttributes() {
+        return zArrayAttributes;
+    }
+
+    /**
+     * @return the sharding layout, or {@code null} if the array is not sharded
+     */
+    public ShardingIndexed getSharding() {
+        return sharding;
+    }
+
+    public ZarrDatasetDescriptor getDescriptor() {
+        return new ZarrDatasetDescriptor(zArrayAttributes.getDatasetAttributes(), dimensionSeparator, chunkKeyPrefix, sharding);
+    }
+
+    public static boolean isArray(final Map<String, JsonElement> zarrJson) {
+        return isNodeType(zarrJson, "array");
+    }
+
+    public static boolean isGroup(final Map<String, JsonElement> zarrJson) {
+        return isNodeType(zarrJson, "group");
+    }
+
+    private static boolean isNodeType(final Map<String, JsonElement> zarrJson, final String nodeType) {
+        if (zarrJson == null)
+            return false;
+        final JsonElement type = zarrJson.get("node_type");
+        return type != null && type.isJsonPrimitive() && nodeType.equals(type.getAsString());
+    }
+
+    /**
+     * Returns the user attributes of a group or array. The members of the
+     * {@code ome} attribute of OME-Zarr 0.5 are moved to the top level, such that
+     * the OME metadata is found at the same keys as in a v2 {@code .zattrs}.
+     */
+    public static HashMap<String, JsonElement> getAttributes(final Map<String, JsonElement> zarrJson) {
+        final HashMap<String, JsonElement> attributes = new HashMap<>();
+        final JsonElement userAttributes = zarrJson.get("attributes");
+        if (userAttributes == null || !userAttributes.isJsonObject())
+            return attributes;
+
+        for (Map.Entry<String, JsonElement> entry : userAttributes.getAsJsonObject().entrySet())
+            attributes.put(entry.getKey(), entry.getValue());
+
+        final JsonElement ome = attributes.get("ome");
+        if (ome != null && ome.isJsonObject()) {
+            for (Map.Entry<String, JsonElement> entry : ome.getAsJsonObject().entrySet())
+                attributes.put(entry.getKey(), entry.getValue());
+        }
+        return attributes;
+    }
+
+    /**
+     * @param zarrJson the members of the {@code zarr.json} of an array
+     * @param gson     a gson that can deserialize {@link DType} and {@link ZarrCompressor}
+     */
+    public static ZarrV3ArrayMetadata parse(final Map<String, JsonElement> zarrJson, final Gson gson) throws IOException {
+        if (!isArray(zarrJson))
+            throw new IOException("Not a zarr v3 array.");
+
+        final long[] shape = gson.fromJson(zarrJson.get("shape"), long[].class);
+        final int[] chunkShape = gson.fromJson(
+            zarrJson.get("chunk_grid").getAsJsonObject().getAsJsonObject("configuration").get("chunk_shape"), int[].class);
+        final String dataType = zarrJson.get("data_type").getAsString();
+        final JsonElement fillValue = zarrJson.get("fill_value");
+
+        // chunk key encoding
+        String prefix = "c/";
+        String separator = "/";
+        final JsonElement encoding = zarrJson.get("chunk_key_encoding");
+        if (encoding != null && encoding.isJsonObject()) {
+            final JsonObject encodingObject = encoding.getAsJsonObject();
+            final boolean v2 = "v2".equals(encodingObject.get("name").getAsString());
+            separator = v2 ? "." : "/";
+            final JsonObject configuration = encodingObject.getAsJsonObject("configuration");
+            if (configuration != null && configuration.has("separator"))
+                separator = configuration.get("separator").getAsString();
+            prefix = v2 ? "" : "c" + separator;
+        }
+
+        // codecs, the chunks are the inner chunks of a sharded array
+        Codecs codecs = Codecs.parse(zarrJson.get("codecs"));
+        int[] chunks = chunkShape;
+        ShardingIndexed sharding = null;
+        if (codecs.sharding != null) {
+            final JsonObject configuration = codecs.sharding;
+            chunks = gson.fromJson(configuration.get("chunk_shape"), int[].class);
+            final int n = chunks.length;
+            final int[] chunksPerShard = new int[n];
+            for (int i = 0; i < n; i++) {
+                if (chunkShape[i] % chunks[i] != 0)
+                    throw new IOException("Shard shape " + zarrJson.get("chunk_grid") + " is not a multiple of the inner chunk shape.");
+                // N5 axis order
+                chunksPerShard[n - 1 - i] = chunkShape[i] / chunks[i];
+            }
+
+            final Codecs indexCodecs = Codecs.parse(configuration.get("index_codecs"));
+            if (indexCodecs.compressor != null || indexCodecs.sharding != null)
+                throw new IOException("Unsupported shard index codecs: " + configuration.get("index_codecs"));
+            final JsonElement location = configuration.get("index_location");
+            final boolean indexAtEnd = location == null || "end".equals(location.getAsString());
+
+            codecs = Codecs.parse(configuration.get("codecs"));
+            if (codecs.sharding != null)
+                throw new IOException("Nested sharding is not supported.");
+            sharding = new ShardingIndexed(chunksPerShard, indexAtEnd, indexCodecs.order, indexCodecs.checksum, codecs.checksum);
+        } else if (codecs.checksum) {
+            throw new IOException("crc32c is only supported for the chunks of shards.");
+        }
+
+        final DType dType = gson.fromJson(new JsonPrimitive(toTypestr(dataType, codecs.order)), DType.class);
+        final ZarrCompressor compressor = codecs.compressor == null ? null : gson.fromJson(codecs.compressor, ZarrCompressor.class);
+
+        final OmeZArrayAttributes zArrayAttributes = new OmeZArrayAttributes(
+            3,
+            shape,
+            chunks,
+            dType,
+            compressor,
+            fillValue == null || fillValue.isJsonNull() ? null : fillValue.getAsString(),
+            'C',
+            null,
+            separator);
+        return new ZarrV3ArrayMetadata(zArrayAttributes, prefix, separator, sharding);
+    }
+
+    /**
+     * Builds the {@code zarr.json} of an array with the default chunk key encoding,
+     * the inverse of {@link #parse}. Shard indices end with a crc32c checksum, as
+     * zarr-python writes them, the inner chunks have none.
+     *
+     * @param shape          the shape in zarr axis order
+     * @param chunkShape     the chunk shape in zarr axis order, i.e. the inner chunk shape of a sharded array
+     * @param shardShape     the shard shape in zarr axis order, or {@code null} if the array is not sharded
+     * @param order          the byte order of the encoded chunks
+     * @param dimensionNames the names of the axes in zarr axis order, or {@code null}
+     * @param gson           a gson that can serialize {@link ZarrCompressor}
+     */
+    public static JsonObject toZarrJson(
+        final long[] shape,
+        final int[] chunkShape,
+        final int[] shardShape,
+        final DataType dataType,
+        final ByteOrder order,
+        final Compression compression,
+        final String[] dimensionNames,
+        final Gson gson) throws IOException {
+
+        final JsonObject zarrJson = new JsonObject();
+        zarrJson.addProperty("zarr_format", 3);
+        zarrJson.addProperty("node_type", "array");
+        zarrJson.add("shape", gson.toJsonTree(shape));
+        zarrJson.addProperty("data_type", dataType.toString());
+
+        final JsonObject gridConfiguration = new JsonObject();
+        gridConfiguration.add("chunk_shape", gson.toJsonTree(shardShape == null ? chunkShape : shardShape));
+        zarrJson.add("chunk_grid", codec("regular", gridConfiguration));
+
+        final JsonObject encodingConfiguration = new JsonObject();
+        encodingConfiguration.addProperty("separator", "/");
+        zarrJson.add("chunk_key_encoding", codec("default", encodingConfiguration));
+        zarrJson.addProperty("fill_value", 0);
+
+        final JsonArray chunkCodecs = new JsonArray();
+        chunkCodecs.add(bytesCodec(order));
+        final JsonObject compressor = toCodec(compression, dataType, gson);
+        if (compressor != null)
+            chunkCodecs.add(compressor);
+
+        if (shardShape == null) {
+            zarrJson.add("codecs", chunkCodecs);
+        } else {
+            final JsonObject shardingConfiguration = new JsonObject();
+            shardingConfiguration.add("chunk_shape", gson.toJsonTree(chunkShape));
+            shardingConfiguration.add("codecs", chunkCodecs);
+            final JsonArray indexCodecs = new JsonArray();
+            indexCodecs.add(bytesCodec(ByteOrder.LITTLE_ENDIAN));
+            indexCodecs.add(codec("crc32c", new JsonObject()));
+            shardingConfiguration.add("index_codecs", indexCodecs);
+            shardingConfiguration.addProperty("index_location", "end");
+            final JsonArray codecs = new JsonArray();
+            codecs.add(codec("sharding_indexed", shardingConfiguration));
+            zarrJson.add("codecs", codecs);
+        }
+
+        if (dimensionNames != null)
+            zarrJson.add("dimension_names", gson.toJsonTree(dimensionNames));
+        zarrJson.add("attributes", new JsonObject());
+        return zarrJson;
+    }
+
+    private static JsonObject codec(final String name, final JsonObject configuration) {
+        final JsonObject codec = new JsonObject();
+        codec.addProperty("name", name);
+        codec.add("configuration", configuration);
+        return codec;
+    }
+
+    private static JsonObject bytesCodec(final ByteOrder order) {
+        final JsonObject configuration = new JsonObject();
+        configuration.addProperty("endian", order == ByteOrder.BIG_ENDIAN ? "big" : "little");
+        return codec("bytes", configuration);
+    }
+
+    /**
+     * @return the zarr v3 codec of a compression, or {@code null} for raw compression
+     */
+    private static JsonObject toCodec(final Compression compression, final DataType dataType, final Gson gson) throws IOException {
+        if (compression == null || compression instanceof RawCompression)
+            return null;
+
+        final ZarrCompressor zarrCompressor = ZarrCompressor.fromCompression(compression);
+        if (zarrCompressor == null)
+            throw new IOException("Compression " + compression.getType() + " is not supported by zarr.");
+
+        final JsonObject v2 = gson.toJsonTree(zarrCompressor).getAsJsonObject();
+        final String id = v2.get("id").getAsString();
+        final JsonObject configuration = new JsonObject();
+        switch (id) {
+            case "gzip":
+                configuration.addProperty("level", v2.has("level") ? v2.get("level").getAsInt() : 5);
+                return codec("gzip", configuration);
+            case "blosc":
+                configuration.addProperty("cname", v2.get("cname").getAsString());
+                configuration.addProperty("clevel", v2.get("clevel").getAsInt());
+                final int shuffle = v2.get("shuffle").getAsInt();
+                configuration.addProperty("shuffle", shuffle == 0 ? "noshuffle" : shuffle == 2 ? "bitshuffle" : "shuffle");
+                configuration.addProperty("typesize", new DType(dataType).getNBytes());
+                configuration.addProperty("blocksize", v2.has("blocksize") ? v2.get("blocksize").getAsInt() : 0);
+                return codec("blosc", configuration);
+            default:
+                throw new IOException("Compressor " + id + " has no zarr v3 codec.");
+        }
+    }
+
+    /**
+     * @return the zarr v2 typestr of a zarr v3 data type, e.g. {@code <u2} for {@code uint16}
+     */
+    static String toTypestr(final String dataType, final ByteOrder order) throws IOException {
+        final String kindAndSize;
+        switch (dataType) {
+            case "int8":
+                return "|i1";
+            case "uint8":
+                return "|u1";
+            case "int16":
+                kindAndSize = "i2";
+                break;
+            case "uint16":
+                kindAndSize = "u2";
+                break;
+            case "int32":
+                kindAndSize = "i4";
+                break;
+            case "uint32":
+                kindAndSize = "u4";
+                break;
+            case "int64":
+                kindAndSize = "i8";
+                break;
+            case "uint64":
+                kindAndSize = "u8";
+                break;
+            case "float32":
+                kindAndSize = "f4";
+                break;
+            case "float64":
+                kindAndSize = "f8";
+                break;
+            default:
+                throw new IOException("Unsupported zarr v3 data type: " + dataType);
+        }
+        return (order == ByteOrder.BIG_ENDIAN ? ">" : "<") + kindAndSize;
+    }
+
+    /**
+     * A parsed codec chain: array to bytes codec and at most one compressor.
+     */
+    private static final class Codecs {
+        private ByteOrder order = ByteOrder.LITTLE_ENDIAN;
+        private JsonObject compressor;
+        private JsonObject sharding;
+        private boolean checksum;
+
+        static Codecs parse(final JsonElement json) throws IOException {
+            final Codecs codecs = new Codecs();
+            if (json == null || !json.isJsonArray())
+                return codecs;
+
+            for (JsonElement element : json.getAsJsonArray()) {
+                final JsonObject codec = element.getAsJsonObject();
+                final String name = codec.get("name").getAsString();
+                final JsonObject configuration = codec.has("configuration") ? codec.getAsJsonObject("configuration") : new JsonObject();
+                switch (name) {
+                    case "bytes":
+                        if (configuration.has("endian") && "big".equals(configuration.get("endian").getAsString()))
+                            codecs.order = ByteOrder.BIG_ENDIAN;
+                        break;
+                    case "sharding_indexed":
+                        codecs.sharding = configuration;
+                        break;
+                    case "crc32c":
+                        codecs.checksum = true;
+                        break;
+                    case "gzip":
+                        codecs.setCompressor(gzip(configuration));
+                        break;
+                    case "blosc":
+                        codecs.setCompressor(blosc(configuration));
+                        break;
+                    case "transpose":
+                        if (!isIdentity(configuration.get("order")))
+                            throw new IOException("Only the identity order of the transpose codec is supported: " + configuration.get("order"));
+                        break;
+                    case "zstd":
+                        throw new IOException("The zstd codec is not supported, no zstd decompressor is available.");
+                    default:
+                        throw new IOException("Unsupported zarr v3 codec: " + name);
+                }
+            }
+            return codecs;
+        }
+
+        /**
+         * @return whether a transpose order keeps the axes in place, either {@code "C"} or {@code [0, 1, ..., n - 1]}
+         */
+        private static boolean isIdentity(final JsonElement order) {
+            if (order == null)
+                return false;
+            if (order.isJsonPrimitive())
+                return "C".equals(order.getAsString());
+            final JsonArray axes = order.getAsJsonArray();
+            for (int i = 0; i < axes.size(); i++)
+                if (axes.get(i).getAsInt() != i)
+                    return false;
+            return true;
+        }
+
+        private void setCompressor(final JsonObject zarrCompressor) throws IOException {
+            if (compressor != null)
+                throw new IOException("Only one compression codec is supported.");
+            compressor = zarrCompressor;
+        }
+
+        private static JsonObject gzip(final JsonObject configuration) {
+            final JsonObject compressor = new JsonObject();
+            compressor.addProperty("id", "gzip");
+            compressor.addProperty("level", configuration.has("level") ? configuration.get("level").getAsInt() : 5);
+            return compressor;
+        }
+
+        private static JsonObject blosc(final JsonObject configuration) {
+            final JsonObject compressor = new JsonObject();
+            compressor.addProperty("id", "blosc");
+            compressor.addProperty("cname", configuration.has("cname") ? configuration.get("cname").getAsString() : "lz4");
+            compressor.addProperty("clevel", configuration.has("clevel") ? configuration.get("clevel").getAsInt() : 5);
+            int shuffle = 1;
+            if (configuration.has("shuffle")) {
+                final String s = configuration.get("shuffle").getAsString();
+                shuffle = "noshuffle".equals(s) ? 0 : "bitshuffle".equals(s) ? 2 : 1;
+            }
+            compressor.addProperty("shuffle", shuffle);
+            compressor.addProperty("blocksize", configuration.has("blocksize") ? configuration.get("blocksize").getAsInt() : 0);
+            return compressor;
+        }
+    }
+}
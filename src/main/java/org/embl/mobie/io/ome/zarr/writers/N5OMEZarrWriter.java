@@ -28,9 +28,12 @@
  */
 package org.embl.mobie.io.ome.zarr.writers;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileAlreadyExistsException;
@@ -40,16 +43,22 @@ import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.FileAttribute;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.stream.Stream;
 
 import org.embl.mobie.io.ome.zarr.readers.N5OmeZarrReader;
+import org.embl.mobie.io.ome.zarr.util.Crc32c;
 import org.embl.mobie.io.ome.zarr.util.OmeZArrayAttributes;
+import org.embl.mobie.io.ome.zarr.util.ShardingIndexed;
 import org.embl.mobie.io.ome.zarr.util.ZArrayAttributes;
 import org.embl.mobie.io.ome.zarr.util.ZarrDatasetAttributes;
+import org.embl.mobie.io.ome.zarr.util.ZarrDatasetDescriptor;
+import org.embl.mobie.io.ome.zarr.util.ZarrV3ArrayMetadata;
 import org.janelia.saalfeldlab.n5.BlockWriter;
 import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
 import org.janelia.saalfeldlab.n5.Compression;
@@ -65,6 +74,7 @@ import org.janelia.saalfeldlab.n5.zarr.ZarrCompressor;
 
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 
 import net.imglib2.Cursor;
@@ -78,6 +88,21 @@ import net.imglib2.view.Views;
 
 public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
 
+    /**
+     * The largest number of chunks per shard for which {@link #writeBlock} may
+     * rewrite a shard. Every such call reads and rewrites the whole shard, larger
+     * shards must be written with a {@link ShardWriter}.
+     */
+    public static int maxRewrittenShardChunks = 64;
+
+    private int zarrFormat = N5OmeZarrReader.VERSION.getMajor();
+    private final Object[] shardLocks = new Object[64];
+
+    {
+        for (int i = 0; i < shardLocks.length; i++)
+            shardLocks[i] = new Object();
+    }
+
     /**
      * Opens an {@link N5OMEZarrWriter} at a given base path with a custom
      * {@link GsonBuilder} to support custom attributes.
@@ -289,6 +314,18 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
         }
     }
 
+    /**
+     * @return the encoded bytes of a {@link DataBlock}, as stored in a chunk file or shard
+     */
+    public static byte[] encodeBlock(
+        final ZarrDatasetAttributes datasetAttributes,
+        final DataBlock<?> dataBlock) throws IOException {
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeBlock(out, datasetAttributes, dataBlock);
+        return out.toByteArray();
+    }
+
     /**
      * This is a copy of {@link Files#createDirectories(Path, FileAttribute...)}
      * that follows symlinks.
@@ -409,6 +446,21 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
         return pathName.endsWith("/") || pathName.endsWith("\\") ? pathName.substring(0, pathName.length() - 1) : pathName;
     }
 
+    public int getZarrFormat() {
+        return zarrFormat;
+    }
+
+    /**
+     * Selects the zarr format of the groups and datasets that are created from now on.
+     * In format 3, metadata and attributes are written to zarr.json and datasets can
+     * be sharded, see {@link #createShardedDataset}.
+     */
+    public void setZarrFormat(final int zarrFormat) {
+        if (zarrFormat != 2 && zarrFormat != 3)
+            throw new IllegalArgumentException("Unsupported zarr format: " + zarrFormat);
+        this.zarrFormat = zarrFormat;
+    }
+
     @Override
     public void createGroup(final String pathName) throws IOException {
 
@@ -421,10 +473,24 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
             parent = parent.getParent();
             setGroupVersion(parent);
         }
+        if (zarrFormat == 3)
+            invalidateMetadata();
     }
 
     protected void setGroupVersion(final Path groupPath) throws IOException {
 
+        if (zarrFormat == 3) {
+            final Path zarrJsonPath = groupPath.resolve(ZarrV3ArrayMetadata.zarrJsonFile);
+            if (!Files.exists(zarrJsonPath)) {
+                final JsonObject zarrJson = new JsonObject();
+                zarrJson.addProperty("zarr_format", 3);
+                zarrJson.addProperty("node_type", "group");
+                zarrJson.add("attributes", new JsonObject());
+                writeMetadata(zarrJsonPath, asMap(zarrJson));
+            }
+            return;
+        }
+
         final Path path = groupPath.resolve(zgroupFile);
         final HashMap<String, JsonElement> map = new HashMap<>();
         map.put("zarr_format", new JsonPrimitive(N5OmeZarrReader.VERSION.getMajor()));
@@ -448,6 +514,7 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
             lockedFileChannel.getFileChannel().truncate(0);
             GsonAttributesParser.writeAttributes(Channels.newWriter(lockedFileChannel.getFileChannel(), StandardCharsets.UTF_8.name()), map, gson);
         }
+        invalidateMetadata(pathName);
     }
 
     @Override
@@ -478,6 +545,90 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
     public void createDataset(
         final String pathName,
         final DatasetAttributes datasetAttributes) throws IOException {
+
+        if (zarrFormat == 3) {
+            createV3Dataset(pathName, datasetAttributes, null, null);
+            return;
+        }
+        createParentGroups(pathName);
+
+        final Path path = Paths.get(basePath, pathName);
+        createDirectories(path);
+
+        setDatasetAttributes(pathName, datasetAttributes);
+        absentChunks.clear(pathName);
+    }
+
+    /**
+     * Creates a zarr v3 dataset whose chunks are stored in shards of {@code shardSize}
+     * voxels, a multiple of the block size. Requires zarr format 3, see {@link #setZarrFormat}.
+     * Whole shards are written with a {@link ShardWriter}; {@link #writeBlock} rewrites the shard
+     * of every block it writes and is limited to shards of at most {@link #maxRewrittenShardChunks} chunks.
+     *
+     * @param dimensionNames the names of the axes in N5 order, or {@code null}
+     */
+    public void createShardedDataset(
+        final String pathName,
+        final DatasetAttributes datasetAttributes,
+        final int[] shardSize,
+        final String[] dimensionNames) throws IOException {
+
+        if (zarrFormat != 3)
+            throw new IOException("Sharded datasets require zarr format 3.");
+        final int[] blockSize = datasetAttributes.getBlockSize();
+        for (int d = 0; d < blockSize.length; d++)
+            if (shardSize[d] % blockSize[d] != 0)
+                throw new IOException("The shard size " + Arrays.toString(shardSize) + " is not a multiple of the block size " + Arrays.toString(blockSize) + ".");
+
+        createV3Dataset(pathName, datasetAttributes, shardSize, dimensionNames);
+    }
+
+    private void createV3Dataset(
+        final String pathName,
+        final DatasetAttributes datasetAttributes,
+        final int[] shardSize,
+        final String[] dimensionNames) throws IOException {
+
+        createParentGroups(pathName);
+        final Path path = Paths.get(basePath, pathName);
+        createDirectories(path);
+
+        final long[] shape = datasetAttributes.getDimensions().clone();
+        Utils.reorder(shape);
+        final int[] chunks = datasetAttributes.getBlockSize().clone();
+        Utils.reorder(chunks);
+        final int[] shards = shardSize == null ? null : shardSize.clone();
+        if (shards != null)
+            Utils.reorder(shards);
+        String[] names = null;
+        if (dimensionNames != null) {
+            names = new String[dimensionNames.length];
+            for (int d = 0; d < names.length; d++)
+                names[d] = dimensionNames[names.length - 1 - d];
+        }
+
+        final DataType dataType = datasetAttributes.getDataType();
+        final JsonObject zarrJson = ZarrV3ArrayMetadata.toZarrJson(
+            shape,
+            chunks,
+            shards,
+            dataType,
+            new DType(dataType).getOrder(),
+            datasetAttributes.getCompression(),
+            names,
+            gson);
+
+        // keep the attributes of an existing dataset
+        final HashMap<String, JsonElement> existing = readZarrJson(pathName);
+        if (existing != null && existing.get("attributes") != null)
+            zarrJson.add("attributes", existing.get("attributes"));
+
+        writeMetadata(path.resolve(ZarrV3ArrayMetadata.zarrJsonFile), asMap(zarrJson));
+        invalidateMetadata(pathName);
+        absentChunks.clear(pathName);
+    }
+
+    private void createParentGroups(final String pathName) throws IOException {
         int lastSlashIndex = removeTrailingSlash(pathName).lastIndexOf("/");
 
         if (lastSlashIndex != -1) {
@@ -486,14 +637,78 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
             if (!parentGroup.equals(""))
                 createGroup(parentGroup);
         }
+    }
 
-        final Path path = Paths.get(basePath, pathName);
-        createDirectories(path);
+    /**
+     * Writes the encoded chunks of a shard followed by the shard index, with the
+     * crc32c checksums that the sharding declares.
+     *
+     * @param chunks the encoded chunks in the order of the shard index, {@code null} for missing chunks
+     */
+    public void writeShard(
+        final String pathName,
+        final ZarrDatasetDescriptor descriptor,
+        final long[] shardPosition,
+        final byte[][] chunks) throws IOException {
+
+        final ShardingIndexed sharding = descriptor.getSharding();
+        final int checksumSize = sharding.hasChunkChecksum() ? 4 : 0;
+        final long indexSize = sharding.getIndexSize();
+        final ByteBuffer index = ByteBuffer.allocate((int) indexSize).order(sharding.getIndexOrder());
+        final List<ByteBuffer> buffers = new ArrayList<>();
+        long offset = sharding.isIndexAtEnd() ? 0 : indexSize;
+        for (byte[] chunk : chunks) {
+            if (chunk == null) {
+                index.putLong(-1).putLong(-1);
+                continue;
+            }
+            index.putLong(offset).putLong(chunk.length + checksumSize);
+            offset += chunk.length + checksumSize;
+            buffers.add(ByteBuffer.wrap(chunk));
+            if (sharding.hasChunkChecksum())
+                buffers.add(checksum(ByteBuffer.wrap(chunk)));
+        }
+        if (sharding.hasIndexChecksum()) {
+            final ByteBuffer entries = (ByteBuffer) index.duplicate().flip();
+            index.order(ByteOrder.LITTLE_ENDIAN).putInt(Crc32c.compute(entries));
+        }
+        index.flip();
+        if (sharding.isIndexAtEnd())
+            buffers.add(index);
+        else
+            buffers.add(0, index);
+
+        // the shard position is the grid position of its first chunk divided by the chunks per shard
+        final int[] chunksPerShard = sharding.getChunksPerShard();
+        final long[] firstChunk = new long[shardPosition.length];
+        for (int d = 0; d < firstChunk.length; d++)
+            firstChunk[d] = shardPosition[d] * chunksPerShard[d];
+        final Path path = getStoragePath(pathName, descriptor, firstChunk);
+        createDirectories(path.getParent());
+        final ByteBuffer[] bufferArray = buffers.toArray(new ByteBuffer[0]);
+        try (final N5FSReader.LockedFileChannel lockedChannel = N5FSReader.LockedFileChannel.openForWriting(path)) {
+            lockedChannel.getFileChannel().truncate(0);
+            while (bufferArray[bufferArray.length - 1].hasRemaining())
+                lockedChannel.getFileChannel().write(bufferArray);
+        }
+        shardReader.invalidate(path.toString());
+        absentChunks.clear(pathName);
+    }
 
-        setDatasetAttributes(pathName, datasetAttributes);
+    /**
+     * @return the little endian crc32c checksum of the remaining bytes
+     */
+    private static ByteBuffer checksum(final ByteBuffer bytes) {
+        final ByteBuffer checksum = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        checksum.putInt(0, Crc32c.compute(bytes));
+        return checksum;
     }
 
     public void setAttributes(HashMap<String, JsonElement> elements, String pathName) throws IOException {
+        if (zarrFormat == 3) {
+            setV3Attributes(pathName, elements);
+            return;
+        }
         final Path path = Paths.get(basePath, removeLeadingSlash(pathName), zattrsFile);
         try (final N5FSReader.LockedFileChannel lockedFileChannel = N5FSReader.LockedFileChannel.openForWriting(path)) {
             elements.putAll(
@@ -509,6 +724,7 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
                 elements,
                 gson);
         }
+        invalidateMetadata(pathName);
     }
 
     @Override
@@ -516,6 +732,13 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
         final String pathName,
         Map<String, ?> attributes) throws IOException {
 
+        if (zarrFormat == 3) {
+            final HashMap<String, JsonElement> elements = new HashMap<>();
+            GsonAttributesParser.insertAttributes(elements, attributes, gson);
+            setV3Attributes(pathName, elements);
+            return;
+        }
+
         final Path path = Paths.get(basePath, removeLeadingSlash(pathName), zattrsFile);
         final HashMap<String, JsonElement> map = new HashMap<>();
 
@@ -593,6 +816,45 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
                 map,
                 gson);
         }
+        invalidateMetadata(pathName);
+    }
+
+    /**
+     * Adds attributes to the user attributes of the zarr.json of a group or
+     * array, creating the group if it does not exist.
+     */
+    private void setV3Attributes(final String pathName, final Map<String, JsonElement> elements) throws IOException {
+        HashMap<String, JsonElement> zarrJson = readZarrJson(pathName);
+        if (zarrJson == null) {
+            createGroup(pathName);
+            zarrJson = readZarrJson(pathName);
+        }
+
+        final JsonObject attributes = new JsonObject();
+        final JsonElement existing = zarrJson.get("attributes");
+        if (existing != null && existing.isJsonObject())
+            for (Map.Entry<String, JsonElement> entry : existing.getAsJsonObject().entrySet())
+                attributes.add(entry.getKey(), entry.getValue());
+        for (Map.Entry<String, JsonElement> entry : elements.entrySet())
+            attributes.add(entry.getKey(), entry.getValue());
+        zarrJson.put("attributes", attributes);
+
+        writeMetadata(Paths.get(basePath, removeLeadingSlash(pathName), ZarrV3ArrayMetadata.zarrJsonFile), zarrJson);
+        invalidateMetadata(pathName);
+    }
+
+    private void writeMetadata(final Path path, final HashMap<String, JsonElement> map) throws IOException {
+        try (final N5FSReader.LockedFileChannel lockedFileChannel = N5FSReader.LockedFileChannel.openForWriting(path)) {
+            lockedFileChannel.getFileChannel().truncate(0);
+            GsonAttributesParser.writeAttributes(Channels.newWriter(lockedFileChannel.getFileChannel(), StandardCharsets.UTF_8.name()), map, gson);
+        }
+    }
+
+    private static HashMap<String, JsonElement> asMap(final JsonObject json) {
+        final HashMap<String, JsonElement> map = new HashMap<>();
+        for (Map.Entry<String, JsonElement> entry : json.entrySet())
+            map.put(entry.getKey(), entry.getValue());
+        return map;
     }
 
     @Override
@@ -600,19 +862,20 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
         final String pathName,
         final DatasetAttributes datasetAttributes,
         final DataBlock<T> dataBlock) throws IOException {
+
+        final ZarrDatasetDescriptor descriptor = getDatasetDescriptor(pathName);
+        if (descriptor != null && descriptor.isSharded()) {
+            writeShardedBlock(pathName, descriptor, dataBlock);
+            return;
+        }
+
         final ZarrDatasetAttributes zarrDatasetAttributes;
         if (datasetAttributes instanceof ZarrDatasetAttributes)
             zarrDatasetAttributes = (ZarrDatasetAttributes) datasetAttributes;
         else
             zarrDatasetAttributes = getZArrayAttributes(pathName).getDatasetAttributes();
 
-        final Path path = Paths.get(
-            basePath,
-            removeLeadingSlash(pathName),
-            getZarrDataBlockString(
-                dataBlock.getGridPosition(),
-                dimensionSeparator,
-                zarrDatasetAttributes.isRowMajor()));
+        final Path path = getChunkPath(pathName, zarrDatasetAttributes, dataBlock.getGridPosition());
         createDirectories(path.getParent());
         try (final N5FSReader.LockedFileChannel lockedChannel = N5FSReader.LockedFileChannel.openForWriting(path)) {
 
@@ -622,6 +885,57 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
                 zarrDatasetAttributes,
                 dataBlock);
         }
+        absentChunks.markPresent(pathName, dataBlock.getGridPosition());
+    }
+
+    /**
+     * Replaces one chunk of a shard by reading the other chunks of the shard and
+     * rewriting it. This is a slow path, writing all chunks of a shard this way
+     * reads and writes the shard once per chunk, so it is rejected for shards of
+     * more than {@link #maxRewrittenShardChunks} chunks. Use a {@link ShardWriter}
+     * to write whole shards.
+     */
+    private void writeShardedBlock(
+        final String pathName,
+        final ZarrDatasetDescriptor descriptor,
+        final DataBlock<?> dataBlock) throws IOException {
+
+        final ShardingIndexed sharding = descriptor.getSharding();
+        if (sharding.getNumChunks() > maxRewrittenShardChunks)
+            throw new IOException("Shards of " + pathName + " have " + sharding.getNumChunks() + " chunks, more than "
+                + maxRewrittenShardChunks + " that can be rewritten block by block. Write them with a ShardWriter.");
+
+        final long[] gridPosition = dataBlock.getGridPosition();
+        final long[] shardPosition = sharding.getShardPosition(gridPosition);
+        final String shardKey = getStoragePath(pathName, descriptor, gridPosition).toString();
+        final byte[] encoded = encodeBlock(descriptor.getDatasetAttributes(), dataBlock);
+
+        // chunk indices of a shard are in C order, i.e. the first N5 dimension varies fastest
+        final int[] chunksPerShard = sharding.getChunksPerShard();
+        final List<long[]> chunkPositions = new ArrayList<>(sharding.getNumChunks());
+        for (int i = 0; i < sharding.getNumChunks(); i++) {
+            final long[] chunkPosition = new long[gridPosition.length];
+            long r = i;
+            for (int d = 0; d < chunkPosition.length; d++) {
+                chunkPosition[d] = shardPosition[d] * chunksPerShard[d] + r % chunksPerShard[d];
+                r /= chunksPerShard[d];
+            }
+            chunkPositions.add(chunkPosition);
+        }
+
+        // blocks of different shards are written concurrently
+        synchronized (shardLocks[Math.floorMod(shardKey.hashCode(), shardLocks.length)]) {
+            final ByteBuffer[] stored = shardReader.readChunks(shardKey, sharding, chunkPositions);
+            final byte[][] chunks = new byte[stored.length][];
+            for (int i = 0; i < chunks.length; i++) {
+                if (stored[i] != null) {
+                    chunks[i] = new byte[stored[i].remaining()];
+                    stored[i].get(chunks[i]);
+                }
+            }
+            chunks[sharding.getChunkIndex(gridPosition)] = encoded;
+            writeShard(pathName, descriptor, shardPosition, chunks);
+        }
     }
 
     @Override
@@ -635,13 +949,7 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
         else
             zarrDatasetAttributes = getZArrayAttributes(pathName).getDatasetAttributes();
 
-        final Path path = Paths.get(
-            basePath,
-            removeLeadingSlash(pathName),
-            getZarrDataBlockString(
-                gridPosition,
-                dimensionSeparator,
-                zarrDatasetAttributes.isRowMajor()));
+        final Path path = getChunkPath(pathName, zarrDatasetAttributes, gridPosition);
 
         if (!Files.exists(path))
             return true;
@@ -682,6 +990,7 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
                     });
             }
 
+        invalidateMetadata(pathName);
         return !Files.exists(path);
     }
 
@@ -0,0 +1,147 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.ome.zarr.writers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.embl.mobie.io.ome.zarr.util.ShardingIndexed;
+import org.embl.mobie.io.ome.zarr.util.ZarrDatasetDescriptor;
+import org.janelia.saalfeldlab.n5.DataBlock;
+
+/**
+ * Collects the chunks of a sharded dataset and writes every shard, with its
+ * index, in one sequential write as soon as all of its chunks have arrived.
+ * <p>
+ * Chunks are compressed by the threads that write them, so concurrent
+ * producers compress in parallel, and only the compressed chunks of the
+ * shards that are being filled are kept in memory. Producers should
+ * therefore write the chunks shard by shard, as {@link org.embl.mobie.io.n5.util.ExportScalePyramid}
+ * does. {@link #flush()} writes the shards that are still incomplete.
+ */
+public class ShardWriter {
+    private final N5OMEZarrWriter writer;
+    private final String pathName;
+    private final ZarrDatasetDescriptor descriptor;
+    private final ShardingIndexed sharding;
+    private final long[] gridDimensions;
+    private final Map<String, PendingShard> pending = new HashMap<>();
+
+    public ShardWriter(final N5OMEZarrWriter writer, final String pathName) throws IOException {
+        this.writer = writer;
+        this.pathName = pathName;
+        descriptor = writer.getDatasetDescriptor(pathName);
+        if (descriptor == null || !descriptor.isSharded())
+            throw new IOException(pathName + " is not a sharded dataset.");
+        sharding = descriptor.getSharding();
+
+        final long[] dimensions = descriptor.getDatasetAttributes().getDimensions();
+        final int[] blockSize = descriptor.getDatasetAttributes().getBlockSize();
+        gridDimensions = new long[dimensions.length];
+        for (int d = 0; d < dimensions.length; d++)
+            gridDimensions[d] = (dimensions[d] + blockSize[d] - 1) / blockSize[d];
+    }
+
+    /**
+     * Compresses the block and writes its shard if this was the last missing chunk.
+     */
+    public void writeBlock(final DataBlock<?> dataBlock) throws IOException {
+        final byte[] encoded = N5OMEZarrWriter.encodeBlock(descriptor.getDatasetAttributes(), dataBlock);
+        final long[] gridPosition = dataBlock.getGridPosition();
+        final String key = descriptor.getStorageKey(gridPosition);
+
+        final PendingShard complete;
+        synchronized (pending) {
+            PendingShard shard = pending.get(key);
+            if (shard == null) {
+                final long[] shardPosition = sharding.getShardPosition(gridPosition);
+                shard = new PendingShard(shardPosition, getNumChunks(shardPosition), sharding.getNumChunks());
+                pending.put(key, shard);
+            }
+            final int chunkIndex = sharding.getChunkIndex(gridPosition);
+            if (shard.chunks[chunkIndex] == null)
+                shard.numWritten++;
+            shard.chunks[chunkIndex] = encoded;
+
+            if (shard.numWritten < shard.numExpected)
+                return;
+            complete = pending.remove(key);
+        }
+        writer.writeShard(pathName, descriptor, complete.position, complete.chunks);
+    }
+
+    /**
+     * @return the number of shards whose chunks are held in memory
+     */
+    public int getNumPendingShards() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Writes the incomplete shards, their missing chunks are left empty.
+     */
+    public void flush() throws IOException {
+        final List<PendingShard> shards;
+        synchronized (pending) {
+            shards = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        for (PendingShard shard : shards)
+            writer.writeShard(pathName, descriptor, shard.position, shard.chunks);
+    }
+
+    /**
+     * @return the number of chunks of a shard that lie within the dataset
+     */
+    private long getNumChunks(final long[] shardPosition) {
+        final int[] chunksPerShard = sharding.getChunksPerShard();
+        long n = 1;
+        for (int d = 0; d < shardPosition.length; d++)
+            n *= Math.min(chunksPerShard[d], gridDimensions[d] - shardPosition[d] * chunksPerShard[d]);
+        return n;
+    }
+
+    private static final class PendingShard {
+        private final long[] position;
+        private final long numExpected;
+        private final byte[][] chunks;
+        private long numWritten;
+
+        private PendingShard(final long[] position, final long numExpected, final int numChunks) {
+            this.position = position;
+            this.numExpected = numExpected;
+            this.chunks = new byte[numChunks][];
+        }
+    }
+}
@@ -31,11 +31,11 @@ package org.embl.mobie.io.ome.zarr.writers.imageplus;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import org.embl.mobie.io.n5.util.DownsampleBlock;
@@ -45,6 +45,7 @@ import org.embl.mobie.io.ome.zarr.util.OmeZarrMultiscales;
 import org.embl.mobie.io.ome.zarr.util.ZarrAxes;
 import org.embl.mobie.io.ome.zarr.util.ZarrDatasetAttributes;
 import org.embl.mobie.io.ome.zarr.writers.N5OMEZarrWriter;
+import org.embl.mobie.io.ome.zarr.writers.ShardWriter;
 import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
 import org.janelia.saalfeldlab.n5.Compression;
 import org.janelia.saalfeldlab.n5.DataBlock;
@@ -124,6 +125,34 @@ public class WriteSequenceToN5OmeZarr {
         final ExportScalePyramid.AfterEachPlane afterEachPlane,
         final int numCellCreatorThreads,
         ProgressWriter progressWriter) throws IOException {
+        writeOmeZarrFile(seq, perSetupMipmapInfo, downsamplingMethod, compression, null, timeUnit, frameInterval,
+            zarrFile, loopbackHeuristic, afterEachPlane, numCellCreatorThreads, progressWriter);
+    }
+
+    /**
+     * Create a ome zarr group containing image data from all views and all
+     * timepoints in a chunked, mipmaped representation. If {@code blocksPerShard}
+     * is given, an OME-Zarr 0.5 (zarr v3) container is written whose chunks are
+     * stored in shards of {@code blocksPerShard} chunks in x, y and z, which
+     * writes one file per shard instead of one file per chunk.
+     *
+     * @param blocksPerShard the number of chunks per shard in x, y and z, or
+     *                       {@code null} to write OME-Zarr 0.4 without sharding.
+     * @see #writeOmeZarrFile(AbstractSequenceDescription, Map, DownsampleBlock.DownsamplingMethod, Compression, String, double, File, ExportScalePyramid.LoopbackHeuristic, ExportScalePyramid.AfterEachPlane, int, ProgressWriter)
+     */
+    public static void writeOmeZarrFile(
+        final AbstractSequenceDescription<?, ?, ?> seq,
+        final Map<Integer, ExportMipmapInfo> perSetupMipmapInfo,
+        final DownsampleBlock.DownsamplingMethod downsamplingMethod,
+        final Compression compression,
+        final int[] blocksPerShard,
+        final String timeUnit,
+        final double frameInterval,
+        final File zarrFile,
+        final ExportScalePyramid.LoopbackHeuristic loopbackHeuristic,
+        final ExportScalePyramid.AfterEachPlane afterEachPlane,
+        final int numCellCreatorThreads,
+        ProgressWriter progressWriter) throws IOException {
         if (progressWriter == null)
             progressWriter = new ProgressWriterNull();
         progressWriter.setProgress(0);
@@ -146,6 +175,8 @@ public class WriteSequenceToN5OmeZarr {
             .collect(Collectors.toList());
 
         N5OMEZarrWriter zarrWriter = new N5OMEZarrWriter(zarrFile.getAbsolutePath(), new GsonBuilder(), "/");
+        if (blocksPerShard != null)
+            zarrWriter.setZarrFormat(3);
 
         ZarrAxes axes;
         if (timepointIds.size() > 1 && setupIds.size() > 1) {
@@ -159,15 +190,24 @@ public class WriteSequenceToN5OmeZarr {
         }
 
         // create group for top directory & add multiscales
-        // Currently we write v0.4 ome-zarr
+        // We write v0.4 ome-zarr, or v0.5 if the chunks are sharded
         // Assumes persetupmipmapinfo is the same for every setup, and unit same for every setup
+        final String version = blocksPerShard == null ? "0.4" : "0.5";
         OmeZarrMultiscales[] multiscales = new OmeZarrMultiscales[1];
         multiscales[0] = new OmeZarrMultiscales(axes, zarrFile.getName().split("\\.")[0], downsamplingMethod.name(),
-            "0.4", seq.getViewSetupsOrdered().get(0).getVoxelSize(),
+            version, seq.getViewSetupsOrdered().get(0).getVoxelSize(),
             perSetupMipmapInfo.get(0).getResolutions(), timeUnit, frameInterval);
 
         zarrWriter.createGroup("");
-        zarrWriter.setAttribute("", MULTI_SCALE_KEY, multiscales);
+        if (blocksPerShard == null) {
+            zarrWriter.setAttribute("", MULTI_SCALE_KEY, multiscales);
+        } else {
+            // ome-zarr 0.5 keeps its metadata in the "ome" attribute of the zarr.json
+            final Map<String, Object> ome = new HashMap<>();
+            ome.put("version", version);
+            ome.put(MULTI_SCALE_KEY, multiscales);
+            zarrWriter.setAttribute("", "ome", ome);
+        }
 
         // calculate number of tasks for progressWriter
         int numTasks = 0; // first task is for writing mipmap descriptions etc...
@@ -201,7 +241,7 @@ public class WriteSequenceToN5OmeZarr {
                     final double endCompletionRatio = (double) numCompletedTasks / numTasks;
                     final ProgressWriter subProgressWriter = new SubTaskProgressWriter(progressWriter, startCompletionRatio, endCompletionRatio);
                     writeScalePyramid(
-                        zarrWriter, compression, downsamplingMethod,
+                        zarrWriter, compression, blocksPerShard, downsamplingMethod,
                         imgLoader, setupId, timepointId, numSetups, numTimepoints, axes,
                         mipmapInfo,
                         executorService, numCellCreatorThreads,
@@ -219,6 +259,7 @@ public class WriteSequenceToN5OmeZarr {
     static <T extends RealType<T> & NativeType<T>> void writeScalePyramid(
         final N5OMEZarrWriter zarrWriter,
         final Compression compression,
+        final int[] blocksPerShard,
         final DownsampleBlock.DownsamplingMethod downsamplingMethod,
         final BasicImgLoader imgLoader,
         final int setupId,
@@ -235,7 +276,7 @@ public class WriteSequenceToN5OmeZarr {
         final BasicSetupImgLoader<T> setupImgLoader = Cast.unchecked(imgLoader.getSetupImgLoader(setupId));
         final RandomAccessibleInterval<T> img = setupImgLoader.getImage(timepointId);
         final T type = setupImgLoader.getImageType();
-        final OmeZarrDatasetIO<T> io = new OmeZarrDatasetIO<>(zarrWriter, compression, setupId, timepointId, type,
+        final OmeZarrDatasetIO<T> io = new OmeZarrDatasetIO<>(zarrWriter, compression, blocksPerShard, setupId, timepointId, type,
             totalNSetups, totalNTimepoints, axes);
         ExportScalePyramid.writeScalePyramid(
             img, type, mipmapInfo, downsamplingMethod, io,
@@ -246,30 +287,42 @@ public class WriteSequenceToN5OmeZarr {
     static class OmeZarrDataset {
         final String pathName;
         final DatasetAttributes attributes;
+        final ShardWriter shardWriter;
 
         public OmeZarrDataset(final String pathName, final DatasetAttributes attributes) {
+            this(pathName, attributes, null);
+        }
+
+        public OmeZarrDataset(final String pathName, final DatasetAttributes attributes, final ShardWriter shardWriter) {
             this.pathName = pathName;
             this.attributes = attributes;
+            this.shardWriter = shardWriter;
         }
     }
 
+    private interface DataBlockCreator {
+        DataBlock<?> create(int[] size, long[] gridPosition, Object data);
+    }
+
     static class OmeZarrDatasetIO<T extends RealType<T> & NativeType<T>> implements ExportScalePyramid.DatasetIO<OmeZarrDataset, T> {
         private final N5OMEZarrWriter zarrWriter;
         private final Compression compression;
+        private final int[] blocksPerShard;
         private final int setupId;
         private final int timepointId;
         private final DataType dataType;
         private final T type;
-        private final Function<ExportScalePyramid.Block<T>, DataBlock<?>> getDataBlock;
+        private final DataBlockCreator getDataBlock;
         private final int totalNSetups;
         private final int totalNTimepoints;
         private final ZarrAxes axes;
 
-        public OmeZarrDatasetIO(final N5OMEZarrWriter zarrWriter, final Compression compression, final int setupId,
-                                final int timepointId, final T type,
+        public OmeZarrDatasetIO(final N5OMEZarrWriter zarrWriter, final Compression compression, final int[] blocksPerShard,
+                                final int setupId, final int timepointId, final T type,
                                 final int totalNSetups, final int totalNTimepoints, ZarrAxes axes) {
             this.zarrWriter = zarrWriter;
             this.compression = compression;
+            this.blocksPerShard = blocksPerShard;
             this.setupId = setupId;
             this.timepointId = timepointId;
             this.dataType = N5Utils.dataType(type);
@@ -280,34 +333,34 @@ public class WriteSequenceToN5OmeZarr {
 
             switch (dataType) {
                 case UINT8:
-                    getDataBlock = b -> new ByteArrayDataBlock(b.getSize(), b.getGridPosition(), Cast.unchecked(b.getData().getStorageArray()));
+                    getDataBlock = (size, gridPosition, data) -> new ByteArrayDataBlock(size, gridPosition, Cast.unchecked(data));
                     break;
                 case UINT16:
-                    getDataBlock = b -> new ShortArrayDataBlock(b.getSize(), b.getGridPosition(), Cast.unchecked(b.getData().getStorageArray()));
+                    getDataBlock = (size, gridPosition, data) -> new ShortArrayDataBlock(size, gridPosition, Cast.unchecked(data));
                     break;
                 case UINT32:
-                    getDataBlock = b -> new IntArrayDataBlock(b.getSize(), b.getGridPosition(), Cast.unchecked(b.getData().getStorageArray()));
+                    getDataBlock = (size, gridPosition, data) -> new IntArrayDataBlock(size, gridPosition, Cast.unchecked(data));
                     break;
                 case UINT64:
-                    getDataBlock = b -> new LongArrayDataBlock(b.getSize(), b.getGridPosition(), Cast.unchecked(b.getData().getStorageArray()));
+                    getDataBlock = (size, gridPosition, data) -> new LongArrayDataBlock(size, gridPosition, Cast.unchecked(data));
                     break;
                 case INT8:
-                    getDataBlock = b -> new ByteArrayDataBlock(b.getSize(), b.getGridPosition(), Cast.unchecked(b.getData().getStorageArray()));
+                    getDataBlock = (size, gridPosition, data) -> new ByteArrayDataBlock(size, gridPosition, Cast.unchecked(data));
                     break;
                 case INT16:
-                    getDataBlock = b -> new ShortArrayDataBlock(b.getSize(), b.getGridPosition(), Cast.unchecked(b.getData().getStorageArray()));
+                    getDataBlock = (size, gridPosition, data) -> new ShortArrayDataBlock(size, gridPosition, Cast.unchecked(data));
                     break;
                 case INT32:
-                    getDataBlock = b -> new IntArrayDataBlock(b.getSize(), b.getGridPosition(), Cast.unchecked(b.getData().getStorageArray()));
+                    getDataBlock = (size, gridPosition, data) -> new IntArrayDataBlock(size, gridPosition, Cast.unchecked(data));
                     break;
                 case INT64:
-                    getDataBlock = b -> new LongArrayDataBlock(b.getSize(), b.getGridPosition(), Cast.unchecked(b.getData().getStorageArray()));
+                    getDataBlock = (size, gridPosition, data) -> new LongArrayDataBlock(size, gridPosition, Cast.unchecked(data));
                     break;
                 case FLOAT32:
-                    getDataBlock = b -> new FloatArrayDataBlock(b.getSize(), b.getGridPosition(), Cast.unchecked(b.getData().getStorageArray()));
+                    getDataBlock = (size, gridPosition, data) -> new FloatArrayDataBlock(size, gridPosition, Cast.unchecked(data));
                     break;
                 case FLOAT64:
-                    getDataBlock = b -> new DoubleArrayDataBlock(b.getSize(), b.getGridPosition(), Cast.unchecked(b.getData().getStorageArray()));
+                    getDataBlock = (size, gridPosition, data) -> new DoubleArrayDataBlock(size, gridPosition, Cast.unchecked(data));
                     break;
                 default:
                     throw new IllegalArgumentException();
@@ -380,6 +433,28 @@ public class WriteSequenceToN5OmeZarr {
             return shape;
         }
 
+        private long[] addSetupAndTimeToGridPosition(long[] zyxGridPosition) {
+            // the chunk size of the time and channel axes is 1, so their grid position is the index
+            if (totalNSetups > 1 && totalNTimepoints > 1) {
+                return new long[]{zyxGridPosition[0], zyxGridPosition[1], zyxGridPosition[2], setupId, timepointId};
+            } else if (totalNSetups > 1) {
+                return new long[]{zyxGridPosition[0], zyxGridPosition[1], zyxGridPosition[2], setupId};
+            } else if (totalNTimepoints > 1) {
+                return new long[]{zyxGridPosition[0], zyxGridPosition[1], zyxGridPosition[2], timepointId};
+            } else {
+                return zyxGridPosition;
+            }
+        }
+
+        private String[] getDimensionNames() {
+            // in N5 axis order
+            final List<String> axesList = axes.getAxesList();
+            final String[] names = new String[axesList.size()];
+            for (int i = 0; i < names.length; i++)
+                names[i] = axesList.get(names.length - 1 - i);
+            return names;
+        }
+
         private long[] removeSetupAndTimeFromShape(long[] shape) {
             long[] xyzShape = new long[3];
             for (int i = 0; i < 3; i++) {
@@ -400,6 +475,9 @@ public class WriteSequenceToN5OmeZarr {
         public OmeZarrDataset createDataset(final int level, final long[] zyxDimensions, final int[] zyxBlockSize) throws IOException {
             // create dataset directory + metadata
             final String pathName = "s" + level;
+            if (blocksPerShard != null)
+                return createShardedDataset(pathName, zyxDimensions, zyxBlockSize);
+
             zarrWriter.createDataset(pathName, addSetupAndTimeToShape(zyxDimensions),
                 addSingletonDimensionsToChunks(zyxBlockSize), dataType, compression);
 
@@ -418,13 +496,41 @@ public class WriteSequenceToN5OmeZarr {
             return new OmeZarrDataset(getPathName(level), datasetAttributes);
         }
 
+        private OmeZarrDataset createShardedDataset(final String pathName, final long[] zyxDimensions, final int[] zyxBlockSize) throws IOException {
+            // the time and channel axes are not sharded, so every timepoint and setup has its own shards
+            // and the blocks are written to the full dimensional dataset
+            final int[] chunks = addSingletonDimensionsToChunks(zyxBlockSize);
+            final int[] shardSize = chunks.clone();
+            for (int d = 0; d < 3; d++)
+                shardSize[d] *= blocksPerShard[d];
+            final DatasetAttributes attributes = new DatasetAttributes(addSetupAndTimeToShape(zyxDimensions), chunks, dataType, compression);
+            zarrWriter.createShardedDataset(pathName, attributes, shardSize, getDimensionNames());
+            return new OmeZarrDataset(pathName, zarrWriter.getDatasetAttributes(pathName), new ShardWriter(zarrWriter, pathName));
+        }
+
         @Override
         public void writeBlock(final OmeZarrDataset dataset, final ExportScalePyramid.Block<T> dataBlock) throws IOException {
-            zarrWriter.writeBlock(dataset.pathName, dataset.attributes, getDataBlock.apply(dataBlock));
+            final Object data = dataBlock.getData().getStorageArray();
+            if (dataset.shardWriter != null) {
+                dataset.shardWriter.writeBlock(getDataBlock.create(
+                    addSingletonDimensionsToChunks(dataBlock.getSize()),
+                    addSetupAndTimeToGridPosition(dataBlock.getGridPosition()),
+                    data));
+            } else {
+                zarrWriter.writeBlock(dataset.pathName, dataset.attributes,
+                    getDataBlock.create(dataBlock.getSize(), dataBlock.getGridPosition(), data));
+            }
+        }
+
+        @Override
+        public void flush(final OmeZarrDataset dataset) throws IOException {
+            if (dataset.shardWriter != null)
+                dataset.shardWriter.flush();
         }
 
         @Override
-        public void flush(final OmeZarrDataset dataset) {
+        public int[] getBlocksPerShard(final OmeZarrDataset dataset) {
+            return dataset.shardWriter == null ? null : blocksPerShard;
         }
 
         @Override
@@ -36,6 +36,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 
+import org.embl.mobie.io.n5.util.CellCache;
+import org.embl.mobie.io.n5.util.CellCacheService;
+import org.embl.mobie.io.n5.util.CellPrefetcher;
+import org.embl.mobie.io.n5.util.Fetchers;
+import org.embl.mobie.io.n5.util.LoaderThreads;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.jetbrains.annotations.NotNull;
@@ -44,7 +49,6 @@ import bdv.AbstractViewerSetupImgLoader;
 import bdv.ViewerImgLoader;
 import bdv.cache.CacheControl;
 import bdv.img.cache.SimpleCacheArrayLoader;
-import bdv.img.cache.VolatileGlobalCellCache;
 import bdv.util.ConstantRandomAccessible;
 import bdv.util.MipmapTransforms;
 import lombok.extern.slf4j.Slf4j;
@@ -72,7 +76,6 @@ import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.Volatile;
 import net.imglib2.cache.queue.BlockingFetchQueues;
-import net.imglib2.cache.queue.FetcherThreads;
 import net.imglib2.cache.volatiles.CacheHints;
 import net.imglib2.cache.volatiles.LoadingStrategy;
 import net.imglib2.img.cell.CellGrid;
@@ -118,8 +121,8 @@ public class OpenOrganelleN5ImageLoader implements ViewerImgLoader, MultiResolut
     protected AbstractSequenceDescription<?, ?, ?> seq;
     protected ViewRegistrations viewRegistrations;
     private volatile boolean isOpen = false;
-    private FetcherThreads fetchers;
-    private VolatileGlobalCellCache cache;
+    private Fetchers fetchers;
+    private CellCache cache;
     private int sequenceTimepoints = 0;
 
     /**
@@ -281,10 +284,11 @@ public class OpenOrganelleN5ImageLoader implements ViewerImgLoader, MultiResolut
                         }
                     }
 
-                    final int numFetcherThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+                    final int numFetcherThreads = LoaderThreads.numFetcherThreads();
                     final BlockingFetchQueues<Callable<?>> queue = new BlockingFetchQueues<>(maxNumLevels, numFetcherThreads);
-                    fetchers = new FetcherThreads(queue, numFetcherThreads);
-                    cache = new VolatileGlobalCellCache(queue);
+                    fetchers = Fetchers.create(queue, numFetcherThreads);
+                    cache = CellCache.create(queue, CellCacheService.sourceName(n5));
+                    preparePlayback();
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
@@ -403,6 +407,26 @@ public class OpenOrganelleN5ImageLoader implements ViewerImgLoader, MultiResolut
         return cache;
     }
 
+    /**
+     * @return the prefetcher of the cell cache, with its hit rate, or {@code null}
+     * if {@link CellPrefetcher#enabled} was not set when the loader was opened
+     */
+    public CellPrefetcher getPrefetcher() {
+        open();
+        return cache.getPrefetcher();
+    }
+
+    /**
+     * Lets the prefetcher of the cache preload the timepoints ahead of the displayed one.
+     */
+    private void preparePlayback() {
+        final CellPrefetcher prefetcher = cache.getPrefetcher();
+        if (prefetcher == null)
+            return;
+        final int[] timepointIds = seq.getTimePoints().getTimePointsOrdered().stream().mapToInt(TimePoint::getId).toArray();
+        prefetcher.setTimepoints(timepointIds, (timepoint, setup, level) -> setupImgLoaders.get(setup).getVolatileImage(timepoint, level));
+    }
+
     private static class Multiscale {
         String name;
         double[][] scales;
@@ -31,6 +31,7 @@ package org.embl.mobie.io.openorganelle;
 import java.io.IOException;
 
 import org.embl.mobie.io.n5.loaders.S3ImageLoader;
+import org.embl.mobie.io.util.S3Utils;
 import org.janelia.saalfeldlab.n5.s3.N5AmazonS3Reader;
 
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
@@ -78,10 +79,11 @@ public class OpenOrganelleN5S3ImageLoader extends OpenOrganelleN5ImageLoader imp
                 .standard()
                 .withPathStyleAccessEnabled(true)
                 .withEndpointConfiguration(endpoint)
+                .withClientConfiguration(S3Utils.getClientConfiguration())
                 .withCredentials(new AWSStaticCredentialsProvider(new AnonymousAWSCredentials()))
                 .build();
 
-            return new N5AmazonS3Reader(s3, bucketName, key);
+            return new N5AmazonS3Reader(S3Utils.forChunkReading(s3, serviceEndpoint), bucketName, key);
         }
     }
 }
@@ -0,0 +1,243 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of concurrent requests to a remote store, and adapts the
+ * limit to what the store and the network sustain.
+ * <p>
+ * The limit follows additive increase / multiplicative decrease, once per
+ * window of about one round trip: it grows while the requests use all of it
+ * and their latency stays within {@link #latencyTolerance} of the minimal
+ * latency, or while the throughput still grows with it. It shrinks by
+ * {@link #backoff} if the latency rises without gain in throughput, which
+ * means that requests are queueing, and it is halved if the store answers
+ * with 503 SlowDown, see {@link #onThrottle()}. Until the first decrease the
+ * limit doubles per window, like TCP slow start.
+ * <p>
+ * The state is guarded by a {@link ReentrantLock} rather than a monitor, such
+ * that virtual fetcher threads that wait for a permit release their carrier.
+ */
+public class AdaptiveConcurrencyLimit {
+
+    /**
+     * The limit of a new store.
+     */
+    public static int initialLimit = 16;
+
+    /**
+     * The tolerated ratio of the latency of a window to the minimal latency.
+     */
+    public static double latencyTolerance = 2.0;
+
+    /**
+     * The factor by which the limit shrinks if requests are queueing.
+     */
+    public static double backoff = 0.9;
+
+    /**
+     * The number of samples after which the minimal latency is measured anew,
+     * such that it follows changes of the network.
+     */
+    private static final int MIN_LATENCY_SAMPLES = 1000;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition available = lock.newCondition();
+
+    private double limit;
+
+    private int inFlight = 0;
+
+    private boolean slowStart = true;
+
+    private long minLatency = Long.MAX_VALUE;
+
+    private long nextMinLatency = Long.MAX_VALUE;
+
+    private int numMinLatencySamples = 0;
+
+    private double smoothedLatency = 0;
+
+    private long lastDecrease = 0;
+
+    private long windowStart = System.nanoTime();
+
+    private int windowSamples = 0;
+
+    private long windowBytes = 0;
+
+    private long windowLatency = 0;
+
+    private int windowMaxInFlight = 0;
+
+    private double lastThroughput = 0;
+
+    public AdaptiveConcurrencyLimit(final int minLimit, final int maxLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+    }
+
+    /**
+     * Waits until a request may be sent. Every call must be followed by one of
+     * {@link #onSuccess}, {@link #onThrottle} or {@link #onDropped}.
+     */
+    public void acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            while (inFlight >= (int) limit)
+                available.await();
+            ++inFlight;
+            windowMaxInFlight = Math.max(windowMaxInFlight, inFlight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A request completed after {@code latencyNanos} with {@code bytes} of
+     * response.
+     */
+    public void onSuccess(final long latencyNanos, final long bytes) {
+        lock.lock();
+        try {
+            release();
+            updateMinLatency(latencyNanos);
+            smoothedLatency = smoothedLatency == 0 ? latencyNanos : 0.9 * smoothedLatency + 0.1 * latencyNanos;
+            ++windowSamples;
+            windowBytes += bytes;
+            windowLatency += latencyNanos;
+
+            final long now = System.nanoTime();
+            final long elapsed = now - windowStart;
+            if (windowSamples < (int) limit || elapsed < smoothedLatency)
+                return;
+
+            final double throughput = (double) windowBytes / elapsed;
+            final double latency = (double) windowLatency / windowSamples;
+            final boolean queueing = latency > latencyTolerance * minLatency;
+            final boolean gaining = throughput > 1.05 * lastThroughput;
+            if (queueing && !gaining) {
+                decrease(now, backoff);
+            } else if (windowMaxInFlight >= (int) limit) {
+                setLimit(slowStart ? limit * 2 : limit + 1);
+            }
+
+            lastThroughput = throughput;
+            windowStart = now;
+            windowSamples = 0;
+            windowBytes = 0;
+            windowLatency = 0;
+            windowMaxInFlight = inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The store asked to slow down (503 SlowDown).
+     */
+    public void onThrottle() {
+        lock.lock();
+        try {
+            release();
+            decrease(System.nanoTime(), 0.5);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A request failed for another reason, it does not tell about the load of
+     * the store.
+     */
+    public void onDropped() {
+        lock.lock();
+        try {
+            release();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release() {
+        --inFlight;
+        available.signalAll();
+    }
+
+    private void decrease(final long now, final double factor) {
+        slowStart = false;
+        // at most once per round trip, the requests in flight were sent before
+        if (now - lastDecrease < smoothedLatency)
+            return;
+        lastDecrease = now;
+        setLimit(limit * factor);
+    }
+
+    private void setLimit(final double newLimit) {
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        available.signalAll();
+    }
+
+    private void updateMinLatency(final long latencyNanos) {
+        minLatency = Math.min(minLatency, latencyNanos);
+        nextMinLatency = Math.min(nextMinLatency, latencyNanos);
+        if (++numMinLatencySamples >= MIN_LATENCY_SAMPLES) {
+            minLatency = nextMinLatency;
+            nextMinLatency = Long.MAX_VALUE;
+            numMinLatencySamples = 0;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * Serves the {@code getObject} requests for whole objects of an
+ * {@link AmazonS3} client from a {@link DiskChunkCache}, keyed by endpoint,
+ * bucket and key, and validated by the ETag of the object. All other requests,
+ * requests with their own conditions and ranged requests are passed on
+ * unchanged: the ranges that are read from shards are cached per inner chunk
+ * by the {@link org.embl.mobie.io.ome.zarr.util.ShardReader}, because the
+ * ranges of merged reads differ between sessions.
+ */
+class CachingS3 implements InvocationHandler {
+
+    private final AmazonS3 s3;
+
+    private final String endpoint;
+
+    private final DiskChunkCache cache;
+
+    private CachingS3(final AmazonS3 s3, final String endpoint, final DiskChunkCache cache) {
+        this.s3 = s3;
+        this.endpoint = endpoint;
+        this.cache = cache;
+    }
+
+    static AmazonS3 wrap(final AmazonS3 s3, final String endpoint, final DiskChunkCache cache) {
+        return (AmazonS3) Proxy.newProxyInstance(
+            AmazonS3.class.getClassLoader(),
+            new Class<?>[]{AmazonS3.class},
+            new CachingS3(s3, endpoint, cache));
+    }
+
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return "CachingS3[" + s3 + "]";
+            }
+        }
+        if (!"getObject".equals(method.getName()) || method.getReturnType() != S3Object.class)
+            return call(method, args);
+
+        final GetObjectRequest request;
+        if (args.length == 1 && args[0] instanceof GetObjectRequest)
+            request = (GetObjectRequest) args[0];
+        else if (args.length == 2 && args[0] instanceof String && args[1] instanceof String)
+            request = new GetObjectRequest((String) args[0], (String) args[1]);
+        else
+            return call(method, args);
+        if (!isCacheable(request))
+            return call(method, args);
+
+        final String key = cacheKey(request);
+        final DiskChunkCache.Entry entry = cache.get(key);
+        final S3Object object;
+        if (entry == null) {
+            object = s3.getObject(request);
+        } else if (!DiskChunkCache.revalidate) {
+            return cachedObject(request, entry);
+        } else {
+            object = s3.getObject(copy(request).withNonmatchingETagConstraint(entry.getETag()));
+            // not modified
+            if (object == null)
+                return cachedObject(request, entry);
+        }
+        return cache(key, object);
+    }
+
+    private Object call(final Method method, final Object[] args) throws Throwable {
+        try {
+            return method.invoke(s3, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private S3Object cache(final String key, final S3Object object) throws Exception {
+        if (object == null)
+            return null;
+        final ObjectMetadata metadata = object.getObjectMetadata();
+        final long length = metadata.getContentLength();
+        final String eTag = metadata.getETag();
+        if (eTag == null || length < 0 || length > DiskChunkCache.maxEntryBytes)
+            return object;
+
+        final byte[] data = new byte[(int) length];
+        try (final S3Object o = object) {
+            new DataInputStream(o.getObjectContent()).readFully(data);
+        }
+        cache.put(key, eTag, data);
+
+        final S3Object cached = new S3Object();
+        cached.setBucketName(object.getBucketName());
+        cached.setKey(object.getKey());
+        cached.setObjectMetadata(metadata);
+        cached.setObjectContent(new ByteArrayInputStream(data));
+        return cached;
+    }
+
+    private static S3Object cachedObject(final GetObjectRequest request, final DiskChunkCache.Entry entry) {
+        final ByteBuffer data = entry.getData();
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(data.remaining());
+        metadata.setHeader(Headers.ETAG, entry.getETag());
+        final S3Object object = new S3Object();
+        object.setBucketName(request.getBucketName());
+        object.setKey(request.getKey());
+        object.setObjectMetadata(metadata);
+        object.setObjectContent(new ByteBufferInputStream(data));
+        return object;
+    }
+
+    private String cacheKey(final GetObjectRequest request) {
+        return endpoint + '\n' + request.getBucketName() + '\n' + request.getKey();
+    }
+
+    private static boolean isCacheable(final GetObjectRequest request) {
+        return request.getVersionId() == null
+            && request.getSSECustomerKey() == null
+            && request.getModifiedSinceConstraint() == null
+            && request.getUnmodifiedSinceConstraint() == null
+            && request.getMatchingETagConstraints().isEmpty()
+            && request.getNonmatchingETagConstraints().isEmpty()
+            && request.getRange() == null;
+    }
+
+    private static GetObjectRequest copy(final GetObjectRequest request) {
+        return new GetObjectRequest(request.getBucketName(), request.getKey());
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
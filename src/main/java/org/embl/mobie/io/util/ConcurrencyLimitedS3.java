@@ -0,0 +1,180 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * Passes the {@code getObject} requests of an {@link AmazonS3} client through
+ * an {@link AdaptiveConcurrencyLimit}. A request counts as in flight until its
+ * content has been read or closed, such that the limit and the measured
+ * latency include the transfer. All other requests are passed on unchanged.
+ */
+class ConcurrencyLimitedS3 implements InvocationHandler {
+
+    private final AmazonS3 s3;
+
+    private final AdaptiveConcurrencyLimit limit;
+
+    private ConcurrencyLimitedS3(final AmazonS3 s3, final AdaptiveConcurrencyLimit limit) {
+        this.s3 = s3;
+        this.limit = limit;
+    }
+
+    static AmazonS3 wrap(final AmazonS3 s3, final AdaptiveConcurrencyLimit limit) {
+        return (AmazonS3) Proxy.newProxyInstance(
+            AmazonS3.class.getClassLoader(),
+            new Class<?>[]{AmazonS3.class},
+            new ConcurrencyLimitedS3(s3, limit));
+    }
+
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return "ConcurrencyLimitedS3[" + s3 + "]";
+            }
+        }
+        if (!"getObject".equals(method.getName()) || method.getReturnType() != S3Object.class)
+            return call(method, args);
+
+        try {
+            limit.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortedException(e);
+        }
+        final long start = System.nanoTime();
+        final S3Object object;
+        try {
+            object = (S3Object) call(method, args);
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == 503 || "SlowDown".equals(e.getErrorCode()))
+                limit.onThrottle();
+            else if (e.getStatusCode() == 404)
+                limit.onSuccess(System.nanoTime() - start, 0); // missing chunks are answered like any other
+            else
+                limit.onDropped();
+            throw e;
+        } catch (Throwable e) {
+            limit.onDropped();
+            throw e;
+        }
+        if (object == null || object.getObjectContent() == null) {
+            limit.onSuccess(System.nanoTime() - start, 0);
+            return object;
+        }
+        object.setObjectContent(new MeasuredInputStream(object.getObjectContent(), start));
+        return object;
+    }
+
+    private Object call(final Method method, final Object[] args) throws Throwable {
+        try {
+            return method.invoke(s3, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Counts the bytes of the content and reports the request when it has been
+     * read to the end or closed.
+     */
+    private class MeasuredInputStream extends FilterInputStream {
+        private final long start;
+
+        private long bytes = 0;
+
+        private boolean done = false;
+
+        MeasuredInputStream(final InputStream in, final long start) {
+            super(in);
+            this.start = start;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b < 0)
+                done();
+            else
+                ++bytes;
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n < 0)
+                done();
+            else
+                bytes += n;
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final long skipped = super.skip(n);
+            bytes += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                done();
+            }
+        }
+
+        private synchronized void done() {
+            if (done)
+                return;
+            done = true;
+            limit.onSuccess(System.nanoTime() - start, bytes);
+        }
+    }
+}
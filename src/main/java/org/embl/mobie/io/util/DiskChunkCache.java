@@ -0,0 +1,340 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A size-capped cache of the raw, still compressed, chunks of remote stores on
+ * the local disk, such that re-opening a project does not download the same
+ * chunks again.
+ * <p>
+ * Every chunk is one file, named by the hash of its key, that starts with the
+ * ETag of the object it was read from. A file is written to a temporary file
+ * and moved into place, such that several processes can use the same directory
+ * at the same time: readers only ever see complete files, and a file that is
+ * replaced or evicted while it is read stays valid for that reader. Hits are
+ * read through a memory map. The least recently used files, by modification
+ * time, are evicted in the background, by the process that holds the lock on
+ * the directory, once the cache exceeds {@link #maxBytes}.
+ * <p>
+ * The cache is disabled unless {@link #directory} is set, e.g. to
+ * {@link #DEFAULT_DIRECTORY}.
+ */
+@Slf4j
+public class DiskChunkCache {
+
+    public static final File DEFAULT_DIRECTORY = new File(System.getProperty("user.home"), ".cache" + File.separator + "mobie-io" + File.separator + "chunks");
+
+    /**
+     * The directory of the cache, {@code null} (the default) disables it.
+     */
+    public static File directory = null;
+
+    /**
+     * The size of the cache on disk.
+     */
+    public static long maxBytes = 10L << 30;
+
+    /**
+     * Objects larger than this are not cached.
+     */
+    public static long maxEntryBytes = 64L << 20;
+
+    /**
+     * Whether cached data is only used after the store confirmed that the
+     * ETag of its object is unchanged. This costs a conditional request per
+     * hit of a whole object, and one request per shard and session for the
+     * inner chunks of shards. Otherwise cached data is used without asking
+     * the store, which saves these round trips for data that does not change.
+     */
+    public static boolean revalidate = true;
+
+    private static final int MAGIC = 0x6d6f6331; // "moc1"
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final long TOUCH_INTERVAL_MILLIS = 60_000;
+
+    private static DiskChunkCache instance;
+
+    private final Path root;
+
+    private final long capacity;
+
+    private final AtomicLong bytesSinceEviction = new AtomicLong();
+
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private DiskChunkCache(final Path root, final long capacity) {
+        this.root = root;
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return the cache in {@link #directory}, or null if it is disabled or
+     * cannot be created
+     */
+    public static synchronized DiskChunkCache getInstance() {
+        if (directory == null)
+            return null;
+        final Path root = directory.toPath().toAbsolutePath();
+        if (instance == null || !instance.root.equals(root) || instance.capacity != maxBytes) {
+            try {
+                Files.createDirectories(root);
+            } catch (IOException e) {
+                log.warn("Cannot create chunk cache in " + root + ": " + e);
+                return null;
+            }
+            instance = new DiskChunkCache(root, maxBytes);
+            instance.bytesSinceEviction.set(maxBytes / 10);
+        }
+        return instance;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the cached chunk, or null if there is none or it cannot be read
+     */
+    public Entry get(final String key) {
+        final Path path = path(key);
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mapped.remaining() < 6 || mapped.getInt() != MAGIC)
+                return null;
+            final byte[] eTag = new byte[mapped.getShort() & 0xffff];
+            mapped.get(eTag);
+            touch(path);
+            return new Entry(new String(eTag, StandardCharsets.UTF_8), mapped.slice());
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Cannot read cached chunk " + path + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Caches {@code data} of the object with {@code eTag}, replacing what is
+     * cached for {@code key}.
+     */
+    public void put(final String key, final String eTag, final byte[] data) {
+        final byte[] eTagBytes = eTag.getBytes(StandardCharsets.UTF_8);
+        if (eTagBytes.length > 0xffff)
+            return;
+        final Path path = path(key);
+        final Path tmp = path.resolveSibling(path.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + TMP_SUFFIX);
+        try {
+            Files.createDirectories(path.getParent());
+            final ByteBuffer header = ByteBuffer.allocate(6 + eTagBytes.length);
+            header.putInt(MAGIC).putShort((short) eTagBytes.length).put(eTagBytes).flip();
+            try (final FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                final ByteBuffer[] buffers = {header, ByteBuffer.wrap(data)};
+                while (buffers[1].hasRemaining())
+                    channel.write(buffers);
+            }
+            try {
+                Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            log.warn("Cannot cache chunk " + path + ": " + e);
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {
+            }
+            return;
+        }
+        if (bytesSinceEviction.addAndGet(data.length) >= capacity / 10)
+            evictInBackground();
+    }
+
+    private void evictInBackground() {
+        if (!evicting.compareAndSet(false, true))
+            return;
+        final Thread thread = new Thread(() -> {
+            try {
+                evict();
+            } finally {
+                evicting.set(false);
+            }
+        }, "mobie-io-chunk-cache-eviction");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Deletes the least recently used chunks until the cache is below 90% of
+     * its capacity, unless another process is doing that already.
+     */
+    public synchronized void evict() {
+        bytesSinceEviction.set(0);
+        try (final FileChannel lockChannel = FileChannel.open(root.resolve(".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             final FileLock lock = lockChannel.tryLock()) {
+            if (lock == null)
+                return;
+            final long now = System.currentTimeMillis();
+            final List<CachedFile> files = new ArrayList<>();
+            long size = 0;
+            try (final Stream<Path> paths = Files.walk(root, 2)) {
+                for (Path path : (Iterable<Path>) paths::iterator) {
+                    final String name = path.getFileName().toString();
+                    if (name.startsWith("."))
+                        continue;
+                    final BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    } catch (NoSuchFileException e) {
+                        continue;
+                    }
+                    if (!attributes.isRegularFile())
+                        continue;
+                    final long modified = attributes.lastModifiedTime().toMillis();
+                    if (name.endsWith(TMP_SUFFIX)) {
+                        // left behind by a process that ended while writing
+                        if (now - modified > 3_600_000)
+                            Files.deleteIfExists(path);
+                        continue;
+                    }
+                    files.add(new CachedFile(path, attributes.size(), modified));
+                    size += attributes.size();
+                }
+            }
+            if (size <= capacity)
+                return;
+            files.sort(Comparator.comparingLong(f -> f.lastModified));
+            final long target = capacity / 10 * 9;
+            for (CachedFile file : files) {
+                if (size <= target)
+                    break;
+                try {
+                    Files.deleteIfExists(file.path);
+                    size -= file.size;
+                } catch (IOException e) {
+                    // mapped by a reader on a platform that does not allow that
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Cannot evict from chunk cache " + root + ": " + e);
+        }
+    }
+
+    private Path path(final String key) {
+        final String hash = hash(key);
+        return root.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static void touch(final Path path) {
+        try {
+            final long now = System.currentTimeMillis();
+            if (now - Files.getLastModifiedTime(path).toMillis() > TOUCH_INTERVAL_MILLIS)
+                Files.setLastModifiedTime(path, FileTime.fromMillis(now));
+        } catch (IOException e) {
+            // evicted meanwhile, or read-only
+        }
+    }
+
+    private static String hash(final String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder sb = new StringBuilder(40);
+            for (int i = 0; i < 20; i++)
+                sb.append(String.format("%02x", digest[i]));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A cached chunk.
+     */
+    public static class Entry {
+        private final String eTag;
+
+        private final ByteBuffer data;
+
+        Entry(final String eTag, final ByteBuffer data) {
+            this.eTag = eTag;
+            this.data = data;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        /**
+         * @return the bytes of the chunk, mapped from the cache file
+         */
+        public ByteBuffer getData() {
+            return data.duplicate();
+        }
+    }
+
+    private static class CachedFile {
+        final Path path;
+        final long size;
+        final long lastModified;
+
+        CachedFile(final Path path, final long size, final long lastModified) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
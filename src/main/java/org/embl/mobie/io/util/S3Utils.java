@@ -33,9 +33,12 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.AnonymousAWSCredentials;
@@ -54,6 +57,19 @@ import com.google.api.client.http.HttpStatusCodes;
 import ij.gui.GenericDialog;
 
 public abstract class S3Utils {
+    /**
+     * The size of the connection pool of the S3 clients, it bounds the number of requests in flight.
+     */
+    public static int maxConnections = 256;
+
+    /**
+     * Whether the image loaders adapt the number of concurrent requests to each
+     * endpoint, see {@link #withAdaptiveConcurrency}.
+     */
+    public static boolean adaptiveConcurrency = true;
+
+    private static final Map<String, AdaptiveConcurrencyLimit> concurrencyLimits = new ConcurrentHashMap<>();
+
     private static String[] s3AccessAndSecretKey;
 
     public static void setS3AccessAndSecretKey(String[] s3AccessAndSecretKey) {
@@ -69,6 +85,7 @@ public abstract class S3Utils {
             .standard()
             .withPathStyleAccessEnabled(true)
             .withEndpointConfiguration(endpointConfiguration)
+            .withClientConfiguration(getClientConfiguration())
             .withCredentials(credentialsProvider)
             .build();
 
@@ -94,6 +111,7 @@ public abstract class S3Utils {
                         .standard()
                         .withPathStyleAccessEnabled(true)
                         .withEndpointConfiguration(endpointConfiguration)
+                        .withClientConfiguration(getClientConfiguration())
                         .withCredentials(credentialsProvider)
                         .build();
                     // check if we have access permissions now
@@ -110,6 +128,46 @@ public abstract class S3Utils {
         }
     }
 
+    public static ClientConfiguration getClientConfiguration() {
+        return new ClientConfiguration().withMaxConnections(maxConnections);
+    }
+
+    /**
+     * Limits the concurrent object reads of {@code s3} by the
+     * {@link AdaptiveConcurrencyLimit} of {@code endpoint}, which is shared by
+     * all clients of that endpoint. Returns {@code s3} if
+     * {@link #adaptiveConcurrency} is not set.
+     */
+    public static AmazonS3 withAdaptiveConcurrency(AmazonS3 s3, String endpoint) {
+        if (!adaptiveConcurrency)
+            return s3;
+        return ConcurrencyLimitedS3.wrap(s3, getConcurrencyLimit(endpoint));
+    }
+
+    /**
+     * Serves the whole-object reads of {@code s3} from the
+     * {@link DiskChunkCache}, if it is enabled.
+     */
+    public static AmazonS3 withChunkCache(AmazonS3 s3, String endpoint) {
+        final DiskChunkCache cache = DiskChunkCache.getInstance();
+        if (cache == null)
+            return s3;
+        return CachingS3.wrap(s3, endpoint, cache);
+    }
+
+    /**
+     * Prepares {@code s3} for reading the chunks of an image loader: reads are
+     * served from the {@link DiskChunkCache} and otherwise limited by the
+     * adaptive concurrency of {@code endpoint}.
+     */
+    public static AmazonS3 forChunkReading(AmazonS3 s3, String endpoint) {
+        return withChunkCache(withAdaptiveConcurrency(s3, endpoint), endpoint);
+    }
+
+    public static AdaptiveConcurrencyLimit getConcurrencyLimit(String endpoint) {
+        return concurrencyLimits.computeIfAbsent(endpoint, e -> new AdaptiveConcurrencyLimit(1, maxConnections));
+    }
+
     public static AmazonS3 getS3Client(String uri) {
         final String endpoint = getEndpoint(uri);
         final String region = "us-west-2";  // TODO get region from uri
@@ -0,0 +1,187 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.io.FileUtils;
+import org.embl.mobie.io.n5.util.Fetchers;
+import org.embl.mobie.io.n5.util.LoaderThreads;
+import org.embl.mobie.io.n5.util.VirtualThreadFetchers;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+
+import net.imglib2.cache.queue.BlockingFetchQueues;
+import net.imglib2.cache.queue.FetcherThreads;
+
+/**
+ * Compares {@link FetcherThreads}, one per core, with {@link VirtualThreadFetchers}
+ * limited to {@link LoaderThreads#maxConcurrentFetches}, on loading all 512
+ * blocks of a local N5 dataset through a {@link BlockingFetchQueues}, like the
+ * viewer cache does. Every block read waits {@code latencyMillis} before reading
+ * the file, to mimic the round trip of a remote store. Prints the mean time of
+ * loading all blocks after a few warmup rounds.
+ */
+public class FetcherBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 3;
+
+    private static final int MEASUREMENT_ITERATIONS = 5;
+
+    private static final String DATASET = "volume";
+
+    private static final int[] GRID_SIZE = {8, 8, 8};
+
+    private static final int[] BLOCK_SIZE = {32, 32, 32};
+
+    private final boolean virtual;
+
+    private final int latencyMillis;
+
+    private File directory;
+    private LatencyN5FSReader n5;
+    private DatasetAttributes attributes;
+    private BlockingFetchQueues<Callable<?>> queue;
+    private Fetchers fetcherThreads;
+
+    public FetcherBenchmark(final boolean virtual, final int latencyMillis) {
+        this.virtual = virtual;
+        this.latencyMillis = latencyMillis;
+    }
+
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("mobie-io-fetcher-benchmark").toFile();
+        final N5FSWriter writer = new N5FSWriter(directory.getAbsolutePath());
+        final long[] dimensions = new long[3];
+        for (int d = 0; d < 3; d++)
+            dimensions[d] = (long) GRID_SIZE[d] * BLOCK_SIZE[d];
+        writer.createDataset(DATASET, dimensions, BLOCK_SIZE, DataType.UINT16, new GzipCompression());
+        attributes = writer.getDatasetAttributes(DATASET);
+        final short[] data = new short[BLOCK_SIZE[0] * BLOCK_SIZE[1] * BLOCK_SIZE[2]];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (short) (i % 4096);
+        for (long[] gridPosition : gridPositions())
+            writer.writeBlock(DATASET, attributes, new ShortArrayDataBlock(BLOCK_SIZE, gridPosition, data));
+
+        n5 = new LatencyN5FSReader(directory.getAbsolutePath(), latencyMillis);
+        final int numFetcherThreads = virtual ? LoaderThreads.maxConcurrentFetches : Runtime.getRuntime().availableProcessors();
+        queue = new BlockingFetchQueues<>(1, numFetcherThreads);
+        fetcherThreads = virtual
+            ? new VirtualThreadFetchers(queue)
+            : new FetcherThreads(queue, numFetcherThreads)::shutdown;
+    }
+
+    public void tearDown() throws IOException {
+        fetcherThreads.shutdown();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    public long loadAllBlocks() throws InterruptedException {
+        final long[][] gridPositions = gridPositions();
+        final CountDownLatch done = new CountDownLatch(gridPositions.length);
+        final long[] numElements = new long[1];
+        for (long[] gridPosition : gridPositions) {
+            queue.put(() -> {
+                try {
+                    final DataBlock<?> block = n5.readBlock(DATASET, attributes, gridPosition);
+                    synchronized (numElements) {
+                        numElements[0] += block.getNumElements();
+                    }
+                    return block;
+                } finally {
+                    done.countDown();
+                }
+            }, 0, false);
+        }
+        done.await();
+        return numElements[0];
+    }
+
+    private static long[][] gridPositions() {
+        final long[][] gridPositions = new long[GRID_SIZE[0] * GRID_SIZE[1] * GRID_SIZE[2]][];
+        int i = 0;
+        for (int z = 0; z < GRID_SIZE[2]; z++)
+            for (int y = 0; y < GRID_SIZE[1]; y++)
+                for (int x = 0; x < GRID_SIZE[0]; x++)
+                    gridPositions[i++] = new long[]{x, y, z};
+        return gridPositions;
+    }
+
+    private static class LatencyN5FSReader extends N5FSReader {
+        private final int latencyMillis;
+
+        LatencyN5FSReader(final String basePath, final int latencyMillis) throws IOException {
+            super(basePath);
+            this.latencyMillis = latencyMillis;
+        }
+
+        @Override
+        public DataBlock<?> readBlock(final String pathName, final DatasetAttributes datasetAttributes, final long... gridPosition) throws IOException {
+            if (latencyMillis > 0) {
+                try {
+                    Thread.sleep(latencyMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+            return super.readBlock(pathName, datasetAttributes, gridPosition);
+        }
+    }
+
+    public static void main(String... args) throws IOException, InterruptedException {
+        for (int latencyMillis : new int[]{0, 5, 50}) {
+            for (boolean virtual : new boolean[]{false, true}) {
+                final FetcherBenchmark benchmark = new FetcherBenchmark(virtual, latencyMillis);
+                benchmark.setup();
+                try {
+                    for (int i = 0; i < WARMUP_ITERATIONS; i++)
+                        benchmark.loadAllBlocks();
+                    final long start = System.nanoTime();
+                    for (int i = 0; i < MEASUREMENT_ITERATIONS; i++)
+                        benchmark.loadAllBlocks();
+                    final double millis = (System.nanoTime() - start) / 1e6 / MEASUREMENT_ITERATIONS;
+                    System.out.println((virtual ? "virtualThreadFetchers" : "fetcherThreads") + ", latency " + latencyMillis + " ms: "
+                        + String.format("%.1f", millis) + " ms");
+                } finally {
+                    benchmark.tearDown();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats.zarr;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.embl.mobie.io.ome.zarr.util.CoalescingRangeReader;
+import org.embl.mobie.io.ome.zarr.util.ShardReader;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CoalescingRangeReaderTest {
+    private static final String KEY = "shard";
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private final int maxReadsPerObject = CoalescingRangeReader.maxReadsPerObject;
+    private final byte[] object = new byte[4 << 20];
+    private final List<long[]> reads = new ArrayList<>();
+    private final CountDownLatch firstReadReleased = new CountDownLatch(1);
+    private final AtomicReference<Runnable> beforeFirstReadReturns = new AtomicReference<>();
+    private volatile CyclicBarrier laterReadsBarrier;
+    private ExecutorService threads;
+
+    @BeforeEach
+    void setUp() {
+        for (int i = 0; i < object.length; i++)
+            object[i] = (byte) i;
+        threads = Executors.newCachedThreadPool();
+    }
+
+    @AfterEach
+    void tearDown() {
+        CoalescingRangeReader.maxReadsPerObject = maxReadsPerObject;
+        threads.shutdownNow();
+    }
+
+    @Test
+    void mergeQueuedReadsAndIssueThemConcurrently() throws Exception {
+        CoalescingRangeReader.maxReadsPerObject = 1;
+        // the merged read of the two close ranges and the read of the distant range meet at the barrier
+        laterReadsBarrier = new CyclicBarrier(2);
+        final CoalescingRangeReader reader = new CoalescingRangeReader(new BlockingRangeReader());
+
+        final Future<ByteBuffer> first = readFirst(reader);
+        final List<Future<ByteBuffer>> queued = new ArrayList<>();
+        final List<Thread> queuedThreads = new ArrayList<>();
+        for (long offset : new long[]{100, 120, 3 << 20}) {
+            queued.add(read(reader, offset, 10, queuedThreads));
+            awaitWaiting(queuedThreads.get(queuedThreads.size() - 1));
+        }
+        firstReadReleased.countDown();
+
+        assertBytes(0, 10, first);
+        assertBytes(100, 10, queued.get(0));
+        assertBytes(120, 10, queued.get(1));
+        assertBytes(3 << 20, 10, queued.get(2));
+        assertEquals(3, reads.size());
+        assertTrue(reads.stream().anyMatch(read -> read[0] == 100 && read[1] == 30));
+    }
+
+    @Test
+    void laterReadsDoNotWaitForReadsInFlight() throws Exception {
+        final CoalescingRangeReader reader = new CoalescingRangeReader(new BlockingRangeReader());
+        final Future<ByteBuffer> first = readFirst(reader);
+        assertBytes(1000, 10, read(reader, 1000, 10));
+        assertBytes(2000, 10, read(reader, 2000, 10));
+        firstReadReleased.countDown();
+        assertBytes(0, 10, first);
+    }
+
+    /**
+     * The thread that is chosen to read a group of queued requests is
+     * interrupted. The other thread of the group must still get its bytes and
+     * later reads of the object must not block. The interrupt hits the thread
+     * either before or after the group is handed to it.
+     */
+    @Test
+    void interruptedReaderHandsOverItsRead() throws Exception {
+        CoalescingRangeReader.maxReadsPerObject = 1;
+        final CoalescingRangeReader reader = new CoalescingRangeReader(new BlockingRangeReader());
+
+        final Future<ByteBuffer> first = readFirst(reader);
+        final List<Thread> queuedThreads = new ArrayList<>();
+        final Future<ByteBuffer> interrupted = read(reader, 100, 10, queuedThreads);
+        awaitWaiting(queuedThreads.get(0));
+        final Future<ByteBuffer> other = read(reader, 110, 10, queuedThreads);
+        awaitWaiting(queuedThreads.get(1));
+
+        // interrupt the first queued thread just before the read in flight completes and hands over the queued reads
+        beforeFirstReadReturns.set(() -> queuedThreads.get(0).interrupt());
+        firstReadReleased.countDown();
+
+        assertBytes(0, 10, first);
+        assertBytes(110, 10, other);
+        // depending on whether the interrupt or the hand over comes first, the interrupted thread reads or gives up
+        try {
+            assertBytes(100, 10, interrupted);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof InterruptedIOException);
+        }
+        assertBytes(200, 10, read(reader, 200, 10));
+        assertBytes(300, 10, read(reader, 300, 10));
+    }
+
+    /**
+     * Starts the read of the first 10 bytes, which blocks until {@link #firstReadReleased}.
+     */
+    private Future<ByteBuffer> readFirst(final CoalescingRangeReader reader) throws InterruptedException {
+        final List<Thread> readThreads = new ArrayList<>();
+        final Future<ByteBuffer> future = read(reader, 0, 10, readThreads);
+        awaitWaiting(readThreads.get(0));
+        return future;
+    }
+
+    private Future<ByteBuffer> read(final CoalescingRangeReader reader, final long offset, final long length) {
+        return threads.submit(() -> reader.read(KEY, offset, length));
+    }
+
+    private Future<ByteBuffer> read(final CoalescingRangeReader reader, final long offset, final long length, final List<Thread> readThreads) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final Future<ByteBuffer> future = threads.submit((Callable<ByteBuffer>) () -> {
+            synchronized (readThreads) {
+                readThreads.add(Thread.currentThread());
+            }
+            started.countDown();
+            return reader.read(KEY, offset, length);
+        });
+        started.await();
+        return future;
+    }
+
+    /**
+     * Waits until a thread is blocked in the reader.
+     */
+    private static void awaitWaiting(final Thread thread) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 1000 * TIMEOUT_SECONDS;
+        int numWaiting = 0;
+        while (numWaiting < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            numWaiting = thread.getState() == Thread.State.WAITING ? numWaiting + 1 : 0;
+        }
+        assertEquals(5, numWaiting);
+    }
+
+    private void assertBytes(final long offset, final int length, final Future<ByteBuffer> future) throws Exception {
+        final ByteBuffer buffer = future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        assertArrayEquals(Arrays.copyOfRange(object, (int) offset, (int) offset + length), bytes);
+    }
+
+    /**
+     * Blocks the first read until it is released, later reads optionally meet at a barrier.
+     */
+    private class BlockingRangeReader implements ShardReader.RangeReader {
+
+        @Override
+        public ByteBuffer read(final String key, final long offset, final long length) throws IOException {
+            final boolean isFirst;
+            synchronized (reads) {
+                isFirst = reads.isEmpty();
+                reads.add(new long[]{offset, length});
+            }
+            try {
+                if (isFirst) {
+                    firstReadReleased.await();
+                    final Runnable runnable = beforeFirstReadReturns.get();
+                    if (runnable != null)
+                        runnable.run();
+                } else if (laterReadsBarrier != null) {
+                    laterReadsBarrier.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                }
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            return ByteBuffer.wrap(Arrays.copyOfRange(object, (int) offset, (int) (offset + length)));
+        }
+
+        @Override
+        public ByteBuffer readSuffix(final String key, final long length) throws IOException {
+            return read(key, object.length - length, length);
+        }
+    }
+}
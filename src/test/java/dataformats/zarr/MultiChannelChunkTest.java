@@ -0,0 +1,155 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats.zarr;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.embl.mobie.io.ome.zarr.readers.N5OmeZarrReader;
+import org.embl.mobie.io.ome.zarr.util.DecodedChunkCache;
+import org.embl.mobie.io.ome.zarr.util.N5OMEZarrCacheArrayLoader;
+import org.embl.mobie.io.ome.zarr.util.ZarrAxes;
+import org.embl.mobie.io.ome.zarr.writers.N5OMEZarrWriter;
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.CellGrid;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Loads the cells of a c, y, x dataset whose chunks hold two channels, see
+ * {@link DecodedChunkCache}. The 9 x 7 planes are chunked by 4 x 4, such that
+ * the chunks at the upper x and y border are partial, and the last of the 5
+ * channels is alone in its chunk.
+ */
+public class MultiChannelChunkTest {
+    private static final long[] DIMENSIONS = {9, 7, 5};
+    private static final int[] BLOCK_SIZE = {4, 4, 2};
+    private static final long[] GRID_SIZE = {3, 2, 3};
+
+    @BeforeEach
+    void setUp() {
+        DecodedChunkCache.getInstance().clear();
+    }
+
+    @Test
+    void loadSlicesOfDecodedBlocks(@TempDir Path tempDir) throws IOException {
+        // single byte chunks are decoded into data blocks
+        loadSlices(tempDir, DataType.UINT8);
+    }
+
+    @Test
+    void loadSlicesOfChunkBytes(@TempDir Path tempDir) throws IOException {
+        // multi-byte chunks are copied from their bytes
+        loadSlices(tempDir, DataType.UINT16);
+    }
+
+    private void loadSlices(final Path tempDir, final DataType dataType) throws IOException {
+        write(tempDir, dataType);
+        final N5OmeZarrReader reader = new N5OmeZarrReader(tempDir.toString());
+        final DatasetAttributes attributes = reader.getDatasetAttributes("s0");
+        final CellGrid grid = new CellGrid(new long[]{DIMENSIONS[0], DIMENSIONS[1]}, new int[]{BLOCK_SIZE[0], BLOCK_SIZE[1]});
+        final DecodedChunkCache decodedChunks = DecodedChunkCache.getInstance();
+        final long misses = decodedChunks.getMisses();
+
+        for (int channel = 0; channel < DIMENSIONS[2]; channel++) {
+            final N5OMEZarrCacheArrayLoader<?> loader = new N5OMEZarrCacheArrayLoader<>(reader, "s0", channel, 0, attributes, grid, ZarrAxes.CYX);
+            final long[] gridPosition = new long[2];
+            for (gridPosition[1] = 0; gridPosition[1] < GRID_SIZE[1]; gridPosition[1]++) {
+                for (gridPosition[0] = 0; gridPosition[0] < GRID_SIZE[0]; gridPosition[0]++) {
+                    final int[] cellDims = new int[2];
+                    grid.getCellDimensions(gridPosition, new long[2], cellDims);
+                    final Object data = ((ArrayDataAccess<?>) loader.loadArray(gridPosition.clone(), cellDims)).getCurrentStorageArray();
+                    for (int y = 0; y < cellDims[1]; y++) {
+                        for (int x = 0; x < cellDims[0]; x++) {
+                            final int i = x + cellDims[0] * y;
+                            final long value = value(gridPosition[0] * BLOCK_SIZE[0] + x, gridPosition[1] * BLOCK_SIZE[1] + y, channel);
+                            final long expected = dataType == DataType.UINT8 ? (byte) value : (short) value;
+                            final long actual = dataType == DataType.UINT8 ? ((byte[]) data)[i] : ((short[]) data)[i];
+                            assertEquals(expected, actual,
+                                "channel " + channel + ", cell " + gridPosition[0] + ", " + gridPosition[1] + ", voxel " + x + ", " + y);
+                        }
+                    }
+                }
+            }
+
+            // the chunks are held until the other channel of the chunk took its slices
+            final int expectedChunks = channel % 2 == 0 && channel + 1 < DIMENSIONS[2] ? (int) (GRID_SIZE[0] * GRID_SIZE[1]) : 0;
+            assertEquals(expectedChunks, decodedChunks.getNumChunks(), "chunks held after channel " + channel);
+        }
+
+        // the chunks of two channels are decoded once, the last channel is not shared
+        assertEquals(2 * GRID_SIZE[0] * GRID_SIZE[1], decodedChunks.getMisses() - misses);
+        assertEquals(0, decodedChunks.getHeldBytes());
+    }
+
+    private static void write(final Path tempDir, final DataType dataType) throws IOException {
+        final N5OMEZarrWriter writer = new N5OMEZarrWriter(tempDir.toString());
+        final DatasetAttributes attributes = new DatasetAttributes(DIMENSIONS, BLOCK_SIZE, dataType, new GzipCompression());
+        writer.createDataset("s0", attributes);
+        final int n = BLOCK_SIZE[0] * BLOCK_SIZE[1] * BLOCK_SIZE[2];
+        final long[] gridPosition = new long[3];
+        for (gridPosition[2] = 0; gridPosition[2] < GRID_SIZE[2]; gridPosition[2]++) {
+            for (gridPosition[1] = 0; gridPosition[1] < GRID_SIZE[1]; gridPosition[1]++) {
+                for (gridPosition[0] = 0; gridPosition[0] < GRID_SIZE[0]; gridPosition[0]++) {
+                    // the chunks at the border are written with the full chunk size
+                    final long[] values = new long[n];
+                    for (int i = 0; i < n; i++)
+                        values[i] = value(
+                            gridPosition[0] * BLOCK_SIZE[0] + i % BLOCK_SIZE[0],
+                            gridPosition[1] * BLOCK_SIZE[1] + i / BLOCK_SIZE[0] % BLOCK_SIZE[1],
+                            gridPosition[2] * BLOCK_SIZE[2] + i / BLOCK_SIZE[0] / BLOCK_SIZE[1]);
+                    if (dataType == DataType.UINT8) {
+                        final byte[] data = new byte[n];
+                        for (int i = 0; i < n; i++)
+                            data[i] = (byte) values[i];
+                        writer.writeBlock("s0", attributes, new ByteArrayDataBlock(BLOCK_SIZE, gridPosition.clone(), data));
+                    } else {
+                        final short[] data = new short[n];
+                        for (int i = 0; i < n; i++)
+                            data[i] = (short) values[i];
+                        writer.writeBlock("s0", attributes, new ShortArrayDataBlock(BLOCK_SIZE, gridPosition.clone(), data));
+                    }
+                }
+            }
+        }
+    }
+
+    private static long value(final long x, final long y, final long channel) {
+        return 1 + x + 10 * y + 100 * channel;
+    }
+}
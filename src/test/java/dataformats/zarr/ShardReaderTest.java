@@ -0,0 +1,268 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats.zarr;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.embl.mobie.io.ome.zarr.util.Crc32c;
+import org.embl.mobie.io.ome.zarr.util.ShardReader;
+import org.embl.mobie.io.ome.zarr.util.ShardingIndexed;
+import org.embl.mobie.io.util.DiskChunkCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the shard index and the range reads of {@link ShardReader} on shards
+ * that are built in memory.
+ */
+public class ShardReaderTest {
+    private static final long EMPTY = -1;
+
+    private final long maxGap = ShardReader.maxGap;
+
+    @AfterEach
+    void restoreMaxGap() {
+        ShardReader.maxGap = maxGap;
+        DiskChunkCache.directory = null;
+    }
+
+    @Test
+    void crc32cOfCheckValue() {
+        assertEquals(0xE3069283, Crc32c.compute("123456789".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(0, Crc32c.compute(new byte[0]));
+    }
+
+    @Test
+    void chunkIndexIsInZarrCOrder() {
+        // 2 x 3 chunks in N5 order, i.e. 3 x 2 in zarr order
+        final ShardingIndexed sharding = new ShardingIndexed(new int[]{2, 3}, true, ByteOrder.LITTLE_ENDIAN, false, false);
+        assertEquals(6, sharding.getNumChunks());
+        assertEquals(0, sharding.getChunkIndex(new long[]{0, 0}));
+        assertEquals(1, sharding.getChunkIndex(new long[]{1, 0}));
+        assertEquals(2, sharding.getChunkIndex(new long[]{0, 1}));
+        assertEquals(5, sharding.getChunkIndex(new long[]{3, 5}));
+        assertArrayEquals(new long[]{1, 1}, sharding.getShardPosition(new long[]{3, 5}));
+        assertEquals(6 * 16, sharding.getIndexSize());
+    }
+
+    @Test
+    void parseIndexWithEmptyChunks() throws IOException {
+        final ShardingIndexed sharding = new ShardingIndexed(new int[]{2, 1}, true, ByteOrder.LITTLE_ENDIAN, false, false);
+        final ByteBuffer bytes = index(ByteOrder.LITTLE_ENDIAN, 0, 10, EMPTY, EMPTY);
+        final ShardingIndexed.Index index = sharding.parseIndex(bytes);
+        assertEquals(0, bytes.position());
+        assertTrue(index.exists(0));
+        assertEquals(10, index.getSize(0));
+        assertFalse(index.exists(1));
+        assertFalse(ShardingIndexed.Index.MISSING.exists(0));
+        assertEquals(0, ShardingIndexed.Index.MISSING.getMemorySize());
+
+        assertThrows(IOException.class, () -> sharding.parseIndex(index(ByteOrder.LITTLE_ENDIAN, 0, 10)));
+    }
+
+    @Test
+    void parseBigEndianIndex() throws IOException {
+        final ShardingIndexed sharding = new ShardingIndexed(new int[]{1}, true, ByteOrder.BIG_ENDIAN, false, false);
+        final ShardingIndexed.Index index = sharding.parseIndex(index(ByteOrder.BIG_ENDIAN, 7, 3));
+        assertEquals(7, index.getOffset(0));
+        assertEquals(3, index.getSize(0));
+    }
+
+    @Test
+    void verifyIndexChecksum() throws IOException {
+        final ShardingIndexed sharding = new ShardingIndexed(new int[]{1}, true, ByteOrder.LITTLE_ENDIAN, true, true);
+        final ByteBuffer entries = index(ByteOrder.LITTLE_ENDIAN, 0, 12);
+        final ByteBuffer bytes = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.put(entries.duplicate()).putInt(Crc32c.compute(entries)).flip();
+
+        final ShardingIndexed.Index index = sharding.parseIndex(bytes);
+        assertEquals(8, index.getSize(0));
+        assertEquals(12, index.getStoredSize(0));
+
+        bytes.put(3, (byte) 1);
+        assertThrows(IOException.class, () -> sharding.parseIndex(bytes));
+    }
+
+    @Test
+    void readMissingShard() throws IOException {
+        final ShardingIndexed sharding = new ShardingIndexed(new int[]{2}, true, ByteOrder.LITTLE_ENDIAN, false, false);
+        final CountingRangeReader rangeReader = new CountingRangeReader();
+        final ShardReader shardReader = new ShardReader(rangeReader);
+        assertSame(ShardingIndexed.Index.MISSING, shardReader.getIndex("missing", sharding));
+        assertNull(shardReader.readChunk("missing", sharding, new long[]{1}));
+        // the missing index is cached
+        assertEquals(1, rangeReader.numReads);
+    }
+
+    @Test
+    void coalesceNearbyChunks() throws IOException {
+        final ShardingIndexed sharding = new ShardingIndexed(new int[]{4}, true, ByteOrder.LITTLE_ENDIAN, false, true);
+        final byte[][] chunks = {{1, 1}, null, {3, 3, 3}, {4}};
+        final CountingRangeReader rangeReader = new CountingRangeReader();
+        rangeReader.objects.put("shard", shard(sharding, chunks));
+        final ShardReader shardReader = new ShardReader(rangeReader);
+
+        final List<long[]> gridPositions = Arrays.asList(new long[]{3}, new long[]{1}, new long[]{0}, new long[]{2});
+        ByteBuffer[] read = shardReader.readChunks("shard", sharding, gridPositions);
+        assertEquals(2, rangeReader.numReads);
+        assertArrayEquals(chunks[3], bytes(read[0]));
+        assertNull(read[1]);
+        assertArrayEquals(chunks[0], bytes(read[2]));
+        assertArrayEquals(chunks[2], bytes(read[3]));
+
+        // without gaps every chunk is read on its own, the index is cached
+        ShardReader.maxGap = -1;
+        read = shardReader.readChunks("shard", sharding, gridPositions);
+        assertEquals(2 + 3, rangeReader.numReads);
+        assertArrayEquals(chunks[2], bytes(read[3]));
+    }
+
+    @Test
+    void cacheInnerChunksOnDisk(@TempDir final Path directory) throws IOException {
+        DiskChunkCache.directory = directory.toFile();
+        final DiskChunkCache diskCache = DiskChunkCache.getInstance();
+        final ShardingIndexed sharding = new ShardingIndexed(new int[]{4}, true, ByteOrder.LITTLE_ENDIAN, false, true);
+        final byte[][] chunks = {{1, 1}, {2}, {3, 3, 3}, {4}};
+        final CountingRangeReader rangeReader = new CountingRangeReader();
+        rangeReader.objects.put("shard", shard(sharding, chunks));
+        rangeReader.version = "v1";
+
+        // the index and chunks 0 and 3 with one merged read
+        ByteBuffer[] read = new ShardReader(rangeReader, diskCache, "scope").readChunks("shard", sharding, Arrays.asList(new long[]{0}, new long[]{3}));
+        assertEquals(2, rangeReader.numReads);
+        assertArrayEquals(chunks[3], bytes(read[1]));
+
+        // a later session finds the index and chunk 3 on disk, although it reads other ranges
+        ShardReader.maxGap = -1;
+        read = new ShardReader(rangeReader, diskCache, "scope").readChunks("shard", sharding, Arrays.asList(new long[]{3}, new long[]{2}));
+        assertEquals(2 + 1, rangeReader.numReads);
+        assertArrayEquals(chunks[3], bytes(read[0]));
+        assertArrayEquals(chunks[2], bytes(read[1]));
+
+        // a changed shard is read again
+        rangeReader.version = "v2";
+        read = new ShardReader(rangeReader, diskCache, "scope").readChunks("shard", sharding, Arrays.asList(new long[]{3}));
+        assertEquals(3 + 2, rangeReader.numReads);
+        assertArrayEquals(chunks[3], bytes(read[0]));
+    }
+
+    @Test
+    void rejectCorruptChunk() throws IOException {
+        final ShardingIndexed sharding = new ShardingIndexed(new int[]{1}, false, ByteOrder.LITTLE_ENDIAN, false, true);
+        final CountingRangeReader rangeReader = new CountingRangeReader();
+        final byte[] shard = shard(sharding, new byte[][]{{1, 2, 3}});
+        shard[(int) sharding.getIndexSize()] ^= 1;
+        rangeReader.objects.put("shard", shard);
+        assertThrows(IOException.class, () -> new ShardReader(rangeReader).readChunk("shard", sharding, new long[]{0}));
+    }
+
+    private static ByteBuffer index(final ByteOrder order, final long... offsetsAndSizes) {
+        final ByteBuffer bytes = ByteBuffer.allocate(8 * offsetsAndSizes.length).order(order);
+        bytes.asLongBuffer().put(offsetsAndSizes);
+        return bytes;
+    }
+
+    /**
+     * Builds a shard with a little endian index without checksum and crc32c
+     * checksums after the chunks if the sharding has them.
+     */
+    private static byte[] shard(final ShardingIndexed sharding, final byte[][] chunks) {
+        final int checksumSize = sharding.hasChunkChecksum() ? 4 : 0;
+        int dataSize = 0;
+        for (byte[] chunk : chunks)
+            if (chunk != null)
+                dataSize += chunk.length + checksumSize;
+
+        final int indexSize = (int) sharding.getIndexSize();
+        final ByteBuffer shard = ByteBuffer.allocate(dataSize + indexSize).order(ByteOrder.LITTLE_ENDIAN);
+        final int dataStart = sharding.isIndexAtEnd() ? 0 : indexSize;
+        final int indexStart = sharding.isIndexAtEnd() ? dataSize : 0;
+        int offset = dataStart;
+        for (int i = 0; i < chunks.length; i++) {
+            if (chunks[i] == null) {
+                shard.putLong(indexStart + 16 * i, EMPTY).putLong(indexStart + 16 * i + 8, EMPTY);
+                continue;
+            }
+            shard.putLong(indexStart + 16 * i, offset).putLong(indexStart + 16 * i + 8, chunks[i].length + checksumSize);
+            shard.position(offset);
+            shard.put(chunks[i]);
+            if (checksumSize > 0)
+                shard.putInt(Crc32c.compute(chunks[i]));
+            offset = shard.position();
+        }
+        return shard.array();
+    }
+
+    private static byte[] bytes(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static class CountingRangeReader implements ShardReader.RangeReader {
+        private final Map<String, byte[]> objects = new HashMap<>();
+        private int numReads;
+        private String version;
+
+        @Override
+        public synchronized ByteBuffer read(final String key, final long offset, final long length) {
+            numReads++;
+            final byte[] object = objects.get(key);
+            return object == null ? null : ByteBuffer.wrap(Arrays.copyOfRange(object, (int) offset, (int) (offset + length)));
+        }
+
+        @Override
+        public synchronized ByteBuffer readSuffix(final String key, final long length) {
+            final byte[] object = objects.get(key);
+            return read(key, object == null ? 0 : object.length - length, length);
+        }
+
+        @Override
+        public synchronized String getVersion(final String key) {
+            return objects.containsKey(key) ? version : null;
+        }
+    }
+}
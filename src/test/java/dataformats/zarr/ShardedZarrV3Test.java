@@ -0,0 +1,280 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats.zarr;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URISyntaxException;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.embl.mobie.io.ome.zarr.readers.N5OmeZarrReader;
+import org.embl.mobie.io.ome.zarr.util.ShardingIndexed;
+import org.embl.mobie.io.ome.zarr.util.ZarrV3ArrayMetadata;
+import org.embl.mobie.io.ome.zarr.writers.N5OMEZarrWriter;
+import org.embl.mobie.io.ome.zarr.writers.ShardWriter;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+import org.janelia.saalfeldlab.n5.zarr.DType;
+import org.janelia.saalfeldlab.n5.zarr.ZarrCompressor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Reads and writes sharded zarr v3 arrays. The fixture {@code zarr-v3/sharded-crc32c.zarr}
+ * has the layout that zarr-python 3 writes: a 6 x 6 uint16 array in shards of
+ * 4 x 4 and inner chunks of 2 x 2, with crc32c checksums after the shard index
+ * and after every inner chunk. The shards at the border hold a single row or
+ * column of inner chunks, inner chunk (1, 0) is empty and shard (1, 1) is not
+ * stored at all.
+ */
+public class ShardedZarrV3Test {
+    private static final Gson gson = new GsonBuilder()
+        .registerTypeAdapter(DType.class, new DType.JsonAdapter())
+        .registerTypeAdapter(ZarrCompressor.class, ZarrCompressor.jsonAdapter)
+        .create();
+
+    @Test
+    void parseShardedMetadata() throws IOException, URISyntaxException {
+        final ZarrV3ArrayMetadata metadata = ZarrV3ArrayMetadata.parse(readZarrJson(fixture().resolve("s0")), gson);
+        final ShardingIndexed sharding = metadata.getSharding();
+        assertNotNull(sharding);
+        assertArrayEquals(new int[]{2, 2}, sharding.getChunksPerShard());
+        assertTrue(sharding.isIndexAtEnd());
+        assertTrue(sharding.hasIndexChecksum());
+        assertTrue(sharding.hasChunkChecksum());
+        assertEquals(4 * 16 + 4, sharding.getIndexSize());
+
+        final DatasetAttributes attributes = metadata.getZArrayAttributes().getDatasetAttributes();
+        assertArrayEquals(new long[]{6, 6}, attributes.getDimensions());
+        assertArrayEquals(new int[]{2, 2}, attributes.getBlockSize());
+        assertEquals(DataType.UINT16, attributes.getDataType());
+    }
+
+    @Test
+    void parseCodecs() throws IOException, URISyntaxException {
+        final ZarrV3ArrayMetadata gzip = parseWithInnerCodecs("[{\"name\": \"bytes\"}, {\"name\": \"gzip\", \"configuration\": {\"level\": 1}}]");
+        assertEquals("gzip", gzip.getZArrayAttributes().getCompressor().getCompression().getType());
+        assertFalse(gzip.getSharding().hasChunkChecksum());
+
+        final ZarrV3ArrayMetadata transposed = parseWithInnerCodecs(
+            "[{\"name\": \"transpose\", \"configuration\": {\"order\": [0, 1]}}, {\"name\": \"bytes\", \"configuration\": {\"endian\": \"big\"}}]");
+        assertEquals(ByteOrder.BIG_ENDIAN, transposed.getZArrayAttributes().getDType().getOrder());
+
+        // axis permutations, zstd and more than one compressor are rejected
+        assertThrows(IOException.class, () -> parseWithInnerCodecs(
+            "[{\"name\": \"transpose\", \"configuration\": {\"order\": [1, 0]}}, {\"name\": \"bytes\"}]"));
+        assertThrows(IOException.class, () -> parseWithInnerCodecs(
+            "[{\"name\": \"bytes\"}, {\"name\": \"zstd\", \"configuration\": {\"level\": 0, \"checksum\": false}}]"));
+        assertThrows(IOException.class, () -> parseWithInnerCodecs(
+            "[{\"name\": \"bytes\"}, {\"name\": \"gzip\"}, {\"name\": \"blosc\"}]"));
+    }
+
+    @Test
+    void readShardedFixture() throws IOException, URISyntaxException {
+        final N5OmeZarrReader reader = new N5OmeZarrReader(fixture().toString());
+        final DatasetAttributes attributes = reader.getDatasetAttributes("s0");
+        for (int y = 0; y < 3; y++) {
+            for (int x = 0; x < 3; x++) {
+                final DataBlock<?> block = reader.readBlock("s0", attributes, x, y);
+                if ((x == 0 && y == 1) || (x == 2 && y == 2)) {
+                    assertNull(block);
+                    continue;
+                }
+                final short[] data = (short[]) block.getData();
+                for (int i = 0; i < 4; i++)
+                    assertEquals(6 * (2 * y + i / 2) + 2 * x + i % 2 + 1, data[i]);
+            }
+        }
+    }
+
+    @Test
+    void writeAndReadShards(@TempDir Path tempDir) throws IOException {
+        final long[] dimensions = {7, 5, 3};
+        final int[] blockSize = {2, 2, 2};
+        final N5OMEZarrWriter writer = new N5OMEZarrWriter(tempDir.toString());
+        writer.setZarrFormat(3);
+        writer.createShardedDataset("s0", new DatasetAttributes(dimensions, blockSize, DataType.UINT16, new GzipCompression()), new int[]{4, 4, 2}, null);
+
+        // the shards at the upper x and y border are only partially filled, some chunks are not written
+        final ShardWriter shardWriter = new ShardWriter(writer, "s0");
+        final long[] gridPosition = new long[3];
+        for (gridPosition[2] = 0; gridPosition[2] < 2; gridPosition[2]++) {
+            for (gridPosition[1] = 0; gridPosition[1] < 3; gridPosition[1]++) {
+                for (gridPosition[0] = 0; gridPosition[0] < 4; gridPosition[0]++) {
+                    if (isMissing(gridPosition))
+                        continue;
+                    final int[] size = new int[3];
+                    for (int d = 0; d < 3; d++)
+                        size[d] = (int) Math.min(blockSize[d], dimensions[d] - gridPosition[d] * blockSize[d]);
+                    final short[] data = new short[size[0] * size[1] * size[2]];
+                    for (int i = 0; i < data.length; i++)
+                        data[i] = value(gridPosition, blockSize, i % size[0], i / size[0] % size[1], i / size[0] / size[1]);
+                    shardWriter.writeBlock(new ShortArrayDataBlock(size, gridPosition.clone(), data));
+                }
+            }
+        }
+        shardWriter.flush();
+        assertEquals(0, shardWriter.getNumPendingShards());
+
+        final N5OmeZarrReader reader = new N5OmeZarrReader(tempDir.toString());
+        final DatasetAttributes attributes = reader.getDatasetAttributes("s0");
+        assertArrayEquals(dimensions, attributes.getDimensions());
+        assertArrayEquals(blockSize, attributes.getBlockSize());
+        for (gridPosition[2] = 0; gridPosition[2] < 2; gridPosition[2]++) {
+            for (gridPosition[1] = 0; gridPosition[1] < 3; gridPosition[1]++) {
+                for (gridPosition[0] = 0; gridPosition[0] < 4; gridPosition[0]++) {
+                    final DataBlock<?> block = reader.readBlock("s0", attributes, gridPosition);
+                    if (isMissing(gridPosition)) {
+                        assertNull(block);
+                        continue;
+                    }
+                    // chunks are read with the full block size, only the voxels within the dataset are compared
+                    final short[] data = (short[]) block.getData();
+                    for (int z = 0; z < blockSize[2] && gridPosition[2] * blockSize[2] + z < dimensions[2]; z++)
+                        for (int y = 0; y < blockSize[1] && gridPosition[1] * blockSize[1] + y < dimensions[1]; y++)
+                            for (int x = 0; x < blockSize[0] && gridPosition[0] * blockSize[0] + x < dimensions[0]; x++)
+                                assertEquals(value(gridPosition, blockSize, x, y, z), data[x + blockSize[0] * (y + blockSize[1] * z)]);
+                }
+            }
+        }
+    }
+
+    @Test
+    void rewriteShardsBlockByBlock(@TempDir Path tempDir) throws IOException {
+        final long[] dimensions = {5, 3};
+        final int[] blockSize = {2, 2};
+        final int[] valueBlockSize = {2, 2, 1};
+        final N5OMEZarrWriter writer = new N5OMEZarrWriter(tempDir.toString());
+        writer.setZarrFormat(3);
+        final DatasetAttributes datasetAttributes = new DatasetAttributes(dimensions, blockSize, DataType.UINT16, new GzipCompression());
+        writer.createShardedDataset("s0", datasetAttributes, new int[]{4, 4}, null);
+
+        // every block is written twice, the second time with its final values
+        final long[] gridPosition = new long[3];
+        for (int pass = 0; pass < 2; pass++) {
+            for (gridPosition[1] = 0; gridPosition[1] < 2; gridPosition[1]++) {
+                for (gridPosition[0] = 0; gridPosition[0] < 3; gridPosition[0]++) {
+                    if (isMissing(gridPosition))
+                        continue;
+                    final short[] data = new short[blockSize[0] * blockSize[1]];
+                    for (int i = 0; i < data.length; i++)
+                        data[i] = pass == 0 ? 0 : value(gridPosition, valueBlockSize, i % blockSize[0], i / blockSize[0], 0);
+                    writer.writeBlock("s0", datasetAttributes, new ShortArrayDataBlock(blockSize, new long[]{gridPosition[0], gridPosition[1]}, data));
+                }
+            }
+        }
+
+        // the declared index checksum is written and verified when the shards are read
+        final Map<String, JsonElement> zarrJson = readZarrJson(tempDir.resolve("s0"));
+        assertTrue(zarrJson.get("codecs").toString().contains("crc32c"));
+        assertTrue(ZarrV3ArrayMetadata.parse(zarrJson, gson).getSharding().hasIndexChecksum());
+
+        final N5OmeZarrReader reader = new N5OmeZarrReader(tempDir.toString());
+        final DatasetAttributes attributes = reader.getDatasetAttributes("s0");
+        for (gridPosition[1] = 0; gridPosition[1] < 2; gridPosition[1]++) {
+            for (gridPosition[0] = 0; gridPosition[0] < 3; gridPosition[0]++) {
+                final DataBlock<?> block = reader.readBlock("s0", attributes, gridPosition[0], gridPosition[1]);
+                if (isMissing(gridPosition)) {
+                    assertNull(block);
+                    continue;
+                }
+                final short[] data = (short[]) block.getData();
+                for (int i = 0; i < data.length; i++)
+                    assertEquals(value(gridPosition, valueBlockSize, i % blockSize[0], i / blockSize[0], 0), data[i]);
+            }
+        }
+    }
+
+    @Test
+    void rejectRewritingLargeShards(@TempDir Path tempDir) throws IOException {
+        final N5OMEZarrWriter writer = new N5OMEZarrWriter(tempDir.toString());
+        writer.setZarrFormat(3);
+        final DatasetAttributes datasetAttributes = new DatasetAttributes(new long[]{64, 64}, new int[]{4, 4}, DataType.UINT16, new GzipCompression());
+        writer.createShardedDataset("s0", datasetAttributes, new int[]{64, 64}, null);
+        final DataBlock<short[]> block = new ShortArrayDataBlock(new int[]{4, 4}, new long[]{0, 0}, new short[16]);
+        assertThrows(IOException.class, () -> writer.writeBlock("s0", datasetAttributes, block));
+    }
+
+    private static boolean isMissing(final long[] gridPosition) {
+        return (gridPosition[0] + gridPosition[1] + gridPosition[2]) % 4 == 1;
+    }
+
+    private static short value(final long[] gridPosition, final int[] blockSize, final int x, final int y, final int z) {
+        return (short) (1
+            + gridPosition[0] * blockSize[0] + x
+            + 10 * (gridPosition[1] * blockSize[1] + y)
+            + 100 * (gridPosition[2] * blockSize[2] + z));
+    }
+
+    private static Path fixture() throws URISyntaxException {
+        return Paths.get(ShardedZarrV3Test.class.getResource("/zarr-v3/sharded-crc32c.zarr").toURI());
+    }
+
+    /**
+     * @return the metadata of the fixture with other codecs for the inner chunks
+     */
+    private static ZarrV3ArrayMetadata parseWithInnerCodecs(final String codecs) throws IOException, URISyntaxException {
+        final Map<String, JsonElement> zarrJson = readZarrJson(fixture().resolve("s0"));
+        final JsonObject sharding = zarrJson.get("codecs").getAsJsonArray().get(0).getAsJsonObject().getAsJsonObject("configuration");
+        sharding.add("codecs", gson.fromJson(codecs, JsonArray.class));
+        return ZarrV3ArrayMetadata.parse(zarrJson, gson);
+    }
+
+    private static Map<String, JsonElement> readZarrJson(final Path path) throws IOException {
+        try (final Reader reader = Files.newBufferedReader(path.resolve(ZarrV3ArrayMetadata.zarrJsonFile), StandardCharsets.UTF_8)) {
+            final Map<String, JsonElement> zarrJson = new HashMap<>();
+            for (Map.Entry<String, JsonElement> entry : gson.fromJson(reader, JsonObject.class).entrySet())
+                zarrJson.put(entry.getKey(), entry.getValue());
+            return zarrJson;
+        }
+    }
+}
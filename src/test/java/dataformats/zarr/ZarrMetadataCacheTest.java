@@ -0,0 +1,123 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats.zarr;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.embl.mobie.io.ome.zarr.util.ZarrMetadataCache;
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ZarrMetadataCacheTest {
+    private static final String KEY = ZarrMetadataCache.key("s0", ".zattrs");
+
+    private final ZarrMetadataCache cache = new ZarrMetadataCache();
+
+    private final AtomicInteger numLoads = new AtomicInteger();
+
+    @Test
+    void loadOnce() throws Exception {
+        assertEquals("a", value(cache.getAttributes(KEY, () -> load("a"))));
+        assertEquals("a", value(cache.getAttributes(KEY, () -> load("b"))));
+        assertEquals(1, numLoads.get());
+
+        // the absence of a file is cached as well
+        final String missing = ZarrMetadataCache.key("s1", ".zattrs");
+        assertNull(cache.getAttributes(missing, () -> {
+            numLoads.incrementAndGet();
+            return null;
+        }));
+        assertNull(cache.getAttributes(missing, () -> load("c")));
+        assertEquals(2, numLoads.get());
+    }
+
+    @Test
+    void loadAgainAfterInvalidation() throws Exception {
+        cache.getAttributes(KEY, () -> load("a"));
+        cache.invalidate("s0");
+        assertEquals("b", value(cache.getAttributes(KEY, () -> load("b"))));
+        cache.invalidate("/");
+        assertEquals("c", value(cache.getAttributes(KEY, () -> load("c"))));
+    }
+
+    @Test
+    void doNotCacheLoadThatOverlapsInvalidation() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch invalidated = new CountDownLatch(1);
+        final AtomicReference<String> staleValue = new AtomicReference<>();
+        final Thread reader = new Thread(() -> {
+            try {
+                staleValue.set(value(cache.getAttributes(KEY, () -> {
+                    loading.countDown();
+                    // the metadata is read before the writer modifies it
+                    final HashMap<String, JsonElement> stale = load("stale");
+                    try {
+                        assertTrue(invalidated.await(10, TimeUnit.SECONDS));
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return stale;
+                })));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        reader.start();
+        assertTrue(loading.await(10, TimeUnit.SECONDS));
+        cache.invalidate("s0");
+        invalidated.countDown();
+        reader.join();
+
+        // the reader that loaded it gets it, later readers load the modified metadata
+        assertEquals("stale", staleValue.get());
+        assertEquals("fresh", value(cache.getAttributes(KEY, () -> load("fresh"))));
+        assertEquals("fresh", value(cache.getAttributes(KEY, () -> load("other"))));
+    }
+
+    private HashMap<String, JsonElement> load(final String value) {
+        numLoads.incrementAndGet();
+        final HashMap<String, JsonElement> attributes = new HashMap<>();
+        attributes.put("value", new JsonPrimitive(value));
+        return attributes;
+    }
+
+    private static String value(final HashMap<String, JsonElement> attributes) {
+        return attributes.get("value").getAsString();
+    }
+}
@@ -0,0 +1,105 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import net.imglib2.cache.queue.BlockingFetchQueues;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.cell.Cell;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BoundedVolatileCellCacheTest {
+    private static final long BUDGET = 1 << 20;
+
+    private final double maxSourceFraction = CellCacheService.maxSourceFraction;
+
+    private final BlockingFetchQueues<Callable<?>> queue = new BlockingFetchQueues<>(1, 1);
+
+    @AfterEach
+    void tearDown() {
+        CellCacheService.maxSourceFraction = maxSourceFraction;
+    }
+
+    @Test
+    void respectBudgetWithMixedCellSizes() {
+        final BoundedVolatileCellCache cache = new BoundedVolatileCellCache(queue, BUDGET);
+        final Random random = new Random(42);
+        for (int index = 0; index < 1_000; index++) {
+            add(cache, index, 1 + random.nextInt(32 * 1024));
+            assertTrue(cache.getCachedBytes() <= BUDGET, "cached " + cache.getCachedBytes() + " bytes");
+        }
+        assertTrue(cache.getStatistics().getEvictions() > 0);
+        assertEquals(cache.getCachedBytes(), cache.getStatistics().getCachedBytes());
+    }
+
+    @Test
+    void limitTheShareOfOneSource() {
+        CellCacheService.maxSourceFraction = 0.25;
+        final WTinyLfuPolicy<BoundedVolatileCellCache.Key> policy = BoundedVolatileCellCache.createPolicy(BUDGET);
+        final BoundedVolatileCellCache large = new BoundedVolatileCellCache("large", queue, policy, true);
+        final BoundedVolatileCellCache small = new BoundedVolatileCellCache("small", queue, policy, true);
+
+        for (int index = 0; index < 10; index++)
+            add(small, index, 4096);
+        final long smallBytes = small.getCachedBytes();
+        for (int index = 0; index < 1_000; index++) {
+            add(large, index, 4096);
+            assertTrue(large.getCachedBytes() <= BUDGET / 4, "the large source holds " + large.getCachedBytes() + " bytes");
+        }
+
+        // the large source evicts its own cells, not those of the other source
+        assertEquals(smallBytes, small.getCachedBytes());
+        assertTrue(large.getStatistics().getEvictions() > 0);
+    }
+
+    @Test
+    void shrinkOnLowMemory() {
+        final BoundedVolatileCellCache cache = new BoundedVolatileCellCache(queue, BUDGET);
+        for (int index = 0; index < 1_000; index++)
+            add(cache, index, 4096);
+        assertTrue(cache.getCachedBytes() > BUDGET / 2);
+
+        BoundedVolatileCellCache.shrinkAll();
+
+        assertEquals(BUDGET / 2, cache.getBudget());
+        assertTrue(cache.getCachedBytes() <= BUDGET / 2, "cached " + cache.getCachedBytes() + " bytes");
+    }
+
+    private static void add(final BoundedVolatileCellCache cache, final long index, final int numElements) {
+        final Cell<ShortArray> cell = new Cell<>(new int[]{numElements}, new long[]{0}, new ShortArray(numElements));
+        cache.add(new BoundedVolatileCellCache.Key(cache, 0, 0, 0, index), cell);
+    }
+}
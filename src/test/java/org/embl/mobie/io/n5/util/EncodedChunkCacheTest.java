@@ -0,0 +1,194 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.embl.mobie.io.ome.zarr.readers.N5OmeZarrReader;
+import org.embl.mobie.io.ome.zarr.util.N5OMEZarrCacheArrayLoader;
+import org.embl.mobie.io.ome.zarr.util.N5ZarrImageReader;
+import org.embl.mobie.io.ome.zarr.util.ZarrAxes;
+import org.embl.mobie.io.ome.zarr.util.ZarrDatasetAttributes;
+import org.embl.mobie.io.ome.zarr.writers.N5OMEZarrWriter;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.gson.GsonBuilder;
+
+import net.imglib2.img.cell.CellGrid;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EncodedChunkCacheTest {
+    private static final long BUDGET = 1 << 20;
+
+    private final long maxBytes = EncodedChunkCache.maxBytes;
+
+    private EncodedChunkCache cache;
+
+    @BeforeEach
+    void setUp() {
+        EncodedChunkCache.maxBytes = BUDGET;
+        cache = EncodedChunkCache.getInstance();
+        cache.setBudget(BUDGET);
+        cache.clear();
+    }
+
+    @AfterEach
+    void tearDown() {
+        cache.clear();
+        cache.setBudget(BUDGET);
+        EncodedChunkCache.maxBytes = maxBytes;
+    }
+
+    @Test
+    void respectTheBudget() {
+        cache.setBudget(10_000);
+        for (int i = 0; i < 100; i++) {
+            cache.put("scope", "s0", new long[]{i}, ByteBuffer.wrap(new byte[1_000]));
+            assertTrue(cache.getCachedBytes() <= 10_000, "cached " + cache.getCachedBytes() + " bytes");
+        }
+
+        // the chunks that can be read are exactly those that the policy holds
+        int numCached = 0;
+        for (int i = 0; i < 100; i++)
+            if (cache.get("scope", "s0", new long[]{i}) != null)
+                ++numCached;
+        assertTrue(numCached > 0);
+        assertEquals(cache.getNumChunks(), numCached);
+    }
+
+    @Test
+    void keepOneChunkWhenReadersRace() throws InterruptedException {
+        final int numThreads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+            final byte value = (byte) t;
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 1_000; i++) {
+                    final byte[] bytes = new byte[1_000 + value];
+                    Arrays.fill(bytes, value);
+                    cache.put("scope", "s0", new long[]{0, 0}, ByteBuffer.wrap(bytes));
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+
+        // the cached bytes are those of one of the puts, and they are accounted once
+        assertEquals(1, cache.getNumChunks());
+        final ByteBuffer cached = cache.get("scope", "s0", new long[]{0, 0});
+        assertNotNull(cached);
+        final byte value = cached.get(0);
+        assertEquals(1_000 + value, cached.remaining());
+        while (cached.hasRemaining())
+            assertEquals(value, cached.get());
+        final long cachedBytes = cache.getCachedBytes();
+        cache.put("scope", "s0", new long[]{0, 0}, ByteBuffer.wrap(new byte[1_000 + value]));
+        assertEquals(cachedBytes, cache.getCachedBytes());
+
+        // the map and the policy agree, the chunk is gone once the policy evicted it
+        cache.setBudget(0);
+        assertNull(cache.get("scope", "s0", new long[]{0, 0}));
+        assertEquals(0, cache.getCachedBytes());
+    }
+
+    @Test
+    void handOutReadOnlyViews() {
+        final ByteBuffer encoded = ByteBuffer.wrap(new byte[]{1, 2, 3, 4});
+        final ByteBuffer put = cache.put("scope", "s0", new long[]{0}, encoded);
+        final ByteBuffer got = cache.get("scope", "s0", new long[]{0});
+        for (ByteBuffer view : Arrays.asList(put, got)) {
+            assertTrue(view.isReadOnly());
+            // callers only recycle the arrays of buffers that expose them
+            assertFalse(view.hasArray());
+            assertThrows(ReadOnlyBufferException.class, () -> view.put(0, (byte) 0));
+        }
+        assertEquals(4, got.remaining());
+        assertEquals(3, got.get(2));
+    }
+
+    @Test
+    void neverRecycleCachedChunks(@TempDir Path tempDir) throws IOException {
+        final N5OMEZarrWriter writer = new N5OMEZarrWriter(tempDir.toString());
+        final DatasetAttributes datasetAttributes = new DatasetAttributes(new long[]{8, 8}, new int[]{4, 4}, DataType.UINT16, new RawCompression());
+        writer.createDataset("s0", datasetAttributes);
+        for (int y = 0; y < 2; y++)
+            for (int x = 0; x < 2; x++)
+                writer.writeBlock("s0", datasetAttributes, new ShortArrayDataBlock(new int[]{4, 4}, new long[]{x, y}, new short[16]));
+
+        final N5OmeZarrReader reader = new N5OmeZarrReader(tempDir.toString(), new GsonBuilder(), N5ZarrImageReader.DEFAULT_SEPARATOR, true, true);
+        final ZarrDatasetAttributes attributes = (ZarrDatasetAttributes) reader.getDatasetAttributes("s0");
+
+        // uncompressed chunks are used as they are, i.e. the cached views themselves
+        for (int i = 0; i < 2; i++) {
+            final ByteBuffer bytes = reader.readChunkBytes("s0", attributes, 0, 0);
+            assertTrue(bytes.isReadOnly());
+            assertFalse(bytes.hasArray());
+        }
+        assertEquals(1, cache.getNumChunks());
+
+        ArrayPool.shared().clear();
+        final CellGrid grid = new CellGrid(new long[]{8, 8}, new int[]{4, 4});
+        final N5OMEZarrCacheArrayLoader<?> loader = new N5OMEZarrCacheArrayLoader<>(reader, "s0", 0, 0, attributes, grid, ZarrAxes.YX);
+        for (int i = 0; i < 2; i++)
+            for (int y = 0; y < 2; y++)
+                for (int x = 0; x < 2; x++)
+                    assertNotNull(loader.loadArray(new long[]{x, y}, new int[]{4, 4}));
+        assertEquals(4, cache.getNumChunks());
+        assertEquals(0, ArrayPool.shared().getPooledBytes());
+    }
+}
@@ -0,0 +1,250 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LoadBatcherTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private final int maxBatchSize = LoadBatcher.maxBatchSize;
+    private final int maxConcurrentBatches = LoadBatcher.maxConcurrentBatches;
+
+    private final List<List<Long>> batches = new ArrayList<>();
+    private final AtomicInteger numLoading = new AtomicInteger();
+    private final AtomicInteger maxNumLoading = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private volatile long failingPosition = -1;
+
+    private final LoadBatcher<long[]> batcher = new LoadBatcher<>(new BlockingLoader());
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        LoadBatcher.maxBatchSize = maxBatchSize;
+        LoadBatcher.maxConcurrentBatches = maxConcurrentBatches;
+    }
+
+    @Test
+    void batchRequestsThatWait() throws Exception {
+        LoadBatcher.maxConcurrentBatches = 1;
+        final Load first = load(0);
+        awaitBatches(1);
+        final List<Load> waiting = new ArrayList<>();
+        for (long position = 1; position <= 5; position++) {
+            final Load load = load(position);
+            awaitWaiting(load);
+            waiting.add(load);
+        }
+
+        release.countDown();
+        assertEquals(0, first.get()[0]);
+        for (Load load : waiting)
+            assertEquals(load.position, load.get()[0]);
+        synchronized (batches) {
+            assertEquals(Arrays.asList(Arrays.asList(0L), Arrays.asList(1L, 2L, 3L, 4L, 5L)), batches);
+        }
+    }
+
+    @Test
+    void startBatchesUpToTheLimit() throws Exception {
+        LoadBatcher.maxConcurrentBatches = 2;
+        final List<Load> loads = new ArrayList<>();
+        // a second batch starts without waiting for a full batch
+        loads.add(load(0));
+        awaitBatches(1);
+        loads.add(load(1));
+        awaitBatches(2);
+        for (long position = 2; position < 6; position++) {
+            final Load load = load(position);
+            awaitWaiting(load);
+            loads.add(load);
+        }
+        assertEquals(2, numLoading.get());
+
+        release.countDown();
+        for (Load load : loads)
+            assertEquals(load.position, load.get()[0]);
+        assertEquals(2, maxNumLoading.get());
+        synchronized (batches) {
+            assertTrue(batches.size() <= 4, batches.toString());
+        }
+    }
+
+    @Test
+    void retryCellsOfFailedBatch() throws Exception {
+        LoadBatcher.maxConcurrentBatches = 1;
+        failingPosition = 3;
+        final Load first = load(0);
+        awaitBatches(1);
+        final List<Load> waiting = new ArrayList<>();
+        for (long position = 1; position <= 3; position++) {
+            final Load load = load(position);
+            awaitWaiting(load);
+            waiting.add(load);
+        }
+
+        release.countDown();
+        assertEquals(0, first.get()[0]);
+        assertEquals(1, waiting.get(0).get()[0]);
+        assertEquals(2, waiting.get(1).get()[0]);
+        waiting.get(2).join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        assertTrue(waiting.get(2).failure instanceof IOException);
+        synchronized (batches) {
+            // the failed batch, then every cell on its own
+            assertEquals(Arrays.asList(Arrays.asList(0L), Arrays.asList(1L, 2L, 3L), Arrays.asList(1L), Arrays.asList(2L), Arrays.asList(3L)), batches);
+        }
+    }
+
+    @Test
+    void interruptedWaiterLeavesTheQueue() throws Exception {
+        LoadBatcher.maxConcurrentBatches = 1;
+        final Load first = load(0);
+        awaitBatches(1);
+        final Load interrupted = load(1);
+        awaitWaiting(interrupted);
+        interrupted.interrupt();
+        interrupted.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        assertTrue(interrupted.failure instanceof InterruptedIOException);
+
+        release.countDown();
+        assertEquals(0, first.get()[0]);
+        // later requests still load
+        assertEquals(2, load(2).get()[0]);
+        synchronized (batches) {
+            for (List<Long> batch : batches)
+                assertFalse(batch.contains(1L));
+        }
+    }
+
+    private Load load(final long position) {
+        final Load load = new Load(position);
+        load.start();
+        return load;
+    }
+
+    private void awaitBatches(final int numBatches) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (true) {
+            synchronized (batches) {
+                if (batches.size() >= numBatches)
+                    return;
+            }
+            assertTrue(System.nanoTime() < deadline, "timed out waiting for batch " + numBatches);
+            Thread.sleep(1);
+        }
+    }
+
+    private static void awaitWaiting(final Thread thread) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (thread.getState() != Thread.State.WAITING) {
+            assertTrue(System.nanoTime() < deadline, "timed out waiting for " + thread.getName());
+            Thread.sleep(1);
+        }
+    }
+
+    private class Load extends Thread {
+        final long position;
+        volatile long[] array;
+        volatile Exception failure;
+
+        Load(final long position) {
+            super("load-" + position);
+            this.position = position;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                array = batcher.load(new long[]{position});
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        long[] get() throws Exception {
+            join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+            assertFalse(isAlive(), getName() + " did not finish");
+            if (failure != null)
+                throw failure;
+            return array;
+        }
+    }
+
+    /**
+     * Records every batch and holds all of them until {@link #release} opens.
+     */
+    private class BlockingLoader implements BatchCacheArrayLoader<long[]> {
+        @Override
+        public long[] loadArray(final long[] gridPosition, final int[] cellDimensions) throws IOException {
+            return loadArrays(Arrays.asList(gridPosition)).get(0);
+        }
+
+        @Override
+        public List<long[]> loadArrays(final List<long[]> gridPositions) throws IOException {
+            final List<Long> batch = new ArrayList<>();
+            for (long[] gridPosition : gridPositions)
+                batch.add(gridPosition[0]);
+            synchronized (batches) {
+                batches.add(batch);
+            }
+            final int n = numLoading.incrementAndGet();
+            maxNumLoading.accumulateAndGet(n, Math::max);
+            try {
+                if (!release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                    throw new IOException("not released");
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } finally {
+                numLoading.decrementAndGet();
+            }
+            if (batch.contains(failingPosition))
+                throw new IOException("cannot load " + failingPosition);
+            final List<long[]> arrays = new ArrayList<>();
+            for (long[] gridPosition : gridPositions)
+                arrays.add(gridPosition.clone());
+            return arrays;
+        }
+    }
+}
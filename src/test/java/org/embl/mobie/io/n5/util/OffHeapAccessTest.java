@@ -0,0 +1,153 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import net.imglib2.cache.queue.BlockingFetchQueues;
+import net.imglib2.img.cell.Cell;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OffHeapAccessTest {
+    private static final int NUM_ELEMENTS = 1024;
+
+    private static final long CELL_BYTES = BoundedVolatileCellCache.weigh(cell(OffHeapAccess.allocate(DataType.UINT16, NUM_ELEMENTS)));
+
+    private final long releaseDelayMillis = OffHeapAccess.releaseDelayMillis;
+
+    private final BlockingFetchQueues<Callable<?>> queue = new BlockingFetchQueues<>(1, 1);
+
+    @BeforeEach
+    void setUp() {
+        OffHeapAccess.releaseDelayMillis = 0;
+    }
+
+    @AfterEach
+    void tearDown() {
+        OffHeapAccess.releaseDelayMillis = releaseDelayMillis;
+    }
+
+    @Test
+    void failReadsAfterRelease() throws Exception {
+        final OffHeapAccess.Shorts access = (OffHeapAccess.Shorts) OffHeapAccess.allocate(DataType.UINT16, NUM_ELEMENTS);
+        access.setValue(1, (short) 7);
+        assertEquals(7, access.getValue(1));
+        assertTrue(access.isValid());
+
+        final long allocated = OffHeapAccess.getAllocatedBytes();
+        access.release();
+        assertFalse(access.isValid());
+        assertEquals(allocated - 2 * NUM_ELEMENTS, OffHeapAccess.getAllocatedBytes());
+
+        awaitReleaseThread();
+        assertThrows(IndexOutOfBoundsException.class, () -> access.getValue(1));
+    }
+
+    @Test
+    void releaseOnlyPublishedAccesses() {
+        final OffHeapAccess published = OffHeapAccess.allocate(DataType.UINT16, NUM_ELEMENTS);
+        assertFalse(published.publish());
+        assertTrue(published.markEvicted());
+
+        final OffHeapAccess unpublished = OffHeapAccess.allocate(DataType.UINT16, NUM_ELEMENTS);
+        assertFalse(unpublished.markEvicted());
+        // handed out after the eviction, it has to be added to the policy again
+        assertTrue(unpublished.publish());
+        assertTrue(unpublished.markEvicted());
+    }
+
+    @Test
+    void releaseCellsAfterEviction() throws Exception {
+        final BoundedVolatileCellCache cache = new BoundedVolatileCellCache(queue, 4 * CELL_BYTES);
+        final OffHeapAccess published = add(cache, 0);
+        published.publish();
+        final OffHeapAccess unpublished = add(cache, 1);
+        for (int index = 2; index < 20; index++)
+            add(cache, index).publish();
+        awaitReleaseThread();
+
+        assertTrue(published.isReleased());
+        assertFalse(unpublished.isReleased());
+        assertTrue(cache.getCachedBytes() <= 4 * CELL_BYTES);
+    }
+
+    @Test
+    void releaseAllCellsWhenCleared() throws Exception {
+        final BoundedVolatileCellCache cache = new BoundedVolatileCellCache(queue, 4 * CELL_BYTES);
+        final List<OffHeapAccess> accesses = new ArrayList<>();
+        for (int index = 0; index < 20; index++) {
+            final OffHeapAccess access = add(cache, index);
+            if (index % 2 == 0)
+                access.publish();
+            accesses.add(access);
+        }
+        final long allocated = OffHeapAccess.getAllocatedBytes();
+
+        cache.clearCache();
+        awaitReleaseThread();
+
+        for (OffHeapAccess access : accesses)
+            assertTrue(access.isReleased(), "an access was not released");
+        assertEquals(0, cache.getCachedBytes());
+        assertTrue(OffHeapAccess.getAllocatedBytes() < allocated);
+    }
+
+    private static OffHeapAccess add(final BoundedVolatileCellCache cache, final long index) {
+        final OffHeapAccess access = OffHeapAccess.allocate(DataType.UINT16, NUM_ELEMENTS);
+        cache.add(new BoundedVolatileCellCache.Key(cache, 0, 0, 0, index), cell(access));
+        return access;
+    }
+
+    private static Cell<OffHeapAccess> cell(final OffHeapAccess access) {
+        return new Cell<>(new int[]{NUM_ELEMENTS}, new long[]{0}, access);
+    }
+
+    /**
+     * Waits for the tasks that are due on the release thread, the memory of
+     * released accesses is freed then.
+     */
+    private static void awaitReleaseThread() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        OffHeapAccess.runOnReleaseThread(done::countDown);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,169 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WTinyLfuPolicyTest {
+
+    private final Map<Integer, Long> weights = new HashMap<>();
+
+    private final WTinyLfuPolicy.Listener<Integer> listener = new WTinyLfuPolicy.Listener<Integer>() {
+        @Override
+        public void onAdd(final Integer key, final long weightDelta, final boolean replaced) {
+            synchronized (weights) {
+                weights.merge(key, weightDelta, Long::sum);
+            }
+        }
+
+        @Override
+        public void onRemoval(final Integer key, final Object value, final long weight, final boolean evicted) {
+            synchronized (weights) {
+                assertEquals(weight, (long) weights.remove(key));
+            }
+        }
+    };
+
+    @Test
+    void respectBudgetWithMixedWeights() {
+        final WTinyLfuPolicy<Integer> policy = new WTinyLfuPolicy<>(10_000, 100, listener);
+        final Random random = new Random(42);
+        for (int i = 0; i < 5_000; i++) {
+            final int key = random.nextInt(500);
+            if (random.nextBoolean())
+                policy.add(key, key, 1 + random.nextInt(1_000));
+            else
+                policy.access(key, null, 0);
+            assertTrue(policy.getWeight() <= 10_000, "weight " + policy.getWeight() + " exceeds the budget");
+        }
+        assertEquals(sum(), policy.getWeight());
+        assertEquals(weights.size(), policy.size());
+    }
+
+    @Test
+    void keepFrequentEntriesDuringScan() {
+        final WTinyLfuPolicy<Integer> policy = new WTinyLfuPolicy<>(1_000, 10, listener);
+        final int numHot = 50;
+        for (int key = 0; key < numHot; key++)
+            policy.add(key, key, 10);
+        for (int i = 0; i < 5; i++)
+            for (int key = 0; key < numHot; key++)
+                policy.access(key, null, 0);
+
+        // a scan over many entries that are used once
+        for (int key = numHot; key < 10_000; key++)
+            policy.add(key, key, 10);
+
+        for (int key = 0; key < numHot; key++)
+            assertTrue(policy.contains(key), "hot entry " + key + " was evicted by the scan");
+        assertTrue(policy.getWeight() <= 1_000);
+    }
+
+    @Test
+    void addAccessedEntryThatIsMissing() {
+        final WTinyLfuPolicy<Integer> policy = new WTinyLfuPolicy<>(1_000, 10, listener);
+        policy.access(1, "value", 10);
+        policy.access(2, null, 10);
+        policy.add(3, "value", 10);
+
+        assertTrue(policy.contains(1));
+        assertFalse(policy.contains(2));
+        assertEquals(20, policy.getWeight());
+    }
+
+    @Test
+    void shrinkAndRecover() {
+        final WTinyLfuPolicy<Integer> policy = new WTinyLfuPolicy<>(1_000, 10, listener);
+        for (int key = 0; key < 100; key++)
+            policy.add(key, key, 10);
+        assertEquals(1_000, policy.getWeight());
+
+        policy.shrink();
+        assertEquals(500, policy.getMaxWeight());
+        assertTrue(policy.getWeight() <= 500);
+        assertEquals(sum(), policy.getWeight());
+
+        policy.shrink();
+        assertEquals(250, policy.getMaxWeight());
+
+        policy.setBudget(1_000);
+        assertEquals(1_000, policy.getMaxWeight());
+    }
+
+    @Test
+    void accessConcurrently() throws Exception {
+        final WTinyLfuPolicy<Integer> policy = new WTinyLfuPolicy<>(10_000, 100, listener);
+        final List<Thread> threads = new ArrayList<>();
+        final List<Throwable> failures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int seed = t;
+            threads.add(new Thread(() -> {
+                final Random random = new Random(seed);
+                try {
+                    for (int i = 0; i < 100_000; i++) {
+                        final int key = random.nextInt(1_000);
+                        if (i % 10 == 0)
+                            policy.add(key, key, 1 + random.nextInt(200));
+                        else
+                            policy.access(key, key, 100);
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertTrue(failures.isEmpty(), "failures: " + failures);
+        assertTrue(policy.getWeight() <= 10_000);
+        assertEquals(sum(), policy.getWeight());
+        assertEquals(weights.size(), policy.size());
+    }
+
+    private long sum() {
+        synchronized (weights) {
+            return weights.values().stream().mapToLong(Long::longValue).sum();
+        }
+    }
+}
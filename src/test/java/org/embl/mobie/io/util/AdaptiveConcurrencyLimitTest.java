@@ -0,0 +1,125 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class AdaptiveConcurrencyLimitTest {
+    // a constant latency, such that the requests never count as queueing
+    private static final long LATENCY_NANOS = 1;
+
+    private final int initialLimit = AdaptiveConcurrencyLimit.initialLimit;
+
+    @AfterEach
+    void tearDown() {
+        AdaptiveConcurrencyLimit.initialLimit = initialLimit;
+    }
+
+    @Test
+    void doubleDuringSlowStart() throws InterruptedException {
+        AdaptiveConcurrencyLimit.initialLimit = 4;
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 1000);
+        assertEquals(4, limit.getLimit());
+        window(limit);
+        assertEquals(8, limit.getLimit());
+        window(limit);
+        assertEquals(16, limit.getLimit());
+        assertEquals(0, limit.getInFlight());
+    }
+
+    @Test
+    void growAdditivelyAfterThrottle() throws InterruptedException {
+        AdaptiveConcurrencyLimit.initialLimit = 16;
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 1000);
+        limit.acquire();
+        limit.onThrottle();
+        assertEquals(8, limit.getLimit());
+        window(limit);
+        assertEquals(9, limit.getLimit());
+        window(limit);
+        assertEquals(10, limit.getLimit());
+    }
+
+    @Test
+    void halveOnThrottleDownToTheFloor() throws InterruptedException {
+        AdaptiveConcurrencyLimit.initialLimit = 64;
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(10, 100);
+        // the latency of a round trip, within which only the first throttle counts
+        limit.acquire();
+        limit.onSuccess(LATENCY_NANOS, 0);
+
+        final int[] expected = {32, 16, 10, 10};
+        for (int expectedLimit : expected) {
+            limit.acquire();
+            limit.onThrottle();
+            assertEquals(expectedLimit, limit.getLimit());
+        }
+        assertEquals(0, limit.getInFlight());
+    }
+
+    @Test
+    void growUpToTheCeiling() throws InterruptedException {
+        AdaptiveConcurrencyLimit.initialLimit = 4;
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 20);
+        for (int i = 0; i < 5; i++)
+            window(limit);
+        assertEquals(20, limit.getLimit());
+    }
+
+    @Test
+    void keepTheLimitIfRequestsAreDropped() throws InterruptedException {
+        AdaptiveConcurrencyLimit.initialLimit = 4;
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 100);
+        for (int i = 0; i < 4; i++)
+            limit.acquire();
+        for (int i = 0; i < 4; i++)
+            limit.onDropped();
+        assertEquals(4, limit.getLimit());
+        assertEquals(0, limit.getInFlight());
+    }
+
+    /**
+     * Sends as many requests as the limit allows and completes them.
+     */
+    private static void window(final AdaptiveConcurrencyLimit limit) throws InterruptedException {
+        final int n = limit.getLimit();
+        for (int i = 0; i < n; i++)
+            limit.acquire();
+        assertEquals(n, limit.getInFlight());
+        // the window lasts at least one round trip
+        final long start = System.nanoTime();
+        while (System.nanoTime() - start < 1000)
+            Thread.yield();
+        for (int i = 0; i < n; i++)
+            limit.onSuccess(LATENCY_NANOS, 1000);
+    }
+}
@@ -0,0 +1,130 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3Object;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ConcurrencyLimitedS3Test {
+    private final int initialLimit = AdaptiveConcurrencyLimit.initialLimit;
+
+    private AdaptiveConcurrencyLimit limit;
+
+    private AmazonServiceException failure;
+
+    private AmazonS3 s3;
+
+    @BeforeEach
+    void setUp() {
+        AdaptiveConcurrencyLimit.initialLimit = 16;
+        limit = new AdaptiveConcurrencyLimit(1, 100);
+        // answers every getObject with 1000 bytes, or with the failure if set
+        final AmazonS3 store = (AmazonS3) Proxy.newProxyInstance(
+            AmazonS3.class.getClassLoader(),
+            new Class<?>[]{AmazonS3.class},
+            (proxy, method, args) -> {
+                if (!"getObject".equals(method.getName()))
+                    throw new UnsupportedOperationException(method.getName());
+                if (failure != null)
+                    throw failure;
+                final S3Object object = new S3Object();
+                object.setObjectContent(new ByteArrayInputStream(new byte[1000]));
+                return object;
+            });
+        s3 = ConcurrencyLimitedS3.wrap(store, limit);
+    }
+
+    @AfterEach
+    void tearDown() {
+        AdaptiveConcurrencyLimit.initialLimit = initialLimit;
+    }
+
+    @Test
+    void returnPermitWhenContentIsClosed() throws IOException {
+        final S3Object object = s3.getObject("bucket", "key");
+        assertEquals(1, limit.getInFlight());
+        object.getObjectContent().close();
+        assertEquals(0, limit.getInFlight());
+    }
+
+    @Test
+    void returnPermitWhenContentIsReadToTheEnd() throws IOException {
+        final S3Object object = s3.getObject("bucket", "key");
+        final InputStream content = object.getObjectContent();
+        final byte[] buffer = new byte[256];
+        while (content.read(buffer) >= 0)
+            assertEquals(1, limit.getInFlight());
+        assertEquals(0, limit.getInFlight());
+
+        // closing afterwards does not return the permit again
+        content.close();
+        assertEquals(0, limit.getInFlight());
+    }
+
+    @Test
+    void returnPermitOfMissingObject() {
+        failure = new AmazonServiceException("missing");
+        failure.setStatusCode(404);
+        assertThrows(AmazonServiceException.class, () -> s3.getObject("bucket", "key"));
+        assertEquals(0, limit.getInFlight());
+        assertEquals(16, limit.getLimit());
+    }
+
+    @Test
+    void halveTheLimitOnSlowDown() {
+        failure = new AmazonServiceException("slow down");
+        failure.setStatusCode(503);
+        failure.setErrorCode("SlowDown");
+        assertThrows(AmazonServiceException.class, () -> s3.getObject("bucket", "key"));
+        assertEquals(0, limit.getInFlight());
+        assertEquals(8, limit.getLimit());
+    }
+
+    @Test
+    void returnPermitOfFailedRequest() {
+        failure = new AmazonServiceException("denied");
+        failure.setStatusCode(403);
+        assertThrows(AmazonServiceException.class, () -> s3.getObject("bucket", "key"));
+        assertEquals(0, limit.getInFlight());
+        assertEquals(16, limit.getLimit());
+    }
+}